@@ -4,11 +4,11 @@ import org.signal.core.util.concurrent.SignalExecutors
 import org.signal.core.util.logging.AndroidLogger
 import org.signal.core.util.logging.Log
 import org.signal.libsignal.protocol.logging.SignalProtocolLoggerProvider
-import org.thoughtcrime.securesms.database.LogDatabase
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencyProvider
 import org.thoughtcrime.securesms.dependencies.InstrumentationApplicationDependencyProvider
 import org.thoughtcrime.securesms.logging.CustomSignalProtocolLogger
+import org.thoughtcrime.securesms.logging.LogStore
 import org.thoughtcrime.securesms.logging.PersistentLogger
 import org.thoughtcrime.securesms.testing.InMemoryLogger
 
@@ -34,7 +34,7 @@ class SignalInstrumentationApplicationContext : ApplicationContext() {
 
     SignalExecutors.UNBOUNDED.execute {
       Log.blockUntilAllWritesFinished()
-      LogDatabase.getInstance(this).trimToSize()
+      LogStore.getInstance(this).trimToSize()
     }
   }
 }
@@ -0,0 +1,57 @@
+package org.thoughtcrime.securesms.backup
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.signal.core.util.logging.Log
+import org.thoughtcrime.securesms.crypto.AttachmentSecretProvider
+import org.thoughtcrime.securesms.database.SignalDatabase
+import org.thoughtcrime.securesms.recipients.Recipient
+import org.thoughtcrime.securesms.testing.SignalActivityRule
+import java.io.File
+import java.io.FileInputStream
+
+/**
+ * Exports a synthetic database to track the performance of [FullBackupExporter].
+ * See [SyntheticBackupData] for how to configure its size.
+ */
+// @Ignore("Ignore test in normal testing as it's a performance test with no assertions")
+@RunWith(AndroidJUnit4::class)
+class FullBackupExporterPerformanceTest {
+
+  companion object {
+    private val TAG = Log.tag(FullBackupExporterPerformanceTest::class.java)
+
+    private const val PASSPHRASE = "000000000000000000000000000000"
+  }
+
+  @get:Rule
+  val harness = SignalActivityRule()
+
+  @Test
+  fun testPerformance() {
+    SyntheticBackupData.fromArguments(InstrumentationRegistry.getArguments()).insert(Recipient.resolved(harness.others[0]))
+
+    val file = File(harness.application.cacheDir, "performance-test.backup")
+    val start = System.currentTimeMillis()
+
+    val event = FullBackupExporter.export(
+      harness.application,
+      AttachmentSecretProvider.getInstance(harness.application).getOrCreateAttachmentSecret(),
+      SignalDatabase.backupDatabase,
+      file,
+      PASSPHRASE
+    ) { false }
+
+    val duration = System.currentTimeMillis() - start
+    val megabytes = file.length() / (1024.0 * 1024.0)
+
+    Log.i(TAG, "Exported ${event.count} records (${"%.1f".format(megabytes)} MB) in $duration ms, ${"%.1f".format(megabytes * 1000 / duration)} MB/s")
+
+    assertTrue(BackupVerifier.verifyFile(FileInputStream(file), PASSPHRASE, event.count) { false })
+    file.delete()
+  }
+}
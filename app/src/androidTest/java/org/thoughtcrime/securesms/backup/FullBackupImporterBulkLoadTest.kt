@@ -0,0 +1,138 @@
+package org.thoughtcrime.securesms.backup
+
+import android.database.Cursor
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.Assert.assertEquals
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.signal.core.util.Hex
+import org.signal.core.util.SqlUtil
+import org.thoughtcrime.securesms.crypto.AttachmentSecret
+import org.thoughtcrime.securesms.crypto.AttachmentSecretProvider
+import org.thoughtcrime.securesms.crypto.ModernDecryptingPartInputStream
+import org.thoughtcrime.securesms.database.AttachmentTable
+import org.thoughtcrime.securesms.database.SearchTable
+import org.thoughtcrime.securesms.database.SignalDatabase
+import org.thoughtcrime.securesms.database.StickerTable
+import org.thoughtcrime.securesms.recipients.Recipient
+import org.thoughtcrime.securesms.testing.SignalActivityRule
+import java.io.File
+import java.io.FileInputStream
+import java.security.MessageDigest
+
+/**
+ * Restores the same backup frame by frame and with bulk loading, and checks that both leave the database in the same state.
+ */
+@RunWith(AndroidJUnit4::class)
+class FullBackupImporterBulkLoadTest {
+
+  companion object {
+    private const val PASSPHRASE = "000000000000000000000000000000"
+  }
+
+  @get:Rule
+  val harness = SignalActivityRule()
+
+  @Test
+  fun bulkImport_matchesDirectImport() {
+    val recipient = Recipient.resolved(harness.others[0])
+
+    // Small attachments are written on the bulk loader's workers, and anything over 4 MB is streamed inline
+    SyntheticBackupData(messageCount = 500, attachmentCount = 10, attachmentSize = 64 * 1024).insert(recipient)
+    SyntheticBackupData(messageCount = 0, attachmentCount = 2, attachmentSize = 5 * 1024 * 1024).insert(recipient)
+
+    val attachmentSecret = AttachmentSecretProvider.getInstance(harness.application).getOrCreateAttachmentSecret()
+    val file = File(harness.application.cacheDir, "bulk-load-test.backup")
+
+    FullBackupExporter.export(harness.application, attachmentSecret, SignalDatabase.backupDatabase, file, PASSPHRASE) { false }
+
+    importFile(file, attachmentSecret, bulk = false)
+    val directSchema = readSchema()
+    val direct = readTables(attachmentSecret)
+
+    importFile(file, attachmentSecret, bulk = true)
+    val bulkSchema = readSchema()
+    val bulk = readTables(attachmentSecret)
+
+    file.delete()
+
+    assertEquals(directSchema, bulkSchema)
+    assertEquals(direct.keys, bulk.keys)
+    for (table in direct.keys) {
+      assertEquals("Contents of $table differ", direct[table], bulk[table])
+    }
+  }
+
+  private fun importFile(file: File, attachmentSecret: AttachmentSecret, bulk: Boolean) {
+    FileInputStream(file).use {
+      FullBackupImporter.importFile(harness.application, attachmentSecret, SignalDatabase.backupDatabase, it, PASSPHRASE, bulk)
+    }
+  }
+
+  /**
+   * Every table, index and trigger, so we know that everything the bulk loader deferred was created in the end.
+   */
+  private fun readSchema(): List<String> {
+    return SignalDatabase.rawDatabase.query("SELECT type, name, tbl_name, sql FROM sqlite_master WHERE name NOT LIKE 'sqlite_%'").use { cursor ->
+      readRows(cursor).map { it.joinToString("|") }.sorted()
+    }
+  }
+
+  /**
+   * The rows of every table, in no particular order. The full-text search tables are left out, since only the direct import fills them
+   * in, and they're rebuilt after every restore anyway. Attachment files are stored at a new path with a new key on every restore, so
+   * those are compared by their decrypted contents.
+   */
+  private fun readTables(attachmentSecret: AttachmentSecret): Map<String, List<String>> {
+    val db = SignalDatabase.rawDatabase
+
+    return SqlUtil.getAllTables(db)
+      .filterNot { it.startsWith("sqlite_") || it == SearchTable.FTS_TABLE_NAME || it.startsWith(SearchTable.FTS_TABLE_NAME + "_") }
+      .associateWith { table ->
+        db.query("SELECT * FROM $table").use { cursor ->
+          val columns: List<String> = cursor.columnNames.toList()
+
+          readRows(cursor).map { row ->
+            columns.indices.joinToString("|") { i ->
+              when (columns[i]) {
+                AttachmentTable.DATA -> row[i]?.let { hashAttachment(attachmentSecret, it, row[columns.indexOf(AttachmentTable.DATA_RANDOM)]) }
+                AttachmentTable.DATA_RANDOM, StickerTable.FILE_PATH, StickerTable.FILE_RANDOM -> (row[i] != null).toString()
+                else -> row[i]
+              }.toString()
+            }
+          }.sorted()
+        }
+      }
+  }
+
+  private fun readRows(cursor: Cursor): List<List<String?>> {
+    val rows: MutableList<List<String?>> = mutableListOf()
+
+    while (cursor.moveToNext()) {
+      rows += (0 until cursor.columnCount).map { i ->
+        when (cursor.getType(i)) {
+          Cursor.FIELD_TYPE_NULL -> null
+          Cursor.FIELD_TYPE_BLOB -> Hex.toStringCondensed(cursor.getBlob(i))
+          else -> cursor.getString(i)
+        }
+      }
+    }
+
+    return rows
+  }
+
+  private fun hashAttachment(attachmentSecret: AttachmentSecret, path: String, random: String?): String {
+    val digest = MessageDigest.getInstance("SHA-256")
+
+    ModernDecryptingPartInputStream.createFor(attachmentSecret, Hex.fromStringCondensed(random), File(path), 0).use { input ->
+      val buffer = ByteArray(8192)
+      var read: Int
+      while (input.read(buffer).also { read = it } != -1) {
+        digest.update(buffer, 0, read)
+      }
+    }
+
+    return Hex.toStringCondensed(digest.digest())
+  }
+}
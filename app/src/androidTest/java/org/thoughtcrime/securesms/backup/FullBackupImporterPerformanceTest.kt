@@ -0,0 +1,71 @@
+package org.thoughtcrime.securesms.backup
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import org.junit.Assert.assertEquals
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.signal.core.util.logging.Log
+import org.signal.core.util.readToSingleLong
+import org.thoughtcrime.securesms.crypto.AttachmentSecretProvider
+import org.thoughtcrime.securesms.database.SignalDatabase
+import org.thoughtcrime.securesms.recipients.Recipient
+import org.thoughtcrime.securesms.testing.SignalActivityRule
+import java.io.File
+import java.io.FileInputStream
+
+/**
+ * Restores a backup of a synthetic database, both frame by frame and with bulk loading, to compare the performance of
+ * [FullBackupImporter]'s two modes. See [SyntheticBackupData] for how to configure its size.
+ */
+// @Ignore("Ignore test in normal testing as it's a performance test")
+@RunWith(AndroidJUnit4::class)
+class FullBackupImporterPerformanceTest {
+
+  companion object {
+    private val TAG = Log.tag(FullBackupImporterPerformanceTest::class.java)
+
+    private const val PASSPHRASE = "000000000000000000000000000000"
+  }
+
+  @get:Rule
+  val harness = SignalActivityRule()
+
+  @Test
+  fun testPerformance() {
+    SyntheticBackupData.fromArguments(InstrumentationRegistry.getArguments()).insert(Recipient.resolved(harness.others[0]))
+
+    val attachmentSecret = AttachmentSecretProvider.getInstance(harness.application).getOrCreateAttachmentSecret()
+    val file = File(harness.application.cacheDir, "performance-test.backup")
+    val messageCount = countMessages()
+
+    val event = FullBackupExporter.export(harness.application, attachmentSecret, SignalDatabase.backupDatabase, file, PASSPHRASE) { false }
+    val megabytes = file.length() / (1024.0 * 1024.0)
+
+    Log.i(TAG, "Exported ${event.count} records (${"%.1f".format(megabytes)} MB)")
+
+    val durations = listOf(false, true).associateWith { bulk ->
+      val start = System.currentTimeMillis()
+
+      FileInputStream(file).use {
+        FullBackupImporter.importFile(harness.application, attachmentSecret, SignalDatabase.backupDatabase, it, PASSPHRASE, bulk)
+      }
+
+      val duration = System.currentTimeMillis() - start
+
+      Log.i(TAG, "Imported ${if (bulk) "in bulk" else "frame by frame"} in $duration ms, ${"%.1f".format(megabytes * 1000 / duration)} MB/s")
+
+      assertEquals(messageCount, countMessages())
+      duration
+    }
+
+    Log.i(TAG, "Bulk loading was ${"%.2f".format(durations.getValue(false).toDouble() / durations.getValue(true))}x as fast as loading frame by frame")
+
+    file.delete()
+  }
+
+  private fun countMessages(): Long {
+    return SignalDatabase.rawDatabase.query("SELECT COUNT(*) FROM message").readToSingleLong(defaultValue = 0)
+  }
+}
@@ -0,0 +1,55 @@
+package org.thoughtcrime.securesms.backup
+
+import android.os.Bundle
+import org.signal.core.util.logging.Log
+import org.thoughtcrime.securesms.database.SignalDatabase
+import org.thoughtcrime.securesms.database.UriAttachmentBuilder
+import org.thoughtcrime.securesms.mms.OutgoingMessage
+import org.thoughtcrime.securesms.providers.BlobProvider
+import org.thoughtcrime.securesms.recipients.Recipient
+import org.thoughtcrime.securesms.util.MediaUtil
+import kotlin.random.Random
+
+/**
+ * Fills the database with a conversation of a configurable size, for the backup performance tests.
+ *
+ * The size can be configured with instrumentation arguments, e.g.
+ * `-e backupMessageCount 50000 -e backupAttachmentCount 500 -e backupAttachmentSize 2097152`
+ */
+data class SyntheticBackupData(
+  val messageCount: Int,
+  val attachmentCount: Int,
+  val attachmentSize: Int
+) {
+
+  companion object {
+    private val TAG = Log.tag(SyntheticBackupData::class.java)
+
+    fun fromArguments(arguments: Bundle): SyntheticBackupData {
+      return SyntheticBackupData(
+        messageCount = arguments.getString("backupMessageCount")?.toInt() ?: 10_000,
+        attachmentCount = arguments.getString("backupAttachmentCount")?.toInt() ?: 100,
+        attachmentSize = arguments.getString("backupAttachmentSize")?.toInt() ?: (1024 * 1024)
+      )
+    }
+  }
+
+  fun insert(recipient: Recipient) {
+    val threadId = SignalDatabase.threads.getOrCreateThreadIdFor(recipient)
+    val random = Random(1)
+
+    Log.i(TAG, "Inserting $messageCount messages and $attachmentCount attachments of $attachmentSize bytes...")
+
+    for (i in 0 until messageCount) {
+      val message = OutgoingMessage(recipient = recipient, sentTimeMillis = 1_000L + i, body = "Message $i ${"x".repeat(random.nextInt(200))}", isSecure = true)
+      SignalDatabase.messages.insertMessageOutbox(message, threadId, false, null)
+    }
+
+    for (i in 0 until attachmentCount) {
+      val blob = BlobProvider.getInstance().forData(random.nextBytes(attachmentSize)).createForSingleSessionInMemory()
+      val attachment = UriAttachmentBuilder.build(id = i.toLong(), uri = blob, contentType = MediaUtil.IMAGE_JPEG, size = attachmentSize.toLong())
+      val message = OutgoingMessage(recipient = recipient, sentTimeMillis = 1_000_000L + i, isSecure = true, attachments = listOf(attachment))
+      SignalDatabase.messages.insertMessageOutbox(message, threadId, false, null)
+    }
+  }
+}
@@ -3,17 +3,22 @@ package org.thoughtcrime.securesms.database
 import android.net.Uri
 import androidx.test.ext.junit.runners.AndroidJUnit4
 import androidx.test.filters.FlakyTest
+import org.junit.Assert.assertArrayEquals
 import org.junit.Assert.assertEquals
 import org.junit.Assert.assertNotEquals
 import org.junit.Before
 import org.junit.Test
 import org.junit.runner.RunWith
+import org.thoughtcrime.securesms.attachments.AttachmentId
 import org.thoughtcrime.securesms.attachments.UriAttachment
 import org.thoughtcrime.securesms.mms.MediaStream
+import org.thoughtcrime.securesms.mms.PartAuthority
 import org.thoughtcrime.securesms.mms.SentMediaQuality
 import org.thoughtcrime.securesms.providers.BlobProvider
 import org.thoughtcrime.securesms.util.MediaUtil
+import java.io.File
 import java.util.Optional
+import kotlin.random.Random
 
 @RunWith(AndroidJUnit4::class)
 class AttachmentTableTest {
@@ -90,15 +95,93 @@ class AttachmentTableTest {
     assertNotEquals(attachment1Info, attachment2Info)
   }
 
-  private fun createAttachment(id: Long, uri: Uri, transformProperties: AttachmentTable.TransformProperties): UriAttachment {
+  @Test
+  fun givenIdenticalBlobs_whenIInsertAttachmentsForPreUpload_thenIExpectTheSameDataFile() {
+    val data = Random(1).nextBytes(1000)
+    val attachment = SignalDatabase.attachments.insertAttachmentForPreUpload(createAttachment(1, createBlob(data), AttachmentTable.TransformProperties.empty()))
+    val attachment2 = SignalDatabase.attachments.insertAttachmentForPreUpload(createAttachment(2, createBlob(data), AttachmentTable.TransformProperties.empty()))
+
+    assertSameDataFile(attachment.attachmentId, attachment2.attachmentId)
+  }
+
+  @Test
+  fun givenAnExistingAttachment_whenIInsertAnAttachmentForItsUri_thenIExpectTheSameDataFile() {
+    val data = Random(1).nextBytes(1000)
+    val attachment = SignalDatabase.attachments.insertAttachmentForPreUpload(createAttachment(1, createBlob(data), AttachmentTable.TransformProperties.empty()))
+    val forwarded = SignalDatabase.attachments.insertAttachmentForPreUpload(createAttachment(2, PartAuthority.getAttachmentDataUri(attachment.attachmentId), AttachmentTable.TransformProperties.empty()))
+
+    assertSameDataFile(attachment.attachmentId, forwarded.attachmentId)
+    assertArrayEquals(data, readData(forwarded.attachmentId))
+  }
+
+  @Test
+  fun givenIdenticalLargeBlobs_whenIInsertAttachmentsForPreUpload_thenIExpectTheSameDataFile() {
+    val data = Random(1).nextBytes(3 * 1024 * 1024)
+    val attachment = SignalDatabase.attachments.insertAttachmentForPreUpload(createAttachment(1, createBlob(data), AttachmentTable.TransformProperties.empty(), data.size))
+    val attachment2 = SignalDatabase.attachments.insertAttachmentForPreUpload(createAttachment(2, createBlob(data), AttachmentTable.TransformProperties.empty(), data.size))
+
+    assertSameDataFile(attachment.attachmentId, attachment2.attachmentId)
+  }
+
+  @Test
+  fun givenLargeBlobsOfTheSameSizeThatDifferAtTheEnd_whenIInsertAttachmentsForPreUpload_thenIExpectDifferentDataFiles() {
+    val data = Random(1).nextBytes(3 * 1024 * 1024)
+    val data2 = data.copyOf().also { it[it.size - 1] = (it[it.size - 1] + 1).toByte() }
+    val attachment = SignalDatabase.attachments.insertAttachmentForPreUpload(createAttachment(1, createBlob(data), AttachmentTable.TransformProperties.empty(), data.size))
+    val attachment2 = SignalDatabase.attachments.insertAttachmentForPreUpload(createAttachment(2, createBlob(data2), AttachmentTable.TransformProperties.empty(), data2.size))
+
+    val attachment1Info = SignalDatabase.attachments.getAttachmentDataFileInfo(attachment.attachmentId, AttachmentTable.DATA)
+    val attachment2Info = SignalDatabase.attachments.getAttachmentDataFileInfo(attachment2.attachmentId, AttachmentTable.DATA)
+
+    assertNotEquals(attachment1Info, attachment2Info)
+    assertArrayEquals(data, readData(attachment.attachmentId))
+    assertArrayEquals(data2, readData(attachment2.attachmentId))
+  }
+
+  @Test
+  fun givenALargeAttachmentWhoseDataFileIsMissing_whenIInsertALargeBlobOfTheSameSize_thenIExpectItToBeWritten() {
+    val data = Random(1).nextBytes(3 * 1024 * 1024)
+    val data2 = Random(2).nextBytes(data.size)
+    val attachment = SignalDatabase.attachments.insertAttachmentForPreUpload(createAttachment(1, createBlob(data), AttachmentTable.TransformProperties.empty(), data.size))
+
+    val path = SignalDatabase.rawDatabase.rawQuery("SELECT ${AttachmentTable.DATA} FROM ${AttachmentTable.TABLE_NAME} WHERE ${AttachmentTable.ROW_ID} = ?", arrayOf(attachment.attachmentId.rowId.toString())).use {
+      it.moveToFirst()
+      it.getString(0)
+    }
+    File(path).delete()
+
+    val attachment2 = SignalDatabase.attachments.insertAttachmentForPreUpload(createAttachment(2, createBlob(data2), AttachmentTable.TransformProperties.empty(), data2.size))
+    val attachment3 = SignalDatabase.attachments.insertAttachmentForPreUpload(createAttachment(3, createBlob(data), AttachmentTable.TransformProperties.empty(), data.size))
+
+    assertArrayEquals(data2, readData(attachment2.attachmentId))
+    assertArrayEquals(data, readData(attachment3.attachmentId))
+  }
+
+  private fun createAttachment(id: Long, uri: Uri, transformProperties: AttachmentTable.TransformProperties, size: Int = 0): UriAttachment {
     return UriAttachmentBuilder.build(
       id,
       uri = uri,
       contentType = MediaUtil.IMAGE_JPEG,
+      size = size.toLong(),
       transformProperties = transformProperties
     )
   }
 
+  private fun createBlob(data: ByteArray): Uri {
+    return BlobProvider.getInstance().forData(data).createForSingleSessionInMemory()
+  }
+
+  private fun readData(attachmentId: AttachmentId): ByteArray {
+    return SignalDatabase.attachments.getAttachmentStream(attachmentId, 0).use { it.readBytes() }
+  }
+
+  private fun assertSameDataFile(first: AttachmentId, second: AttachmentId) {
+    val firstInfo = SignalDatabase.attachments.getAttachmentDataFileInfo(first, AttachmentTable.DATA)
+    val secondInfo = SignalDatabase.attachments.getAttachmentDataFileInfo(second, AttachmentTable.DATA)
+
+    assertEquals(firstInfo, secondInfo)
+  }
+
   private fun createHighQualityTransformProperties(): AttachmentTable.TransformProperties {
     return AttachmentTable.TransformProperties.forSentMediaQuality(Optional.empty(), SentMediaQuality.HIGH)
   }
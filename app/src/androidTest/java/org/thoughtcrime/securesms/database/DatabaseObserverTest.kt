@@ -3,12 +3,15 @@ package org.thoughtcrime.securesms.database
 import androidx.test.ext.junit.runners.AndroidJUnit4
 import org.junit.Assert.assertEquals
 import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
 import org.junit.Assert.assertTrue
 import org.junit.Before
 import org.junit.Test
 import org.junit.runner.RunWith
 import org.signal.core.util.concurrent.SignalExecutors
+import org.thoughtcrime.securesms.database.model.MessageId
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies
+import java.util.concurrent.CopyOnWriteArrayList
 import java.util.concurrent.CountDownLatch
 import java.util.concurrent.atomic.AtomicBoolean
 import java.util.concurrent.atomic.AtomicInteger
@@ -154,4 +157,66 @@ class DatabaseObserverTest {
     assertEquals(1, thread1Count.get())
     assertEquals(1, thread2Count.get())
   }
+
+  @Test
+  fun notifyConversationListeners_coalescesNotificationsOutsideOfTransactions() {
+    val count = AtomicInteger(0)
+
+    observer.registerConversationObserver(1) { count.incrementAndGet() }
+
+    for (i in 0 until 30) {
+      observer.notifyConversationListeners(1)
+    }
+
+    observer.flush()
+    assertEquals(1, count.get())
+
+    observer.notifyConversationListeners(1)
+    observer.flush()
+    assertEquals(2, count.get())
+  }
+
+  @Test
+  fun notifyVerboseConversationListeners_coveredByPendingConversationNotification() {
+    val count = AtomicInteger(0)
+
+    observer.registerVerboseConversationObserver(1) { count.incrementAndGet() }
+
+    observer.notifyVerboseConversationListeners(setOf(1L))
+    observer.notifyConversationListeners(1)
+
+    observer.flush()
+    assertEquals(1, count.get())
+  }
+
+  @Test
+  fun notifyConversationListeners_withMessages_describesTheMessages() {
+    val changes = CopyOnWriteArrayList<Set<MessageId>?>()
+    val plainCount = AtomicInteger(0)
+
+    observer.registerConversationChangeObserver(1) { changes += it?.toSet() }
+    observer.registerConversationObserver(1) { plainCount.incrementAndGet() }
+
+    observer.notifyConversationListeners(1, MessageId(10))
+    observer.notifyConversationListeners(1, MessageId(11))
+
+    observer.flush()
+    assertEquals(listOf(setOf(MessageId(10), MessageId(11))), changes)
+    assertEquals(1, plainCount.get())
+  }
+
+  @Test
+  fun notifyConversationListeners_withAndWithoutMessages_isUndescribed() {
+    val changes = CopyOnWriteArrayList<Set<MessageId>?>()
+
+    observer.registerConversationChangeObserver(1) { changes += it?.toSet() }
+
+    observer.notifyConversationListeners(1, MessageId(10))
+    observer.notifyConversationListeners(1)
+    observer.notifyConversationListeners(1, MessageId(11))
+
+    observer.flush()
+    assertEquals(1, changes.size)
+    assertNull(changes[0])
+  }
 }
@@ -0,0 +1,179 @@
+package org.thoughtcrime.securesms.database
+
+import android.app.Application
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.thoughtcrime.securesms.crypto.DatabaseSecretProvider
+import org.thoughtcrime.securesms.jobmanager.persistence.FullSpec
+import org.thoughtcrime.securesms.jobmanager.persistence.JobSpec
+
+@RunWith(AndroidJUnit4::class)
+class JobDatabaseTest {
+
+  private lateinit var jobDatabase: JobDatabase
+
+  @Before
+  fun setUp() {
+    val application: Application = ApplicationProvider.getApplicationContext()
+    jobDatabase = JobDatabase(application, DatabaseSecretProvider.getOrCreateDatabaseSecret(application), null)
+    jobDatabase.insertJobs(listOf(fullSpec("1"), fullSpec("2")))
+  }
+
+  @After
+  fun tearDown() {
+    jobDatabase.close()
+  }
+
+  @Test
+  fun updateJobRunningState_isNotWrittenUntilFlush() {
+    jobDatabase.updateJobRunningState("1", true)
+
+    assertFalse(readRow("1")!!.isRunning)
+    assertEquals(1, jobDatabase.getPendingWriteCount())
+
+    jobDatabase.flushPendingWrites()
+
+    assertTrue(readRow("1")!!.isRunning)
+    assertEquals(0, jobDatabase.getPendingWriteCount())
+  }
+
+  @Test
+  fun updateJobRunningState_coalescesPerJobIntoOneTransaction() {
+    jobDatabase.updateJobRunningState("1", true)
+    jobDatabase.updateJobRunningState("1", false)
+    jobDatabase.updateJobRunningState("1", true)
+    jobDatabase.updateJobRunningState("2", true)
+
+    assertEquals(2, jobDatabase.getPendingWriteCount())
+
+    val transactionsBefore = jobDatabase.getTransactionCount()
+    jobDatabase.flushPendingWrites()
+
+    assertEquals(transactionsBefore + 1, jobDatabase.getTransactionCount())
+    assertTrue(readRow("1")!!.isRunning)
+    assertTrue(readRow("2")!!.isRunning)
+  }
+
+  @Test
+  fun deleteJobs_isWrittenImmediately() {
+    jobDatabase.deleteJobs(listOf("1"))
+
+    assertNull(readRow("1"))
+    assertEquals(0, jobDatabase.getPendingWriteCount())
+  }
+
+  @Test
+  fun deleteJobs_supersedesPendingRunningState() {
+    jobDatabase.updateJobRunningState("1", true)
+    jobDatabase.deleteJobs(listOf("1"))
+    jobDatabase.flushPendingWrites()
+
+    assertNull(readRow("1"))
+  }
+
+  @Test
+  fun deleteJobs_writesOtherPendingRunningStatesInSameTransaction() {
+    jobDatabase.updateJobRunningState("2", true)
+
+    val transactionsBefore = jobDatabase.getTransactionCount()
+    jobDatabase.deleteJobs(listOf("1"))
+
+    assertEquals(transactionsBefore + 1, jobDatabase.getTransactionCount())
+    assertTrue(readRow("2")!!.isRunning)
+    assertEquals(0, jobDatabase.getPendingWriteCount())
+  }
+
+  @Test
+  fun updateJobAfterRetry_isWrittenImmediately() {
+    jobDatabase.updateJobAfterRetry("1", false, 3, 1000, byteArrayOf(1, 2))
+
+    val row = readRow("1")!!
+    assertEquals(3, row.runAttempt)
+    assertEquals(1000, row.nextRunAttemptTime)
+  }
+
+  @Test
+  fun updateJobAfterRetry_winsOverEarlierRunningState() {
+    jobDatabase.updateJobRunningState("1", true)
+    jobDatabase.updateJobAfterRetry("1", false, 1, 1000, null)
+    jobDatabase.flushPendingWrites()
+
+    assertFalse(readRow("1")!!.isRunning)
+  }
+
+  @Test
+  fun updateJobs_winsOverEarlierRunningState() {
+    jobDatabase.updateJobRunningState("1", true)
+    jobDatabase.updateJobs(listOf(jobSpec("1").copy(runAttempt = 2, isRunning = false)))
+
+    val row = readRow("1")!!
+    assertFalse(row.isRunning)
+    assertEquals(2, row.runAttempt)
+
+    jobDatabase.flushPendingWrites()
+
+    assertFalse(readRow("1")!!.isRunning)
+  }
+
+  @Test
+  fun updateJobRunningState_afterRetry_isAppliedLast() {
+    jobDatabase.updateJobAfterRetry("1", false, 1, 1000, null)
+    jobDatabase.updateJobRunningState("1", true)
+    jobDatabase.flushPendingWrites()
+
+    val row = readRow("1")!!
+    assertTrue(row.isRunning)
+    assertEquals(1, row.runAttempt)
+  }
+
+  @Test
+  fun getAllJobSpecs_includesPendingRunningStates() {
+    jobDatabase.updateJobRunningState("1", true)
+
+    assertTrue(jobDatabase.allJobSpecs.first { it.id == "1" }.isRunning)
+  }
+
+  /**
+   * Reads straight from the database, without flushing anything that's pending first.
+   */
+  private fun readRow(id: String): Row? {
+    jobDatabase.sqlCipherDatabase.query("job_spec", arrayOf("run_attempt", "next_run_attempt_time", "is_running"), "job_spec_id = ?", arrayOf(id), null, null, null).use { cursor ->
+      return if (cursor.moveToFirst()) {
+        Row(runAttempt = cursor.getInt(0), nextRunAttemptTime = cursor.getLong(1), isRunning = cursor.getInt(2) == 1)
+      } else {
+        null
+      }
+    }
+  }
+
+  private fun fullSpec(id: String): FullSpec {
+    return FullSpec(jobSpec(id), emptyList(), emptyList())
+  }
+
+  private fun jobSpec(id: String): JobSpec {
+    return JobSpec(
+      id = id,
+      factoryKey = "f",
+      queueKey = null,
+      createTime = 1,
+      nextRunAttemptTime = 0,
+      runAttempt = 0,
+      maxAttempts = 10,
+      lifespan = -1,
+      serializedData = null,
+      serializedInputData = null,
+      isRunning = false,
+      isMemoryOnly = false
+    )
+  }
+
+  private data class Row(val runAttempt: Int, val nextRunAttemptTime: Long, val isRunning: Boolean)
+}
@@ -0,0 +1,107 @@
+package org.thoughtcrime.securesms.database
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotSame
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.signal.libsignal.protocol.IdentityKeyPair
+import org.signal.libsignal.protocol.SessionBuilder
+import org.signal.libsignal.protocol.SignalProtocolAddress
+import org.signal.libsignal.protocol.ecc.Curve
+import org.signal.libsignal.protocol.state.PreKeyBundle
+import org.signal.libsignal.protocol.state.SessionRecord
+import org.signal.libsignal.protocol.state.impl.InMemorySignalProtocolStore
+import org.thoughtcrime.securesms.testing.SignalDatabaseRule
+import org.whispersystems.signalservice.api.push.ServiceId
+import java.util.UUID
+
+@RunWith(AndroidJUnit4::class)
+class SessionTableTest {
+
+  @get:Rule
+  val databaseRule = SignalDatabaseRule()
+
+  private val serviceId: ServiceId = ServiceId.from(UUID.randomUUID())
+  private val address = SignalProtocolAddress(UUID.randomUUID().toString(), 1)
+
+  @Test
+  fun load_archivingTheLoadedRecord_doesNotChangeLaterLoads() {
+    SignalDatabase.sessions.store(serviceId, address, createSession())
+
+    val first: SessionRecord = SignalDatabase.sessions.load(serviceId, address)!!
+    first.archiveCurrentState()
+    assertFalse(first.hasSenderChain())
+
+    val second: SessionRecord = SignalDatabase.sessions.load(serviceId, address)!!
+    assertNotSame(first, second)
+    assertTrue(second.hasSenderChain())
+  }
+
+  @Test
+  fun loadList_archivingTheLoadedRecord_doesNotChangeLaterLoads() {
+    SignalDatabase.sessions.store(serviceId, address, createSession())
+
+    val first: SessionRecord = SignalDatabase.sessions.load(serviceId, listOf(address))[0]!!
+    first.archiveCurrentState()
+
+    val second: SessionRecord = SignalDatabase.sessions.load(serviceId, listOf(address))[0]!!
+    assertNotSame(first, second)
+    assertTrue(second.hasSenderChain())
+  }
+
+  @Test
+  fun store_archivedRecord_isReturnedByLaterLoads() {
+    SignalDatabase.sessions.store(serviceId, address, createSession())
+
+    val record: SessionRecord = SignalDatabase.sessions.load(serviceId, address)!!
+    record.archiveCurrentState()
+    SignalDatabase.sessions.store(serviceId, address, record)
+
+    assertFalse(SignalDatabase.sessions.load(serviceId, address)!!.hasSenderChain())
+    assertFalse(SignalDatabase.sessions.load(serviceId, listOf(address))[0]!!.hasSenderChain())
+  }
+
+  @Test
+  fun store_insideRolledBackTransaction_isNotReturnedByLaterLoads() {
+    val db = SignalDatabase.instance!!.signalWritableDatabase
+
+    db.beginTransaction()
+    try {
+      SignalDatabase.sessions.store(serviceId, address, createSession())
+    } finally {
+      db.endTransaction()
+    }
+
+    assertNull(SignalDatabase.sessions.load(serviceId, address))
+  }
+
+  @Test
+  fun delete_isNotReturnedByLaterLoads() {
+    SignalDatabase.sessions.store(serviceId, address, createSession())
+    SignalDatabase.sessions.load(serviceId, address)
+
+    SignalDatabase.sessions.delete(serviceId, address)
+
+    assertNull(SignalDatabase.sessions.load(serviceId, address))
+  }
+
+  /**
+   * Starts a session with [address] from a made-up prekey bundle, which gives us a record with a current sender chain to archive.
+   */
+  private fun createSession(): SessionRecord {
+    val remoteIdentity = IdentityKeyPair.generate()
+    val remotePreKey = Curve.generateKeyPair()
+    val remoteSignedPreKey = Curve.generateKeyPair()
+    val signature = Curve.calculateSignature(remoteIdentity.privateKey, remoteSignedPreKey.publicKey.serialize())
+    val bundle = PreKeyBundle(1, address.deviceId, 1, remotePreKey.publicKey, 2, remoteSignedPreKey.publicKey, signature, remoteIdentity.publicKey)
+
+    val localStore = InMemorySignalProtocolStore(IdentityKeyPair.generate(), 1)
+    SessionBuilder(localStore, address).process(bundle)
+
+    return localStore.loadSession(address)
+  }
+}
@@ -0,0 +1,110 @@
+package org.thoughtcrime.securesms.keyvalue
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.signal.core.util.logging.Log
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.concurrent.thread
+
+/**
+ * Measures read throughput of [KeyValueStore] while a background thread keeps writing to it, the way UI binding, job constraints and
+ * feature flags read [SignalStore] while jobs update it. The same workload is run against a store that synchronizes every read, which
+ * is how [KeyValueStore] used to work, for comparison.
+ */
+// @Ignore("Ignore test in normal testing as it's a performance test with no assertions")
+@RunWith(AndroidJUnit4::class)
+class KeyValueStoreContentionPerformanceTest {
+
+  companion object {
+    private val TAG = Log.tag(KeyValueStoreContentionPerformanceTest::class.java)
+
+    private const val KEY_COUNT = 500
+    private const val READER_COUNT = 4
+    private const val DURATION_MS = 5_000L
+    private const val WRITE_INTERVAL_MS = 1L
+  }
+
+  @Test
+  fun testPerformance() {
+    val snapshotReads = measure(KeyValueStore(MockKeyValuePersistentStorage.withDataSet(createDataSet())))
+    val lockingReads = measure(LockingReader(KeyValueStore(MockKeyValuePersistentStorage.withDataSet(createDataSet()))))
+
+    Log.i(TAG, "Snapshot: ${snapshotReads * 1000 / DURATION_MS} reads/s, Locking: ${lockingReads * 1000 / DURATION_MS} reads/s")
+  }
+
+  private fun measure(reader: KeyValueReader): Long {
+    val store = if (reader is LockingReader) reader.store else reader as KeyValueStore
+    val done = AtomicBoolean()
+    val reads = AtomicLong()
+    val blackhole = AtomicLong()
+    val started = CountDownLatch(READER_COUNT + 1)
+
+    val readers = (0 until READER_COUNT).map { index ->
+      thread(name = "reader-$index") {
+        var count = 0L
+        var sink = 0L
+
+        started.countDown()
+        started.await()
+
+        while (!done.get()) {
+          val key = (count % KEY_COUNT).toInt()
+          sink += reader.getLong("long-$key", 0)
+          if (reader.getBoolean("boolean-$key", false)) sink++
+          count += 2
+        }
+
+        reads.addAndGet(count)
+        blackhole.addAndGet(sink)
+      }
+    }
+
+    val writer = thread(name = "writer") {
+      var i = 0L
+
+      started.countDown()
+      started.await()
+
+      while (!done.get()) {
+        store.beginWrite().putLong("long-${i % KEY_COUNT}", i).putBoolean("boolean-${i % KEY_COUNT}", i % 2 == 0L).apply()
+        i++
+        Thread.sleep(WRITE_INTERVAL_MS)
+      }
+    }
+
+    Thread.sleep(DURATION_MS)
+    done.set(true)
+
+    readers.forEach { it.join() }
+    writer.join()
+    store.blockUntilAllWritesFinished()
+
+    return reads.get()
+  }
+
+  private fun createDataSet(): KeyValueDataSet {
+    return KeyValueDataSet().apply {
+      for (i in 0 until KEY_COUNT) {
+        putLong("long-$i", i.toLong())
+        putBoolean("boolean-$i", i % 2 == 0)
+        putString("string-$i", "value-$i")
+      }
+    }
+  }
+
+  /**
+   * Takes the store's monitor for every read, like the getters did before reads were served from snapshots.
+   */
+  private class LockingReader(val store: KeyValueStore) : KeyValueReader {
+    override fun getBlob(key: String, defaultValue: ByteArray?): ByteArray? = synchronized(store) { store.getBlob(key, defaultValue) }
+    override fun getBoolean(key: String, defaultValue: Boolean): Boolean = synchronized(store) { store.getBoolean(key, defaultValue) }
+    override fun getFloat(key: String, defaultValue: Float): Float = synchronized(store) { store.getFloat(key, defaultValue) }
+    override fun getInteger(key: String, defaultValue: Int): Int = synchronized(store) { store.getInteger(key, defaultValue) }
+    override fun getLong(key: String, defaultValue: Long): Long = synchronized(store) { store.getLong(key, defaultValue) }
+    override fun getString(key: String, defaultValue: String?): String? = synchronized(store) { store.getString(key, defaultValue) }
+    override fun containsKey(key: String): Boolean = synchronized(store) { store.containsKey(key) }
+  }
+}
@@ -0,0 +1,144 @@
+package org.thoughtcrime.securesms.recipients
+
+import android.app.Application
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.thoughtcrime.securesms.database.RecipientTable.MissingRecipientException
+import org.thoughtcrime.securesms.database.SQLiteDatabase
+import org.thoughtcrime.securesms.database.SignalDatabase
+import org.thoughtcrime.securesms.testing.SignalDatabaseRule
+import org.whispersystems.signalservice.api.push.ServiceId
+import java.util.UUID
+import java.util.concurrent.Executor
+
+@RunWith(AndroidJUnit4::class)
+class LiveRecipientCacheTest {
+
+  @get:Rule
+  val databaseRule = SignalDatabaseRule()
+
+  private lateinit var db: SQLiteDatabase
+  private lateinit var executor: DeferredExecutor
+  private lateinit var cache: LiveRecipientCache
+
+  @Before
+  fun setUp() {
+    db = SignalDatabase.instance!!.signalWritableDatabase
+    executor = DeferredExecutor()
+    cache = LiveRecipientCache(ApplicationProvider.getApplicationContext<Application>(), executor)
+  }
+
+  @Test
+  fun getLive_outsideOfTransaction_resolvesInOneBatch() {
+    val first = insertRecipient()
+    val second = insertRecipient()
+
+    val firstLive = cache.getLive(first)
+    val secondLive = cache.getLive(second)
+
+    assertTrue(firstLive.get().isResolving)
+    assertTrue(secondLive.get().isResolving)
+    assertEquals(1, executor.pending.size)
+
+    executor.runAll()
+
+    assertFalse(firstLive.get().isResolving)
+    assertFalse(secondLive.get().isResolving)
+  }
+
+  @Test
+  fun getLive_insideOfTransaction_resolvesUncommittedRecipientImmediately() {
+    db.beginTransaction()
+    try {
+      val id = insertRecipient()
+      val live = cache.getLive(id)
+
+      assertFalse(live.get().isResolving)
+      assertEquals(id, live.get().id)
+      assertTrue(executor.pending.isEmpty())
+
+      db.setTransactionSuccessful()
+    } finally {
+      db.endTransaction()
+    }
+  }
+
+  @Test
+  fun getLive_insideOfTransaction_doesNotResolveOtherPendingRecipients() {
+    val queued = cache.getLive(insertRecipient())
+
+    db.beginTransaction()
+    try {
+      val live = cache.getLive(insertRecipient())
+
+      assertFalse(live.get().isResolving)
+      assertTrue(queued.get().isResolving)
+
+      db.setTransactionSuccessful()
+    } finally {
+      db.endTransaction()
+    }
+
+    executor.runAll()
+
+    assertFalse(queued.get().isResolving)
+  }
+
+  @Test
+  fun getLive_missingRecipient_stillResolvesRestOfBatchBeforeThrowing() {
+    val missing = cache.getLive(RecipientId.from(Long.MAX_VALUE - 1))
+    val present = cache.getLive(insertRecipient())
+
+    try {
+      executor.runAll()
+      fail("Expected a MissingRecipientException")
+    } catch (e: MissingRecipientException) {
+      // Expected
+    }
+
+    assertTrue(missing.get().isResolving)
+    assertFalse(present.get().isResolving)
+  }
+
+  @Test
+  fun addToCache_missingRecipient_throwsCreationSiteError() {
+    val record = SignalDatabase.recipients.getRecord(insertRecipient())
+    val details = RecipientDetails.forIndividual(ApplicationProvider.getApplicationContext(), record)
+    val unresolved = Recipient(RecipientId.from(Long.MAX_VALUE - 2), details, false)
+
+    cache.addToCache(listOf(unresolved))
+
+    try {
+      executor.runAll()
+      fail("Expected a MissingRecipientException")
+    } catch (e: MissingRecipientException) {
+      assertTrue(e.stackTrace.any { it.methodName.contains("addToCache") })
+    }
+  }
+
+  private fun insertRecipient(): RecipientId {
+    return SignalDatabase.recipients.getOrInsertFromServiceId(ServiceId.from(UUID.randomUUID()))
+  }
+
+  private class DeferredExecutor : Executor {
+    val pending: MutableList<Runnable> = mutableListOf()
+
+    override fun execute(command: Runnable) {
+      pending += command
+    }
+
+    fun runAll() {
+      while (pending.isNotEmpty()) {
+        pending.removeAt(0).run()
+      }
+    }
+  }
+}
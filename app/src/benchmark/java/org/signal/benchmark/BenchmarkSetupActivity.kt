@@ -2,6 +2,7 @@ package org.signal.benchmark
 
 import android.os.Bundle
 import android.widget.TextView
+import org.signal.core.util.concurrent.SignalExecutors
 import org.signal.benchmark.setup.TestMessages
 import org.signal.benchmark.setup.TestUsers
 import org.thoughtcrime.securesms.BaseActivity
@@ -9,23 +10,48 @@ import org.thoughtcrime.securesms.database.SignalDatabase
 import org.thoughtcrime.securesms.database.model.MediaMmsMessageRecord
 import org.thoughtcrime.securesms.mms.QuoteModel
 import org.thoughtcrime.securesms.recipients.Recipient
+import org.thoughtcrime.securesms.util.AppStartup
+import org.thoughtcrime.securesms.util.LocalMetrics
 
 class BenchmarkSetupActivity : BaseActivity() {
   override fun onCreate(savedInstanceState: Bundle?) {
     super.onCreate(savedInstanceState)
 
+    val textView: TextView = TextView(this)
+    setContentView(textView)
+
     when (intent.extras!!.getString("setup-type")) {
-      "cold-start" -> setupColdStart()
+      "cold-start" -> setupColdStart(serial = false)
+      "cold-start-serial" -> setupColdStart(serial = true)
       "conversation-open" -> setupConversationOpen()
+      "local-metrics" -> {
+        showLocalMetrics(textView)
+        return
+      }
     }
 
-    val textView: TextView = TextView(this).apply {
-      text = "done"
+    textView.text = "done"
+  }
+
+  /**
+   * Shows the aggregated [LocalMetrics] as one line per event and split, followed by "done", so that the benchmark can read them.
+   */
+  private fun showLocalMetrics(textView: TextView) {
+    SignalExecutors.BOUNDED.execute {
+      val lines = LocalMetrics.getMetrics().flatMap { event ->
+        listOf("${event.name} count=${event.count} p50=${event.p50} p90=${event.p90} p99=${event.p99}") +
+          event.splits.map { split -> "${event.name}/${split.name} p50=${split.p50} p90=${split.p90} p99=${split.p99}" }
+      }
+
+      runOnUiThread {
+        textView.text = (lines + "done").joinToString("\n")
+      }
     }
-    setContentView(textView)
   }
 
-  private fun setupColdStart() {
+  private fun setupColdStart(serial: Boolean) {
+    getSharedPreferences(AppStartup.BENCHMARK_PREFERENCES, MODE_PRIVATE).edit().putBoolean(AppStartup.BENCHMARK_SERIAL, serial).commit()
+
     TestUsers.setupSelf()
     TestUsers.setupTestRecipients(50).forEach {
       val recipient: Recipient = Recipient.resolved(it)
@@ -40,7 +40,6 @@ import org.signal.ringrtc.CallManager;
 import org.thoughtcrime.securesms.avatar.AvatarPickerStorage;
 import org.thoughtcrime.securesms.crypto.AttachmentSecretProvider;
 import org.thoughtcrime.securesms.crypto.DatabaseSecretProvider;
-import org.thoughtcrime.securesms.database.LogDatabase;
 import org.thoughtcrime.securesms.database.SignalDatabase;
 import org.thoughtcrime.securesms.database.SqlCipherLibraryLoader;
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
@@ -67,6 +66,7 @@ import org.thoughtcrime.securesms.jobs.SubscriptionKeepAliveJob;
 import org.thoughtcrime.securesms.keyvalue.KeepMessagesDuration;
 import org.thoughtcrime.securesms.keyvalue.SignalStore;
 import org.thoughtcrime.securesms.logging.CustomSignalProtocolLogger;
+import org.thoughtcrime.securesms.logging.LogStore;
 import org.thoughtcrime.securesms.logging.PersistentLogger;
 import org.thoughtcrime.securesms.messageprocessingalarm.MessageProcessReceiver;
 import org.thoughtcrime.securesms.migrations.ApplicationMigrations;
@@ -88,8 +88,10 @@ import org.thoughtcrime.securesms.service.webrtc.AndroidTelecomUtil;
 import org.thoughtcrime.securesms.storage.StorageSyncHelper;
 import org.thoughtcrime.securesms.util.AppForegroundObserver;
 import org.thoughtcrime.securesms.util.AppStartup;
+import org.thoughtcrime.securesms.util.AppStartup.Affinity;
 import org.thoughtcrime.securesms.util.DynamicTheme;
 import org.thoughtcrime.securesms.util.FeatureFlags;
+import org.thoughtcrime.securesms.util.LocalMetrics;
 import org.thoughtcrime.securesms.util.SignalLocalMetrics;
 import org.thoughtcrime.securesms.util.SignalUncaughtExceptionHandler;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
@@ -131,30 +133,35 @@ public class ApplicationContext extends MultiDexApplication implements AppForegr
 
   @Override
   public void onCreate() {
+    if (FeatureFlags.internalUser()) {
+      Tracer.getInstance().setMaxBufferSize(35_000);
+    }
+
     Tracer.getInstance().start("Application#onCreate()");
     AppStartup.getInstance().onApplicationCreate();
     SignalLocalMetrics.ColdStart.start();
 
     long startTime = System.currentTimeMillis();
 
-    if (FeatureFlags.internalUser()) {
-      Tracer.getInstance().setMaxBufferSize(35_000);
-    }
-
     super.onCreate();
 
+    AppStartup.getInstance().setSerial(isSerialStartupBenchmark());
+
     AppStartup.getInstance().addBlocking("security-provider", this::initializeSecurityProvider)
-                            .addBlocking("sqlcipher-init", () -> {
+                            .addBlocking("sqlcipher-load", Affinity.BACKGROUND, SqlCipherLibraryLoader::load)
+                            .addBlocking("database-secret", Affinity.BACKGROUND, () -> DatabaseSecretProvider.getOrCreateDatabaseSecret(this), "security-provider")
+                            .addBlocking("attachment-secret", Affinity.BACKGROUND, () -> AttachmentSecretProvider.getInstance(this).getOrCreateAttachmentSecret(), "security-provider")
+                            .addBlocking("sqlcipher-init", Affinity.MAIN, () -> {
                               SqlCipherLibraryLoader.load();
                               SignalDatabase.init(this,
                                                   DatabaseSecretProvider.getOrCreateDatabaseSecret(this),
                                                   AttachmentSecretProvider.getInstance(this).getOrCreateAttachmentSecret());
-                            })
+                            }, "security-provider", "sqlcipher-load", "database-secret", "attachment-secret")
                             .addBlocking("logging", () -> {
                               initializeLogging();
                               Log.i(TAG, "onCreate()");
                             })
-                            .addBlocking("crash-handling", this::initializeCrashHandling)
+                            .addBlocking("crash-handling", Affinity.MAIN, this::initializeCrashHandling, "sqlcipher-init", "logging")
                             .addBlocking("rx-init", this::initializeRx)
                             .addBlocking("event-bus", () -> EventBus.builder().logNoSubscriberMessages(false).installDefaultEventBus())
                             .addBlocking("app-dependencies", this::initializeAppDependencies)
@@ -258,6 +265,8 @@ public class ApplicationContext extends MultiDexApplication implements AppForegr
     ApplicationDependencies.getFrameRateTracker().stop();
     ApplicationDependencies.getShakeToReport().disable();
     ApplicationDependencies.getDeadlockDetector().stop();
+    SignalExecutors.BOUNDED.execute(() -> ApplicationDependencies.getJobManager().flush());
+    LocalMetrics.getInstance().flush();
   }
 
   public PersistentLogger getPersistentLogger() {
@@ -304,10 +313,17 @@ public class ApplicationContext extends MultiDexApplication implements AppForegr
 
     SignalExecutors.UNBOUNDED.execute(() -> {
       Log.blockUntilAllWritesFinished();
-      LogDatabase.getInstance(this).trimToSize();
+      LogStore.getInstance(this).trimToSize();
     });
   }
 
+  /**
+   * The benchmark build can ask for the blocking startup tasks to run one after another, so that we can compare against it.
+   */
+  private boolean isSerialStartupBenchmark() {
+    return "Benchmark".equals(BuildConfig.BUILD_VARIANT_TYPE) && getSharedPreferences(AppStartup.BENCHMARK_PREFERENCES, MODE_PRIVATE).getBoolean(AppStartup.BENCHMARK_SERIAL, false);
+  }
+
   private void initializeCrashHandling() {
     final Thread.UncaughtExceptionHandler originalHandler = Thread.getDefaultUncaughtExceptionHandler();
     Thread.setDefaultUncaughtExceptionHandler(new SignalUncaughtExceptionHandler(originalHandler));
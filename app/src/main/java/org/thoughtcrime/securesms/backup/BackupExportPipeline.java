@@ -0,0 +1,490 @@
+package org.thoughtcrime.securesms.backup;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
+import org.signal.core.util.Conversions;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.backup.proto.BackupFrame;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts backup frames and attachment streams on a pool of worker threads, and writes the results out in order on a single writer
+ * thread.
+ *
+ * Every frame and every stream in a backup is encrypted with its own IV (the backup IV with a counter in the first four bytes) and has
+ * its own MAC, so they can be encrypted in any order as long as we hand out the counters in order and write the results in that same
+ * order. The output is byte-for-byte what a single thread would have written.
+ *
+ * Large streams are split into chunks that are encrypted independently, starting from the appropriate point in the CTR keystream. The
+ * MAC of a multi-chunk stream is inherently sequential, so that part happens on the writer.
+ *
+ * The number of pieces of work that have been handed out but not yet written is bounded, so the caller blocks rather than buffering an
+ * unbounded amount of ciphertext when the output can't keep up.
+ *
+ * Not thread safe: all of the write methods must be called from the same thread.
+ */
+final class BackupExportPipeline implements Closeable {
+
+  private static final String TAG = Log.tag(BackupExportPipeline.class);
+
+  private static final int DEFAULT_CHUNK_SIZE = 512 * 1024;
+  private static final int FRAME_BATCH_SIZE   = 64;
+  private static final int MAC_LENGTH         = 10;
+
+  private static final long CLOSE_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(10);
+
+  private static final Future<Segment> END = new FutureTask<>(() -> null);
+
+  private final OutputStream                   output;
+  private final byte[]                         macKey;
+  private final byte[]                         iv;
+  private final ExecutorService                workers;
+  private final ExecutorService                writerExecutor;
+  private final int                            chunkSize;
+  private final BlockingQueue<Future<Segment>> pending;
+  private final Future<Void>                   writer;
+  private final ThreadLocal<Crypto>            crypto;
+
+  private List<BackupFrame> frameBatch = new ArrayList<>(FRAME_BATCH_SIZE);
+  private int               frameBatchCounter;
+  private int               counter;
+  private boolean           finished;
+
+  /**
+   * @param workers The pool to encrypt on. The pipeline takes ownership of it, and shuts it down when it's finished or closed.
+   * @param writerExecutor A single-threaded executor to write on, owned by the pipeline the same way as the workers.
+   * @param maxPending The maximum number of pieces of work that can be waiting to be written before the caller is blocked.
+   */
+  BackupExportPipeline(@NonNull OutputStream output,
+                       @NonNull byte[] cipherKey,
+                       @NonNull byte[] macKey,
+                       @NonNull byte[] iv,
+                       @NonNull ExecutorService workers,
+                       @NonNull ExecutorService writerExecutor,
+                       int maxPending)
+  {
+    this(output, cipherKey, macKey, iv, workers, writerExecutor, maxPending, DEFAULT_CHUNK_SIZE);
+  }
+
+  @VisibleForTesting
+  BackupExportPipeline(@NonNull OutputStream output,
+                       @NonNull byte[] cipherKey,
+                       @NonNull byte[] macKey,
+                       @NonNull byte[] iv,
+                       @NonNull ExecutorService workers,
+                       @NonNull ExecutorService writerExecutor,
+                       int maxPending,
+                       int chunkSize)
+  {
+    if (chunkSize <= 0 || chunkSize % 16 != 0) {
+      throw new IllegalArgumentException("Chunks must be a whole number of AES blocks!");
+    }
+
+    this.output         = output;
+    this.macKey         = macKey;
+    this.iv             = iv.clone();
+    this.workers        = workers;
+    this.writerExecutor = writerExecutor;
+    this.chunkSize      = chunkSize;
+    this.pending        = new ArrayBlockingQueue<>(maxPending);
+    this.counter        = Conversions.byteArrayToInt(iv);
+    this.crypto         = ThreadLocal.withInitial(() -> new Crypto(cipherKey, macKey));
+    this.writer         = writerExecutor.submit(this::runWriter);
+  }
+
+  void writeFrame(@NonNull BackupFrame frame) throws IOException {
+    if (frameBatch.isEmpty()) {
+      frameBatchCounter = counter;
+    }
+
+    frameBatch.add(frame);
+    counter++;
+
+    if (frameBatch.size() >= FRAME_BATCH_SIZE) {
+      flushFrames();
+    }
+  }
+
+  /**
+   * Writes a header frame followed by a stream that's read on the calling thread, and only encrypted in parallel. The stream is fully
+   * consumed by the time this returns, but is not closed.
+   */
+  void writeStream(@NonNull BackupFrame header, @NonNull InputStream in, long size) throws IOException {
+    writeFrame(header);
+    flushFrames();
+
+    int  streamCounter = counter++;
+    long offset        = 0;
+
+    do {
+      int     length    = (int) Math.min(chunkSize, size - offset);
+      byte[]  plaintext = new byte[length];
+      long    start     = offset;
+      boolean last      = start + length >= size;
+
+      readFully(in, plaintext, length);
+
+      if (last && in.read() != -1) {
+        throw new IOException("Size mismatch!");
+      }
+
+      enqueue(() -> encryptChunk(streamCounter, start, plaintext, length, size));
+      offset += length;
+    } while (offset < size);
+  }
+
+  /**
+   * Writes a header frame followed by a stream that's both read and encrypted in parallel, with each chunk opening the source at its own
+   * offset. The source is opened once up front, so that a missing file is reported before anything is written.
+   */
+  void writeStream(@NonNull BackupFrame header, @NonNull StreamSource source, long size) throws IOException {
+    source.open(0).close();
+
+    writeFrame(header);
+    flushFrames();
+
+    int  streamCounter = counter++;
+    long offset        = 0;
+
+    do {
+      int  length = (int) Math.min(chunkSize, size - offset);
+      long start  = offset;
+
+      enqueue(() -> {
+        byte[] plaintext = new byte[length];
+
+        try (InputStream in = source.open(start)) {
+          readFully(in, plaintext, length);
+
+          if (start + length >= size && in.read() != -1) {
+            throw new IOException("Size mismatch!");
+          }
+        }
+
+        return encryptChunk(streamCounter, start, plaintext, length, size);
+      });
+
+      offset += length;
+    } while (offset < size);
+  }
+
+  /**
+   * Waits for everything to be written, and flushes the output. The output itself is left open.
+   */
+  void finish() throws IOException {
+    flushFrames();
+    put(END);
+
+    try {
+      writer.get();
+      finished = true;
+    } catch (ExecutionException e) {
+      throw unwrap(e);
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    } finally {
+      workers.shutdown();
+      writerExecutor.shutdown();
+    }
+  }
+
+  /**
+   * Stops the pipeline. If it wasn't finished, anything that hasn't been written yet is dropped, and this waits for the writer and workers
+   * to stop so that nothing touches the output after it returns. The output is left open.
+   */
+  @Override
+  public void close() {
+    if (finished) {
+      return;
+    }
+
+    writer.cancel(true);
+
+    Future<Segment> next;
+    while ((next = pending.poll()) != null) {
+      next.cancel(true);
+    }
+
+    workers.shutdownNow();
+    writerExecutor.shutdownNow();
+
+    try {
+      writer.get();
+    } catch (CancellationException | ExecutionException e) {
+      // Either we just cancelled it, or it had already failed and the failure was reported to the caller
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+
+    try {
+      if (!writerExecutor.awaitTermination(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+        Log.w(TAG, "Timed out waiting for the writer to stop!");
+      }
+
+      if (!workers.awaitTermination(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+        Log.w(TAG, "Timed out waiting for the workers to stop!");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void flushFrames() throws IOException {
+    if (frameBatch.isEmpty()) {
+      return;
+    }
+
+    List<BackupFrame> frames       = frameBatch;
+    int               startCounter = frameBatchCounter;
+
+    frameBatch = new ArrayList<>(FRAME_BATCH_SIZE);
+
+    enqueue(() -> encryptFrames(frames, startCounter));
+  }
+
+  private void enqueue(@NonNull Callable<Segment> callable) throws IOException {
+    FutureTask<Segment> task = new FutureTask<>(callable);
+
+    put(task);
+    workers.execute(task);
+  }
+
+  private void put(@NonNull Future<Segment> task) throws IOException {
+    try {
+      do {
+        if (writer.isDone()) {
+          writer.get();
+          throw new IOException("Writer stopped early!");
+        }
+      } while (!pending.offer(task, 100, TimeUnit.MILLISECONDS));
+    } catch (ExecutionException e) {
+      throw unwrap(e);
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    }
+  }
+
+  private @NonNull Segment encryptFrames(@NonNull List<BackupFrame> frames, int startCounter) throws GeneralSecurityException {
+    Crypto   crypto    = this.crypto.get();
+    byte[][] plaintext = new byte[frames.size()][];
+    int      total     = 0;
+
+    for (int i = 0; i < frames.size(); i++) {
+      plaintext[i] = frames.get(i).encode();
+      total       += 4 + plaintext[i].length + MAC_LENGTH;
+    }
+
+    byte[] data     = new byte[total];
+    int    position = 0;
+
+    for (int i = 0; i < plaintext.length; i++) {
+      int length = plaintext[i].length;
+
+      Conversions.intToByteArray(data, position, length + MAC_LENGTH);
+      position += 4;
+
+      crypto.cipher.init(Cipher.ENCRYPT_MODE, crypto.cipherKey, new IvParameterSpec(getIv(startCounter + i, 0)));
+      crypto.cipher.doFinal(plaintext[i], 0, length, data, position);
+
+      crypto.mac.update(data, position, length);
+      System.arraycopy(crypto.mac.doFinal(), 0, data, position + length, MAC_LENGTH);
+      position += length + MAC_LENGTH;
+    }
+
+    return new Segment(data, data.length, null, false, false);
+  }
+
+  /**
+   * A stream that fits in a single chunk is entirely self-contained, so we can MAC it here. Otherwise that's left to the writer.
+   */
+  private @NonNull Segment encryptChunk(int streamCounter, long offset, @NonNull byte[] plaintext, int length, long size)
+      throws GeneralSecurityException
+  {
+    Crypto  crypto   = this.crypto.get();
+    byte[]  streamIv = getIv(streamCounter, 0);
+    boolean first    = offset == 0;
+    boolean last     = offset + length >= size;
+
+    crypto.cipher.init(Cipher.ENCRYPT_MODE, crypto.cipherKey, new IvParameterSpec(getIv(streamCounter, offset)));
+
+    if (first && last) {
+      byte[] data = new byte[length + MAC_LENGTH];
+
+      crypto.cipher.doFinal(plaintext, 0, length, data, 0);
+
+      crypto.mac.update(streamIv);
+      crypto.mac.update(data, 0, length);
+      System.arraycopy(crypto.mac.doFinal(), 0, data, length, MAC_LENGTH);
+
+      return new Segment(data, data.length, null, false, false);
+    } else {
+      crypto.cipher.doFinal(plaintext, 0, length, plaintext, 0);
+      return new Segment(plaintext, length, first ? streamIv : null, true, last);
+    }
+  }
+
+  private Void runWriter() throws Exception {
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
+
+    while (true) {
+      Future<Segment> next = pending.take();
+
+      if (next == END) {
+        break;
+      }
+
+      Segment segment = await(next);
+
+      if (segment.macPrefix != null) {
+        mac.update(segment.macPrefix);
+      }
+
+      output.write(segment.data, 0, segment.length);
+
+      if (segment.macData) {
+        mac.update(segment.data, 0, segment.length);
+      }
+
+      if (segment.endOfStream) {
+        output.write(mac.doFinal(), 0, MAC_LENGTH);
+      }
+    }
+
+    output.flush();
+    return null;
+  }
+
+  private static @NonNull Segment await(@NonNull Future<Segment> future) throws Exception {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception) {
+        throw (Exception) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * The IV for the piece of work with the given counter, advanced to the given offset into its keystream.
+   */
+  private @NonNull byte[] getIv(int counter, long offset) {
+    byte[] result = iv.clone();
+    Conversions.intToByteArray(result, 0, counter);
+    addBlocks(result, offset / 16);
+    return result;
+  }
+
+  /**
+   * Adds to the IV as a 128-bit big-endian number, the same way AES/CTR advances it for each block.
+   */
+  @VisibleForTesting
+  static void addBlocks(@NonNull byte[] iv, long blocks) {
+    long carry = blocks;
+
+    for (int i = iv.length - 1; i >= 0 && carry != 0; i--) {
+      long sum = (iv[i] & 0xFF) + (carry & 0xFF);
+
+      iv[i] = (byte) sum;
+      carry = (carry >>> 8) + (sum >>> 8);
+    }
+  }
+
+  private static void readFully(@NonNull InputStream in, @NonNull byte[] buffer, int length) throws IOException {
+    int offset = 0;
+
+    while (offset < length) {
+      int read = in.read(buffer, offset, length - offset);
+
+      if (read == -1) {
+        throw new IOException("Size mismatch!");
+      }
+
+      offset += read;
+    }
+  }
+
+  private static @NonNull IOException unwrap(@NonNull ExecutionException e) {
+    Throwable cause = e.getCause();
+
+    if (cause instanceof IOException) {
+      return (IOException) cause;
+    } else if (cause instanceof RuntimeException) {
+      throw (RuntimeException) cause;
+    } else if (cause instanceof GeneralSecurityException) {
+      throw new AssertionError(cause);
+    } else {
+      Log.w(TAG, "Pipeline failed!", cause);
+      return new IOException(cause);
+    }
+  }
+
+  /**
+   * Opens a fresh stream positioned at the given offset. Called concurrently from multiple threads.
+   */
+  interface StreamSource {
+    @NonNull InputStream open(long offset) throws IOException;
+  }
+
+  private static final class Crypto {
+    private final Cipher        cipher;
+    private final Mac           mac;
+    private final SecretKeySpec cipherKey;
+
+    private Crypto(@NonNull byte[] cipherKey, @NonNull byte[] macKey) {
+      try {
+        this.cipher    = Cipher.getInstance("AES/CTR/NoPadding");
+        this.mac       = Mac.getInstance("HmacSHA256");
+        this.cipherKey = new SecretKeySpec(cipherKey, "AES");
+
+        mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
+      } catch (GeneralSecurityException e) {
+        throw new AssertionError(e);
+      }
+    }
+  }
+
+  /**
+   * A piece of output, along with what the writer needs to do to MAC it if it's part of a stream that was split into chunks.
+   */
+  private static final class Segment {
+    private final byte[]  data;
+    private final int     length;
+    private final byte[]  macPrefix;
+    private final boolean macData;
+    private final boolean endOfStream;
+
+    private Segment(@NonNull byte[] data, int length, byte[] macPrefix, boolean macData, boolean endOfStream) {
+      this.data        = data;
+      this.length      = length;
+      this.macPrefix   = macPrefix;
+      this.macData     = macData;
+      this.endOfStream = endOfStream;
+    }
+  }
+}
@@ -22,6 +22,7 @@ import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -32,6 +33,7 @@ class BackupRecordInputStream extends FullBackupBase.BackupStream {
   private final Mac         mac;
 
   private final byte[] cipherKey;
+  private final byte[] macKey;
 
   private final byte[] iv;
   private       int    counter;
@@ -66,7 +68,7 @@ class BackupRecordInputStream extends FullBackupBase.BackupStream {
       byte[][] split   = ByteUtil.split(derived, 32, 32);
 
       this.cipherKey = split[0];
-      byte[] macKey  = split[1];
+      this.macKey    = split[1];
 
       this.cipher = Cipher.getInstance("AES/CTR/NoPadding");
       this.mac    = Mac.getInstance("HmacSHA256");
@@ -130,6 +132,22 @@ class BackupRecordInputStream extends FullBackupBase.BackupStream {
     }
   }
 
+  /**
+   * Reads an attachment without decrypting it, so that can happen on another thread. Holds the whole attachment in memory.
+   */
+  @NonNull EncryptedAttachment readEncryptedAttachment(int length) throws IOException {
+    byte[] attachmentIv = iv.clone();
+    Conversions.intToByteArray(attachmentIv, 0, counter++);
+
+    byte[] ciphertext = new byte[length];
+    byte[] theirMac   = new byte[10];
+
+    StreamUtil.readFully(in, ciphertext);
+    StreamUtil.readFully(in, theirMac);
+
+    return new EncryptedAttachment(cipherKey, macKey, attachmentIv, ciphertext, theirMac);
+  }
+
   private BackupFrame readFrame(InputStream in) throws IOException {
     try {
       byte[] length = new byte[4];
@@ -160,4 +178,53 @@ class BackupRecordInputStream extends FullBackupBase.BackupStream {
   }
 
   static class BadMacException extends IOException {}
+
+  static final class EncryptedAttachment {
+    private final byte[] cipherKey;
+    private final byte[] macKey;
+    private final byte[] iv;
+    private final byte[] ciphertext;
+    private final byte[] theirMac;
+
+    private EncryptedAttachment(@NonNull byte[] cipherKey, @NonNull byte[] macKey, @NonNull byte[] iv, @NonNull byte[] ciphertext, @NonNull byte[] theirMac) {
+      this.cipherKey  = cipherKey;
+      this.macKey     = macKey;
+      this.iv         = iv;
+      this.ciphertext = ciphertext;
+      this.theirMac   = theirMac;
+    }
+
+    int getLength() {
+      return ciphertext.length;
+    }
+
+    /**
+     * Decrypts the attachment into the provided stream, and closes it. Unlike {@link #readAttachmentTo(OutputStream, int)}, the MAC is
+     * checked first, so nothing is written if it doesn't match. Decrypts in place, so it can only be called once, but from any thread.
+     */
+    void writeTo(@NonNull OutputStream out) throws IOException {
+      try {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
+        mac.update(iv);
+
+        byte[] ourMac = ByteUtil.trim(mac.doFinal(ciphertext), 10);
+
+        if (!MessageDigest.isEqual(ourMac, theirMac)) {
+          out.close();
+          throw new BadMacException();
+        }
+
+        Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
+
+        int length = cipher.doFinal(ciphertext, 0, ciphertext.length, ciphertext, 0);
+
+        out.write(ciphertext, 0, length);
+        out.close();
+      } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
+        throw new AssertionError(e);
+      }
+    }
+  }
 }
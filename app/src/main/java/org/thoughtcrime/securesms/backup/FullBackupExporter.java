@@ -21,6 +21,8 @@ import org.signal.core.util.CursorUtil;
 import org.signal.core.util.SetUtil;
 import org.signal.core.util.SqlUtil;
 import org.signal.core.util.Stopwatch;
+import org.signal.core.util.ThreadUtil;
+import org.signal.core.util.concurrent.SignalExecutors;
 import org.signal.core.util.logging.Log;
 import org.signal.libsignal.protocol.kdf.HKDF;
 import org.signal.libsignal.protocol.util.ByteUtil;
@@ -67,9 +69,6 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
@@ -80,14 +79,6 @@ import java.util.Objects;
 import java.util.Set;
 import java.util.stream.Collectors;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.Mac;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
-
 import okio.ByteString;
 
 public class FullBackupExporter extends FullBackupBase {
@@ -99,6 +90,8 @@ public class FullBackupExporter extends FullBackupBase {
   private static final long IDENTITY_KEY_BACKUP_RECORD_COUNT = 2L;
   private static final long FINAL_MESSAGE_COUNT              = 1L;
 
+  private static final int WORKER_COUNT = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+
   /**
    * Tables in list will still have their *schema* exported (so the tables will be created),
    * but we will not export the actual contents.
@@ -226,6 +219,8 @@ public class FullBackupExporter extends FullBackupBase {
     } finally {
       if (closeOutputStream) {
         outputStream.close();
+      } else {
+        outputStream.release();
       }
     }
     return new BackupEvent(BackupEvent.Type.FINISHED, ++count, estimatedCountOutside);
@@ -481,8 +476,16 @@ public class FullBackupExporter extends FullBackupBase {
 
     EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, estimatedCount));
     if (!TextUtils.isEmpty(data) && size > 0) {
-      try (InputStream inputStream = openAttachmentStream(attachmentSecret, random, data)) {
-        outputStream.write(new AttachmentId(rowId, uniqueId), inputStream, size);
+      AttachmentId attachmentId = new AttachmentId(rowId, uniqueId);
+
+      try {
+        if (isModernAttachment(random)) {
+          outputStream.write(attachmentId, offset -> ModernDecryptingPartInputStream.createFor(attachmentSecret, random, new File(data), offset), size);
+        } else {
+          try (InputStream inputStream = ClassicDecryptingPartInputStream.createFor(attachmentSecret, new File(data))) {
+            outputStream.write(attachmentId, inputStream, size);
+          }
+        }
       } catch (FileNotFoundException e) {
         Log.w(TAG, "Missing attachment", e);
       }
@@ -506,8 +509,8 @@ public class FullBackupExporter extends FullBackupBase {
 
     if (!TextUtils.isEmpty(data) && size > 0) {
       EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, estimatedCount));
-      try (InputStream inputStream = ModernDecryptingPartInputStream.createFor(attachmentSecret, random, new File(data), 0)) {
-        outputStream.writeSticker(rowId, inputStream, size);
+      try {
+        outputStream.writeSticker(rowId, offset -> ModernDecryptingPartInputStream.createFor(attachmentSecret, random, new File(data), offset), size);
       } catch (FileNotFoundException e) {
         Log.w(TAG, "Missing sticker", e);
       }
@@ -538,13 +541,17 @@ public class FullBackupExporter extends FullBackupBase {
   }
 
   private static InputStream openAttachmentStream(@NonNull AttachmentSecret attachmentSecret, @Nullable byte[] random, @NonNull String data) throws IOException {
-    if (random != null && random.length == 32) {
+    if (isModernAttachment(random)) {
       return ModernDecryptingPartInputStream.createFor(attachmentSecret, random, new File(data), 0);
     } else {
       return ClassicDecryptingPartInputStream.createFor(attachmentSecret, new File(data));
     }
   }
 
+  private static boolean isModernAttachment(@Nullable byte[] random) {
+    return random != null && random.length == 32;
+  }
+
   private static int exportKeyValues(@NonNull BackupFrameOutputStream outputStream,
                                      @NonNull List<String> keysToIncludeInBackup,
                                      int count,
@@ -626,180 +633,130 @@ public class FullBackupExporter extends FullBackupBase {
 
   private static class BackupFrameOutputStream extends BackupStream {
 
-    private final OutputStream outputStream;
-    private final Cipher       cipher;
-    private final Mac          mac;
-
-    private final byte[] cipherKey;
-    private final byte[] iv;
-    private       int    counter;
+    private final OutputStream         outputStream;
+    private final BackupExportPipeline pipeline;
 
     private BackupFrameOutputStream(@NonNull OutputStream output, @NonNull String passphrase) throws IOException {
-      try {
-        byte[]   salt    = Util.getSecretBytes(32);
-        byte[]   key     = getBackupKey(passphrase, salt);
-        byte[]   derived = HKDF.deriveSecrets(key, "Backup Export".getBytes(), 64);
-        byte[][] split   = ByteUtil.split(derived, 32, 32);
-
-        this.cipherKey = split[0];
-        byte[] macKey  = split[1];
-
-        this.cipher       = Cipher.getInstance("AES/CTR/NoPadding");
-        this.mac          = Mac.getInstance("HmacSHA256");
-        this.outputStream = output;
-        this.iv           = Util.getSecretBytes(16);
-        this.counter      = Conversions.byteArrayToInt(iv);
-
-        mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
-
-        byte[] header = new BackupFrame.Builder().header_(new Header.Builder()
-                                                                    .iv(new okio.ByteString(iv))
-                                                                    .salt(new okio.ByteString(salt))
-                                                                    .build())
-                                                 .build()
-                                                 .encode();
-
-        outputStream.write(Conversions.intToByteArray(header.length));
-        outputStream.write(header);
-      } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException e) {
-        throw new AssertionError(e);
-      }
+      byte[]   salt    = Util.getSecretBytes(32);
+      byte[]   key     = getBackupKey(passphrase, salt);
+      byte[]   derived = HKDF.deriveSecrets(key, "Backup Export".getBytes(), 64);
+      byte[][] split   = ByteUtil.split(derived, 32, 32);
+      byte[]   iv      = Util.getSecretBytes(16);
+
+      byte[] header = new BackupFrame.Builder().header_(new Header.Builder()
+                                                                  .iv(new okio.ByteString(iv))
+                                                                  .salt(new okio.ByteString(salt))
+                                                                  .build())
+                                               .build()
+                                               .encode();
+
+      output.write(Conversions.intToByteArray(header.length));
+      output.write(header);
+
+      this.outputStream = output;
+      this.pipeline     = new BackupExportPipeline(output,
+                                                   split[0],
+                                                   split[1],
+                                                   iv,
+                                                   SignalExecutors.newCachedBoundedExecutor("signal-backup", ThreadUtil.PRIORITY_BACKGROUND_THREAD, 1, WORKER_COUNT, 15),
+                                                   SignalExecutors.newCachedSingleThreadExecutor("signal-backup-writer", ThreadUtil.PRIORITY_BACKGROUND_THREAD),
+                                                   WORKER_COUNT * 4);
     }
 
     public void write(SharedPreference preference) throws IOException {
-      write(outputStream, new BackupFrame.Builder().preference(preference).build());
+      pipeline.writeFrame(new BackupFrame.Builder().preference(preference).build());
     }
 
     public void write(KeyValue keyValue) throws IOException {
-      write(outputStream, new BackupFrame.Builder().keyValue(keyValue).build());
+      pipeline.writeFrame(new BackupFrame.Builder().keyValue(keyValue).build());
     }
 
     public void write(SqlStatement statement) throws IOException {
-      write(outputStream, new BackupFrame.Builder().statement(statement).build());
+      pipeline.writeFrame(new BackupFrame.Builder().statement(statement).build());
     }
 
     public void write(@NonNull String avatarName, @NonNull InputStream in, long size) throws IOException {
-      try {
-        write(outputStream, new BackupFrame.Builder()
-                                           .avatar(new Avatar.Builder()
-                                                             .recipientId(avatarName)
-                                                             .length(Util.toIntExact(size))
-                                                             .build())
-                                           .build());
-      } catch (ArithmeticException e) {
-        Log.w(TAG, "Unable to write avatar to backup", e);
-        throw new InvalidBackupStreamException();
-      }
-
-      if (writeStream(in) != size) {
-        throw new IOException("Size mismatch!");
-      }
+      pipeline.writeStream(avatarFrame(avatarName, size), in, size);
     }
 
     public void write(@NonNull AttachmentId attachmentId, @NonNull InputStream in, long size) throws IOException {
-      try {
-        write(outputStream, new BackupFrame.Builder()
-                                           .attachment(new Attachment.Builder()
-                                                                     .rowId(attachmentId.getRowId())
-                                                                     .attachmentId(attachmentId.getUniqueId())
-                                                                     .length(Util.toIntExact(size))
-                                                                     .build())
-                                           .build());
-      } catch (ArithmeticException e) {
-        Log.w(TAG, "Unable to write " + attachmentId + " to backup", e);
-        throw new InvalidBackupStreamException();
-      }
-
-      if (writeStream(in) != size) {
-        throw new IOException("Size mismatch!");
-      }
+      pipeline.writeStream(attachmentFrame(attachmentId, size), in, size);
     }
 
-    public void writeSticker(long rowId, @NonNull InputStream in, long size) throws IOException {
-      try {
-        write(outputStream, new BackupFrame.Builder()
-                                           .sticker(new Sticker.Builder()
-                                                               .rowId(rowId)
-                                                               .length(Util.toIntExact(size))
-                                                               .build())
-                                           .build());
-      } catch (ArithmeticException e) {
-        Log.w(TAG, "Unable to write sticker to backup", e);
-        throw new InvalidBackupStreamException();
-      }
+    public void write(@NonNull AttachmentId attachmentId, @NonNull BackupExportPipeline.StreamSource source, long size) throws IOException {
+      pipeline.writeStream(attachmentFrame(attachmentId, size), source, size);
+    }
 
-      if (writeStream(in) != size) {
-        throw new IOException("Size mismatch!");
-      }
+    public void writeSticker(long rowId, @NonNull BackupExportPipeline.StreamSource source, long size) throws IOException {
+      pipeline.writeStream(stickerFrame(rowId, size), source, size);
     }
 
     void writeDatabaseVersion(int version) throws IOException {
-      write(outputStream, new BackupFrame.Builder()
+      pipeline.writeFrame(new BackupFrame.Builder()
                                          .version(new DatabaseVersion.Builder().version(version).build())
                                          .build());
     }
 
+    /**
+     * Writes the end frame, and waits for everything before it to be written.
+     */
     void writeEnd() throws IOException {
-      write(outputStream, new BackupFrame.Builder().end(true).build());
+      pipeline.writeFrame(new BackupFrame.Builder().end(true).build());
+      pipeline.finish();
     }
 
-    /**
-     * @return The amount of data written from the provided InputStream.
-     */
-    private long writeStream(@NonNull InputStream inputStream) throws IOException {
+    private static @NonNull BackupFrame avatarFrame(@NonNull String avatarName, long size) throws IOException {
       try {
-        Conversions.intToByteArray(iv, 0, counter++);
-        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
-        mac.update(iv);
-
-        byte[] buffer = new byte[8192];
-        long   total  = 0;
-
-        int read;
-
-        while ((read = inputStream.read(buffer)) != -1) {
-          byte[] ciphertext = cipher.update(buffer, 0, read);
-
-          if (ciphertext != null) {
-            outputStream.write(ciphertext);
-            mac.update(ciphertext);
-          }
-
-          total += read;
-        }
-
-        byte[] remainder = cipher.doFinal();
-        outputStream.write(remainder);
-        mac.update(remainder);
-
-        byte[] attachmentDigest = mac.doFinal();
-        outputStream.write(attachmentDigest, 0, 10);
+        return new BackupFrame.Builder()
+                              .avatar(new Avatar.Builder()
+                                                .recipientId(avatarName)
+                                                .length(Util.toIntExact(size))
+                                                .build())
+                              .build();
+      } catch (ArithmeticException e) {
+        Log.w(TAG, "Unable to write avatar to backup", e);
+        throw new InvalidBackupStreamException();
+      }
+    }
 
-        return total;
-      } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
-        throw new AssertionError(e);
+    private static @NonNull BackupFrame attachmentFrame(@NonNull AttachmentId attachmentId, long size) throws IOException {
+      try {
+        return new BackupFrame.Builder()
+                              .attachment(new Attachment.Builder()
+                                                        .rowId(attachmentId.getRowId())
+                                                        .attachmentId(attachmentId.getUniqueId())
+                                                        .length(Util.toIntExact(size))
+                                                        .build())
+                              .build();
+      } catch (ArithmeticException e) {
+        Log.w(TAG, "Unable to write " + attachmentId + " to backup", e);
+        throw new InvalidBackupStreamException();
       }
     }
 
-    private void write(@NonNull OutputStream out, @NonNull BackupFrame frame) throws IOException {
+    private static @NonNull BackupFrame stickerFrame(long rowId, long size) throws IOException {
       try {
-        Conversions.intToByteArray(iv, 0, counter++);
-        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
-
-        byte[] frameCiphertext = cipher.doFinal(frame.encode());
-        byte[] frameMac        = mac.doFinal(frameCiphertext);
-        byte[] length          = Conversions.intToByteArray(frameCiphertext.length + 10);
-
-        out.write(length);
-        out.write(frameCiphertext);
-        out.write(frameMac, 0, 10);
-      } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
-        throw new AssertionError(e);
+        return new BackupFrame.Builder()
+                              .sticker(new Sticker.Builder()
+                                                  .rowId(rowId)
+                                                  .length(Util.toIntExact(size))
+                                                  .build())
+                              .build();
+      } catch (ArithmeticException e) {
+        Log.w(TAG, "Unable to write sticker to backup", e);
+        throw new InvalidBackupStreamException();
       }
     }
 
+    /**
+     * Stops any encryption that's still in flight, without closing the underlying stream.
+     */
+    public void release() {
+      pipeline.close();
+    }
 
     public void close() throws IOException {
+      pipeline.close();
       outputStream.flush();
       outputStream.close();
     }
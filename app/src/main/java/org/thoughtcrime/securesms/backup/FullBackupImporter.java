@@ -9,13 +9,18 @@ import android.net.Uri;
 import android.util.Pair;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 
 import net.zetetic.database.sqlcipher.SQLiteConstraintException;
 import net.zetetic.database.sqlcipher.SQLiteDatabase;
+import net.zetetic.database.sqlcipher.SQLiteStatement;
 
 import org.greenrobot.eventbus.EventBus;
 import org.signal.core.util.SqlUtil;
+import org.signal.core.util.Stopwatch;
+import org.signal.core.util.ThreadUtil;
+import org.signal.core.util.concurrent.SignalExecutors;
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.backup.proto.Attachment;
 import org.thoughtcrime.securesms.backup.proto.Avatar;
@@ -38,24 +43,33 @@ import org.thoughtcrime.securesms.keyvalue.SignalStore;
 import org.thoughtcrime.securesms.profiles.AvatarHelper;
 import org.thoughtcrime.securesms.recipients.RecipientId;
 import org.thoughtcrime.securesms.util.BackupUtil;
+import org.thoughtcrime.securesms.util.ByteUnit;
 
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 public class FullBackupImporter extends FullBackupBase {
@@ -75,6 +89,18 @@ public class FullBackupImporter extends FullBackupBase {
   public static void importFile(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret,
                                 @NonNull SQLiteDatabase db, @NonNull InputStream is, @NonNull String passphrase)
       throws IOException
+  {
+    importFile(context, attachmentSecret, db, is, passphrase, true);
+  }
+
+  /**
+   * @param bulk Whether to use the {@link BulkLoader}, rather than applying every frame as it's read. Only exposed so that the two can
+   *             be compared.
+   */
+  @VisibleForTesting
+  static void importFile(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret,
+                         @NonNull SQLiteDatabase db, @NonNull InputStream is, @NonNull String passphrase, boolean bulk)
+      throws IOException
   {
     int count = 0;
 
@@ -82,7 +108,7 @@ public class FullBackupImporter extends FullBackupBase {
 
     db.beginTransaction();
     keyValueDatabase.beginTransaction();
-    try {
+    try (Loader loader = bulk ? new BulkLoader(context, attachmentSecret, db) : new DirectLoader(context, attachmentSecret, db)) {
       BackupRecordInputStream inputStream = new BackupRecordInputStream(is, passphrase);
 
       dropAllTables(db);
@@ -94,15 +120,17 @@ public class FullBackupImporter extends FullBackupBase {
         count++;
 
         if      (frame.version != null)    processVersion(db, frame.version);
-        else if (frame.statement != null)  tryProcessStatement(db, frame.statement);
+        else if (frame.statement != null)  tryProcessStatement(loader, frame.statement);
         else if (frame.preference != null) processPreference(context, frame.preference);
-        else if (frame.attachment != null) processAttachment(context, attachmentSecret, db, frame.attachment, inputStream);
+        else if (frame.attachment != null) loader.processAttachment(frame.attachment, inputStream);
         else if (frame.sticker != null)    processSticker(context, attachmentSecret, db, frame.sticker, inputStream);
         else if (frame.avatar != null)     processAvatar(context, db, frame.avatar, inputStream);
         else if (frame.keyValue != null)   processKeyValue(frame.keyValue);
         else                            count--;
       }
 
+      loader.finish();
+
       db.setTransactionSuccessful();
       keyValueDatabase.setTransactionSuccessful();
     } finally {
@@ -129,9 +157,9 @@ public class FullBackupImporter extends FullBackupBase {
     db.setVersion(version.version);
   }
 
-  private static void tryProcessStatement(@NonNull SQLiteDatabase db, SqlStatement statement) {
+  private static void tryProcessStatement(@NonNull Loader loader, SqlStatement statement) {
     try {
-      processStatement(db, statement);
+      loader.processStatement(statement);
     } catch (SQLiteConstraintException e) {
       String tableName       = "?";
       String statementString = statement.statement;
@@ -160,12 +188,7 @@ public class FullBackupImporter extends FullBackupBase {
       return;
     }
 
-    boolean isForMmsFtsSecretTable = statement.statement.contains(SearchTable.FTS_TABLE_NAME + "_");
-    boolean isForEmojiSecretTable  = statement.statement.contains(EmojiSearchTable.TABLE_NAME + "_");
-    boolean isForSqliteSecretTable = statement.statement.toLowerCase().startsWith("create table sqlite_");
-
-    if (isForMmsFtsSecretTable || isForEmojiSecretTable || isForSqliteSecretTable) {
-      Log.i(TAG, "Ignoring import for statement: " + statement.statement);
+    if (shouldIgnoreStatement(statement.statement)) {
       return;
     }
 
@@ -183,16 +206,37 @@ public class FullBackupImporter extends FullBackupBase {
     else                       db.execSQL(statement.statement);
   }
 
+  private static boolean shouldIgnoreStatement(@NonNull String statement) {
+    boolean isForMmsFtsSecretTable = statement.contains(SearchTable.FTS_TABLE_NAME + "_");
+    boolean isForEmojiSecretTable  = statement.contains(EmojiSearchTable.TABLE_NAME + "_");
+    boolean isForSqliteSecretTable = statement.toLowerCase().startsWith("create table sqlite_");
+
+    if (isForMmsFtsSecretTable || isForEmojiSecretTable || isForSqliteSecretTable) {
+      Log.i(TAG, "Ignoring import for statement: " + statement);
+      return true;
+    }
+
+    return false;
+  }
+
   private static void processAttachment(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db, @NonNull Attachment attachment, BackupRecordInputStream inputStream)
       throws IOException
   {
-    File                       dataFile = AttachmentTable.newFile(context);
-    Pair<byte[], OutputStream> output   = ModernEncryptingPartOutputStream.createFor(attachmentSecret, dataFile, false);
+    File          dataFile      = AttachmentTable.newFile(context);
+    ContentValues contentValues = writeAttachment(attachmentSecret, dataFile, attachment, out -> inputStream.readAttachmentTo(out, attachment.length));
+
+    updateAttachment(db, attachment, contentValues);
+  }
+
+  private static @NonNull ContentValues writeAttachment(@NonNull AttachmentSecret attachmentSecret, @NonNull File dataFile, @NonNull Attachment attachment, @NonNull AttachmentReader reader)
+      throws IOException
+  {
+    Pair<byte[], OutputStream> output = ModernEncryptingPartOutputStream.createFor(attachmentSecret, dataFile, false);
 
     ContentValues contentValues = new ContentValues();
 
     try {
-      inputStream.readAttachmentTo(output.second, attachment.length);
+      reader.readTo(output.second);
 
       contentValues.put(AttachmentTable.DATA, dataFile.getAbsolutePath());
       contentValues.put(AttachmentTable.DATA_RANDOM, output.first);
@@ -203,6 +247,10 @@ public class FullBackupImporter extends FullBackupBase {
       contentValues.put(AttachmentTable.DATA_RANDOM, (String) null);
     }
 
+    return contentValues;
+  }
+
+  private static void updateAttachment(@NonNull SQLiteDatabase db, @NonNull Attachment attachment, @NonNull ContentValues contentValues) {
     db.update(AttachmentTable.TABLE_NAME, contentValues,
               AttachmentTable.ROW_ID + " = ? AND " + AttachmentTable.UNIQUE_ID + " = ?",
               new String[] {String.valueOf(attachment.rowId), String.valueOf(attachment.attachmentId)});
@@ -365,6 +413,255 @@ public class FullBackupImporter extends FullBackupBase {
     return new ArrayList<>(dropOrder);
   }
 
+  /**
+   * @return The name of the trigger created by a CREATE TRIGGER statement, without any schema or quotes, or null if there isn't one.
+   */
+  @VisibleForTesting
+  static @Nullable String getTriggerName(@NonNull String statement) {
+    String[] tokens = statement.trim().split("\\s+");
+    int      index  = 2;
+
+    if (tokens.length > 5 && tokens[2].equalsIgnoreCase("IF") && tokens[3].equalsIgnoreCase("NOT") && tokens[4].equalsIgnoreCase("EXISTS")) {
+      index = 5;
+    }
+
+    if (tokens.length <= index || !tokens[0].equalsIgnoreCase("CREATE") || !tokens[1].equalsIgnoreCase("TRIGGER")) {
+      return null;
+    }
+
+    String name = tokens[index];
+    name = name.substring(name.lastIndexOf('.') + 1);
+
+    return name.replaceAll("[\"`\\[\\]]", "").toLowerCase(Locale.US);
+  }
+
+  private interface AttachmentReader {
+    void readTo(@NonNull OutputStream out) throws IOException;
+  }
+
+  /**
+   * Applies the frames of a backup to the database.
+   */
+  private interface Loader extends Closeable {
+    void processStatement(@NonNull SqlStatement statement);
+
+    void processAttachment(@NonNull Attachment attachment, @NonNull BackupRecordInputStream inputStream) throws IOException;
+
+    /**
+     * Called once every frame has been read, before the transaction is committed.
+     */
+    void finish() throws IOException;
+
+    @Override
+    void close();
+  }
+
+  /**
+   * Applies each frame as soon as it's read.
+   */
+  private static final class DirectLoader implements Loader {
+
+    private final Context          context;
+    private final AttachmentSecret attachmentSecret;
+    private final SQLiteDatabase   db;
+
+    private DirectLoader(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db) {
+      this.context          = context;
+      this.attachmentSecret = attachmentSecret;
+      this.db               = db;
+    }
+
+    @Override
+    public void processStatement(@NonNull SqlStatement statement) {
+      FullBackupImporter.processStatement(db, statement);
+    }
+
+    @Override
+    public void processAttachment(@NonNull Attachment attachment, @NonNull BackupRecordInputStream inputStream) throws IOException {
+      FullBackupImporter.processAttachment(context, attachmentSecret, db, attachment, inputStream);
+    }
+
+    @Override
+    public void finish() {}
+
+    @Override
+    public void close() {}
+  }
+
+  /**
+   * Loads the backup the way you'd bulk load any database:
+   *
+   * - Rows are inserted through statements that are only compiled once per table.
+   * - Non-unique indexes aren't created until all of the rows are in, so they're built once rather than maintained on every insert.
+   *   Unique indexes are created right away, since they're constraints.
+   * - The full-text search triggers ({@link SearchTable#TRIGGER_NAMES}) aren't created until the end either. Nothing is lost, since the search index is dropped and rebuilt
+   *   after every restore anyway (see {@link SearchTable#fullyResetTables()}).
+   * - Attachments are decrypted, re-encrypted and written on a pool of workers, and their rows are updated back on this thread once
+   *   they're done. Large attachments are still streamed, rather than being held in memory.
+   */
+  private static final class BulkLoader implements Loader {
+
+    private static final int  MAX_PARALLEL_ATTACHMENT_SIZE = (int) ByteUnit.MEGABYTES.toBytes(4);
+    private static final long MAX_PENDING_ATTACHMENT_BYTES = ByteUnit.MEGABYTES.toBytes(32);
+    private static final int  WORKER_COUNT                 = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+
+    private final Context                      context;
+    private final AttachmentSecret             attachmentSecret;
+    private final SQLiteDatabase               db;
+    private final Map<String, SQLiteStatement> inserts;
+    private final List<String>                 deferredStatements;
+    private final Queue<PendingAttachment>     pendingAttachments;
+    private final ExecutorService              executor;
+
+    private long pendingAttachmentBytes;
+
+    private BulkLoader(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db) {
+      this.context            = context;
+      this.attachmentSecret   = attachmentSecret;
+      this.db                 = db;
+      this.inserts            = new HashMap<>();
+      this.deferredStatements = new ArrayList<>();
+      this.pendingAttachments = new ArrayDeque<>();
+      this.executor           = SignalExecutors.newCachedBoundedExecutor("signal-restore", ThreadUtil.PRIORITY_IMPORTANT_BACKGROUND_THREAD, 1, WORKER_COUNT, 15);
+    }
+
+    @Override
+    public void processStatement(@NonNull SqlStatement statement) {
+      String sql = statement.statement;
+
+      if (sql == null) {
+        Log.w(TAG, "Null statement!");
+        return;
+      }
+
+      SQLiteStatement insert = inserts.get(sql);
+
+      if (insert == null) {
+        if (!sql.startsWith("INSERT INTO ")) {
+          if (isDeferrable(sql) && !shouldIgnoreStatement(sql)) {
+            deferredStatements.add(sql);
+          } else {
+            FullBackupImporter.processStatement(db, statement);
+          }
+          return;
+        }
+
+        if (shouldIgnoreStatement(sql)) {
+          return;
+        }
+
+        insert = db.compileStatement(sql);
+        inserts.put(sql, insert);
+      }
+
+      insert.clearBindings();
+
+      int index = 1;
+      for (SqlStatement.SqlParameter parameter : statement.parameters) {
+        if      (parameter.stringParamter != null)   insert.bindString(index++, parameter.stringParamter);
+        else if (parameter.doubleParameter != null)  insert.bindDouble(index++, parameter.doubleParameter);
+        else if (parameter.integerParameter != null) insert.bindLong(index++, parameter.integerParameter);
+        else if (parameter.blobParameter != null)    insert.bindBlob(index++, parameter.blobParameter.toByteArray());
+        else if (parameter.nullparameter != null)    insert.bindNull(index++);
+      }
+
+      insert.executeInsert();
+    }
+
+    @Override
+    public void processAttachment(@NonNull Attachment attachment, @NonNull BackupRecordInputStream inputStream) throws IOException {
+      if (attachment.length > MAX_PARALLEL_ATTACHMENT_SIZE) {
+        FullBackupImporter.processAttachment(context, attachmentSecret, db, attachment, inputStream);
+        return;
+      }
+
+      BackupRecordInputStream.EncryptedAttachment encrypted = inputStream.readEncryptedAttachment(attachment.length);
+      File                                        dataFile  = AttachmentTable.newFile(context);
+
+      Future<ContentValues> contentValues = executor.submit(() -> writeAttachment(attachmentSecret, dataFile, attachment, encrypted::writeTo));
+
+      pendingAttachments.add(new PendingAttachment(attachment, contentValues, encrypted.getLength()));
+      pendingAttachmentBytes += encrypted.getLength();
+
+      while (pendingAttachmentBytes > MAX_PENDING_ATTACHMENT_BYTES) {
+        updateNextAttachment();
+      }
+    }
+
+    @Override
+    public void finish() throws IOException {
+      Stopwatch stopwatch = new Stopwatch("bulk-load");
+
+      while (!pendingAttachments.isEmpty()) {
+        updateNextAttachment();
+      }
+      stopwatch.split("attachments");
+
+      closeInserts();
+
+      for (String statement : deferredStatements) {
+        db.execSQL(statement);
+      }
+      stopwatch.split("indexes");
+
+      Log.i(TAG, "Created " + deferredStatements.size() + " deferred indexes and triggers.");
+      stopwatch.stop(TAG);
+    }
+
+    @Override
+    public void close() {
+      closeInserts();
+      executor.shutdownNow();
+    }
+
+    private void updateNextAttachment() throws IOException {
+      PendingAttachment next = pendingAttachments.remove();
+
+      pendingAttachmentBytes -= next.length;
+
+      try {
+        updateAttachment(db, next.attachment, next.contentValues.get());
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        } else if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        } else {
+          throw new IOException(e.getCause());
+        }
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      }
+    }
+
+    private void closeInserts() {
+      for (SQLiteStatement insert : inserts.values()) {
+        insert.close();
+      }
+      inserts.clear();
+    }
+
+    private static boolean isDeferrable(@NonNull String statement) {
+      String  normalized   = statement.trim().toUpperCase(Locale.US);
+      boolean isIndex      = normalized.startsWith("CREATE INDEX");
+      boolean isFtsTrigger = SearchTable.TRIGGER_NAMES.contains(getTriggerName(statement));
+
+      return isIndex || isFtsTrigger;
+    }
+
+    private static final class PendingAttachment {
+      private final Attachment            attachment;
+      private final Future<ContentValues> contentValues;
+      private final int                   length;
+
+      private PendingAttachment(@NonNull Attachment attachment, @NonNull Future<ContentValues> contentValues, int length) {
+        this.attachment    = attachment;
+        this.contentValues = contentValues;
+        this.length        = length;
+      }
+    }
+  }
+
   public static class DatabaseDowngradeException extends IOException {
     DatabaseDowngradeException(int currentVersion, int backupVersion) {
       super("Tried to import a backup with version " + backupVersion + " into a database with version " + currentVersion);
@@ -11,6 +11,7 @@ import android.graphics.drawable.Drawable;
 import android.text.Spannable;
 import android.text.SpannableStringBuilder;
 import android.text.TextUtils;
+import android.util.LruCache;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
@@ -20,6 +21,7 @@ import org.signal.core.util.ThreadUtil;
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.components.emoji.parsing.EmojiDrawInfo;
 import org.thoughtcrime.securesms.components.emoji.parsing.EmojiParser;
+import org.thoughtcrime.securesms.components.emoji.parsing.EmojiTree;
 import org.thoughtcrime.securesms.emoji.EmojiPageCache;
 import org.thoughtcrime.securesms.emoji.EmojiSource;
 import org.thoughtcrime.securesms.emoji.JumboEmoji;
@@ -36,9 +38,39 @@ public class EmojiProvider {
   private static final    String TAG   = Log.tag(EmojiProvider.class);
   private static final    Paint  PAINT = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.ANTI_ALIAS_FLAG);
 
+  private static final int CANDIDATE_CACHE_SIZE   = 256;
+  private static final int MAX_CACHED_TEXT_LENGTH = 512;
+
+  private static volatile CandidateCache candidateCache;
+
+  /**
+   * The same text tends to be parsed over and over as conversation items are rebound, so results for short text are cached until the
+   * emoji source changes.
+   */
   public static @Nullable EmojiParser.CandidateList getCandidates(@Nullable CharSequence text) {
     if (text == null) return null;
-    return new EmojiParser(EmojiSource.getLatest().getEmojiTree()).findCandidates(text);
+
+    EmojiTree tree = EmojiSource.getLatest().getEmojiTree();
+
+    if (text.length() > MAX_CACHED_TEXT_LENGTH) {
+      return new EmojiParser(tree).findCandidates(text);
+    }
+
+    CandidateCache cache = candidateCache;
+    if (cache == null || cache.tree != tree) {
+      cache          = new CandidateCache(tree);
+      candidateCache = cache;
+    }
+
+    String                    key        = text.toString();
+    EmojiParser.CandidateList candidates = cache.entries.get(key);
+
+    if (candidates == null) {
+      candidates = new EmojiParser(tree).findCandidates(key);
+      cache.entries.put(key, candidates);
+    }
+
+    return candidates;
   }
 
   static  @Nullable Spannable emojify(@Nullable CharSequence text, @NonNull TextView tv, boolean jumboEmoji) {
@@ -121,36 +153,46 @@ public class EmojiProvider {
       return null;
     }
 
-    final int           lowMemoryDecodeScale = DeviceProperties.isLowMemoryDevice(context) ? 2 : 1;
+    final int           lowMemoryDecodeScale = getLowMemoryDecodeScale(context);
     final EmojiSource   source               = EmojiSource.getLatest();
     final EmojiDrawable drawable             = new EmojiDrawable(source, drawInfo, lowMemoryDecodeScale);
     final AtomicBoolean jumboLoaded          = new AtomicBoolean(false);
 
-    EmojiPageCache.LoadResult loadResult = EmojiPageCache.INSTANCE.load(context, drawInfo.getPage(), lowMemoryDecodeScale);
-
-    if (loadResult instanceof EmojiPageCache.LoadResult.Immediate) {
-      ThreadUtil.runOnMain(() -> drawable.setBitmap(((EmojiPageCache.LoadResult.Immediate) loadResult).getBitmap()));
-    } else if (loadResult instanceof EmojiPageCache.LoadResult.Async) {
-      ((EmojiPageCache.LoadResult.Async) loadResult).getTask().addListener(new FutureTaskListener<Bitmap>() {
-        @Override
-        public void onSuccess(Bitmap result) {
-          ThreadUtil.runOnMain(() -> {
-            if (!jumboLoaded.get()) {
-              drawable.setBitmap(result);
-              if (onEmojiLoaded != null) {
-                onEmojiLoaded.run();
-              }
-            }
-          });
-        }
+    Bitmap emojiBitmap = EmojiPageCache.INSTANCE.getEmojiBitmap(drawInfo, lowMemoryDecodeScale);
 
-        @Override
-        public void onFailure(ExecutionException exception) {
-          Log.d(TAG, "Failed to load emoji bitmap resource", exception);
+    if (emojiBitmap != null) {
+      ThreadUtil.runOnMain(() -> {
+        if (!jumboLoaded.get()) {
+          drawable.setSingleBitmap(emojiBitmap);
         }
       });
     } else {
-      throw new IllegalStateException("Unexpected subclass " + loadResult.getClass());
+      EmojiPageCache.LoadResult loadResult = EmojiPageCache.INSTANCE.load(context, drawInfo.getPage(), lowMemoryDecodeScale);
+
+      if (loadResult instanceof EmojiPageCache.LoadResult.Immediate) {
+        ThreadUtil.runOnMain(() -> setPageBitmap(drawable, drawInfo, lowMemoryDecodeScale, ((EmojiPageCache.LoadResult.Immediate) loadResult).getBitmap()));
+      } else if (loadResult instanceof EmojiPageCache.LoadResult.Async) {
+        ((EmojiPageCache.LoadResult.Async) loadResult).getTask().addListener(new FutureTaskListener<Bitmap>() {
+          @Override
+          public void onSuccess(Bitmap result) {
+            ThreadUtil.runOnMain(() -> {
+              if (!jumboLoaded.get()) {
+                setPageBitmap(drawable, drawInfo, lowMemoryDecodeScale, result);
+                if (onEmojiLoaded != null) {
+                  onEmojiLoaded.run();
+                }
+              }
+            });
+          }
+
+          @Override
+          public void onFailure(ExecutionException exception) {
+            Log.d(TAG, "Failed to load emoji bitmap resource", exception);
+          }
+        });
+      } else {
+        throw new IllegalStateException("Unexpected subclass " + loadResult.getClass());
+      }
     }
 
     if (jumboEmoji && drawInfo.getJumboSheet() != null) {
@@ -202,7 +244,7 @@ public class EmojiProvider {
       return null;
     }
 
-    final int           lowMemoryDecodeScale = DeviceProperties.isLowMemoryDevice(context) ? 2 : 1;
+    final int           lowMemoryDecodeScale = getLowMemoryDecodeScale(context);
     final EmojiSource   source               = EmojiSource.getLatest();
     final EmojiDrawable drawable             = new EmojiDrawable(source, drawInfo, lowMemoryDecodeScale);
 
@@ -230,6 +272,13 @@ public class EmojiProvider {
     }
 
     if (!jumboEmoji || bitmap == null) {
+      Bitmap emojiBitmap = EmojiPageCache.INSTANCE.getEmojiBitmap(drawInfo, lowMemoryDecodeScale);
+
+      if (emojiBitmap != null) {
+        drawable.setSingleBitmap(emojiBitmap);
+        return drawable;
+      }
+
       EmojiPageCache.LoadResult loadResult = EmojiPageCache.INSTANCE.load(context, drawInfo.getPage(), lowMemoryDecodeScale);
 
       if (loadResult instanceof EmojiPageCache.LoadResult.Immediate) {
@@ -246,12 +295,28 @@ public class EmojiProvider {
         throw new IllegalStateException("Unexpected subclass " + loadResult.getClass());
       }
 
-      drawable.setBitmap(bitmap);
+      if (bitmap != null) {
+        setPageBitmap(drawable, drawInfo, lowMemoryDecodeScale, bitmap);
+      } else {
+        drawable.setBitmap(null);
+      }
     }
 
     return drawable;
   }
 
+  /**
+   * @return The inSampleSize emoji pages are decoded at on this device.
+   */
+  public static int getLowMemoryDecodeScale(@NonNull Context context) {
+    return DeviceProperties.isLowMemoryDevice(context) ? 2 : 1;
+  }
+
+  private static void setPageBitmap(@NonNull EmojiDrawable drawable, @NonNull EmojiDrawInfo drawInfo, int lowMemoryDecodeScale, @NonNull Bitmap page) {
+    drawable.setBitmap(page);
+    EmojiPageCache.INSTANCE.onEmojiDrawn(drawInfo, lowMemoryDecodeScale, page, drawable.getEmojiBounds());
+  }
+
   static final class EmojiDrawable extends Drawable {
     private final float intrinsicWidth;
     private final float intrinsicHeight;
@@ -287,6 +352,10 @@ public class EmojiProvider {
                                   yStart + glyphHeight - 1);
     }
 
+    @NonNull Rect getEmojiBounds() {
+      return emojiBounds;
+    }
+
     @Override
     public void draw(@NonNull Canvas canvas) {
       if (bmp == null) {
@@ -326,4 +395,13 @@ public class EmojiProvider {
     @Override
     public void setColorFilter(ColorFilter cf) { }
   }
+
+  private static final class CandidateCache {
+    private final EmojiTree                                   tree;
+    private final LruCache<String, EmojiParser.CandidateList> entries = new LruCache<>(CANDIDATE_CACHE_SIZE);
+
+    private CandidateCache(@NonNull EmojiTree tree) {
+      this.tree = tree;
+    }
+  }
 }
@@ -26,8 +26,9 @@ import androidx.annotation.Nullable;
 
 import org.thoughtcrime.securesms.emoji.JumboEmoji;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 
 /**
@@ -41,25 +42,44 @@ public class EmojiParser {
     this.emojiTree = emojiTree;
   }
 
+  /**
+   * Scans the text once, taking the longest emoji that starts at each position, along with a trailing skin tone modifier if the emoji
+   * doesn't already include one.
+   */
   public @NonNull CandidateList findCandidates(@Nullable CharSequence text) {
-    List<Candidate> results = new LinkedList<>();
+    List<Candidate> results = new ArrayList<>();
 
     if (text == null) {
       return new CandidateList(results, false);
     }
 
-    boolean allEmojis = text.length() > 0;
+    EmojiTrie trie      = emojiTree.getTrie();
+    int       length    = text.length();
+    boolean   allEmojis = length > 0;
 
-    for (int i = 0; i < text.length(); i++) {
-      int emojiEnd = getEmojiEndPos(text, i);
+    for (int i = 0; i < length; i++) {
+      int           emojiEnd = -1;
+      EmojiDrawInfo drawInfo = null;
+      int           node     = EmojiTrie.ROOT;
 
-      if (emojiEnd != -1) {
-        EmojiDrawInfo drawInfo = emojiTree.getEmoji(text, i, emojiEnd);
+      for (int j = i; j < length; j++) {
+        node = trie.getChild(node, text.charAt(j));
+
+        if (node == EmojiTrie.NONE) {
+          break;
+        }
+
+        EmojiDrawInfo match = trie.getMatch(node);
 
-        if (emojiEnd + 2 <= text.length()) {
-          if (Fitzpatrick.fitzpatrickFromUnicode(text, emojiEnd) != null) {
-            emojiEnd += 2;
-          }
+        if (match != null) {
+          emojiEnd = j + 1;
+          drawInfo = match;
+        }
+      }
+
+      if (emojiEnd != -1) {
+        if (Fitzpatrick.isModifierAt(text, emojiEnd)) {
+          emojiEnd += 2;
         }
 
         results.add(new Candidate(i, emojiEnd, drawInfo));
@@ -72,23 +92,7 @@ public class EmojiParser {
 
     allEmojis &= !results.isEmpty();
 
-    return new CandidateList(results, allEmojis);
-  }
-
-  private int getEmojiEndPos(CharSequence text, int startPos) {
-    int best = -1;
-
-    for (int j = startPos + 1; j <= text.length(); j++) {
-      EmojiTree.Matches status = emojiTree.isEmoji(text, startPos, j);
-
-      if (status.exactMatch()) {
-        best = j;
-      } else if (status.impossibleMatch()) {
-        return best;
-      }
-    }
-
-    return best;
+    return new CandidateList(Collections.unmodifiableList(results), allEmojis);
   }
 
   public static class Candidate {
@@ -20,13 +20,18 @@
 
 package org.thoughtcrime.securesms.components.emoji.parsing;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
 
 /**
  * Based in part on code from emoji-java
+ * <p>
+ * Emoji are added to a mutable tree of nodes, which is compiled into a flat {@link EmojiTrie} the first time it's searched after a change.
+ * All lookups go through the compiled form.
  */
 public class EmojiTree {
 
@@ -34,18 +39,24 @@ public class EmojiTree {
 
   private static final char TERMINATOR = '\ufe0f';
 
-  public void add(String emojiEncoding, EmojiDrawInfo emoji) {
+  private int nodeCount = 1;
+
+  private volatile EmojiTrie trie;
+
+  public synchronized void add(String emojiEncoding, EmojiDrawInfo emoji) {
     EmojiTreeNode tree = root;
 
     for (char c: emojiEncoding.toCharArray()) {
       if (!tree.hasChild(c)) {
         tree.addChild(c);
+        nodeCount++;
       }
 
       tree = tree.getChild(c);
     }
 
     tree.setEmoji(emoji);
+    trie = null;
   }
 
   public Matches isEmoji(CharSequence sequence, int startPosition, int endPosition) {
@@ -53,21 +64,12 @@ public class EmojiTree {
       return Matches.POSSIBLY;
     }
 
-    EmojiTreeNode tree = root;
-
-    for (int i=startPosition; i<endPosition; i++) {
-      char character = sequence.charAt(i);
-
-      if (!tree.hasChild(character)) {
-        return Matches.IMPOSSIBLE;
-      }
-
-      tree = tree.getChild(character);
-    }
+    EmojiTrie trie = getTrie();
+    int       node = trie.find(sequence, startPosition, endPosition);
 
-    if (tree.isEndOfEmoji()) {
-      return Matches.EXACTLY;
-    } else if (sequence.charAt(endPosition-1) != TERMINATOR && tree.hasChild(TERMINATOR) && tree.getChild(TERMINATOR).isEndOfEmoji()) {
+    if (node == EmojiTrie.NONE) {
+      return Matches.IMPOSSIBLE;
+    } else if (trie.getMatch(node) != null) {
       return Matches.EXACTLY;
     } else {
       return Matches.POSSIBLY;
@@ -75,29 +77,89 @@ public class EmojiTree {
   }
 
   public @Nullable EmojiDrawInfo getEmoji(CharSequence unicode, int startPosition, int endPostiion) {
-    EmojiTreeNode tree = root;
+    EmojiTrie trie = getTrie();
+    int       node = trie.find(unicode, startPosition, endPostiion);
 
-    for (int i=startPosition; i<endPostiion; i++) {
-      char character = unicode.charAt(i);
+    return node != EmojiTrie.NONE ? trie.getMatch(node) : null;
+  }
 
-      if (!tree.hasChild(character)) {
-        return null;
-      }
+  @NonNull EmojiTrie getTrie() {
+    EmojiTrie current = trie;
+
+    if (current == null) {
+      synchronized (this) {
+        current = trie;
 
-      tree = tree.getChild(character);
+        if (current == null) {
+          current = compile();
+          trie    = current;
+        }
+      }
     }
 
-    if      (tree.getEmoji() != null)                                                  return tree.getEmoji();
-    else if (unicode.charAt(endPostiion-1) != TERMINATOR && tree.hasChild(TERMINATOR)) return tree.getChild(TERMINATOR).getEmoji();
-    else    return null;
+    return current;
   }
 
+  /**
+   * Numbers the nodes breadth-first and lays out the edges of each node next to each other, in character order. A node that isn't the end
+   * of an emoji itself but has a terminal {@link #TERMINATOR} child matches that child's emoji, as long as it wasn't itself reached by a
+   * {@link #TERMINATOR}, so that emoji sent without their variation selector still match.
+   */
+  private @NonNull EmojiTrie compile() {
+    int[]           firstEdge   = new int[nodeCount + 1];
+    char[]          edgeChars   = new char[nodeCount - 1];
+    int[]           edgeTargets = new int[nodeCount - 1];
+    EmojiDrawInfo[] matches     = new EmojiDrawInfo[nodeCount];
+
+    Queue<EmojiTreeNode> queue     = new ArrayDeque<>(nodeCount);
+    int                  nodeIndex = 0;
+    int                  edgeIndex = 0;
+
+    queue.add(root);
+
+    while (!queue.isEmpty()) {
+      EmojiTreeNode node = queue.remove();
+
+      firstEdge[nodeIndex] = edgeIndex;
+      matches[nodeIndex]   = node.getEmoji();
+
+      if (matches[nodeIndex] == null && !node.reachedByTerminator && node.hasChild(TERMINATOR)) {
+        matches[nodeIndex] = node.getChild(TERMINATOR).getEmoji();
+      }
+
+      for (int i = 0; i < node.childCount; i++) {
+        edgeChars[edgeIndex]   = node.childChars[i];
+        edgeTargets[edgeIndex] = nodeIndex + queue.size() + 1;
+        queue.add(node.children[i]);
+        edgeIndex++;
+      }
+
+      nodeIndex++;
+    }
+
+    firstEdge[nodeCount] = edgeIndex;
+
+    return new EmojiTrie(firstEdge, edgeChars, edgeTargets, matches);
+  }
 
   private static class EmojiTreeNode {
 
-    private Map<Character, EmojiTreeNode> children = new HashMap<>();
+    private final boolean reachedByTerminator;
+
+    private char[]          childChars = new char[0];
+    private EmojiTreeNode[] children   = new EmojiTreeNode[0];
+    private int             childCount;
+
     private EmojiDrawInfo emoji;
 
+    EmojiTreeNode() {
+      this(false);
+    }
+
+    EmojiTreeNode(boolean reachedByTerminator) {
+      this.reachedByTerminator = reachedByTerminator;
+    }
+
     public void setEmoji(EmojiDrawInfo emoji) {
       this.emoji = emoji;
     }
@@ -107,19 +169,32 @@ public class EmojiTree {
     }
 
     boolean hasChild(char child) {
-      return children.containsKey(child);
+      return indexOf(child) >= 0;
     }
 
     void addChild(char child) {
-      children.put(child, new EmojiTreeNode());
+      int insertAt = -(indexOf(child) + 1);
+
+      if (childCount == childChars.length) {
+        childChars = Arrays.copyOf(childChars, Math.max(2, childCount * 2));
+        children   = Arrays.copyOf(children, childChars.length);
+      }
+
+      System.arraycopy(childChars, insertAt, childChars, insertAt + 1, childCount - insertAt);
+      System.arraycopy(children, insertAt, children, insertAt + 1, childCount - insertAt);
+
+      childChars[insertAt] = child;
+      children[insertAt]   = new EmojiTreeNode(child == TERMINATOR);
+      childCount++;
     }
 
     EmojiTreeNode getChild(char child) {
-      return children.get(child);
+      int index = indexOf(child);
+      return index >= 0 ? children[index] : null;
     }
 
-    boolean isEndOfEmoji() {
-      return emoji != null;
+    private int indexOf(char child) {
+      return Arrays.binarySearch(childChars, 0, childCount, child);
     }
   }
 
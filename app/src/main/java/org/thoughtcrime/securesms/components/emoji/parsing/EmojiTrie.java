@@ -0,0 +1,85 @@
+package org.thoughtcrime.securesms.components.emoji.parsing;
+
+import androidx.annotation.Nullable;
+
+/**
+ * An immutable, flattened form of an {@link EmojiTree}, built by {@link EmojiTree#getTrie()}.
+ * <p>
+ * Nodes are identified by their index. The edges leaving a node are stored next to each other and sorted by character, so finding a child is
+ * a binary search over a primitive array, with no boxing and no per-node objects to chase.
+ * <p>
+ * Most characters in a message don't start an emoji, so the root also keeps a bitmap of the characters it has edges for. That way ruling a
+ * character out at the root is a single array read rather than a search through a couple of hundred edges.
+ */
+final class EmojiTrie {
+
+  static final int ROOT = 0;
+  static final int NONE = -1;
+
+  /** The index of the first edge of each node. The edges of node n end at firstEdge[n + 1]. */
+  private final int[]           firstEdge;
+  private final char[]          edgeChars;
+  private final int[]           edgeTargets;
+  private final EmojiDrawInfo[] matches;
+  private final long[]          rootChars;
+
+  EmojiTrie(int[] firstEdge, char[] edgeChars, int[] edgeTargets, EmojiDrawInfo[] matches) {
+    this.firstEdge   = firstEdge;
+    this.edgeChars   = edgeChars;
+    this.edgeTargets = edgeTargets;
+    this.matches     = matches;
+    this.rootChars   = new long[(Character.MAX_VALUE + 1) / 64];
+
+    for (int i = firstEdge[ROOT]; i < firstEdge[ROOT + 1]; i++) {
+      rootChars[edgeChars[i] >>> 6] |= 1L << edgeChars[i];
+    }
+  }
+
+  /**
+   * @return The child of the node along the edge for the character, or {@link #NONE} if there isn't one.
+   */
+  int getChild(int node, char c) {
+    if (node == ROOT && (rootChars[c >>> 6] & (1L << c)) == 0) {
+      return NONE;
+    }
+
+    int low  = firstEdge[node];
+    int high = firstEdge[node + 1] - 1;
+
+    while (low <= high) {
+      int  mid     = (low + high) >>> 1;
+      char midChar = edgeChars[mid];
+
+      if (midChar < c) {
+        low = mid + 1;
+      } else if (midChar > c) {
+        high = mid - 1;
+      } else {
+        return edgeTargets[mid];
+      }
+    }
+
+    return NONE;
+  }
+
+  /**
+   * @return The node reached by following the characters in the range from the root, or {@link #NONE} if the range isn't the start of
+   *         any emoji.
+   */
+  int find(CharSequence text, int start, int end) {
+    int node = ROOT;
+
+    for (int i = start; i < end && node != NONE; i++) {
+      node = getChild(node, text.charAt(i));
+    }
+
+    return node;
+  }
+
+  /**
+   * @return The emoji that text ending at this node should be drawn as, or null if it isn't a complete emoji.
+   */
+  @Nullable EmojiDrawInfo getMatch(int node) {
+    return matches[node];
+  }
+}
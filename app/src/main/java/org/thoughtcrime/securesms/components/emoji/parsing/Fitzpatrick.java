@@ -53,6 +53,20 @@ public enum Fitzpatrick {
     return null;
   }
 
+  /**
+   * @return True if the two characters at the index are a Fitzpatrick modifier. Cheaper than {@link #fitzpatrickFromUnicode} when the
+   *         type doesn't matter, and safe to call near the end of the text.
+   */
+  public static boolean isModifierAt(CharSequence unicode, int index) {
+    if (index + 2 > unicode.length() || unicode.charAt(index) != '\uD83C') {
+      return false;
+    }
+
+    char low = unicode.charAt(index + 1);
+
+    return low >= '\uDFFB' && low <= '\uDFFF';
+  }
+
   public static Fitzpatrick fitzpatrickFromType(String type) {
     try {
       return Fitzpatrick.valueOf(type.toUpperCase());
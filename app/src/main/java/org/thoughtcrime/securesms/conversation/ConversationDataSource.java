@@ -9,6 +9,7 @@ import com.annimon.stream.Stream;
 
 import org.signal.core.util.Stopwatch;
 import org.signal.core.util.logging.Log;
+import org.signal.paging.PagedDataChanges;
 import org.signal.paging.PagedDataSource;
 import org.thoughtcrime.securesms.attachments.DatabaseAttachment;
 import org.thoughtcrime.securesms.conversation.ConversationData.MessageRequestData;
@@ -58,6 +59,13 @@ public class ConversationDataSource implements PagedDataSource<MessageId, Conver
   /** Used once for the initial fetch, then cleared. */
   private int baseSize;
 
+  /** The messages we've been told were inserted or updated since the last call to {@link #getChanges()}, if any. */
+  private Set<MessageId> changedMessageIds;
+  private boolean        unknownChanges;
+
+  /** The size as of the last call to {@link #getChanges()}, or -1 if it should be taken from the next call to {@link #size()}. */
+  private int lastSize = -1;
+
   ConversationDataSource(@NonNull Context context, long threadId, @NonNull MessageRequestData messageRequestData, boolean showUniversalExpireTimerUpdate, int baseSize) {
     this.context                        = context;
     this.threadId                       = threadId;
@@ -68,6 +76,18 @@ public class ConversationDataSource implements PagedDataSource<MessageId, Conver
 
   @Override
   public int size() {
+    int size = getTotalSize();
+
+    synchronized (this) {
+      if (lastSize == -1) {
+        lastSize = size;
+      }
+    }
+
+    return size;
+  }
+
+  private int getTotalSize() {
     long startTime = System.currentTimeMillis();
     int  size      = getSizeInternal() +
                      (messageRequestData.includeWarningUpdateMessage() ? 1 : 0) +
@@ -79,6 +99,81 @@ public class ConversationDataSource implements PagedDataSource<MessageId, Conver
     return size;
   }
 
+  /**
+   * Lets us know what changed in the conversation, so that we can describe it in {@link #getChanges()}. Must be called before the
+   * paging controller is invalidated for the change.
+   *
+   * @param messageIds The messages that were inserted or updated, or null if anything else may have changed.
+   */
+  public synchronized void onMessagesChanged(@Nullable Collection<MessageId> messageIds) {
+    if (messageIds == null) {
+      unknownChanges = true;
+      return;
+    }
+
+    if (changedMessageIds == null) {
+      changedMessageIds = new HashSet<>();
+    }
+
+    changedMessageIds.addAll(messageIds);
+  }
+
+  /**
+   * New messages are almost always the newest in the conversation, so if the size grew by as many messages as we were told were
+   * inserted, and those are the newest messages, we can describe the change as an insert at the top. Anything else, including an
+   * invalidation we weren't told about, falls back to a full reload.
+   */
+  @Override
+  public @Nullable PagedDataChanges<MessageId> getChanges() {
+    Set<MessageId> messageIds;
+    boolean        unknown;
+    int            previousSize;
+
+    synchronized (this) {
+      messageIds        = changedMessageIds;
+      unknown           = unknownChanges;
+      previousSize      = lastSize;
+      changedMessageIds = null;
+      unknownChanges    = false;
+      lastSize          = -1;
+    }
+
+    if (messageIds == null || unknown || previousSize == -1) {
+      return null;
+    }
+
+    int size     = getTotalSize();
+    int inserted = size - previousSize;
+
+    if (inserted < 0 || inserted > messageIds.size()) {
+      return null;
+    }
+
+    PagedDataChanges.Builder<MessageId> changes = new PagedDataChanges.Builder<>();
+    Set<MessageId>                      changed = new HashSet<>(messageIds);
+
+    if (inserted > 0) {
+      List<MessageId> latest = SignalDatabase.messages().getLatestConversationMessageIds(threadId, inserted);
+
+      if (latest.size() != inserted || !changed.containsAll(latest)) {
+        return null;
+      }
+
+      changed.removeAll(latest);
+      changes.inserted(0, inserted);
+    }
+
+    for (MessageId messageId : changed) {
+      changes.changed(messageId);
+    }
+
+    synchronized (this) {
+      lastSize = size;
+    }
+
+    return changes.build();
+  }
+
   private int getSizeInternal() {
     synchronized (this) {
       if (baseSize != -1) {
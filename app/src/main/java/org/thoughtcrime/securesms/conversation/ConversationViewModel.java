@@ -47,6 +47,7 @@ import org.thoughtcrime.securesms.util.livedata.Store;
 import org.thoughtcrime.securesms.util.rx.RxStore;
 import org.thoughtcrime.securesms.wallpaper.ChatWallpaper;
 
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -80,7 +81,7 @@ public class ConversationViewModel extends ViewModel {
   private final MutableLiveData<Boolean>              hasUnreadMentions;
   private final Observable<Boolean>                   canShowAsBubble;
   private final ProxyPagingController<MessageId>      pagingController;
-  private final DatabaseObserver.Observer             conversationObserver;
+  private final DatabaseObserver.ConversationObserver conversationObserver;
   private final DatabaseObserver.MessageObserver      messageUpdateObserver;
   private final DatabaseObserver.MessageObserver      messageInsertObserver;
   private final BehaviorSubject<RecipientId>          recipientId;
@@ -104,6 +105,8 @@ public class ConversationViewModel extends ViewModel {
   private ConversationIntents.Args args;
   private int                      jumpToPosition;
 
+  private volatile ConversationDataSource dataSource;
+
   private ConversationViewModel() {
     this.context                        = ApplicationDependencies.getApplication();
     this.mediaRepository                = new MediaRepository();
@@ -114,9 +117,9 @@ public class ConversationViewModel extends ViewModel {
     this.hasUnreadMentions              = new MutableLiveData<>(false);
     this.events                         = new SingleLiveEvent<>();
     this.pagingController               = new ProxyPagingController<>();
-    this.conversationObserver           = pagingController::onDataInvalidated;
+    this.conversationObserver           = this::onMessagesChanged;
     this.messageUpdateObserver          = pagingController::onDataItemChanged;
-    this.messageInsertObserver          = messageId -> pagingController.onDataItemInserted(messageId, 0);
+    this.messageInsertObserver          = messageId -> onMessagesChanged(Collections.singleton(messageId));
     this.toolbarBottom                  = new MutableLiveData<>();
     this.inlinePlayerHeight             = new MutableLiveData<>();
     this.conversationTopMargin          = Transformations.distinctUntilChanged(LiveDataUtil.combineLatest(toolbarBottom, inlinePlayerHeight, Integer::sum));
@@ -183,10 +186,11 @@ public class ConversationViewModel extends ViewModel {
 
           ApplicationDependencies.getDatabaseObserver().unregisterObserver(conversationObserver);
           ApplicationDependencies.getDatabaseObserver().unregisterObserver(messageInsertObserver);
-          ApplicationDependencies.getDatabaseObserver().registerConversationObserver(data.getThreadId(), conversationObserver);
+          ApplicationDependencies.getDatabaseObserver().registerConversationChangeObserver(data.getThreadId(), conversationObserver);
           ApplicationDependencies.getDatabaseObserver().registerMessageInsertObserver(data.getThreadId(), messageInsertObserver);
 
           ConversationDataSource dataSource = new ConversationDataSource(context, data.getThreadId(), messageRequestData, data.showUniversalExpireTimerMessage(), data.getThreadSize());
+          this.dataSource = dataSource;
           PagingConfig config = new PagingConfig.Builder().setPageSize(25)
                                                           .setBufferPages(2)
                                                           .setStartIndex(Math.max(startPosition, 0))
@@ -449,6 +453,21 @@ public class ConversationViewModel extends ViewModel {
     return Objects.requireNonNull(args);
   }
 
+  /**
+   * Tells the data source what changed before invalidating it, so that it can ask for just those messages to be reloaded. An observer for
+   * the previous thread may still fire after we've switched to a new one, but the data source only trusts what it's told when it lines
+   * up with the database.
+   */
+  private void onMessagesChanged(@Nullable Collection<MessageId> messageIds) {
+    ConversationDataSource source = dataSource;
+
+    if (source != null) {
+      source.onMessagesChanged(messageIds);
+    }
+
+    pagingController.onDataInvalidated();
+  }
+
   @Subscribe(threadMode = ThreadMode.POSTING)
   public void onRecaptchaRequiredEvent(@NonNull RecaptchaRequiredEvent event) {
     events.postValue(Event.SHOW_RECAPTCHA);
@@ -10,6 +10,7 @@ import androidx.annotation.VisibleForTesting;
 
 import org.signal.core.util.Stopwatch;
 import org.signal.core.util.logging.Log;
+import org.signal.paging.PagedDataChanges;
 import org.signal.paging.PagedDataSource;
 import org.thoughtcrime.securesms.conversationlist.model.Conversation;
 import org.thoughtcrime.securesms.conversationlist.model.ConversationFilter;
@@ -28,8 +29,10 @@ import org.thoughtcrime.securesms.util.SignalTrace;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -41,6 +44,8 @@ abstract class ConversationListDataSource implements PagedDataSource<Long, Conve
   protected final ConversationFilter conversationFilter;
   protected final boolean            showConversationFooterTip;
 
+  private Map<Long, List<String>> versions;
+
   protected ConversationListDataSource(@NonNull ConversationFilter conversationFilter, boolean showConversationFooterTip) {
     this.threadTable               = SignalDatabase.threads();
     this.conversationFilter        = conversationFilter;
@@ -116,9 +121,60 @@ abstract class ConversationListDataSource implements PagedDataSource<Long, Conve
 
   @Override
   public @Nullable Conversation load(Long threadId) {
-    throw new UnsupportedOperationException("Not implemented!");
+    ThreadRecord record = threadTable.getThreadRecord(threadId);
+
+    if (record == null) {
+      return null;
+    }
+
+    ApplicationDependencies.getRecipientCache().addToCache(Collections.singletonList(record.getRecipient()));
+
+    return new Conversation(record);
+  }
+
+  /**
+   * Compares the order and contents of the list against the last time this was called. Only supported without a filter, where the
+   * list is just the threads plus their headers and footers.
+   */
+  @Override
+  public @Nullable PagedDataChanges<Long> getChanges() {
+    Map<Long, List<String>> previous = versions;
+
+    if (conversationFilter != ConversationFilter.OFF) {
+      versions = null;
+      return null;
+    }
+
+    versions = getVersions();
+
+    // An empty list is shown as a single placeholder item, so there's nothing to diff against
+    if (previous == null || previous.isEmpty() || versions.isEmpty()) {
+      return null;
+    }
+
+    PagedDataChanges.Builder<Long> changes = PagedDataChanges.diff(new ArrayList<>(previous.keySet()), new ArrayList<>(versions.keySet()));
+
+    for (Map.Entry<Long, List<String>> entry : versions.entrySet()) {
+      List<String> before = previous.get(entry.getKey());
+
+      if (before != null && !before.equals(entry.getValue())) {
+        if (entry.getKey() < 0) {
+          // Headers and footers can only be loaded by position
+          return null;
+        }
+
+        changes.changed(entry.getKey());
+      }
+    }
+
+    return changes.build();
   }
 
+  /**
+   * @return The key of every item in the list, in order, mapped to the values that it's displayed from.
+   */
+  protected abstract @NonNull Map<Long, List<String>> getVersions();
+
   @Override
   public @NonNull Long getKey(@NonNull Conversation conversation) {
     return conversation.getThreadRecord().getThreadId();
@@ -141,6 +197,11 @@ abstract class ConversationListDataSource implements PagedDataSource<Long, Conve
       return totalCount;
     }
 
+    @Override
+    protected @NonNull Map<Long, List<String>> getVersions() {
+      return threadTable.getConversationListVersions(true, false);
+    }
+
     @Override
     protected Cursor getCursor(long offset, long limit) {
       List<Cursor> cursors = new ArrayList<>(2);
@@ -237,6 +298,32 @@ abstract class ConversationListDataSource implements PagedDataSource<Long, Conve
       return new MergeCursor(cursors.toArray(new Cursor[]{}));
     }
 
+    @Override
+    protected @NonNull Map<Long, List<String>> getVersions() {
+      Map<Long, List<String>> pinned   = threadTable.getConversationListVersions(false, true);
+      Map<Long, List<String>> unpinned = threadTable.getConversationListVersions(false, false);
+      int                     archived = threadTable.getArchivedConversationListCount(conversationFilter);
+
+      Map<Long, List<String>> versions = new LinkedHashMap<>();
+
+      if (!pinned.isEmpty()) {
+        versions.put(ConversationReader.getThreadIdForType(Conversation.Type.PINNED_HEADER), Collections.emptyList());
+        versions.putAll(pinned);
+      }
+
+      if (!pinned.isEmpty() && !unpinned.isEmpty()) {
+        versions.put(ConversationReader.getThreadIdForType(Conversation.Type.UNPINNED_HEADER), Collections.emptyList());
+      }
+
+      versions.putAll(unpinned);
+
+      if (archived != 0) {
+        versions.put(ConversationReader.getThreadIdForType(Conversation.Type.ARCHIVED_FOOTER), Collections.singletonList(String.valueOf(archived)));
+      }
+
+      return versions;
+    }
+
     @VisibleForTesting
     int getHeaderOffset() {
       return (hasPinnedHeader() ? 1 : 0) + (hasUnpinnedHeader() ? 1 : 0);
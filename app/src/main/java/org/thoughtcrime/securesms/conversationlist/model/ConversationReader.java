@@ -61,7 +61,7 @@ public class ConversationReader extends ThreadTable.StaticReader {
   }
 
   public static ThreadRecord buildThreadRecordForType(@NonNull Conversation.Type type, int count, boolean showTip) {
-    return new ThreadRecord.Builder(-(100 + type.ordinal()))
+    return new ThreadRecord.Builder(getThreadIdForType(type))
         .setBody(type.toString())
         .setDate(100)
         .setRecipient(Recipient.UNKNOWN)
@@ -69,4 +69,11 @@ public class ConversationReader extends ThreadTable.StaticReader {
         .setType(showTip ? TYPE_SHOW_TIP : TYPE_NONE)
         .build();
   }
+
+  /**
+   * @return The thread id given to the fake thread record for a header or footer of this type.
+   */
+  public static long getThreadIdForType(@NonNull Conversation.Type type) {
+    return -(100 + type.ordinal());
+  }
 }
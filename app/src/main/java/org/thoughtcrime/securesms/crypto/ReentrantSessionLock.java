@@ -1,21 +1,340 @@
 package org.thoughtcrime.securesms.crypto;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import org.signal.libsignal.protocol.SignalProtocolAddress;
 import org.whispersystems.signalservice.api.SignalSessionLock;
 
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
- * An implementation of {@link SignalSessionLock} that is backed by a {@link ReentrantLock}.
+ * An implementation of {@link SignalSessionLock} that lets operations on unrelated addresses run concurrently.
+ *
+ * There are two ways to hold the lock:
+ * - {@link #acquire()} is exclusive, exactly like the single lock this used to be. Anything that isn't scoped to an address (decrypting
+ *   a PreKeySignalMessage, which consumes one of our prekeys, sender key distribution, identity changes from the UI) uses this.
+ * - {@link #acquire(SignalProtocolAddress)} only excludes other operations on the same address, plus anyone holding the lock
+ *   exclusively. Addresses are striped by name rather than by device, so all of a recipient's devices (which share an identity) are
+ *   serialized with each other.
+ *
+ * The protocol stores call {@link #acquire()} internally. When that happens inside an address-scoped operation we can't upgrade to
+ * exclusive without risking deadlock, so those calls instead take a separate lock that serializes store access between the threads
+ * that are currently working on different addresses. Store methods write to the database while holding that lock, so anyone who holds
+ * a database transaction while using the stores must take it before the transaction, never inside it. {@link BatchLock} does this.
+ *
+ * Everything is reentrant. Operations that need several addresses should use {@link #acquire(Collection)}, which takes the stripes in
+ * index order, rather than nesting address-scoped acquisitions. The one exception is {@link BatchLock}, which lets a caller gather
+ * locks one at a time while it holds a database transaction, by never waiting for any lock after the first.
  */
 public enum ReentrantSessionLock implements SignalSessionLock {
 
   INSTANCE;
 
-  private static final ReentrantLock LOCK = new ReentrantLock();
+  private static final int STRIPE_COUNT = 64;
+
+  private final ReentrantReadWriteLock globalLock = new ReentrantReadWriteLock();
+  private final ReentrantLock          storeLock  = new ReentrantLock();
+  private final ReentrantLock[]        stripes    = createStripes();
+
+  private final Contention exclusiveContention = new Contention();
+  private final Contention addressContention   = new Contention();
 
   @Override
   public Lock acquire() {
-    LOCK.lock();
-    return LOCK::unlock;
+    if (globalLock.getReadHoldCount() > 0 && !globalLock.isWriteLockedByCurrentThread()) {
+      storeLock.lock();
+      return storeLock::unlock;
+    }
+
+    ReentrantReadWriteLock.WriteLock writeLock = globalLock.writeLock();
+
+    exclusiveContention.record(lock(writeLock));
+    return writeLock::unlock;
+  }
+
+  @Override
+  public Lock acquire(@NonNull SignalProtocolAddress address) {
+    ReentrantReadWriteLock.ReadLock readLock = globalLock.readLock();
+    ReentrantLock                   stripe   = stripes[getStripeIndex(address)];
+
+    long waitNanos = lock(readLock);
+    waitNanos += lock(stripe);
+    addressContention.record(waitNanos);
+
+    return () -> {
+      stripe.unlock();
+      readLock.unlock();
+    };
+  }
+
+  @Override
+  public Lock acquire(@NonNull Collection<SignalProtocolAddress> addresses) {
+    ReentrantReadWriteLock.ReadLock readLock = globalLock.readLock();
+    int[]                           indexes  = getSortedStripeIndexes(addresses);
+
+    long waitNanos = lock(readLock);
+    for (int index : indexes) {
+      waitNanos += lock(stripes[index]);
+    }
+    addressContention.record(waitNanos);
+
+    return () -> {
+      for (int i = indexes.length - 1; i >= 0; i--) {
+        stripes[indexes[i]].unlock();
+      }
+      readLock.unlock();
+    };
+  }
+
+  /**
+   * @return A new {@link BatchLock} for the calling thread. It must be closed on the same thread.
+   */
+  public @NonNull BatchLock newBatchLock() {
+    return new BatchLock();
+  }
+
+  public @NonNull String getStats() {
+    return "Exclusive: " + exclusiveContention + "\n" +
+           "Address  : " + addressContention;
+  }
+
+  /**
+   * Locks, returning how long we had to wait. We only read the clock if the lock isn't immediately available.
+   *
+   * Note that we use the timed tryLock, since unlike the untimed one it doesn't let readers barge ahead of a waiting writer.
+   */
+  private static long lock(@NonNull java.util.concurrent.locks.Lock lock) {
+    try {
+      if (lock.tryLock(0, TimeUnit.NANOSECONDS)) {
+        return 0;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    long start = System.nanoTime();
+    lock.lock();
+    return Math.max(1, System.nanoTime() - start);
+  }
+
+  @VisibleForTesting
+  static int getStripeIndex(@NonNull SignalProtocolAddress address) {
+    int hash = address.getName().hashCode();
+    return ((hash ^ (hash >>> 16)) & 0x7fffffff) % STRIPE_COUNT;
+  }
+
+  private static int[] getSortedStripeIndexes(@NonNull Collection<SignalProtocolAddress> addresses) {
+    int[] indexes = new int[addresses.size()];
+    int   count   = 0;
+
+    for (SignalProtocolAddress address : addresses) {
+      indexes[count++] = getStripeIndex(address);
+    }
+
+    Arrays.sort(indexes);
+
+    int distinct = 0;
+    for (int i = 0; i < count; i++) {
+      if (distinct == 0 || indexes[distinct - 1] != indexes[i]) {
+        indexes[distinct++] = indexes[i];
+      }
+    }
+
+    return Arrays.copyOf(indexes, distinct);
+  }
+
+  private static @NonNull ReentrantLock[] createStripes() {
+    ReentrantLock[] stripes = new ReentrantLock[STRIPE_COUNT];
+
+    for (int i = 0; i < STRIPE_COUNT; i++) {
+      stripes[i] = new ReentrantLock();
+    }
+
+    return stripes;
+  }
+
+  /**
+   * Gathers locks over a series of operations and holds them until it's closed, for callers that need to keep everything they've
+   * touched locked until they've committed it, like batch decryption inside a single database transaction.
+   *
+   * Only {@link #acquire(SignalProtocolAddress)} and {@link #acquireExclusive()} wait, and they must be called before the caller starts
+   * holding anything (like a transaction) that another lock holder might be waiting on. Everything after that goes through the try
+   * methods, which never wait, so gathering locks in whatever order they come up can't deadlock. When one of those fails, the caller
+   * should commit what it has, close this, and start again.
+   *
+   * As soon as any address is held, the store lock is held too, until this is closed. That way the stores' own calls to
+   * {@link #acquire()} inside the caller's transaction never wait. Otherwise we could be waiting on the store lock while holding the
+   * database, while another thread working on a different address holds the store lock and waits for the database.
+   */
+  public final class BatchLock implements Lock {
+
+    private final Deque<Lock> held        = new ArrayDeque<>();
+    private final boolean[]   heldStripes = new boolean[STRIPE_COUNT];
+
+    private boolean exclusive;
+    private boolean shared;
+    private boolean holdsStores;
+
+    private BatchLock() {}
+
+    public void acquire(@NonNull SignalProtocolAddress address) {
+      int index = getStripeIndex(address);
+
+      if (exclusive || heldStripes[index]) {
+        return;
+      }
+
+      held.push(ReentrantSessionLock.this.acquire(address));
+      heldStripes[index] = true;
+      shared             = true;
+
+      if (!holdsStores) {
+        lock(storeLock);
+        held.push(storeLock::unlock);
+        holdsStores = true;
+      }
+    }
+
+    public void acquireExclusive() {
+      if (exclusive) {
+        return;
+      }
+
+      if (shared) {
+        throw new IllegalStateException("Can't upgrade to exclusive while holding address locks!");
+      }
+
+      held.push(ReentrantSessionLock.this.acquire());
+      exclusive = true;
+    }
+
+    /**
+     * @return True if the address is now locked, or false if that would have meant waiting.
+     */
+    public boolean tryAcquire(@NonNull SignalProtocolAddress address) {
+      int index = getStripeIndex(address);
+
+      if (exclusive || heldStripes[index]) {
+        return true;
+      }
+
+      if (!shared) {
+        ReentrantReadWriteLock.ReadLock readLock = globalLock.readLock();
+
+        if (!tryLock(readLock)) {
+          return false;
+        }
+
+        if (!tryLock(storeLock)) {
+          readLock.unlock();
+          return false;
+        }
+
+        held.push(readLock::unlock);
+        held.push(storeLock::unlock);
+        shared      = true;
+        holdsStores = true;
+      }
+
+      ReentrantLock stripe = stripes[index];
+
+      if (!tryLock(stripe)) {
+        return false;
+      }
+
+      addressContention.record(0);
+      held.push(stripe::unlock);
+      heldStripes[index] = true;
+
+      return true;
+    }
+
+    /**
+     * @return True if the lock is now held exclusively, or false if that would have meant waiting, or upgrading from address locks.
+     */
+    public boolean tryAcquireExclusive() {
+      if (exclusive) {
+        return true;
+      }
+
+      ReentrantReadWriteLock.WriteLock writeLock = globalLock.writeLock();
+
+      if (shared || !tryLock(writeLock)) {
+        return false;
+      }
+
+      exclusiveContention.record(0);
+      held.push(writeLock::unlock);
+      exclusive = true;
+
+      return true;
+    }
+
+    @Override
+    public void close() {
+      while (!held.isEmpty()) {
+        held.pop().close();
+      }
+
+      Arrays.fill(heldStripes, false);
+      exclusive   = false;
+      shared      = false;
+      holdsStores = false;
+    }
+  }
+
+  /**
+   * Takes the lock only if it's available right away. Like {@link #lock(java.util.concurrent.locks.Lock)}, this uses the timed tryLock so
+   * that readers don't barge ahead of a waiting writer.
+   */
+  private static boolean tryLock(@NonNull java.util.concurrent.locks.Lock lock) {
+    try {
+      return lock.tryLock(0, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  private static final class Contention {
+    private final AtomicLong acquisitions = new AtomicLong();
+    private final AtomicLong contended    = new AtomicLong();
+    private final AtomicLong waitNanos    = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    void record(long waited) {
+      acquisitions.incrementAndGet();
+
+      if (waited > 0) {
+        contended.incrementAndGet();
+        waitNanos.addAndGet(waited);
+
+        long max;
+        do {
+          max = maxWaitNanos.get();
+        } while (waited > max && !maxWaitNanos.compareAndSet(max, waited));
+      }
+    }
+
+    @Override
+    public @NonNull String toString() {
+      long   total     = acquisitions.get();
+      long   waits     = contended.get();
+      String avgWaitMs = waits > 0 ? String.format(Locale.US, "%.2f", waitNanos.get() / (double) waits / 1_000_000) : "N/A";
+      String waitRate  = total > 0 ? String.format(Locale.US, "%.1f%%", 100 * waits / (double) total) : "N/A";
+
+      return "Acquisitions: " + total + ", Contended: " + waits + " (" + waitRate + ")" +
+             ", Wait (avg): " + avgWaitMs + " ms, Wait (max): " + TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get()) + " ms";
+    }
   }
 }
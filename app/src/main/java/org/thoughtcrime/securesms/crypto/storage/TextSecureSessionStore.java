@@ -32,6 +32,9 @@ public class TextSecureSessionStore implements SignalServiceSessionStore {
     this.accountId = accountId;
   }
 
+  /**
+   * The record may be shared with the session cache, so it must not be changed in place. libsignal only ever works on its own copy.
+   */
   @Override
   public SessionRecord loadSession(@NonNull SignalProtocolAddress address) {
     try (SignalSessionLock.Lock unused = ReentrantSessionLock.INSTANCE.acquire()) {
@@ -123,6 +126,7 @@ public class TextSecureSessionStore implements SignalServiceSessionStore {
     try (SignalSessionLock.Lock unused = ReentrantSessionLock.INSTANCE.acquire()) {
       SessionRecord session = SignalDatabase.sessions().load(accountId, address);
       if (session != null) {
+        session = SessionTable.copyOf(session);
         session.archiveCurrentState();
         SignalDatabase.sessions().store(accountId, address, session);
       }
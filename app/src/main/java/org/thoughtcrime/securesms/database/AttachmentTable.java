@@ -58,18 +58,22 @@ import org.thoughtcrime.securesms.mms.PartAuthority;
 import org.thoughtcrime.securesms.mms.SentMediaQuality;
 import org.thoughtcrime.securesms.stickers.StickerLocator;
 import org.thoughtcrime.securesms.util.Base64;
+import org.thoughtcrime.securesms.util.ByteUnit;
 import org.thoughtcrime.securesms.util.FileUtils;
 import org.thoughtcrime.securesms.util.JsonUtils;
+import org.thoughtcrime.securesms.util.LimitedInputStream;
 import org.thoughtcrime.securesms.util.MediaUtil;
 import org.thoughtcrime.securesms.util.StorageUtil;
 import org.thoughtcrime.securesms.video.EncryptedMediaDataSource;
 import org.whispersystems.signalservice.internal.util.JsonUtil;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -128,6 +132,11 @@ public class AttachmentTable extends DatabaseTable {
 
   private static final String DIRECTORY              = "parts";
 
+  /**
+   * Attachment data up to this size is read into memory and hashed before anything is written, so that duplicates are never written.
+   */
+  private static final int MAX_SPOOLED_DATA_SIZE = (int) ByteUnit.MEGABYTES.toBytes(1);
+
   public static final int TRANSFER_PROGRESS_DONE              = 0;
   public static final int TRANSFER_PROGRESS_STARTED           = 1;
   public static final int TRANSFER_PROGRESS_PENDING           = 2;
@@ -194,7 +203,8 @@ public class AttachmentTable extends DatabaseTable {
     "CREATE INDEX IF NOT EXISTS pending_push_index ON " + TABLE_NAME + " (" + TRANSFER_STATE + ");",
     "CREATE INDEX IF NOT EXISTS part_sticker_pack_id_index ON " + TABLE_NAME + " (" + STICKER_PACK_ID + ");",
     "CREATE INDEX IF NOT EXISTS part_data_hash_index ON " + TABLE_NAME + " (" + DATA_HASH + ");",
-    "CREATE INDEX IF NOT EXISTS part_data_index ON " + TABLE_NAME + " (" + DATA + ");"
+    "CREATE INDEX IF NOT EXISTS part_data_index ON " + TABLE_NAME + " (" + DATA + ");",
+    "CREATE INDEX IF NOT EXISTS part_data_size_index ON " + TABLE_NAME + " (" + SIZE + ");"
   };
 
   private final AttachmentSecret attachmentSecret;
@@ -616,7 +626,7 @@ public class AttachmentTable extends DatabaseTable {
     SQLiteDatabase     database     = databaseHelper.getSignalWritableDatabase();
     ContentValues      values       = new ContentValues();
     DataInfo           oldInfo      = getAttachmentDataFileInfo(attachmentId, DATA);
-    DataInfo           dataInfo     = setAttachmentData(inputStream, attachmentId);
+    DataInfo           dataInfo     = setAttachmentData(inputStream, attachmentId, placeholder != null ? placeholder.getSize() : 0);
     File               transferFile = getTransferFile(databaseHelper.getSignalReadableDatabase(), attachmentId);
 
     if (oldInfo != null) {
@@ -858,7 +868,8 @@ public class AttachmentTable extends DatabaseTable {
 
     DataInfo dataInfo = setAttachmentData(destination,
                                           mediaStream.getStream(),
-                                          databaseAttachment.getAttachmentId());
+                                          databaseAttachment.getAttachmentId(),
+                                          0);
 
     ContentValues contentValues = new ContentValues();
     contentValues.put(SIZE, dataInfo.length);
@@ -1109,25 +1120,40 @@ public class AttachmentTable extends DatabaseTable {
 
   }
 
+  /**
+   * @param sizeHint The expected size of the data, or 0 if unknown. Only used to find possible duplicates.
+   */
   private @NonNull DataInfo setAttachmentData(@NonNull Uri uri,
-                                              @Nullable AttachmentId attachmentId)
+                                              @Nullable AttachmentId attachmentId,
+                                              long sizeHint)
       throws MmsException
   {
+    if (PartAuthority.isAttachmentUri(uri)) {
+      AttachmentId sourceId = PartAuthority.requireAttachmentId(uri);
+      DataInfo     source   = sourceId.equals(attachmentId) ? null : getAttachmentDataFileInfo(sourceId, DATA);
+
+      if (source != null && source.hash != null && source.file.exists()) {
+        Log.i(TAG, "[setAttachmentData] Reusing the data file of " + sourceId + ": " + source.file.getAbsolutePath());
+        return source;
+      }
+    }
+
     try {
       InputStream inputStream = PartAuthority.getAttachmentStream(context, uri);
-      return setAttachmentData(inputStream, attachmentId);
+      return setAttachmentData(inputStream, attachmentId, sizeHint);
     } catch (IOException e) {
       throw new MmsException(e);
     }
   }
 
   private @NonNull DataInfo setAttachmentData(@NonNull InputStream in,
-                                              @Nullable AttachmentId attachmentId)
+                                              @Nullable AttachmentId attachmentId,
+                                              long sizeHint)
       throws MmsException
   {
     try {
       File dataFile = newFile();
-      return setAttachmentData(dataFile, in, attachmentId);
+      return setAttachmentData(dataFile, in, attachmentId, sizeHint);
     } catch (IOException e) {
       throw new MmsException(e);
     }
@@ -1147,51 +1173,250 @@ public class AttachmentTable extends DatabaseTable {
     return PartFileProtector.protect(() -> File.createTempFile("part", ".mms", partsDirectory));
   }
 
+  /**
+   * Writes the data to the destination, unless we already have a copy of it, in which case the existing copy is returned instead.
+   *
+   * Small data is spooled into memory and hashed before anything is written. For larger data, if we have exactly one data file of the
+   * expected size we compare against it as we read, and only start writing if (and where) they differ. Anything else is hashed as it's
+   * written, and deduplicated afterwards.
+   */
   private @NonNull DataInfo setAttachmentData(@NonNull File destination,
                                               @NonNull InputStream in,
-                                              @Nullable AttachmentId attachmentId)
+                                              @Nullable AttachmentId attachmentId,
+                                              long sizeHint)
       throws MmsException
   {
     try {
-      File                       tempFile          = newFile();
-      MessageDigest              messageDigest     = MessageDigest.getInstance("SHA-256");
-      DigestInputStream          digestInputStream = new DigestInputStream(in, messageDigest);
-      Pair<byte[], OutputStream> out               = ModernEncryptingPartOutputStream.createFor(attachmentSecret, tempFile, false);
-      long                       length            = StreamUtil.copy(digestInputStream, out.second);
-      String                     hash              = Base64.encodeBytes(digestInputStream.getMessageDigest().digest());
-
-      if (!tempFile.renameTo(destination)) {
-        Log.w(TAG, "Couldn't rename " + tempFile.getPath() + " to " + destination.getPath());
-        tempFile.delete();
-        throw new IllegalStateException("Couldn't rename " + tempFile.getPath() + " to " + destination.getPath());
-      }
+      byte[]      prefix = readPrefix(in, MAX_SPOOLED_DATA_SIZE);
+      InputStream remaining;
 
-      SQLiteDatabase db = databaseHelper.getSignalWritableDatabase();
+      if (prefix.length < MAX_SPOOLED_DATA_SIZE) {
+        in.close();
 
-      db.beginTransaction();
-      try {
-        Optional<DataInfo> sharedDataInfo = findDuplicateDataFileInfo(db, hash, attachmentId);
-        if (sharedDataInfo.isPresent()) {
-          Log.i(TAG, "[setAttachmentData] Duplicate data file found! " + sharedDataInfo.get().file.getAbsolutePath());
-          if (!destination.equals(sharedDataInfo.get().file) && destination.delete()) {
-            Log.i(TAG, "[setAttachmentData] Deleted original file. " + destination);
+        String             hash      = Base64.encodeBytes(MessageDigest.getInstance("SHA-256").digest(prefix));
+        Optional<DataInfo> duplicate = findDuplicateDataFileInfo(hash, attachmentId);
+
+        if (duplicate.isPresent()) {
+          Log.i(TAG, "[setAttachmentData] Duplicate data file found before writing! " + duplicate.get().file.getAbsolutePath());
+          discardDestination(destination, duplicate.get());
+          return duplicate.get();
+        }
+
+        remaining = new ByteArrayInputStream(prefix);
+      } else {
+        Optional<DataInfo> candidate = sizeHint > prefix.length ? findDataFileWithSize(sizeHint, attachmentId) : Optional.empty();
+
+        if (candidate.isPresent()) {
+          remaining = readMatchingData(candidate.get(), prefix, in);
+
+          if (remaining == null) {
+            Log.i(TAG, "[setAttachmentData] Data matches an existing data file! " + candidate.get().file.getAbsolutePath());
+            discardDestination(destination, candidate.get());
+            return candidate.get();
           }
-          db.setTransactionSuccessful();
-          return sharedDataInfo.get();
         } else {
-          Log.i(TAG, "[setAttachmentData] No matching attachment data found. " + destination.getAbsolutePath());
-          db.setTransactionSuccessful();
+          remaining = new SequenceInputStream(new ByteArrayInputStream(prefix), in);
         }
-      } finally {
-        db.endTransaction();
       }
 
-      return new DataInfo(destination, length, out.first, hash);
+      return writeAttachmentData(destination, remaining, attachmentId);
     } catch (IOException | NoSuchAlgorithmException e) {
       throw new MmsException(e);
     }
   }
 
+  private @NonNull DataInfo writeAttachmentData(@NonNull File destination,
+                                                @NonNull InputStream in,
+                                                @Nullable AttachmentId attachmentId)
+      throws IOException, NoSuchAlgorithmException
+  {
+    File                       tempFile          = newFile();
+    MessageDigest              messageDigest     = MessageDigest.getInstance("SHA-256");
+    DigestInputStream          digestInputStream = new DigestInputStream(in, messageDigest);
+    Pair<byte[], OutputStream> out               = ModernEncryptingPartOutputStream.createFor(attachmentSecret, tempFile, false);
+    long                       length            = StreamUtil.copy(digestInputStream, out.second);
+    String                     hash              = Base64.encodeBytes(digestInputStream.getMessageDigest().digest());
+
+    if (!tempFile.renameTo(destination)) {
+      Log.w(TAG, "Couldn't rename " + tempFile.getPath() + " to " + destination.getPath());
+      tempFile.delete();
+      throw new IllegalStateException("Couldn't rename " + tempFile.getPath() + " to " + destination.getPath());
+    }
+
+    Optional<DataInfo> sharedDataInfo = findDuplicateDataFileInfo(hash, attachmentId);
+    if (sharedDataInfo.isPresent()) {
+      Log.i(TAG, "[setAttachmentData] Duplicate data file found! " + sharedDataInfo.get().file.getAbsolutePath());
+      discardDestination(destination, sharedDataInfo.get());
+      return sharedDataInfo.get();
+    } else {
+      Log.i(TAG, "[setAttachmentData] No matching attachment data found. " + destination.getAbsolutePath());
+    }
+
+    return new DataInfo(destination, length, out.first, hash);
+  }
+
+  private static void discardDestination(@NonNull File destination, @NonNull DataInfo sharedDataInfo) {
+    if (!destination.equals(sharedDataInfo.file) && destination.delete()) {
+      Log.i(TAG, "[setAttachmentData] Deleted original file. " + destination);
+    }
+  }
+
+  /**
+   * Reads up to maxLength bytes, only allocating as much as is needed.
+   */
+  private static @NonNull byte[] readPrefix(@NonNull InputStream in, int maxLength) throws IOException {
+    byte[] buffer = new byte[Math.min(maxLength, 64 * 1024)];
+    int    total  = 0;
+    int    read;
+
+    while ((read = in.read(buffer, total, buffer.length - total)) != -1) {
+      total += read;
+
+      if (total == buffer.length) {
+        if (total == maxLength) {
+          return buffer;
+        }
+
+        buffer = Arrays.copyOf(buffer, Math.min(maxLength, buffer.length * 2));
+      }
+    }
+
+    return Arrays.copyOf(buffer, total);
+  }
+
+  /**
+   * Reads the data for as long as it matches the plaintext of the provided data file, starting with the already-read prefix. A data file
+   * that can't be read is treated as not matching, so that a stale or corrupt file can't fail the write.
+   *
+   * @return Null if the data is identical to the data file. Otherwise, a stream of the entire data: what we've read so far (replayed
+   *         from the data file where it matched), followed by the rest of the input.
+   */
+  private @Nullable InputStream readMatchingData(@NonNull DataInfo candidate, @NonNull byte[] prefix, @NonNull InputStream in) throws IOException {
+    long        matched = 0;
+    InputStream existing;
+
+    try {
+      existing = ModernDecryptingPartInputStream.createFor(attachmentSecret, candidate.random, candidate.file, 0);
+    } catch (IOException e) {
+      Log.w(TAG, "[setAttachmentData] Couldn't open the data file to compare against. " + candidate.file.getAbsolutePath(), e);
+      return new SequenceInputStream(new ByteArrayInputStream(prefix), in);
+    }
+
+    try {
+      byte[] theirs = new byte[prefix.length];
+
+      if (!readMatches(existing, prefix, prefix.length, theirs)) {
+        return new SequenceInputStream(new ByteArrayInputStream(prefix), in);
+      }
+
+      matched = prefix.length;
+
+      byte[] ours = new byte[64 * 1024];
+      int    read;
+
+      while ((read = in.read(ours)) != -1) {
+        if (!readMatches(existing, ours, read, theirs)) {
+          return new SequenceInputStream(Collections.enumeration(Arrays.asList(replayDataFile(candidate, matched),
+                                                                                new ByteArrayInputStream(ours, 0, read),
+                                                                                in)));
+        }
+
+        matched += read;
+      }
+
+      in.close();
+
+      if (!isAtEnd(existing)) {
+        return replayDataFile(candidate, matched);
+      }
+    } finally {
+      StreamUtil.close(existing);
+    }
+
+    return null;
+  }
+
+  /**
+   * Compares the next length bytes of the existing data to ours. Failing to read the existing data counts as a mismatch, while any
+   * failure to read our own data is left to the caller.
+   */
+  private static boolean readMatches(@NonNull InputStream existing, @NonNull byte[] ours, int length, @NonNull byte[] buffer) {
+    int total = 0;
+    int read;
+
+    try {
+      while (total < length && (read = existing.read(buffer, total, length - total)) != -1) {
+        total += read;
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "[setAttachmentData] Failed to read the data file to compare against.", e);
+      return false;
+    }
+
+    if (total != length) {
+      return false;
+    }
+
+    for (int i = 0; i < length; i++) {
+      if (ours[i] != buffer[i]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private static boolean isAtEnd(@NonNull InputStream existing) {
+    try {
+      return existing.read() == -1;
+    } catch (IOException e) {
+      Log.w(TAG, "[setAttachmentData] Failed to read the data file to compare against.", e);
+      return false;
+    }
+  }
+
+  private @NonNull InputStream replayDataFile(@NonNull DataInfo dataInfo, long length) throws IOException {
+    return new LimitedInputStream(ModernDecryptingPartInputStream.createFor(attachmentSecret, dataInfo.random, dataInfo.file, 0), length);
+  }
+
+  private @NonNull Optional<DataInfo> findDuplicateDataFileInfo(@NonNull String hash, @Nullable AttachmentId excludedAttachmentId) {
+    SQLiteDatabase db = databaseHelper.getSignalWritableDatabase();
+
+    db.beginTransaction();
+    try {
+      Optional<DataInfo> dataInfo = findDuplicateDataFileInfo(db, hash, excludedAttachmentId);
+      db.setTransactionSuccessful();
+      return dataInfo;
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * Finds a modern data file with a known hash and the given size, if there's exactly one. If there are several, comparing against them
+   * all would cost more than just writing the data and letting the hash find the duplicate afterwards.
+   */
+  private @NonNull Optional<DataInfo> findDataFileWithSize(long size, @Nullable AttachmentId excludedAttachmentId) {
+    String   selection = SIZE + " = ? AND " + DATA + " NOT NULL AND " + DATA_HASH + " NOT NULL AND length(" + DATA_RANDOM + ") = 32";
+    String[] args      = SqlUtil.buildArgs(size);
+
+    if (excludedAttachmentId != null) {
+      selection += " AND " + PART_ID_WHERE_NOT;
+      args       = SqlUtil.buildArgs(size, excludedAttachmentId.getRowId(), excludedAttachmentId.getUniqueId());
+    }
+
+    try (Cursor cursor = databaseHelper.getSignalReadableDatabase().query(true, TABLE_NAME, new String[] { DATA, DATA_RANDOM, DATA_HASH }, selection, args, null, null, null, "2")) {
+      if (cursor.getCount() != 1 || !cursor.moveToFirst()) {
+        return Optional.empty();
+      }
+
+      return Optional.of(new DataInfo(new File(CursorUtil.requireString(cursor, DATA)),
+                                      size,
+                                      CursorUtil.requireBlob(cursor, DATA_RANDOM),
+                                      CursorUtil.requireString(cursor, DATA_HASH)));
+    }
+  }
+
   private static @NonNull Optional<DataInfo> findDuplicateDataFileInfo(@NonNull SQLiteDatabase database,
                                                                        @NonNull String hash,
                                                                        @Nullable AttachmentId excludedAttachmentId)
@@ -1354,7 +1579,7 @@ public class AttachmentTable extends DatabaseTable {
       long           uniqueId        = System.currentTimeMillis();
 
       if (attachment.getUri() != null) {
-        dataInfo = setAttachmentData(attachment.getUri(), null);
+        dataInfo = setAttachmentData(attachment.getUri(), null, attachment.getSize());
         Log.d(TAG, "Wrote part to file: " + dataInfo.file.getAbsolutePath());
       }
 
@@ -1,30 +1,42 @@
 package org.thoughtcrime.securesms.database;
 
 import android.app.Application;
+import android.os.Handler;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 
 import org.jetbrains.annotations.NotNull;
+import org.signal.core.util.ThreadUtil;
 import org.signal.core.util.concurrent.SignalExecutors;
 import org.thoughtcrime.securesms.database.model.MessageId;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.recipients.RecipientId;
 import org.thoughtcrime.securesms.util.concurrent.SerialExecutor;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Allows listening to database changes to varying degrees of specificity.
  *
  * A replacement for the observer system in {@link DatabaseTable}. We should move to this over time.
+ *
+ * Notifications are deferred until the enclosing transaction (if any) succeeds, and then held for a
+ * short, frame-sized window. Identical notifications (i.e. the same type and ID) within that window
+ * are coalesced into one, and everything that's pending is dispatched together in a single task.
  */
 public class DatabaseObserver {
 
@@ -47,32 +59,46 @@ public class DatabaseObserver {
 
   private static final String KEY_CALL_UPDATES          = "CallUpdates";
 
+  private static final long COALESCE_WINDOW_MS = 16;
+
   private final Application application;
   private final Executor    executor;
 
-  private final Set<Observer>                   conversationListObservers;
-  private final Map<Long, Set<Observer>>        conversationObservers;
-  private final Map<Long, Set<Observer>>        verboseConversationObservers;
-  private final Map<Long, Set<Observer>>        conversationDeleteObservers;
-  private final Map<UUID, Set<Observer>>        paymentObservers;
-  private final Map<Long, Set<Observer>>        scheduledMessageObservers;
-  private final Set<Observer>                   allPaymentsObservers;
-  private final Set<Observer>                   chatColorsObservers;
-  private final Set<Observer>                   stickerObservers;
-  private final Set<Observer>                   stickerPackObservers;
-  private final Set<Observer>                   attachmentObservers;
-  private final Set<MessageObserver>            messageUpdateObservers;
-  private final Map<Long, Set<MessageObserver>> messageInsertObservers;
-  private final Set<Observer>                   notificationProfileObservers;
-  private final Map<RecipientId, Set<Observer>> storyObservers;
-
-  private final Set<Observer>                   callUpdateObservers;
+  private final Map<String, Runnable>     pendingNotifications;
+  private final Set<Long>                 pendingThreadIds;
+  private final Map<Long, Set<MessageId>> pendingThreadMessageIds;
+  private final Set<Long>                 pendingVerboseThreadIds;
+  private final AtomicLong                dispatchedCount;
+  private final AtomicLong                suppressedCount;
+
+  private Handler dispatchHandler;
+  private boolean dispatchScheduled;
+
+  private final Set<Observer>                        conversationListObservers;
+  private final Map<Long, Set<Observer>>             conversationObservers;
+  private final Map<Long, Set<ConversationObserver>> conversationChangeObservers;
+  private final Map<Long, Set<Observer>>             verboseConversationObservers;
+  private final Map<Long, Set<Observer>>             conversationDeleteObservers;
+  private final Map<UUID, Set<Observer>>             paymentObservers;
+  private final Map<Long, Set<Observer>>             scheduledMessageObservers;
+  private final Set<Observer>                        allPaymentsObservers;
+  private final Set<Observer>                        chatColorsObservers;
+  private final Set<Observer>                        stickerObservers;
+  private final Set<Observer>                        stickerPackObservers;
+  private final Set<Observer>                        attachmentObservers;
+  private final Set<MessageObserver>                 messageUpdateObservers;
+  private final Map<Long, Set<MessageObserver>>      messageInsertObservers;
+  private final Set<Observer>                        notificationProfileObservers;
+  private final Map<RecipientId, Set<Observer>>      storyObservers;
+
+  private final Set<Observer>                        callUpdateObservers;
 
   public DatabaseObserver(Application application) {
     this.application                  = application;
-    this.executor                     = new SerialExecutor(SignalExecutors.BOUNDED);
+    this.executor                     = new SerialExecutor(SignalExecutors.tagged("DatabaseObserver", SignalExecutors.BOUNDED));
     this.conversationListObservers    = new HashSet<>();
     this.conversationObservers        = new HashMap<>();
+    this.conversationChangeObservers  = new HashMap<>();
     this.verboseConversationObservers = new HashMap<>();
     this.conversationDeleteObservers  = new HashMap<>();
     this.paymentObservers             = new HashMap<>();
@@ -87,6 +113,12 @@ public class DatabaseObserver {
     this.storyObservers               = new HashMap<>();
     this.scheduledMessageObservers    = new HashMap<>();
     this.callUpdateObservers          = new HashSet<>();
+    this.pendingNotifications         = new LinkedHashMap<>();
+    this.pendingThreadIds             = new HashSet<>();
+    this.pendingThreadMessageIds      = new HashMap<>();
+    this.pendingVerboseThreadIds      = new HashSet<>();
+    this.dispatchedCount              = new AtomicLong(0);
+    this.suppressedCount              = new AtomicLong(0);
   }
 
   public void registerConversationListObserver(@NonNull Observer listener) {
@@ -101,6 +133,15 @@ public class DatabaseObserver {
     });
   }
 
+  /**
+   * Like {@link #registerConversationObserver(long, Observer)}, but is also told which messages changed, when that's all that changed.
+   */
+  public void registerConversationChangeObserver(long threadId, @NonNull ConversationObserver listener) {
+    executor.execute(() -> {
+      registerMapped(conversationChangeObservers, threadId, listener);
+    });
+  }
+
   public void registerVerboseConversationObserver(long threadId, @NonNull Observer listener) {
     executor.execute(() -> {
       registerMapped(verboseConversationObservers, threadId, listener);
@@ -204,6 +245,12 @@ public class DatabaseObserver {
     });
   }
 
+  public void unregisterObserver(@NonNull ConversationObserver listener) {
+    executor.execute(() -> {
+      unregisterMapped(conversationChangeObservers, listener);
+    });
+  }
+
   public void unregisterObserver(@NonNull MessageObserver listener) {
     executor.execute(() -> {
       messageUpdateObservers.remove(listener);
@@ -218,16 +265,25 @@ public class DatabaseObserver {
   }
 
   public void notifyConversationListeners(long threadId) {
-    runPostSuccessfulTransaction(KEY_CONVERSATION + threadId, () -> {
-      notifyMapped(conversationObservers, threadId);
-      notifyMapped(verboseConversationObservers, threadId);
+    SignalDatabase.runPostSuccessfulTransaction(KEY_CONVERSATION + threadId, () -> {
+      enqueueConversationNotification(threadId, null);
+    });
+  }
+
+  /**
+   * Notifies conversation listeners, letting them know that the only change to the conversation was that this message was inserted or
+   * updated. If anything else in the conversation changes within the same window, the listeners are told that it changed in unknown ways.
+   */
+  public void notifyConversationListeners(long threadId, @NonNull MessageId messageId) {
+    SignalDatabase.runPostSuccessfulTransaction(KEY_CONVERSATION + threadId + ":" + messageId.getId(), () -> {
+      enqueueConversationNotification(threadId, messageId);
     });
   }
 
   public void notifyVerboseConversationListeners(Set<Long> threadIds) {
     for (long threadId : threadIds) {
-      runPostSuccessfulTransaction(KEY_VERBOSE_CONVERSATION + threadId, () -> {
-        notifyMapped(verboseConversationObservers, threadId);
+      SignalDatabase.runPostSuccessfulTransaction(KEY_VERBOSE_CONVERSATION + threadId, () -> {
+        enqueueThreadNotification(pendingVerboseThreadIds, threadId);
       });
     }
   }
@@ -319,16 +375,14 @@ public class DatabaseObserver {
   }
 
   public void notifyStoryObservers(@NonNull RecipientId recipientId) {
-    runPostSuccessfulTransaction(KEY_STORY_OBSERVER, () -> {
+    runPostSuccessfulTransaction(KEY_STORY_OBSERVER + recipientId.serialize(), () -> {
       notifyMapped(storyObservers, recipientId);
     });
   }
 
   public void notifyStoryObservers(@NonNull Collection<RecipientId> recipientIds) {
     for (RecipientId recipientId : recipientIds) {
-      runPostSuccessfulTransaction(KEY_STORY_OBSERVER, () -> {
-        notifyMapped(storyObservers, recipientId);
-      });
+      notifyStoryObservers(recipientId);
     }
   }
 
@@ -342,9 +396,153 @@ public class DatabaseObserver {
     runPostSuccessfulTransaction(KEY_CALL_UPDATES, () -> notifySet(callUpdateObservers));
   }
 
+  /**
+   * @return A summary of how many notifications have been dispatched vs coalesced, for the debug log.
+   */
+  public @NonNull String getStats() {
+    long dispatched = dispatchedCount.get();
+    long suppressed = suppressedCount.get();
+    int  pending;
+
+    synchronized (pendingNotifications) {
+      pending = pendingNotifications.size() + pendingThreadIds.size() + pendingVerboseThreadIds.size();
+    }
+
+    return "Dispatched: " + dispatched + ", Suppressed: " + suppressed + ", Pending: " + pending;
+  }
+
   private void runPostSuccessfulTransaction(@NonNull String dedupeKey, @NonNull Runnable runnable) {
     SignalDatabase.runPostSuccessfulTransaction(dedupeKey, () -> {
-      executor.execute(runnable);
+      enqueueNotification(dedupeKey, runnable);
+    });
+  }
+
+  /**
+   * Holds onto the notification until the end of the current window, dropping it if an identical
+   * one is already waiting.
+   */
+  private void enqueueNotification(@NonNull String dedupeKey, @NonNull Runnable runnable) {
+    synchronized (pendingNotifications) {
+      if (pendingNotifications.containsKey(dedupeKey)) {
+        suppressedCount.incrementAndGet();
+        return;
+      }
+
+      pendingNotifications.put(dedupeKey, runnable);
+      scheduleDispatch();
+    }
+  }
+
+  /**
+   * Conversation notifications are tracked as a set of thread IDs rather than individual tasks, so
+   * that a conversation notification also covers a verbose one for the same thread.
+   */
+  private void enqueueThreadNotification(@NonNull Set<Long> pendingThreadIds, long threadId) {
+    synchronized (pendingNotifications) {
+      if (!pendingThreadIds.add(threadId)) {
+        suppressedCount.incrementAndGet();
+        return;
+      }
+
+      scheduleDispatch();
+    }
+  }
+
+  /**
+   * Along with the thread ID, we keep track of the messages that a conversation notification covers, for as long as every notification
+   * for that conversation in the window has named one. A notification without a message means we no longer know what changed.
+   */
+  private void enqueueConversationNotification(long threadId, @Nullable MessageId messageId) {
+    synchronized (pendingNotifications) {
+      boolean added = pendingThreadIds.add(threadId);
+
+      if (messageId == null) {
+        pendingThreadMessageIds.remove(threadId);
+      } else if (added) {
+        pendingThreadMessageIds.put(threadId, new HashSet<>(Collections.singleton(messageId)));
+      } else if (pendingThreadMessageIds.containsKey(threadId)) {
+        pendingThreadMessageIds.get(threadId).add(messageId);
+      }
+
+      if (!added) {
+        suppressedCount.incrementAndGet();
+        return;
+      }
+
+      scheduleDispatch();
+    }
+  }
+
+  private void scheduleDispatch() {
+    if (dispatchScheduled) {
+      return;
+    }
+
+    if (dispatchHandler == null) {
+      dispatchHandler = new Handler(SignalExecutors.getAndStartHandlerThread("signal-DatabaseObserver", ThreadUtil.PRIORITY_UI_BLOCKING_THREAD).getLooper());
+    }
+
+    dispatchHandler.postDelayed(this::dispatchPendingNotifications, COALESCE_WINDOW_MS);
+    dispatchScheduled = true;
+  }
+
+  private void dispatchPendingNotifications() {
+    List<Runnable>            notifications;
+    Set<Long>                 conversationThreadIds;
+    Set<Long>                 verboseConversationThreadIds;
+    Map<Long, Set<MessageId>> conversationMessageIds;
+
+    synchronized (pendingNotifications) {
+      notifications                = new ArrayList<>(pendingNotifications.values());
+      conversationThreadIds        = new HashSet<>(pendingThreadIds);
+      verboseConversationThreadIds = new HashSet<>(pendingVerboseThreadIds);
+      conversationMessageIds       = new HashMap<>(pendingThreadMessageIds);
+
+      pendingNotifications.clear();
+      pendingThreadIds.clear();
+      pendingVerboseThreadIds.clear();
+      pendingThreadMessageIds.clear();
+
+      if (dispatchScheduled) {
+        dispatchHandler.removeCallbacksAndMessages(null);
+        dispatchScheduled = false;
+      }
+    }
+
+    int redundantVerbose = verboseConversationThreadIds.size();
+    verboseConversationThreadIds.removeAll(conversationThreadIds);
+    redundantVerbose -= verboseConversationThreadIds.size();
+
+    suppressedCount.addAndGet(redundantVerbose);
+    dispatchedCount.addAndGet(notifications.size() + conversationThreadIds.size() + verboseConversationThreadIds.size());
+
+    if (notifications.isEmpty() && conversationThreadIds.isEmpty() && verboseConversationThreadIds.isEmpty()) {
+      return;
+    }
+
+    executor.execute(() -> {
+      for (long threadId : conversationThreadIds) {
+        notifyMapped(conversationObservers, threadId);
+        notifyMapped(verboseConversationObservers, threadId);
+
+        Set<ConversationObserver> changeListeners = conversationChangeObservers.get(threadId);
+
+        if (changeListeners != null) {
+          Set<MessageId> messageIds = conversationMessageIds.get(threadId);
+
+          for (ConversationObserver listener : changeListeners) {
+            listener.onConversationChanged(messageIds != null ? Collections.unmodifiableSet(messageIds) : null);
+          }
+        }
+      }
+
+      for (long threadId : verboseConversationThreadIds) {
+        notifyMapped(verboseConversationObservers, threadId);
+      }
+
+      for (Runnable notification : notifications) {
+        notification.run();
+      }
     });
   }
 
@@ -382,10 +580,12 @@ public class DatabaseObserver {
   }
 
   /**
-   * Blocks until the executor is empty. Only intended to be used for testing.
+   * Dispatches any pending notifications and blocks until the executor is empty. Only intended to be used for testing.
    */
   @VisibleForTesting
   void flush() {
+    dispatchPendingNotifications();
+
     CountDownLatch latch = new CountDownLatch(1);
     executor.execute(latch::countDown);
 
@@ -407,4 +607,13 @@ public class DatabaseObserver {
   public interface MessageObserver {
     void onMessageChanged(@NonNull MessageId messageId);
   }
+
+  public interface ConversationObserver {
+    /**
+     * Called when the conversation changes. Executed on a serial executor, so don't do any long-running tasks!
+     *
+     * @param messageIds The messages that were inserted or updated, if that's all that changed, otherwise null.
+     */
+    void onConversationChanged(@Nullable Set<MessageId> messageIds);
+  }
 }
@@ -0,0 +1,136 @@
+package org.thoughtcrime.securesms.database
+
+import java.util.Locale
+
+/**
+ * An in-memory index of emoji search labels, used by [EmojiSearchTable] so that searching as the user types doesn't scan the table on
+ * every keystroke.
+ *
+ * Labels are indexed by trigram. A query of three or more characters only has to check the labels in the shortest posting list among its
+ * trigrams, while shorter queries check every label. Each search also remembers what it matched, and a query that contains the previous
+ * one only has to check those matches, since any label that contains the new query also contains the old one.
+ */
+class EmojiSearchIndex(entries: List<Entry>) {
+
+  companion object {
+    private const val GRAM_LENGTH = 3
+
+    private const val PREFIX_RANK_WEIGHT = 1.75f
+    private const val SUFFIX_RANK_WEIGHT = 0.75f
+    private const val NOT_EXACT_MATCH_PENALTY = 2f
+    private const val UNRANKED = 2f
+  }
+
+  private val labels: Array<String> = Array(entries.size) { entries[it].label.lowercase(Locale.ROOT) }
+  private val emoji: Array<String> = Array(entries.size) { entries[it].emoji }
+  private val ranks: IntArray = IntArray(entries.size) { entries[it].rank }
+  private val scaledRanks: FloatArray
+  private val grams: Map<String, IntArray>
+
+  @Volatile
+  private var lastSearch: Search? = null
+
+  init {
+    val maxRank: Int = ranks.filter { it != Int.MAX_VALUE }.maxOrNull() ?: 0
+    scaledRanks = FloatArray(ranks.size) { if (ranks[it] == Int.MAX_VALUE) UNRANKED else ranks[it] * (UNRANKED / maxRank) }
+
+    val postings: MutableMap<String, MutableList<Int>> = HashMap()
+    labels.forEachIndexed { id, label ->
+      for (start in 0..label.length - GRAM_LENGTH) {
+        val ids: MutableList<Int> = postings.getOrPut(label.substring(start, start + GRAM_LENGTH)) { mutableListOf() }
+        if (ids.lastOrNull() != id) {
+          ids += id
+        }
+      }
+    }
+
+    grams = postings.mapValues { it.value.toIntArray() }
+  }
+
+  val size: Int
+    get() = labels.size
+
+  /**
+   * @param query A search query that's already been trimmed.
+   * @return Up to [limit] emoji whose labels contain the query, most similar first.
+   */
+  fun search(query: String, limit: Int): List<String> {
+    val normalizedQuery: String = query.lowercase(Locale.ROOT)
+    val matches: IntArray = findMatches(normalizedQuery)
+    val scores = FloatArray(matches.size) { similarityScore(normalizedQuery, matches[it]) }
+
+    return matches.indices
+      .sortedWith(compareBy<Int>({ scores[it] }, { ranks[matches[it]] }, { matches[it] }))
+      .asSequence()
+      .map { emoji[matches[it]] }
+      .distinct()
+      .take(limit)
+      .toList()
+  }
+
+  /**
+   * @return The ids of every label containing the query, in ascending order.
+   */
+  private fun findMatches(query: String): IntArray {
+    val previous: Search? = lastSearch
+    var candidates: IntArray? = if (previous != null && query.contains(previous.query)) previous.matches else null
+
+    if (query.length >= GRAM_LENGTH) {
+      for (start in 0..query.length - GRAM_LENGTH) {
+        val posting: IntArray = grams[query.substring(start, start + GRAM_LENGTH)] ?: IntArray(0)
+
+        if (candidates == null || posting.size < candidates.size) {
+          candidates = posting
+        }
+      }
+    }
+
+    val count: Int = candidates?.size ?: labels.size
+    val buffer = IntArray(count)
+    var matchCount = 0
+
+    for (i in 0 until count) {
+      val id: Int = candidates?.get(i) ?: i
+
+      if (labels[id].contains(query)) {
+        buffer[matchCount++] = id
+      }
+    }
+
+    val matches: IntArray = buffer.copyOf(matchCount)
+
+    lastSearch = Search(query, matches)
+
+    return matches
+  }
+
+  /**
+   * Ranks how "similar" a match is to the original search term.
+   * A lower score means more similar, with 0 being a perfect match.
+   *
+   * We know that the `searchTerm` must be a substring of the `match`.
+   * We determine similarity by how many letters appear before or after the `searchTerm` in the `match`.
+   * We give letters that come before the term a bigger weight than those that come after as a way to prefer matches that are prefixed by the `searchTerm`.
+   */
+  private fun similarityScore(searchTerm: String, id: Int): Float {
+    val match: String = labels[id]
+
+    if (searchTerm == match) {
+      return scaledRanks[id]
+    }
+
+    val startIndex = match.indexOf(searchTerm)
+
+    val prefixCount = startIndex
+    val suffixCount = match.length - (startIndex + searchTerm.length)
+
+    return NOT_EXACT_MATCH_PENALTY +
+      (prefixCount * PREFIX_RANK_WEIGHT) +
+      (suffixCount * SUFFIX_RANK_WEIGHT) +
+      scaledRanks[id]
+  }
+
+  data class Entry(val label: String, val emoji: String, val rank: Int)
+
+  private class Search(val query: String, val matches: IntArray)
+}
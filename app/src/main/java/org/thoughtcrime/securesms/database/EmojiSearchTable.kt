@@ -3,16 +3,16 @@ package org.thoughtcrime.securesms.database
 import android.content.Context
 import android.text.TextUtils
 import androidx.core.content.contentValuesOf
-import org.signal.core.util.readToSingleInt
 import org.signal.core.util.requireInt
 import org.signal.core.util.requireNonNullString
-import org.signal.core.util.select
 import org.signal.core.util.withinTransaction
 import org.thoughtcrime.securesms.database.model.EmojiSearchData
-import kotlin.math.max
 
 /**
  * Contains all info necessary for full-text search of emoji tags.
+ *
+ * Searches don't query the table directly. The whole table is loaded into an [EmojiSearchIndex] the first time it's searched, and that
+ * index is replaced whenever a new search index is downloaded.
  */
 class EmojiSearchTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTable(context, databaseHelper) {
 
@@ -38,6 +38,9 @@ class EmojiSearchTable(context: Context, databaseHelper: SignalDatabase) : Datab
     )
   }
 
+  @Volatile
+  private var searchIndex: EmojiSearchIndex? = null
+
   /**
    * @param query A search query. Doesn't need any special formatted -- it'll be sanitized.
    * @return A list of emoji that are related to the search term, ordered by relevance.
@@ -49,45 +52,7 @@ class EmojiSearchTable(context: Context, databaseHelper: SignalDatabase) : Datab
       return emptyList()
     }
 
-    val limit: Int = max(originalLimit, 200)
-    val entries = mutableListOf<Entry>()
-
-    val maxRank = readableDatabase
-      .select("MAX($RANK) AS max")
-      .from(TABLE_NAME)
-      .where("$RANK != ${Int.MAX_VALUE}")
-      .run()
-      .readToSingleInt()
-
-    readableDatabase
-      .select(LABEL, EMOJI, RANK)
-      .from(TABLE_NAME)
-      .where("$LABEL LIKE ?", "%$query%")
-      .orderBy("$RANK ASC")
-      .limit(limit)
-      .run()
-      .use { cursor ->
-        while (cursor.moveToNext()) {
-          entries += Entry(
-            label = cursor.requireNonNullString(LABEL),
-            emoji = cursor.requireNonNullString(EMOJI),
-            rank = cursor.requireInt(RANK)
-          )
-        }
-      }
-
-    return entries
-      .sortedWith { lhs, rhs ->
-        val result = similarityScore(query, lhs, maxRank) - similarityScore(query, rhs, maxRank)
-        when {
-          result < 0 -> -1
-          result > 0 -> 1
-          else -> 0
-        }
-      }
-      .distinctBy { it.emoji }
-      .take(originalLimit)
-      .map { it.emoji }
+    return getSearchIndex().search(query, originalLimit)
   }
 
   /**
@@ -95,62 +60,61 @@ class EmojiSearchTable(context: Context, databaseHelper: SignalDatabase) : Datab
    */
   fun setSearchIndex(searchIndex: List<EmojiSearchData>) {
     val db = databaseHelper.signalReadableDatabase
+    val entries = mutableListOf<EmojiSearchIndex.Entry>()
 
     db.withinTransaction {
       db.delete(TABLE_NAME, null, null)
 
       for (searchData in searchIndex) {
         for (label in searchData.tags) {
+          val rank = if (searchData.rank == 0) Int.MAX_VALUE else searchData.rank
           val values = contentValuesOf(
             LABEL to label,
             EMOJI to searchData.emoji,
-            RANK to if (searchData.rank == 0) Int.MAX_VALUE else searchData.rank
+            RANK to rank
           )
           db.insert(TABLE_NAME, null, values)
+          entries += EmojiSearchIndex.Entry(label, searchData.emoji, rank)
         }
       }
     }
+
+    synchronized(this) {
+      this.searchIndex = EmojiSearchIndex(entries)
+    }
   }
 
   /**
-   * Ranks how "similar" a match is to the original search term.
-   * A lower score means more similar, with 0 being a perfect match.
-   *
-   * We know that the `searchTerm` must be a substring of the `match`.
-   * We determine similarity by how many letters appear before or after the `searchTerm` in the `match`.
-   * We give letters that come before the term a bigger weight than those that come after as a way to prefer matches that are prefixed by the `searchTerm`.
+   * Drops the in-memory index, so that it's read from the table again the next time it's needed. Only necessary if the table was changed
+   * without going through [setSearchIndex], like when restoring a backup.
    */
-  private fun similarityScore(searchTerm: String, entry: Entry, maxRank: Int): Float {
-    val match: String = entry.label
-
-    if (searchTerm == match) {
-      return entry.scaledRank(maxRank)
+  fun clearSearchIndexCache() {
+    synchronized(this) {
+      searchIndex = null
     }
+  }
 
-    val startIndex = match.indexOf(searchTerm)
+  private fun getSearchIndex(): EmojiSearchIndex {
+    searchIndex?.let { return it }
 
-    val prefixCount = startIndex
-    val suffixCount = match.length - (startIndex + searchTerm.length)
+    synchronized(this) {
+      searchIndex?.let { return it }
 
-    val prefixRankWeight = 1.75f
-    val suffixRankWeight = 0.75f
-    val notExactMatchPenalty = 2f
+      val entries = mutableListOf<EmojiSearchIndex.Entry>()
 
-    return notExactMatchPenalty +
-      (prefixCount * prefixRankWeight) +
-      (suffixCount * suffixRankWeight) +
-      entry.scaledRank(maxRank)
-  }
+      readableDatabase
+        .query(TABLE_NAME, arrayOf(LABEL, EMOJI, RANK), null, null, null, null, "$ID ASC")
+        .use { cursor ->
+          while (cursor.moveToNext()) {
+            entries += EmojiSearchIndex.Entry(
+              label = cursor.requireNonNullString(LABEL),
+              emoji = cursor.requireNonNullString(EMOJI),
+              rank = cursor.requireInt(RANK)
+            )
+          }
+        }
 
-  private data class Entry(val label: String, val emoji: String, val rank: Int) {
-    fun scaledRank(maxRank: Int): Float {
-      val unranked = 2f
-      val scaleFactor: Float = unranked / maxRank
-      return if (rank == Int.MAX_VALUE) {
-        unranked
-      } else {
-        rank * scaleFactor
-      }
+      return EmojiSearchIndex(entries).also { searchIndex = it }
     }
   }
 }
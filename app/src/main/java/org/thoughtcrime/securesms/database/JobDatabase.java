@@ -3,15 +3,18 @@ package org.thoughtcrime.securesms.database;
 import android.app.Application;
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.os.Handler;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
 import com.annimon.stream.Stream;
 
 import net.zetetic.database.sqlcipher.SQLiteDatabase;
 import net.zetetic.database.sqlcipher.SQLiteOpenHelper;
 
+import org.signal.core.util.ThreadUtil;
 import org.signal.core.util.concurrent.SignalExecutors;
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.crypto.DatabaseSecret;
@@ -23,9 +26,23 @@ import org.thoughtcrime.securesms.jobmanager.persistence.JobSpec;
 import org.signal.core.util.CursorUtil;
 
 import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
-
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persistence for the {@link org.thoughtcrime.securesms.jobmanager.JobManager}.
+ *
+ * Inserts, updates, retries and deletes are written immediately, since losing any of them to
+ * process death would run a finished job again or undo its retry bookkeeping. Changes to a job's
+ * running state are the exception: all jobs are reset to pending on startup, so those are only
+ * recorded in memory, coalesced per job, and written along with the next transaction, or on their
+ * own shortly afterwards if nothing else is written first, or whenever {@link #flushPendingWrites()}
+ * is called.
+ */
 public class JobDatabase extends SQLiteOpenHelper implements SignalDatabaseOpenHelper {
 
   private static final String TAG = Log.tag(JobDatabase.class);
@@ -33,6 +50,8 @@ public class JobDatabase extends SQLiteOpenHelper implements SignalDatabaseOpenH
   private static final int    DATABASE_VERSION = 1;
   private static final String DATABASE_NAME    = "signal-jobmanager.db";
 
+  private static final long FLUSH_DELAY_MS = 250;
+
   private static final class Jobs {
     private static final String TABLE_NAME            = "job_spec";
     private static final String ID                    = "_id";
@@ -89,7 +108,13 @@ public class JobDatabase extends SQLiteOpenHelper implements SignalDatabaseOpenH
 
   private static volatile JobDatabase instance;
 
-  private final Application application;
+  private final Application          application;
+  private final Map<String, Boolean> pendingRunningStates;
+  private final AtomicLong           transactionCount;
+  private final AtomicLong           deletedJobCount;
+
+  private Handler flushHandler;
+  private boolean flushScheduled;
 
   public static @NonNull JobDatabase getInstance(@NonNull Application context) {
     if (instance == null) {
@@ -104,9 +129,20 @@ public class JobDatabase extends SQLiteOpenHelper implements SignalDatabaseOpenH
   }
 
   public JobDatabase(@NonNull Application application, @NonNull DatabaseSecret databaseSecret) {
-    super(application, DATABASE_NAME, databaseSecret.asString(), null, DATABASE_VERSION, 0, new SqlCipherErrorHandler(DATABASE_NAME), new SqlCipherDatabaseHook(), true);
+    this(application, databaseSecret, DATABASE_NAME);
+  }
 
-    this.application = application;
+  /**
+   * @param name The name of the database file, or null for an in-memory database.
+   */
+  @VisibleForTesting
+  JobDatabase(@NonNull Application application, @NonNull DatabaseSecret databaseSecret, @Nullable String name) {
+    super(application, name, databaseSecret.asString(), null, DATABASE_VERSION, 0, new SqlCipherErrorHandler(DATABASE_NAME), new SqlCipherDatabaseHook(), true);
+
+    this.application          = application;
+    this.pendingRunningStates = new LinkedHashMap<>();
+    this.transactionCount = new AtomicLong();
+    this.deletedJobCount  = new AtomicLong();
   }
 
   @Override
@@ -158,9 +194,12 @@ public class JobDatabase extends SQLiteOpenHelper implements SignalDatabaseOpenH
 
     SQLiteDatabase db = getWritableDatabase();
 
+    transactionCount.incrementAndGet();
     db.beginTransaction();
 
     try {
+      writePendingRunningStates(db);
+
       for (FullSpec fullSpec : fullSpecs) {
         insertJobSpec(db, fullSpec.getJobSpec());
         insertConstraintSpecs(db, fullSpec.getConstraintSpecs());
@@ -171,9 +210,13 @@ public class JobDatabase extends SQLiteOpenHelper implements SignalDatabaseOpenH
     } finally {
       db.endTransaction();
     }
+
+    pendingRunningStates.clear();
   }
 
   public synchronized @NonNull List<JobSpec> getAllJobSpecs() {
+    flushPendingWrites();
+
     List<JobSpec> jobs = new LinkedList<>();
 
     try (Cursor cursor = getReadableDatabase().query(Jobs.TABLE_NAME, null, null, null, null, null, Jobs.CREATE_TIME + ", " + Jobs.ID + " ASC")) {
@@ -185,33 +228,47 @@ public class JobDatabase extends SQLiteOpenHelper implements SignalDatabaseOpenH
     return jobs;
   }
 
+  /**
+   * Not written right away. See the class documentation for details.
+   */
   public synchronized void updateJobRunningState(@NonNull String id, boolean isRunning) {
-    ContentValues contentValues = new ContentValues();
-    contentValues.put(Jobs.IS_RUNNING, isRunning ? 1 : 0);
-
-    String   query = Jobs.JOB_SPEC_ID + " = ?";
-    String[] args  = new String[]{ id };
-
-    getWritableDatabase().update(Jobs.TABLE_NAME, contentValues, query, args);
+    pendingRunningStates.put(id, isRunning);
+    scheduleFlush();
   }
 
   public synchronized void updateJobAfterRetry(@NonNull String id, boolean isRunning, int runAttempt, long nextRunAttemptTime, @Nullable byte[] serializedData) {
+    pendingRunningStates.remove(id);
+
     ContentValues contentValues = new ContentValues();
     contentValues.put(Jobs.IS_RUNNING, isRunning ? 1 : 0);
     contentValues.put(Jobs.RUN_ATTEMPT, runAttempt);
     contentValues.put(Jobs.NEXT_RUN_ATTEMPT_TIME, nextRunAttemptTime);
     contentValues.put(Jobs.SERIALIZED_DATA, serializedData);
 
-    String   query = Jobs.JOB_SPEC_ID + " = ?";
-    String[] args  = new String[]{ id };
+    SQLiteDatabase db = getWritableDatabase();
 
-    getWritableDatabase().update(Jobs.TABLE_NAME, contentValues, query, args);
+    transactionCount.incrementAndGet();
+    db.beginTransaction();
+
+    try {
+      writePendingRunningStates(db);
+      db.update(Jobs.TABLE_NAME, contentValues, Jobs.JOB_SPEC_ID + " = ?", new String[]{ id });
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    pendingRunningStates.clear();
   }
 
   public synchronized void updateAllJobsToBePending() {
+    pendingRunningStates.clear();
+
     ContentValues contentValues = new ContentValues();
     contentValues.put(Jobs.IS_RUNNING, 0);
 
+    transactionCount.incrementAndGet();
     getWritableDatabase().update(Jobs.TABLE_NAME, contentValues, null, null);
   }
 
@@ -222,43 +279,41 @@ public class JobDatabase extends SQLiteOpenHelper implements SignalDatabaseOpenH
 
     SQLiteDatabase db = getWritableDatabase();
 
+    for (JobSpec job : jobs) {
+      pendingRunningStates.remove(job.getId());
+    }
+
+    transactionCount.incrementAndGet();
     db.beginTransaction();
 
     try {
+      writePendingRunningStates(db);
+
       Stream.of(jobs)
             .filterNot(JobSpec::isMemoryOnly)
-            .forEach(job -> {
-              ContentValues values = new ContentValues();
-              values.put(Jobs.JOB_SPEC_ID, job.getId());
-              values.put(Jobs.FACTORY_KEY, job.getFactoryKey());
-              values.put(Jobs.QUEUE_KEY, job.getQueueKey());
-              values.put(Jobs.CREATE_TIME, job.getCreateTime());
-              values.put(Jobs.NEXT_RUN_ATTEMPT_TIME, job.getNextRunAttemptTime());
-              values.put(Jobs.RUN_ATTEMPT, job.getRunAttempt());
-              values.put(Jobs.MAX_ATTEMPTS, job.getMaxAttempts());
-              values.put(Jobs.LIFESPAN, job.getLifespan());
-              values.put(Jobs.SERIALIZED_DATA, job.getSerializedData());
-              values.put(Jobs.SERIALIZED_INPUT_DATA, job.getSerializedInputData());
-              values.put(Jobs.IS_RUNNING, job.isRunning() ? 1 : 0);
-
-              String   query = Jobs.JOB_SPEC_ID + " = ?";
-              String[] args  = new String[]{ job.getId() };
-
-              db.update(Jobs.TABLE_NAME, values, query, args);
-            });
+            .forEach(job -> db.update(Jobs.TABLE_NAME, toContentValues(job), Jobs.JOB_SPEC_ID + " = ?", new String[]{ job.getId() }));
 
       db.setTransactionSuccessful();
     } finally {
       db.endTransaction();
     }
+
+    pendingRunningStates.clear();
   }
 
   public synchronized void deleteJobs(@NonNull List<String> jobIds) {
     SQLiteDatabase db = getWritableDatabase();
 
+    for (String jobId : jobIds) {
+      pendingRunningStates.remove(jobId);
+    }
+
+    transactionCount.incrementAndGet();
     db.beginTransaction();
 
     try {
+      writePendingRunningStates(db);
+
       for (String jobId : jobIds) {
         String[] arg = new String[]{jobId};
 
@@ -272,9 +327,67 @@ public class JobDatabase extends SQLiteOpenHelper implements SignalDatabaseOpenH
     } finally {
       db.endTransaction();
     }
+
+    deletedJobCount.addAndGet(jobIds.size());
+    pendingRunningStates.clear();
+  }
+
+  /**
+   * Writes any running state changes that haven't been written yet. Blocks until finished.
+   */
+  public synchronized void flushPendingWrites() {
+    flushScheduled = false;
+
+    if (pendingRunningStates.isEmpty()) {
+      return;
+    }
+
+    SQLiteDatabase db = getWritableDatabase();
+
+    transactionCount.incrementAndGet();
+    db.beginTransaction();
+
+    try {
+      writePendingRunningStates(db);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    pendingRunningStates.clear();
+  }
+
+  /**
+   * Describes how many transactions have been needed per job that has finished (and therefore been
+   * deleted). Useful for measuring how many writes are saved by deferring running state changes.
+   */
+  public @NonNull String getWriteStats() {
+    long transactions = transactionCount.get();
+    long deleted      = deletedJobCount.get();
+    int  pending;
+
+    synchronized (this) {
+      pending = pendingRunningStates.size();
+    }
+
+    String perJob = deleted > 0 ? String.format(Locale.US, "%.2f", transactions / (double) deleted) : "N/A";
+
+    return "Transactions: " + transactions + ", Jobs Deleted: " + deleted + ", Transactions/Job: " + perJob + ", Pending Running States: " + pending;
+  }
+
+  @VisibleForTesting
+  synchronized int getPendingWriteCount() {
+    return pendingRunningStates.size();
+  }
+
+  @VisibleForTesting
+  long getTransactionCount() {
+    return transactionCount.get();
   }
 
   public synchronized @NonNull List<ConstraintSpec> getAllConstraintSpecs() {
+    flushPendingWrites();
+
     List<ConstraintSpec> constraints = new LinkedList<>();
 
     try (Cursor cursor = getReadableDatabase().query(Constraints.TABLE_NAME, null, null, null, null, null, null)) {
@@ -287,6 +400,8 @@ public class JobDatabase extends SQLiteOpenHelper implements SignalDatabaseOpenH
   }
 
   public synchronized @NonNull List<DependencySpec> getAllDependencySpecs() {
+    flushPendingWrites();
+
     List<DependencySpec> dependencies = new LinkedList<>();
 
     try (Cursor cursor = getReadableDatabase().query(Dependencies.TABLE_NAME, null, null, null, null, null, null)) {
@@ -303,6 +418,10 @@ public class JobDatabase extends SQLiteOpenHelper implements SignalDatabaseOpenH
       return;
     }
 
+    db.insertWithOnConflict(Jobs.TABLE_NAME, null, toContentValues(job), SQLiteDatabase.CONFLICT_IGNORE);
+  }
+
+  private static @NonNull ContentValues toContentValues(@NonNull JobSpec job) {
     ContentValues contentValues = new ContentValues();
     contentValues.put(Jobs.JOB_SPEC_ID, job.getId());
     contentValues.put(Jobs.FACTORY_KEY, job.getFactoryKey());
@@ -315,8 +434,33 @@ public class JobDatabase extends SQLiteOpenHelper implements SignalDatabaseOpenH
     contentValues.put(Jobs.SERIALIZED_DATA, job.getSerializedData());
     contentValues.put(Jobs.SERIALIZED_INPUT_DATA, job.getSerializedInputData());
     contentValues.put(Jobs.IS_RUNNING, job.isRunning() ? 1 : 0);
+    return contentValues;
+  }
+
+  /**
+   * Writes the running state changes that haven't been written yet as part of a transaction that's
+   * already been started. The caller is responsible for clearing them once it's been committed.
+   */
+  private void writePendingRunningStates(@NonNull SQLiteDatabase db) {
+    for (Map.Entry<String, Boolean> entry : pendingRunningStates.entrySet()) {
+      ContentValues contentValues = new ContentValues();
+      contentValues.put(Jobs.IS_RUNNING, entry.getValue() ? 1 : 0);
+
+      db.update(Jobs.TABLE_NAME, contentValues, Jobs.JOB_SPEC_ID + " = ?", new String[]{ entry.getKey() });
+    }
+  }
+
+  private void scheduleFlush() {
+    if (flushScheduled) {
+      return;
+    }
+
+    if (flushHandler == null) {
+      flushHandler = new Handler(SignalExecutors.getAndStartHandlerThread("signal-JobDatabase", ThreadUtil.PRIORITY_BACKGROUND_THREAD).getLooper());
+    }
 
-    db.insertWithOnConflict(Jobs.TABLE_NAME, null, contentValues, SQLiteDatabase.CONFLICT_IGNORE);
+    flushScheduled = true;
+    flushHandler.postDelayed(this::flushPendingWrites, FLUSH_DELAY_MS);
   }
 
   private void insertConstraintSpecs(@NonNull SQLiteDatabase db, @NonNull List<ConstraintSpec> constraints) {
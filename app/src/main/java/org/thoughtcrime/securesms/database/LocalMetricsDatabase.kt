@@ -10,7 +10,7 @@ import org.signal.core.util.SqlUtil
 import org.signal.core.util.logging.Log
 import org.thoughtcrime.securesms.crypto.DatabaseSecret
 import org.thoughtcrime.securesms.crypto.DatabaseSecretProvider
-import org.thoughtcrime.securesms.database.model.LocalMetricsEvent
+import org.thoughtcrime.securesms.util.LocalMetricsHistogram
 import java.util.concurrent.TimeUnit
 
 /**
@@ -18,8 +18,10 @@ import java.util.concurrent.TimeUnit
  *
  * These metrics are only ever included in debug logs in an aggregate fashion (i.e. p50, p90, p99) and are never automatically uploaded anywhere.
  *
- * The performance of insertions is important, but given insertion frequency isn't crazy-high, we can also optimize for retrieval performance.
- * SQLite isn't amazing at statistical analysis, so having indices that speed up those operations is encouraged.
+ * Rather than storing every event, we store a [LocalMetricsHistogram] per event name and split for each window of time. [LocalMetrics]
+ * aggregates events in memory and periodically merges them into the current hourly window. Hourly windows from previous days are rolled up
+ * into a single daily window, and windows older than [MAX_AGE] are dropped. That keeps writes off the paths being measured and keeps
+ * reading percentiles proportional to the number of windows rather than the number of events.
  *
  * This is it's own separate physical database, so it cannot do joins or queries with any other tables.
  */
@@ -45,32 +47,38 @@ class LocalMetricsDatabase private constructor(
 
     private val MAX_AGE = TimeUnit.DAYS.toMillis(7)
 
-    private const val DATABASE_VERSION = 1
+    @JvmField
+    val HOUR: Long = TimeUnit.HOURS.toMillis(1)
+    private val DAY = TimeUnit.DAYS.toMillis(1)
+
+    /** The split name we use to store the total duration of each event. */
+    const val SPLIT_TOTAL = ""
+
+    private const val DATABASE_VERSION = 2
     private const val DATABASE_NAME = "signal-local-metrics.db"
 
-    private const val TABLE_NAME = "events"
+    private const val TABLE_NAME = "histograms"
     private const val ID = "_id"
-    private const val CREATED_AT = "created_at"
-    private const val EVENT_ID = "event_id"
     private const val EVENT_NAME = "event_name"
     private const val SPLIT_NAME = "split_name"
-    private const val DURATION = "duration"
+    private const val WINDOW_START = "window_start"
+    private const val WINDOW_LENGTH = "window_length"
+    private const val HISTOGRAM = "histogram"
 
     private val CREATE_TABLE = """
       CREATE TABLE $TABLE_NAME (
         $ID INTEGER PRIMARY KEY,
-        $CREATED_AT INTEGER NOT NULL, 
-        $EVENT_ID TEXT NOT NULL,
         $EVENT_NAME TEXT NOT NULL,
         $SPLIT_NAME TEXT NOT NULL,
-        $DURATION INTEGER NOT NULL
+        $WINDOW_START INTEGER NOT NULL,
+        $WINDOW_LENGTH INTEGER NOT NULL,
+        $HISTOGRAM BLOB NOT NULL,
+        UNIQUE($EVENT_NAME, $SPLIT_NAME, $WINDOW_START, $WINDOW_LENGTH)
       )
     """.trimIndent()
 
     private val CREATE_INDEXES = arrayOf(
-      "CREATE INDEX events_create_at_index ON $TABLE_NAME ($CREATED_AT)",
-      "CREATE INDEX events_event_name_split_name_index ON $TABLE_NAME ($EVENT_NAME, $SPLIT_NAME)",
-      "CREATE INDEX events_duration_index ON $TABLE_NAME ($DURATION)"
+      "CREATE INDEX histograms_window_index ON $TABLE_NAME ($WINDOW_LENGTH, $WINDOW_START)"
     )
 
     @SuppressLint("StaticFieldLeak") // We hold an Application context, not a view context
@@ -91,27 +99,20 @@ class LocalMetricsDatabase private constructor(
     }
   }
 
-  private object EventTotals {
-    const val VIEW_NAME = "event_totals"
-
-    val CREATE_VIEW = """
-      CREATE VIEW $VIEW_NAME AS
-        SELECT $EVENT_ID, $EVENT_NAME, SUM($DURATION) AS $DURATION
-        FROM $TABLE_NAME
-        GROUP BY $EVENT_ID
-    """.trimIndent()
-  }
-
   override fun onCreate(db: SQLiteDatabase) {
     Log.i(TAG, "onCreate()")
 
     db.execSQL(CREATE_TABLE)
     CREATE_INDEXES.forEach { db.execSQL(it) }
-
-    db.execSQL(EventTotals.CREATE_VIEW)
   }
 
   override fun onUpgrade(db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
+    if (oldVersion < 2) {
+      Log.i(TAG, "Replacing individual events with histograms. Dropping the existing events.")
+      db.execSQL("DROP VIEW IF EXISTS event_totals")
+      db.execSQL("DROP TABLE IF EXISTS events")
+      onCreate(db)
+    }
   }
 
   override fun onOpen(db: SQLiteDatabase) {
@@ -122,26 +123,25 @@ class LocalMetricsDatabase private constructor(
     return writableDatabase
   }
 
-  fun insert(currentTime: Long, event: LocalMetricsEvent) {
+  /**
+   * Merges histograms into the hourly window starting at [windowStart], then rolls up and trims old windows.
+   *
+   * @param histograms Event name to split name to histogram. Use [SPLIT_TOTAL] for the total duration of the event.
+   */
+  fun merge(currentTime: Long, windowStart: Long, histograms: Map<String, Map<String, LocalMetricsHistogram>>) {
     val db = writableDatabase
 
     db.beginTransaction()
     try {
-      event.splits.forEach { split ->
-        db.insert(
-          TABLE_NAME,
-          null,
-          ContentValues().apply {
-            put(CREATED_AT, event.createdAt)
-            put(EVENT_ID, event.eventId)
-            put(EVENT_NAME, event.eventName)
-            put(SPLIT_NAME, split.name)
-            put(DURATION, split.duration)
-          }
-        )
+      histograms.forEach { (eventName, splits) ->
+        splits.forEach { (splitName, histogram) ->
+          mergeWindow(db, eventName, splitName, windowStart, HOUR, histogram)
+        }
       }
 
-      db.delete(TABLE_NAME, "$CREATED_AT < ?", SqlUtil.buildArgs(currentTime - MAX_AGE))
+      rollUpPreviousDays(db, currentTime)
+
+      db.delete(TABLE_NAME, "$WINDOW_START + $WINDOW_LENGTH < ?", SqlUtil.buildArgs(currentTime - MAX_AGE))
 
       db.setTransactionSuccessful()
     } finally {
@@ -153,93 +153,100 @@ class LocalMetricsDatabase private constructor(
     writableDatabase.delete(TABLE_NAME, null, null)
   }
 
+  /**
+   * Merges every stored window, giving the percentiles for each event and split over the last [MAX_AGE].
+   */
   fun getMetrics(): List<EventMetrics> {
-    val db = readableDatabase
+    val histograms: MutableMap<String, MutableMap<String, LocalMetricsHistogram>> = LinkedHashMap()
 
-    db.beginTransaction()
-    try {
-      val events: Map<String, List<String>> = getUniqueEventNames()
-
-      val metrics: List<EventMetrics> = events.map { (eventName: String, splits: List<String>) ->
-        EventMetrics(
-          name = eventName,
-          count = getCount(eventName),
-          p50 = eventPercent(eventName, 50),
-          p90 = eventPercent(eventName, 90),
-          p99 = eventPercent(eventName, 99),
-          splits = splits.map { splitName ->
-            SplitMetrics(
-              name = splitName,
-              p50 = splitPercent(eventName, splitName, 50),
-              p90 = splitPercent(eventName, splitName, 90),
-              p99 = splitPercent(eventName, splitName, 99)
-            )
-          }
-        )
-      }
-
-      db.setTransactionSuccessful()
-
-      return metrics
-    } finally {
-      db.endTransaction()
-    }
-  }
-
-  private fun getUniqueEventNames(): Map<String, List<String>> {
-    val events = mutableMapOf<String, MutableList<String>>()
-
-    readableDatabase.rawQuery("SELECT DISTINCT $EVENT_NAME, $SPLIT_NAME FROM $TABLE_NAME", null).use { cursor ->
+    readableDatabase.query(TABLE_NAME, arrayOf(EVENT_NAME, SPLIT_NAME, HISTOGRAM), null, null, null, null, "$ID ASC").use { cursor ->
       while (cursor.moveToNext()) {
         val eventName = CursorUtil.requireString(cursor, EVENT_NAME)
         val splitName = CursorUtil.requireString(cursor, SPLIT_NAME)
+        val histogram = LocalMetricsHistogram.deserialize(CursorUtil.requireBlob(cursor, HISTOGRAM))
 
-        events.getOrPut(eventName) {
-          mutableListOf()
-        }.add(splitName)
+        histograms.getOrPut(eventName) { LinkedHashMap() }.getOrPut(splitName) { LocalMetricsHistogram() }.merge(histogram)
       }
     }
 
-    return events
+    return histograms.map { (eventName, splits) ->
+      val total: LocalMetricsHistogram = splits[SPLIT_TOTAL] ?: LocalMetricsHistogram()
+
+      EventMetrics(
+        name = eventName,
+        count = total.count,
+        p50 = total.percentile(50),
+        p90 = total.percentile(90),
+        p99 = total.percentile(99),
+        splits = splits.filterKeys { it != SPLIT_TOTAL }.map { (splitName, histogram) ->
+          SplitMetrics(
+            name = splitName,
+            p50 = histogram.percentile(50),
+            p90 = histogram.percentile(90),
+            p99 = histogram.percentile(99)
+          )
+        }
+      )
+    }
   }
 
-  private fun getCount(eventName: String): Long {
-    readableDatabase.rawQuery("SELECT COUNT(DISTINCT $EVENT_ID) FROM $TABLE_NAME WHERE $EVENT_NAME = ?", SqlUtil.buildArgs(eventName)).use { cursor ->
-      return if (cursor.moveToFirst()) {
-        cursor.getLong(0)
-      } else {
-        0
-      }
+  private fun mergeWindow(db: SQLiteDatabase, eventName: String, splitName: String, windowStart: Long, windowLength: Long, histogram: LocalMetricsHistogram) {
+    val where = "$EVENT_NAME = ? AND $SPLIT_NAME = ? AND $WINDOW_START = ? AND $WINDOW_LENGTH = ?"
+    val args = SqlUtil.buildArgs(eventName, splitName, windowStart, windowLength)
+
+    val existing: ByteArray? = db.query(TABLE_NAME, arrayOf(HISTOGRAM), where, args, null, null, null).use { cursor ->
+      if (cursor.moveToFirst()) CursorUtil.requireBlob(cursor, HISTOGRAM) else null
     }
-  }
 
-  private fun eventPercent(eventName: String, percent: Int): Long {
-    return percentile(EventTotals.VIEW_NAME, "$EVENT_NAME = '$eventName'", percent)
+    if (existing != null) {
+      val merged = LocalMetricsHistogram.deserialize(existing).apply { merge(histogram) }
+      db.update(TABLE_NAME, ContentValues().apply { put(HISTOGRAM, merged.serialize()) }, where, args)
+    } else {
+      db.insert(
+        TABLE_NAME,
+        null,
+        ContentValues().apply {
+          put(EVENT_NAME, eventName)
+          put(SPLIT_NAME, splitName)
+          put(WINDOW_START, windowStart)
+          put(WINDOW_LENGTH, windowLength)
+          put(HISTOGRAM, histogram.serialize())
+        }
+      )
+    }
   }
 
-  private fun splitPercent(eventName: String, splitName: String, percent: Int): Long {
-    return percentile(TABLE_NAME, "$EVENT_NAME = '$eventName' AND $SPLIT_NAME = '$splitName'", percent)
-  }
+  /**
+   * Merges the hourly windows of any day before today into a single window for that day.
+   */
+  private fun rollUpPreviousDays(db: SQLiteDatabase, currentTime: Long) {
+    val today = currentTime - currentTime % DAY
+    val where = "$WINDOW_LENGTH = ? AND $WINDOW_START < ?"
+    val args = SqlUtil.buildArgs(HOUR, today)
 
-  private fun percentile(table: String, where: String, percent: Int): Long {
-    val query: String = """
-      SELECT $DURATION
-      FROM $table
-      WHERE $where
-      ORDER BY $DURATION ASC
-      LIMIT 1
-      OFFSET (SELECT COUNT(*)
-              FROM $table
-              WHERE $where) * $percent / 100 - 1
-    """.trimIndent()
+    val days: MutableMap<Long, MutableMap<Pair<String, String>, LocalMetricsHistogram>> = LinkedHashMap()
+
+    db.query(TABLE_NAME, arrayOf(EVENT_NAME, SPLIT_NAME, WINDOW_START, HISTOGRAM), where, args, null, null, "$ID ASC").use { cursor ->
+      while (cursor.moveToNext()) {
+        val windowStart = CursorUtil.requireLong(cursor, WINDOW_START)
+        val key = CursorUtil.requireString(cursor, EVENT_NAME) to CursorUtil.requireString(cursor, SPLIT_NAME)
+        val histogram = LocalMetricsHistogram.deserialize(CursorUtil.requireBlob(cursor, HISTOGRAM))
+
+        days.getOrPut(windowStart - windowStart % DAY) { LinkedHashMap() }.getOrPut(key) { LocalMetricsHistogram() }.merge(histogram)
+      }
+    }
 
-    readableDatabase.rawQuery(query, null).use { cursor ->
-      return if (cursor.moveToFirst()) {
-        cursor.getLong(0)
-      } else {
-        -1
+    if (days.isEmpty()) {
+      return
+    }
+
+    days.forEach { (dayStart, histograms) ->
+      histograms.forEach { (key, histogram) ->
+        mergeWindow(db, key.first, key.second, dayStart, DAY, histogram)
       }
     }
+
+    db.delete(TABLE_NAME, where, args)
   }
 
   data class EventMetrics(
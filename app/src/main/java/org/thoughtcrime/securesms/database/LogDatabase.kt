@@ -12,11 +12,13 @@ import org.signal.core.util.Stopwatch
 import org.signal.core.util.delete
 import org.signal.core.util.getTableRowCount
 import org.signal.core.util.logging.Log
+import org.thoughtcrime.securesms.BuildConfig
 import org.thoughtcrime.securesms.crypto.DatabaseSecret
 import org.thoughtcrime.securesms.crypto.DatabaseSecretProvider
 import org.thoughtcrime.securesms.database.model.LogEntry
+import org.thoughtcrime.securesms.logging.LogLineFormatter
+import org.thoughtcrime.securesms.logging.LogStore
 import org.thoughtcrime.securesms.util.ByteUnit
-import java.io.Closeable
 import java.util.concurrent.TimeUnit
 import kotlin.math.abs
 
@@ -43,7 +45,8 @@ class LogDatabase private constructor(
     SqlCipherDatabaseHook(),
     true
   ),
-  SignalDatabaseOpenHelper {
+  SignalDatabaseOpenHelper,
+  LogStore {
 
   companion object {
     private val TAG = Log.tag(LogDatabase::class.java)
@@ -116,11 +119,13 @@ class LogDatabase private constructor(
     db.setForeignKeyConstraintsEnabled(true)
   }
 
+  private val formatter = LogLineFormatter()
+
   override fun getSqlCipherDatabase(): SQLiteDatabase {
     return writableDatabase
   }
 
-  fun insert(logs: List<LogEntry>, currentTime: Long) {
+  override fun insert(logs: List<LogEntry>, currentTime: Long) {
     val db = writableDatabase
 
     db.beginTransaction()
@@ -141,11 +146,11 @@ class LogDatabase private constructor(
     }
   }
 
-  fun getAllBeforeTime(time: Long): Reader {
+  override fun getAllBeforeTime(time: Long): LogStore.Reader {
     return CursorReader(readableDatabase.query(TABLE_NAME, arrayOf(BODY), "$CREATED_AT < ?", SqlUtil.buildArgs(time), null, null, null))
   }
 
-  fun getRangeBeforeTime(start: Int, length: Int, time: Long): List<String> {
+  override fun getRangeBeforeTime(start: Int, length: Int, time: Long): List<String> {
     val lines = mutableListOf<String>()
 
     readableDatabase.query(TABLE_NAME, arrayOf(BODY), "$CREATED_AT < ?", SqlUtil.buildArgs(time), null, null, null, "$start,$length").use { cursor ->
@@ -157,7 +162,7 @@ class LogDatabase private constructor(
     return lines
   }
 
-  fun trimToSize() {
+  override fun trimToSize() {
     val currentTime = System.currentTimeMillis()
     val stopwatch = Stopwatch("trim")
 
@@ -209,7 +214,7 @@ class LogDatabase private constructor(
     stopwatch.stop(TAG)
   }
 
-  fun getLogCountBeforeTime(time: Long): Int {
+  override fun getLogCountBeforeTime(time: Long): Int {
     readableDatabase.query(TABLE_NAME, arrayOf("COUNT(*)"), "$CREATED_AT < ?", SqlUtil.buildArgs(time), null, null, null).use { cursor ->
       return if (cursor.moveToFirst()) {
         cursor.getInt(0)
@@ -219,18 +224,20 @@ class LogDatabase private constructor(
     }
   }
 
-  fun clearKeepLonger() {
+  override fun clearKeepLonger() {
     writableDatabase.delete(TABLE_NAME)
       .where("$KEEP_LONGER = ?", 1)
       .run()
   }
 
   private fun buildValues(log: LogEntry): ContentValues {
+    val body = formatter.format(BuildConfig.VERSION_NAME, log.threadString, log.createdAt, log.level, log.tag, log.message)
+
     return ContentValues().apply {
       put(CREATED_AT, log.createdAt)
       put(KEEP_LONGER, if (log.keepLonger) 1 else 0)
-      put(BODY, log.body)
-      put(SIZE, log.body.length)
+      put(BODY, body)
+      put(SIZE, body.length)
     }
   }
 
@@ -244,9 +251,7 @@ class LogDatabase private constructor(
     }
   }
 
-  interface Reader : Iterator<String>, Closeable
-
-  class CursorReader(private val cursor: Cursor) : Reader {
+  class CursorReader(private val cursor: Cursor) : LogStore.Reader {
     override fun hasNext(): Boolean {
       return !cursor.isLast && cursor.count > 0
     }
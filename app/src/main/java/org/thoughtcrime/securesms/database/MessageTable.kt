@@ -1067,7 +1067,7 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
         recipients.setDefaultSubscriptionId(recipient.id, message.subscriptionId)
       }
 
-      notifyConversationListeners(threadId)
+      ApplicationDependencies.getDatabaseObserver().notifyConversationListeners(threadId, MessageId(messageId))
 
       Optional.of(InsertResult(messageId, threadId))
     }
@@ -2485,7 +2485,7 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
       ThreadUpdateJob.enqueue(threadId)
     }
 
-    notifyConversationListeners(threadId)
+    ApplicationDependencies.getDatabaseObserver().notifyConversationListeners(threadId, MessageId(messageId))
 
     if (retrieved.storyType.isStory) {
       ApplicationDependencies.getDatabaseObserver().notifyStoryObservers(threads.getRecipientIdForThreadId(threadId)!!)
@@ -4474,6 +4474,20 @@ open class MessageTable(context: Context?, databaseHelper: SignalDatabase) : Dat
       .run()
   }
 
+  /**
+   * The IDs of the newest messages in the conversation, in the same order as [getConversation].
+   */
+  fun getLatestConversationMessageIds(threadId: Long, limit: Int): List<MessageId> {
+    return readableDatabase
+      .select(ID)
+      .from(TABLE_NAME)
+      .where("$THREAD_ID = ? AND $STORY_TYPE = ? AND $PARENT_STORY_ID <= ? AND $SCHEDULED_DATE = ?", threadId, 0, 0, -1)
+      .orderBy("$DATE_RECEIVED DESC")
+      .limit(limit)
+      .run()
+      .readToList { MessageId(it.requireLong(ID)) }
+  }
+
   /**
    * Returns messages ordered for display in a reverse list (newest first).
    */
@@ -700,6 +700,26 @@ open class RecipientTable(context: Context, databaseHelper: SignalDatabase) : Da
     }
   }
 
+  /**
+   * Bulk version of [getRecord]. Any IDs that can't be found are simply left out of the result, so callers can fall back to [getRecord]
+   * to handle remapping.
+   */
+  fun getRecords(ids: Collection<RecipientId>): Map<RecipientId, RecipientRecord> {
+    val results: MutableMap<RecipientId, RecipientRecord> = HashMap(ids.size)
+    val queries: List<SqlUtil.Query> = SqlUtil.buildCollectionQuery(ID, ids.map { it.serialize() })
+
+    for (query in queries) {
+      readableDatabase.query(TABLE_NAME, RECIPIENT_PROJECTION, query.where, query.whereArgs, null, null, null).use { cursor ->
+        while (cursor.moveToNext()) {
+          val record = getRecord(context, cursor)
+          results[record.id] = record
+        }
+      }
+    }
+
+    return results
+  }
+
   fun getRecordForSync(id: RecipientId): RecipientRecord? {
     val query = "$TABLE_NAME.$ID = ?"
     val args = arrayOf(id.serialize())
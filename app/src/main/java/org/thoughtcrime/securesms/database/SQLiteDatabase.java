@@ -17,12 +17,10 @@ import net.zetetic.database.sqlcipher.SQLiteTransactionListener;
 import org.signal.core.util.tracing.Tracer;
 
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 
@@ -77,12 +75,20 @@ public class SQLiteDatabase implements SupportSQLiteDatabase {
     tracer.end(methodName);
   }
 
+  private void traceQueryStart(String methodName, String query) {
+    if (query != null) {
+      tracer.start(methodName, KEY_QUERY, query);
+    } else {
+      tracer.start(methodName);
+    }
+  }
+
   private void traceSql(String methodName, String query, boolean locked, Runnable returnable) {
     if (locked) {
       traceLockStart();
     }
 
-    tracer.start(methodName, KEY_QUERY, query);
+    traceQueryStart(methodName, query);
     returnable.run();
     tracer.end(methodName);
 
@@ -100,15 +106,13 @@ public class SQLiteDatabase implements SupportSQLiteDatabase {
       traceLockStart();
     }
 
-    Map<String, String> params = new HashMap<>();
-    if (query != null) {
-      params.put(KEY_QUERY, query);
-    }
-    if (table != null) {
-      params.put(KEY_TABLE, table);
+    if (table == null) {
+      traceQueryStart(methodName, query);
+    } else if (query == null) {
+      tracer.start(methodName, KEY_TABLE, table);
+    } else {
+      tracer.start(methodName, KEY_QUERY, query, KEY_TABLE, table);
     }
-
-    tracer.start(methodName, params);
     E result = returnable.run();
     tracer.end(methodName);
 
@@ -39,6 +39,10 @@ class SearchTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
     private const val TRIGGER_AFTER_DELETE = "message_ad"
     private const val TRIGGER_AFTER_UPDATE = "message_au"
 
+    /** The triggers that keep [FTS_TABLE_NAME] in sync with the message table. */
+    @JvmField
+    val TRIGGER_NAMES: Set<String> = setOf(TRIGGER_AFTER_INSERT, TRIGGER_AFTER_DELETE, TRIGGER_AFTER_UPDATE)
+
     @Language("sql")
     val CREATE_TRIGGERS = arrayOf(
       """
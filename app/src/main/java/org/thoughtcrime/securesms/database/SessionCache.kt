@@ -0,0 +1,149 @@
+package org.thoughtcrime.securesms.database
+
+import org.signal.libsignal.protocol.SignalProtocolAddress
+import org.signal.libsignal.protocol.state.SessionRecord
+
+/**
+ * An in-memory LRU cache of the session records for a single account, used by [SessionTable] so that encrypting and decrypting doesn't have
+ * to query and deserialize the same records over and over.
+ *
+ * Records are cached deserialized and handed out as-is, so they're shared by everyone who loads them and must never be changed in place
+ * (see [SessionTable.load]). The cache is bounded by the serialized size of the records it holds rather than by the number of them, since a
+ * record with a long history of archived states can be many times larger than a fresh one.
+ *
+ * Every write bumps a version. Reads from the database that started before a write can pass the version they saw to [putIfUnchanged], so
+ * that a slow read can never replace a newer record with an older one.
+ */
+class SessionCache(private val maxBytes: Long) {
+
+  companion object {
+    /** A rough guess at the overhead of each entry on top of the record itself. */
+    private const val ENTRY_OVERHEAD_BYTES = 128
+  }
+
+  private val entries: LinkedHashMap<SignalProtocolAddress, Entry> = LinkedHashMap(16, 0.75f, true)
+
+  private var totalBytes: Long = 0
+  private var version: Long = 0
+
+  private var hitCount: Long = 0
+  private var missCount: Long = 0
+  private var evictionCount: Long = 0
+
+  @Synchronized
+  fun get(address: SignalProtocolAddress): SessionRecord? {
+    val entry: Entry? = entries[address]
+
+    if (entry != null) {
+      hitCount++
+    } else {
+      missCount++
+    }
+
+    return entry?.record
+  }
+
+  @Synchronized
+  fun getVersion(): Long {
+    return version
+  }
+
+  /**
+   * Caches a record that was just written.
+   *
+   * @param serializedSize The size of the serialized record, which is what we budget by.
+   */
+  @Synchronized
+  fun put(address: SignalProtocolAddress, record: SessionRecord, serializedSize: Int) {
+    version++
+    insert(address, record, serializedSize)
+  }
+
+  /**
+   * Caches a record that was read from the database, as long as nothing has been written since [expectedVersion] was read.
+   */
+  @Synchronized
+  fun putIfUnchanged(address: SignalProtocolAddress, record: SessionRecord, serializedSize: Int, expectedVersion: Long) {
+    if (version == expectedVersion) {
+      insert(address, record, serializedSize)
+    }
+  }
+
+  @Synchronized
+  fun remove(address: SignalProtocolAddress) {
+    version++
+    entries.remove(address)?.let { totalBytes -= it.size }
+  }
+
+  @Synchronized
+  fun removeAll(addressName: String) {
+    version++
+
+    val iterator = entries.iterator()
+    while (iterator.hasNext()) {
+      val (address, entry) = iterator.next()
+      if (address.name == addressName) {
+        totalBytes -= entry.size
+        iterator.remove()
+      }
+    }
+  }
+
+  @Synchronized
+  fun clear() {
+    version++
+    entries.clear()
+    totalBytes = 0
+  }
+
+  @Synchronized
+  fun getStats(): Stats {
+    return Stats(
+      hits = hitCount,
+      misses = missCount,
+      evictions = evictionCount,
+      entries = entries.size,
+      bytes = totalBytes
+    )
+  }
+
+  private fun insert(address: SignalProtocolAddress, record: SessionRecord, serializedSize: Int) {
+    val size: Long = serializedSize.toLong() + ENTRY_OVERHEAD_BYTES
+
+    entries.remove(address)?.let { totalBytes -= it.size }
+
+    if (size > maxBytes) {
+      return
+    }
+
+    entries[address] = Entry(record, size)
+    totalBytes += size
+
+    val iterator = entries.values.iterator()
+    while (totalBytes > maxBytes && iterator.hasNext()) {
+      totalBytes -= iterator.next().size
+      iterator.remove()
+      evictionCount++
+    }
+  }
+
+  private class Entry(val record: SessionRecord, val size: Long)
+
+  data class Stats(
+    val hits: Long,
+    val misses: Long,
+    val evictions: Long,
+    val entries: Int,
+    val bytes: Long
+  ) {
+    operator fun plus(other: Stats): Stats {
+      return Stats(
+        hits = hits + other.hits,
+        misses = misses + other.misses,
+        evictions = evictions + other.evictions,
+        entries = entries + other.entries,
+        bytes = bytes + other.bytes
+      )
+    }
+  }
+}
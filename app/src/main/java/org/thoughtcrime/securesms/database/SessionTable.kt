@@ -14,6 +14,7 @@ import org.whispersystems.signalservice.api.push.ServiceId
 import org.whispersystems.signalservice.api.push.SignalServiceAddress
 import java.io.IOException
 import java.util.LinkedList
+import java.util.Locale
 
 class SessionTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTable(context, databaseHelper) {
   companion object {
@@ -35,23 +36,68 @@ class SessionTable(context: Context, databaseHelper: SignalDatabase) : DatabaseT
         UNIQUE($ACCOUNT_ID, $ADDRESS, $DEVICE)
       )
     """
+
+    /** The most memory we'll use to cache sessions for each of our accounts. */
+    private const val MAX_CACHE_BYTES_PER_ACCOUNT: Long = 2 * 1024 * 1024
+
+    /**
+     * A copy of a record returned by [load] that the caller is free to change.
+     */
+    @JvmStatic
+    fun copyOf(record: SessionRecord): SessionRecord {
+      return SessionRecord(record.serialize())
+    }
   }
 
+  /**
+   * Recently used records for each of our accounts, so that repeatedly encrypting for the same recipients (like when sending to a large
+   * group, retrying, or sending sync messages) doesn't keep hitting the database. Every write through this class updates or invalidates
+   * the cache. Writes inside of a transaction only invalidate it, and we don't cache reads made inside of one, so that we never cache
+   * anything that could be rolled back.
+   *
+   * That means receiving is deliberately left out: messages are decrypted inside of a transaction, so the receive path neither fills the
+   * cache nor gets anything from it once its own writes have invalidated it. It only avoids repeated loads within a batch, using
+   * [org.thoughtcrime.securesms.messages.protocol.BufferedSessionStore].
+   *
+   * Cached records are shared rather than copied, so anything loaded from here must be treated as read-only. To change a record, make a
+   * copy with [copyOf] and store that.
+   */
+  private val caches: MutableMap<ServiceId, SessionCache> = HashMap()
+
   fun store(serviceId: ServiceId, address: SignalProtocolAddress, record: SessionRecord) {
     require(address.name[0] != '+') { "Cannot insert an e164 into this table!" }
 
+    val serialized: ByteArray = record.serialize()
+
     writableDatabase.compileStatement("INSERT INTO $TABLE_NAME ($ACCOUNT_ID, $ADDRESS, $DEVICE, $RECORD) VALUES (?, ?, ?, ?) ON CONFLICT ($ACCOUNT_ID, $ADDRESS, $DEVICE) DO UPDATE SET $RECORD = excluded.$RECORD").use { statement ->
       statement.apply {
         bindString(1, serviceId.toString())
         bindString(2, address.name)
         bindLong(3, address.deviceId.toLong())
-        bindBlob(4, record.serialize())
+        bindBlob(4, serialized)
         execute()
       }
     }
+
+    if (writableDatabase.inTransaction()) {
+      invalidate(serviceId) { it.remove(address) }
+    } else {
+      getCache(serviceId).put(address, record, serialized.size)
+    }
   }
 
+  /**
+   * @return The record, which may be shared with other callers and so must not be changed. See [copyOf].
+   */
   fun load(serviceId: ServiceId, address: SignalProtocolAddress): SessionRecord? {
+    val cache: SessionCache = getCache(serviceId)
+    val cached: SessionRecord? = cache.get(address)
+
+    if (cached != null) {
+      return cached
+    }
+
+    val version: Long = cache.getVersion()
     val projection = arrayOf(RECORD)
     val selection = "$ACCOUNT_ID = ? AND $ADDRESS = ? AND $DEVICE = ?"
     val args = SqlUtil.buildArgs(serviceId, address.name, address.deviceId)
@@ -59,7 +105,14 @@ class SessionTable(context: Context, databaseHelper: SignalDatabase) : DatabaseT
     readableDatabase.query(TABLE_NAME, projection, selection, args, null, null, null).use { cursor ->
       if (cursor.moveToFirst()) {
         try {
-          return SessionRecord(cursor.requireNonNullBlob(RECORD))
+          val serialized: ByteArray = cursor.requireNonNullBlob(RECORD)
+          val record = SessionRecord(serialized)
+
+          if (!readableDatabase.inTransaction()) {
+            cache.putIfUnchanged(address, record, serialized.size, version)
+          }
+
+          return record
         } catch (e: IOException) {
           Log.w(TAG, e)
         }
@@ -69,15 +122,30 @@ class SessionTable(context: Context, databaseHelper: SignalDatabase) : DatabaseT
     return null
   }
 
+  /**
+   * @return The records, in the same order as the addresses, which may be shared with other callers and so must not be changed. See [copyOf].
+   */
   fun load(serviceId: ServiceId, addresses: List<SignalProtocolAddress>): List<SessionRecord?> {
     val projection = arrayOf(ADDRESS, DEVICE, RECORD)
     val query = "$ACCOUNT_ID = ? AND $ADDRESS = ? AND $DEVICE = ?"
     val args: MutableList<Array<String>> = ArrayList(addresses.size)
     val sessions: HashMap<SignalProtocolAddress, SessionRecord?> = LinkedHashMap(addresses.size)
+    val cache: SessionCache = getCache(serviceId)
+    val version: Long = cache.getVersion()
+    val cacheable: Boolean = !readableDatabase.inTransaction()
 
     for (address in addresses) {
-      args.add(SqlUtil.buildArgs(serviceId, address.name, address.deviceId))
-      sessions[address] = null
+      val cached: SessionRecord? = cache.get(address)
+
+      if (cached == null) {
+        args.add(SqlUtil.buildArgs(serviceId, address.name, address.deviceId))
+      }
+
+      sessions[address] = cached
+    }
+
+    if (args.isEmpty()) {
+      return sessions.values.toList()
     }
 
     for (combinedQuery in SqlUtil.buildCustomCollectionQuery(query, args)) {
@@ -86,8 +154,15 @@ class SessionTable(context: Context, databaseHelper: SignalDatabase) : DatabaseT
           val address = cursor.requireNonNullString(ADDRESS)
           val device = cursor.requireInt(DEVICE)
           try {
-            val record = SessionRecord(cursor.requireNonNullBlob(RECORD))
-            sessions[SignalProtocolAddress(address, device)] = record
+            val serialized: ByteArray = cursor.requireNonNullBlob(RECORD)
+            val record = SessionRecord(serialized)
+            val protocolAddress = SignalProtocolAddress(address, device)
+
+            sessions[protocolAddress] = record
+
+            if (cacheable) {
+              cache.putIfUnchanged(protocolAddress, record, serialized.size, version)
+            }
           } catch (e: IOException) {
             Log.w(TAG, e)
           }
@@ -182,10 +257,12 @@ class SessionTable(context: Context, databaseHelper: SignalDatabase) : DatabaseT
 
   fun delete(serviceId: ServiceId, address: SignalProtocolAddress) {
     writableDatabase.delete(TABLE_NAME, "$ACCOUNT_ID = ? AND $ADDRESS = ? AND $DEVICE = ?", SqlUtil.buildArgs(serviceId, address.name, address.deviceId))
+    invalidate(serviceId) { it.remove(address) }
   }
 
   fun deleteAllFor(serviceId: ServiceId, addressName: String) {
     writableDatabase.delete(TABLE_NAME, "$ACCOUNT_ID = ? AND $ADDRESS = ?", SqlUtil.buildArgs(serviceId, addressName))
+    invalidate(serviceId) { it.removeAll(addressName) }
   }
 
   fun hasSessionFor(serviceId: ServiceId, addressName: String): Boolean {
@@ -210,5 +287,45 @@ class SessionTable(context: Context, databaseHelper: SignalDatabase) : DatabaseT
       }
   }
 
+  /**
+   * Drops every cached record. Needed whenever the table is changed without going through this class, like when restoring a backup.
+   */
+  fun clearCache() {
+    synchronized(caches) {
+      caches.values.forEach { it.clear() }
+    }
+  }
+
+  fun getCacheStats(): String {
+    val stats: SessionCache.Stats = synchronized(caches) {
+      caches.values.map { it.getStats() }.fold(SessionCache.Stats(0, 0, 0, 0, 0)) { total, stats -> total + stats }
+    }
+
+    val hitRate: String = if (stats.hits + stats.misses > 0) String.format(Locale.US, "%.1f%%", 100 * stats.hits / (stats.hits + stats.misses).toDouble()) else "N/A"
+
+    return "Hits: ${stats.hits}, Misses: ${stats.misses}, Hit Rate: $hitRate\n" +
+      "Entries: ${stats.entries}, Size: ${stats.bytes / 1024} KiB, Evictions: ${stats.evictions}"
+  }
+
+  private fun getCache(serviceId: ServiceId): SessionCache {
+    return synchronized(caches) {
+      caches.getOrPut(serviceId) { SessionCache(MAX_CACHE_BYTES_PER_ACCOUNT) }
+    }
+  }
+
+  /**
+   * Applies an invalidation now, and again once the current transaction (if any) succeeds. The second pass covers anything another thread
+   * read from the database and cached before our transaction committed.
+   */
+  private fun invalidate(serviceId: ServiceId, invalidation: (SessionCache) -> Unit) {
+    val cache: SessionCache = getCache(serviceId)
+
+    invalidation(cache)
+
+    if (writableDatabase.inTransaction()) {
+      writableDatabase.runPostSuccessfulTransaction { invalidation(cache) }
+    }
+  }
+
   class SessionRow(val address: String, val deviceId: Int, val record: SessionRecord)
 }
@@ -291,6 +291,8 @@ open class SignalDatabase(private val context: Application, databaseSecret: Data
           instance!!.rawWritableDatabase.execSQL("DROP TABLE IF EXISTS dependency_spec")
         }
 
+        instance!!.sessionTable.clearCache()
+        instance!!.emojiSearchTable.clearSearchIndexCache()
         instance!!.rawWritableDatabase.close()
         triggerDatabaseAccess()
       }
@@ -176,6 +176,8 @@ class ThreadTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
 
     private val COMBINED_THREAD_RECIPIENT_GROUP_PROJECTION: List<String> = TYPED_THREAD_PROJECTION + RecipientTable.TYPED_RECIPIENT_PROJECTION_NO_ID + GroupTable.TYPED_GROUP_PROJECTION
 
+    private val CONVERSATION_LIST_VERSION_COLUMNS: Array<String> = THREAD_PROJECTION.filterNot { it == ID }.toTypedArray()
+
     const val NO_TRIM_BEFORE_DATE_SET: Long = 0
     const val NO_TRIM_MESSAGE_COUNT_SET = Int.MAX_VALUE
   }
@@ -913,6 +915,37 @@ class ThreadTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
       }
   }
 
+  /**
+   * A lightweight version of [getUnarchivedConversationList] and [getArchivedConversationList] (without a filter) that only reads enough to
+   * tell which rows of the conversation list have changed.
+   *
+   * @return The id of each thread, in the same order as the full query, mapped to the values of everything the conversation list shows
+   *         from the thread table. We keep the values themselves rather than a hash of them, so that a change can never go unnoticed.
+   */
+  fun getConversationListVersions(archived: Boolean, pinned: Boolean): Map<Long, List<String?>> {
+    val where = when {
+      archived -> "$ARCHIVED = 1 AND $MEANINGFUL_MESSAGES != 0"
+      pinned -> "$ARCHIVED = 0 AND $PINNED != 0"
+      else -> "$ARCHIVED = 0 AND $PINNED = 0 AND $MEANINGFUL_MESSAGES != 0"
+    }
+
+    return readableDatabase
+      .select(ID, *CONVERSATION_LIST_VERSION_COLUMNS)
+      .from(TABLE_NAME)
+      .where(where)
+      .orderBy(if (!archived && pinned) "$PINNED ASC" else "$DATE DESC")
+      .run()
+      .use { cursor ->
+        val versions: MutableMap<Long, List<String?>> = LinkedHashMap(cursor.count)
+
+        while (cursor.moveToNext()) {
+          versions[cursor.requireLong(ID)] = List(cursor.columnCount - 1) { cursor.getString(it + 1) }
+        }
+
+        versions
+      }
+  }
+
   /**
    * @return Pinned recipients, in order from top to bottom.
    */
@@ -0,0 +1,15 @@
+package org.thoughtcrime.securesms.database.helpers.migration
+
+import android.app.Application
+import net.zetetic.database.sqlcipher.SQLiteDatabase
+
+/**
+ * Index attachment data by size, so that large attachments can be checked against existing data of the same size without a table scan.
+ *
+ * This only adds an index. Attachments still share data files by path and count references with a query, as they did before.
+ */
+object V185_AttachmentDataSizeIndex : SignalDatabaseMigration {
+  override fun migrate(context: Application, db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
+    db.execSQL("CREATE INDEX IF NOT EXISTS part_data_size_index ON part (data_size)")
+  }
+}
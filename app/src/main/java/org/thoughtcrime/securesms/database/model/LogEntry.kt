@@ -1,7 +1,13 @@
 package org.thoughtcrime.securesms.database.model
 
+/**
+ * A single log line before it's been formatted. The [message] is expected to already be scrubbed.
+ */
 data class LogEntry(
   val createdAt: Long,
   val keepLonger: Boolean,
-  val body: String
+  val level: String,
+  val tag: String,
+  val threadString: String,
+  val message: String
 )
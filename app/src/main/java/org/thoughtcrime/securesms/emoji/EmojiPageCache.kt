@@ -3,70 +3,233 @@ package org.thoughtcrime.securesms.emoji
 import android.content.Context
 import android.graphics.Bitmap
 import android.graphics.BitmapFactory
-import androidx.annotation.MainThread
+import android.graphics.Rect
+import android.util.LruCache
+import androidx.annotation.VisibleForTesting
 import androidx.annotation.WorkerThread
 import org.signal.core.util.concurrent.SimpleTask
 import org.signal.core.util.logging.Log
+import org.thoughtcrime.securesms.components.emoji.parsing.EmojiDrawInfo
 import org.thoughtcrime.securesms.mms.PartAuthority
 import org.thoughtcrime.securesms.util.ListenableFutureTask
-import org.thoughtcrime.securesms.util.SoftHashMap
 import java.io.IOException
 import java.io.InputStream
+import java.util.concurrent.TimeUnit
 
+/**
+ * Holds decoded emoji sprite sheets in memory.
+ *
+ * Pages are kept in a least-recently-used cache for each inSampleSize they're decoded at, bounded by the byte size of the bitmaps rather
+ * than left to the garbage collector, so memory use is predictable and a page stays decoded until newer pages actually push it out. Each
+ * step of downsampling quarters the size of a page, so each tier's budget is scaled down to match and holds about the same number of pages.
+ *
+ * Emoji that get drawn a lot also have their glyph copied out of the page into a small bitmap of their own, so they can still be drawn
+ * without decoding the whole page again after it's been evicted.
+ */
 object EmojiPageCache {
 
   private val TAG = Log.tag(EmojiPageCache::class.java)
 
-  private val cache: SoftHashMap<EmojiPageRequest, Bitmap> = SoftHashMap()
+  private const val MIN_PAGE_BYTES = 12 * 1024 * 1024
+  private const val MAX_PAGE_BYTES = 32 * 1024 * 1024
+  private const val EMOJI_BYTES = 2 * 1024 * 1024
+
+  /** How many times an emoji has to be drawn from its page before it gets a bitmap of its own. */
+  private const val HOT_EMOJI_USES = 3
+  private const val MAX_TRACKED_EMOJI = 512
+
+  /** The most pages a single call to [prefetch] will start decoding, even if there's room in the budget for more. */
+  private const val MAX_PREFETCH_PAGES = 4
+
+  private val pageBytes: Int by lazy {
+    (Runtime.getRuntime().maxMemory() / 8).coerceIn(MIN_PAGE_BYTES.toLong(), MAX_PAGE_BYTES.toLong()).toInt()
+  }
+
+  private val tiers: HashMap<Int, Tier> = hashMapOf()
   private val tasks: HashMap<EmojiPageRequest, ListenableFutureTask<Bitmap>> = hashMapOf()
 
-  @MainThread
+  private val emojiBitmaps: LruCache<EmojiRequest, Bitmap> = BitmapLruCache(EMOJI_BYTES)
+  private val emojiUses: LruCache<EmojiRequest, Int> = LruCache(MAX_TRACKED_EMOJI)
+
   fun load(context: Context, emojiPage: EmojiPage, inSampleSize: Int): LoadResult {
     val applicationContext = context.applicationContext
     val emojiPageRequest = EmojiPageRequest(emojiPage, inSampleSize)
-    val bitmap: Bitmap? = cache[emojiPageRequest]
-    val task: ListenableFutureTask<Bitmap>? = tasks[emojiPageRequest]
-
-    return when {
-      bitmap != null -> LoadResult.Immediate(bitmap)
-      task != null -> LoadResult.Async(task)
-      else -> {
-        val newTask = ListenableFutureTask<Bitmap> {
-          try {
-            Log.i(TAG, "Loading page $emojiPageRequest")
-            loadInternal(applicationContext, emojiPageRequest)
-          } catch (e: IOException) {
-            Log.w(TAG, e)
-            null
+
+    synchronized(this) {
+      val tier: Tier = getTier(inSampleSize)
+      val bitmap: Bitmap? = tier.pages[emojiPage]
+      val task: ListenableFutureTask<Bitmap>? = tasks[emojiPageRequest]
+
+      return when {
+        bitmap != null -> LoadResult.Immediate(bitmap)
+        task != null -> LoadResult.Async(task)
+        else -> {
+          val newTask = ListenableFutureTask<Bitmap> {
+            try {
+              Log.i(TAG, "Loading page $emojiPageRequest")
+              loadInternal(applicationContext, emojiPageRequest, tier)
+            } catch (e: IOException) {
+              Log.w(TAG, e)
+              null
+            }
           }
-        }
 
-        tasks[emojiPageRequest] = newTask
+          tasks[emojiPageRequest] = newTask
 
-        SimpleTask.run(newTask::run) {
-          try {
-            val newBitmap: Bitmap? = newTask.get()
-            if (newBitmap == null) {
-              Log.w(TAG, "Failed to load emoji bitmap for request $emojiPageRequest")
-            } else {
-              cache[emojiPageRequest] = newBitmap
+          SimpleTask.run(newTask::run) {
+            synchronized(this) {
+              try {
+                val newBitmap: Bitmap? = newTask.get()
+                if (newBitmap == null) {
+                  Log.w(TAG, "Failed to load emoji bitmap for request $emojiPageRequest")
+                } else {
+                  tier.pages.put(emojiPage, newBitmap)
+                }
+              } finally {
+                tasks.remove(emojiPageRequest)
+              }
             }
-          } finally {
-            tasks.remove(emojiPageRequest)
           }
-        }
 
-        LoadResult.Async(newTask)
+          LoadResult.Async(newTask)
+        }
       }
     }
   }
 
+  /**
+   * Starts decoding the first few of the pages that aren't already in memory or loading, so that they're ready by the time they're drawn.
+   * Only as many pages are decoded as fit in what's left of the budget, so prefetching never pushes out a page that's on screen.
+   */
+  fun prefetch(context: Context, emojiPages: Collection<EmojiPage>, inSampleSize: Int) {
+    val toLoad: List<EmojiPage> = getPagesToPrefetch(emojiPages, inSampleSize)
+
+    if (toLoad.isNotEmpty()) {
+      Log.d(TAG, "Prefetching ${toLoad.size} page(s)")
+      toLoad.forEach { load(context, it, inSampleSize) }
+    }
+  }
+
+  /**
+   * Checks against a snapshot of the loaded pages rather than looking each one up, so that prefetching doesn't show up as hits and
+   * misses in the stats or move pages to the front of the cache.
+   */
+  @VisibleForTesting
+  fun getPagesToPrefetch(emojiPages: Collection<EmojiPage>, inSampleSize: Int): List<EmojiPage> {
+    synchronized(this) {
+      val tier: Tier = getTier(inSampleSize)
+      val loaded: Map<EmojiPage, Bitmap> = tier.pages.snapshot()
+      val loading: Int = tasks.keys.count { it.inSampleSize == inSampleSize }
+
+      return emojiPages
+        .filter { it !in loaded && !tasks.containsKey(EmojiPageRequest(it, inSampleSize)) }
+        .take(getPrefetchLimit(tier, loaded.values, loading))
+    }
+  }
+
+  /**
+   * We don't know how big a page is until it's decoded, so we assume the rest are no bigger than the biggest one we've already got, and
+   * leave room for the ones that are still loading. If there's nothing loaded yet to go by, we only risk a single page.
+   */
+  private fun getPrefetchLimit(tier: Tier, loaded: Collection<Bitmap>, loading: Int): Int {
+    if (loaded.isEmpty()) {
+      return if (loading == 0) 1 else 0
+    }
+
+    val pageBytes: Int = loaded.maxOf { it.allocationByteCount }.coerceAtLeast(1)
+    val freeBytes: Long = tier.pages.maxSize().toLong() - tier.pages.size() - loading.toLong() * pageBytes
+
+    return (freeBytes / pageBytes).coerceIn(0, MAX_PREFETCH_PAGES.toLong()).toInt()
+  }
+
+  @VisibleForTesting
+  fun putPage(emojiPage: EmojiPage, inSampleSize: Int, bitmap: Bitmap) {
+    synchronized(this) {
+      getTier(inSampleSize).pages.put(emojiPage, bitmap)
+    }
+  }
+
+  /**
+   * @return A bitmap of just this emoji, if it's been drawn often enough to have been cut out of its page.
+   */
+  fun getEmojiBitmap(drawInfo: EmojiDrawInfo, inSampleSize: Int): Bitmap? {
+    return emojiBitmaps[EmojiRequest(drawInfo.page, drawInfo.index, inSampleSize)]
+  }
+
+  /**
+   * Records that an emoji was drawn from its page. Once it's been drawn enough times, the area of the page covered by [bounds] is copied
+   * into a bitmap of its own, which [getEmojiBitmap] will return from then on.
+   */
+  fun onEmojiDrawn(drawInfo: EmojiDrawInfo, inSampleSize: Int, page: Bitmap, bounds: Rect) {
+    val request = EmojiRequest(drawInfo.page, drawInfo.index, inSampleSize)
+
+    val uses: Int = synchronized(emojiUses) {
+      val uses = (emojiUses[request] ?: 0) + 1
+      emojiUses.put(request, uses)
+      uses
+    }
+
+    if (uses < HOT_EMOJI_USES) {
+      return
+    }
+
+    if (bounds.isEmpty || bounds.left < 0 || bounds.top < 0 || bounds.right > page.width || bounds.bottom > page.height) {
+      Log.w(TAG, "Emoji bounds $bounds are outside of page ${page.width}x${page.height}")
+      return
+    }
+
+    emojiBitmaps.put(request, Bitmap.createBitmap(page, bounds.left, bounds.top, bounds.width(), bounds.height()))
+  }
+
   fun clear() {
-    cache.clear()
+    synchronized(this) {
+      tiers.values.forEach { it.pages.evictAll() }
+      tiers.clear()
+    }
+
+    emojiBitmaps.evictAll()
+    emojiUses.evictAll()
+  }
+
+  fun getStats(): Stats {
+    val tierStats: List<TierStats> = synchronized(this) {
+      tiers
+        .toSortedMap()
+        .map { (inSampleSize, tier) ->
+          TierStats(
+            inSampleSize = inSampleSize,
+            pages = tier.pages.snapshot().size,
+            bytes = tier.pages.size(),
+            maxBytes = tier.pages.maxSize(),
+            hits = tier.pages.hitCount(),
+            misses = tier.pages.missCount(),
+            evictions = tier.pages.evictionCount(),
+            decodes = tier.decodes,
+            decodeMillis = TimeUnit.NANOSECONDS.toMillis(tier.decodeNanos)
+          )
+        }
+    }
+
+    return Stats(
+      tiers = tierStats,
+      emoji = emojiBitmaps.snapshot().size,
+      emojiBytes = emojiBitmaps.size(),
+      emojiHits = emojiBitmaps.hitCount(),
+      emojiMisses = emojiBitmaps.missCount()
+    )
+  }
+
+  private fun getTier(inSampleSize: Int): Tier {
+    return tiers.getOrPut(inSampleSize) {
+      val scale = inSampleSize.coerceAtLeast(1)
+      Tier(pageBytes / (scale * scale))
+    }
   }
 
   @WorkerThread
-  private fun loadInternal(context: Context, emojiPageRequest: EmojiPageRequest): Bitmap? {
+  private fun loadInternal(context: Context, emojiPageRequest: EmojiPageRequest, tier: Tier): Bitmap? {
+    val startTime = System.nanoTime()
+
     val inputStream: InputStream = when (emojiPageRequest.emojiPage) {
       is EmojiPage.Asset -> context.assets.open(emojiPageRequest.emojiPage.uri.toString().replace("file:///android_asset/", ""))
       is EmojiPage.Disk -> EmojiFiles.openForReading(context, PartAuthority.getEmojiFilename(emojiPageRequest.emojiPage.uri))
@@ -75,13 +238,52 @@ object EmojiPageCache {
     val bitmapOptions = BitmapFactory.Options()
     bitmapOptions.inSampleSize = emojiPageRequest.inSampleSize
 
-    return inputStream.use { BitmapFactory.decodeStream(it, null, bitmapOptions) }
+    val bitmap: Bitmap? = inputStream.use { BitmapFactory.decodeStream(it, null, bitmapOptions) }
+
+    synchronized(this) {
+      tier.decodes++
+      tier.decodeNanos += System.nanoTime() - startTime
+    }
+
+    return bitmap
   }
 
   private data class EmojiPageRequest(val emojiPage: EmojiPage, val inSampleSize: Int)
 
+  private data class EmojiRequest(val emojiPage: EmojiPage, val index: Int, val inSampleSize: Int)
+
+  private class Tier(maxBytes: Int) {
+    val pages: LruCache<EmojiPage, Bitmap> = BitmapLruCache(maxBytes)
+    var decodes: Int = 0
+    var decodeNanos: Long = 0
+  }
+
+  private class BitmapLruCache<K : Any>(maxBytes: Int) : LruCache<K, Bitmap>(maxBytes) {
+    override fun sizeOf(key: K, value: Bitmap): Int = value.allocationByteCount
+  }
+
   sealed class LoadResult {
     data class Immediate(val bitmap: Bitmap) : LoadResult()
     data class Async(val task: ListenableFutureTask<Bitmap>) : LoadResult()
   }
+
+  data class Stats(
+    val tiers: List<TierStats>,
+    val emoji: Int,
+    val emojiBytes: Int,
+    val emojiHits: Int,
+    val emojiMisses: Int
+  )
+
+  data class TierStats(
+    val inSampleSize: Int,
+    val pages: Int,
+    val bytes: Int,
+    val maxBytes: Int,
+    val hits: Int,
+    val misses: Int,
+    val evictions: Int,
+    val decodes: Int,
+    val decodeMillis: Long
+  )
 }
@@ -72,9 +72,10 @@ class EmojiSource(
         }
       }
 
-    obsolete.forEach {
-      tree.add(it.obsolete, tree.getEmoji(it.replaceWith, 0, it.replaceWith.length))
-    }
+    // Look every replacement up before adding any of them, since adding after a lookup means compiling the tree again
+    obsolete
+      .map { it.obsolete to tree.getEmoji(it.replaceWith, 0, it.replaceWith.length) }
+      .forEach { (encoding, replacement) -> tree.add(encoding, replacement) }
 
     tree
   }
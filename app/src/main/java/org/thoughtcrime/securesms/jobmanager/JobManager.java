@@ -348,13 +348,19 @@ public class JobManager implements ConstraintObserver.Notifier {
   }
 
   /**
-   * Blocks until all pending operations are finished.
+   * Blocks until all pending operations are finished and any deferred writes have been persisted.
    */
   @WorkerThread
   public void flush() {
     CountDownLatch latch = new CountDownLatch(1);
 
-    runOnExecutor(latch::countDown);
+    runOnExecutor(() -> {
+      try {
+        configuration.getJobStorage().flush();
+      } finally {
+        latch.countDown();
+      }
+    });
 
     try {
       latch.await();
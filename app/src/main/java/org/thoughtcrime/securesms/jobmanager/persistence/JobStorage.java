@@ -65,4 +65,10 @@ public interface JobStorage {
 
   @WorkerThread
   @NonNull List<DependencySpec> getAllDependencySpecs();
+
+  /**
+   * Blocks until any writes that have been deferred by the storage have been persisted.
+   */
+  @WorkerThread
+  void flush();
 }
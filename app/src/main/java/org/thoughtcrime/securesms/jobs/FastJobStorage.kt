@@ -7,16 +7,50 @@ import org.thoughtcrime.securesms.jobmanager.persistence.DependencySpec
 import org.thoughtcrime.securesms.jobmanager.persistence.FullSpec
 import org.thoughtcrime.securesms.jobmanager.persistence.JobSpec
 import org.thoughtcrime.securesms.jobmanager.persistence.JobStorage
-
+import java.util.TreeSet
+
+/**
+ * An in-memory cache of the [JobDatabase] that keeps a handful of indexes up to date so that the
+ * hot paths of [org.thoughtcrime.securesms.jobmanager.JobController] don't need to scan every job.
+ *
+ * - Jobs are looked up by id in a map.
+ * - Each queue keeps its jobs sorted by createTime, so the head of a queue is always its first entry.
+ * - Counts are kept per factory and per factory+queue.
+ * - The set of jobs that could run (queue heads that aren't running and have no dependencies) is kept
+ *   sorted by nextRunAttemptTime, so finding pending jobs only touches the jobs that are actually ready.
+ *
+ * Ties in createTime are broken by the order in which jobs were added to the storage, which matches
+ * the ordering of the original list-based implementation.
+ */
 class FastJobStorage(private val jobDatabase: JobDatabase) : JobStorage {
 
-  private val jobs: MutableList<JobSpec> = mutableListOf()
+  /** Insertion-ordered, so that [getAllJobSpecs] preserves the order jobs were added in. */
+  private val jobsById: MutableMap<String, JobSpec> = LinkedHashMap()
+  private val jobsByQueue: MutableMap<String, TreeSet<JobSpec>> = HashMap()
+  private val jobCountsByFactory: MutableMap<String, Int> = HashMap()
+  private val jobCountsByFactoryAndQueue: MutableMap<String, MutableMap<String, Int>> = HashMap()
+
+  private val insertionOrderByJobId: MutableMap<String, Long> = HashMap()
+  private var nextInsertionOrder: Long = 0
+
+  private val queueComparator: Comparator<JobSpec> = compareBy<JobSpec> { it.createTime }.thenBy { insertionOrderByJobId[it.id] }
+  private val eligibleComparator: Comparator<JobSpec> = compareBy<JobSpec> { it.nextRunAttemptTime }.then(queueComparator)
+
+  /** Jobs that would be runnable once their nextRunAttemptTime has passed, ordered by that time. */
+  private val eligibleJobs: TreeSet<JobSpec> = TreeSet(eligibleComparator)
+
   private val constraintsByJobId: MutableMap<String, MutableList<ConstraintSpec>> = mutableMapOf()
   private val dependenciesByJobId: MutableMap<String, MutableList<DependencySpec>> = mutableMapOf()
 
+  /** Reverse of [dependenciesByJobId]: maps a job to the ids of the jobs that depend on it. */
+  private val dependentJobIdsByJobId: MutableMap<String, MutableSet<String>> = mutableMapOf()
+
   @Synchronized
   override fun init() {
-    jobs += jobDatabase.allJobSpecs
+    for (job in jobDatabase.allJobSpecs) {
+      jobsById[job.id] = job
+      addToIndexes(job)
+    }
 
     for (constraintSpec in jobDatabase.allConstraintSpecs) {
       val jobConstraints: MutableList<ConstraintSpec> = constraintsByJobId.getOrPut(constraintSpec.jobSpecId) { mutableListOf() }
@@ -24,9 +58,10 @@ class FastJobStorage(private val jobDatabase: JobDatabase) : JobStorage {
     }
 
     for (dependencySpec in jobDatabase.allDependencySpecs.filterNot { it.hasCircularDependency() }) {
-      val jobDependencies: MutableList<DependencySpec> = dependenciesByJobId.getOrPut(dependencySpec.jobId) { mutableListOf() }
-      jobDependencies += dependencySpec
+      addDependency(dependencySpec)
     }
+
+    rebuildEligibleJobs()
   }
 
   @Synchronized
@@ -38,20 +73,25 @@ class FastJobStorage(private val jobDatabase: JobDatabase) : JobStorage {
     }
 
     for (fullSpec in fullSpecs) {
-      jobs += fullSpec.jobSpec
-      constraintsByJobId[fullSpec.jobSpec.id] = fullSpec.constraintSpecs
-      dependenciesByJobId[fullSpec.jobSpec.id] = fullSpec.dependencySpecs
+      constraintsByJobId[fullSpec.jobSpec.id] = fullSpec.constraintSpecs.toMutableList()
+
+      for (dependencySpec in fullSpec.dependencySpecs) {
+        addDependency(dependencySpec)
+      }
+
+      jobsById[fullSpec.jobSpec.id] = fullSpec.jobSpec
+      addToIndexes(fullSpec.jobSpec)
     }
   }
 
   @Synchronized
   override fun getJobSpec(id: String): JobSpec? {
-    return jobs.firstOrNull { it.id == id }
+    return jobsById[id]
   }
 
   @Synchronized
   override fun getAllJobSpecs(): List<JobSpec> {
-    return ArrayList(jobs)
+    return ArrayList(jobsById.values)
   }
 
   @Synchronized
@@ -63,103 +103,67 @@ class FastJobStorage(private val jobDatabase: JobDatabase) : JobStorage {
     } else if (migrationJob != null) {
       emptyList()
     } else {
-      jobs
-        .groupBy { it.queueKey ?: it.id }
-        .map { byQueueKey: Map.Entry<String, List<JobSpec>> ->
-          byQueueKey.value.minByOrNull { it.createTime }
-        }
-        .filterNotNull()
-        .filter { job ->
-          dependenciesByJobId[job.id].isNullOrEmpty()
-        }
-        .filterNot { it.isRunning }
-        .filter { job -> job.nextRunAttemptTime <= currentTime }
-        .sortedBy { it.createTime }
+      eligibleJobs
+        .asSequence()
+        .takeWhile { it.nextRunAttemptTime <= currentTime }
+        .sortedWith(queueComparator)
+        .toList()
     }
   }
 
   @Synchronized
   override fun getJobsInQueue(queue: String): List<JobSpec> {
-    return jobs
-      .filter { it.queueKey == queue }
-      .sortedBy { it.createTime }
+    return jobsByQueue[queue]?.toList() ?: emptyList()
   }
 
   private fun getMigrationJob(): JobSpec? {
-    return jobs
-      .filter { it.queueKey == Job.Parameters.MIGRATION_QUEUE_KEY }
-      .filter { firstInQueue(it) }
-      .firstOrNull()
-  }
-
-  private fun firstInQueue(job: JobSpec): Boolean {
-    return if (job.queueKey == null) {
-      true
-    } else {
-      val firstInQueue: JobSpec? = jobs
-        .filter { it.queueKey == job.queueKey }
-        .minByOrNull { it.createTime }
-
-      job == firstInQueue
-    }
+    return jobsByQueue[Job.Parameters.MIGRATION_QUEUE_KEY]?.firstOrNull()
   }
 
   @Synchronized
   override fun getJobCountForFactory(factoryKey: String): Int {
-    return jobs
-      .filter { it.factoryKey == factoryKey }
-      .size
+    return jobCountsByFactory[factoryKey] ?: 0
   }
 
   @Synchronized
   override fun getJobCountForFactoryAndQueue(factoryKey: String, queueKey: String): Int {
-    return jobs
-      .filter { it.factoryKey == factoryKey && it.queueKey == queueKey }
-      .size
+    return jobCountsByFactoryAndQueue[factoryKey]?.get(queueKey) ?: 0
   }
 
   @Synchronized
   override fun areQueuesEmpty(queueKeys: Set<String>): Boolean {
-    return jobs.none { it.queueKey != null && queueKeys.contains(it.queueKey) }
+    return queueKeys.none { jobsByQueue.containsKey(it) }
   }
 
   @Synchronized
   override fun updateJobRunningState(id: String, isRunning: Boolean) {
-    val job: JobSpec? = getJobById(id)
+    val job: JobSpec? = jobsById[id]
     if (job == null || !job.isMemoryOnly) {
       jobDatabase.updateJobRunningState(id, isRunning)
     }
 
-    val iter = jobs.listIterator()
-
-    while (iter.hasNext()) {
-      val current: JobSpec = iter.next()
-      if (current.id == id) {
-        iter.set(current.copy(isRunning = isRunning))
-      }
+    if (job != null) {
+      replaceJob(job, job.copy(isRunning = isRunning))
     }
   }
 
   @Synchronized
   override fun updateJobAfterRetry(id: String, isRunning: Boolean, runAttempt: Int, nextRunAttemptTime: Long, serializedData: ByteArray?) {
-    val job = getJobById(id)
+    val job = jobsById[id]
     if (job == null || !job.isMemoryOnly) {
       jobDatabase.updateJobAfterRetry(id, isRunning, runAttempt, nextRunAttemptTime, serializedData)
     }
 
-    val iter = jobs.listIterator()
-    while (iter.hasNext()) {
-      val current = iter.next()
-      if (current.id == id) {
-        iter.set(
-          current.copy(
-            isRunning = isRunning,
-            runAttempt = runAttempt,
-            nextRunAttemptTime = nextRunAttemptTime,
-            serializedData = serializedData
-          )
+    if (job != null) {
+      replaceJob(
+        job,
+        job.copy(
+          isRunning = isRunning,
+          runAttempt = runAttempt,
+          nextRunAttemptTime = nextRunAttemptTime,
+          serializedData = serializedData
         )
-      }
+      )
     }
   }
 
@@ -167,18 +171,25 @@ class FastJobStorage(private val jobDatabase: JobDatabase) : JobStorage {
   override fun updateAllJobsToBePending() {
     jobDatabase.updateAllJobsToBePending()
 
-    val iter = jobs.listIterator()
-    while (iter.hasNext()) {
-      val current = iter.next()
-      iter.set(current.copy(isRunning = false))
+    val updated: List<JobSpec> = jobsById.values.map { it.copy(isRunning = false) }
+
+    jobsByQueue.clear()
+    jobCountsByFactory.clear()
+    jobCountsByFactoryAndQueue.clear()
+
+    for (job in updated) {
+      jobsById[job.id] = job
+      addToIndexes(job)
     }
+
+    rebuildEligibleJobs()
   }
 
   @Synchronized
   override fun updateJobs(jobSpecs: List<JobSpec>) {
     val durable: List<JobSpec> = jobSpecs
       .filter { updatedJob ->
-        val found = getJobById(updatedJob.id)
+        val found = jobsById[updatedJob.id]
         found != null && !found.isMemoryOnly
       }
 
@@ -186,15 +197,11 @@ class FastJobStorage(private val jobDatabase: JobDatabase) : JobStorage {
       jobDatabase.updateJobs(durable)
     }
 
-    val updatesById: Map<String, JobSpec> = jobSpecs.associateBy { it.id }
-
-    val iter = jobs.listIterator()
-    while (iter.hasNext()) {
-      val current = iter.next()
-      val update = updatesById[current.id]
+    for (update in jobSpecs) {
+      val current: JobSpec? = jobsById[update.id]
 
-      if (update != null) {
-        iter.set(update)
+      if (current != null) {
+        replaceJob(current, update)
       }
     }
   }
@@ -207,7 +214,7 @@ class FastJobStorage(private val jobDatabase: JobDatabase) : JobStorage {
   @Synchronized
   override fun deleteJobs(jobIds: List<String>) {
     val durableIds: List<String> = jobIds
-      .mapNotNull { getJobById(it) }
+      .mapNotNull { jobsById[it] }
       .filterNot { it.isMemoryOnly }
       .map { it.id }
 
@@ -215,21 +222,25 @@ class FastJobStorage(private val jobDatabase: JobDatabase) : JobStorage {
       jobDatabase.deleteJobs(durableIds)
     }
 
-    val deleteIds: Set<String> = jobIds.toSet()
-    jobs.removeIf { deleteIds.contains(it.id) }
-
     for (jobId in jobIds) {
+      val job: JobSpec? = jobsById.remove(jobId)
+
+      if (job != null) {
+        removeFromIndexes(job)
+      }
+
+      insertionOrderByJobId.remove(jobId)
       constraintsByJobId.remove(jobId)
-      dependenciesByJobId.remove(jobId)
 
-      for (dependencyList in dependenciesByJobId.values) {
-        val iter = dependencyList.iterator()
+      dependenciesByJobId.remove(jobId)?.forEach { dependencySpec ->
+        dependentJobIdsByJobId[dependencySpec.dependsOnJobId]?.remove(jobId)
+      }
 
-        while (iter.hasNext()) {
-          if (iter.next().dependsOnJobId == jobId) {
-            iter.remove()
-          }
-        }
+      val dependentJobIds: Set<String> = dependentJobIdsByJobId.remove(jobId) ?: emptySet()
+
+      for (dependentJobId in dependentJobIds) {
+        dependenciesByJobId[dependentJobId]?.removeIf { it.dependsOnJobId == jobId }
+        jobsById[dependentJobId]?.let { refreshEligibility(it) }
       }
     }
   }
@@ -262,18 +273,133 @@ class FastJobStorage(private val jobDatabase: JobDatabase) : JobStorage {
   }
 
   private fun getSingleLayerOfDependencySpecsThatDependOnJob(jobSpecId: String): List<DependencySpec> {
-    return dependenciesByJobId
-      .values
+    val dependentJobIds: Set<String> = dependentJobIdsByJobId[jobSpecId] ?: return emptyList()
+
+    return dependentJobIds
+      .mapNotNull { dependenciesByJobId[it] }
       .flatten()
       .filter { it.dependsOnJobId == jobSpecId }
   }
 
+  @Synchronized
   override fun getAllDependencySpecs(): List<DependencySpec> {
     return dependenciesByJobId.values.flatten()
   }
 
-  private fun getJobById(id: String): JobSpec? {
-    return jobs.firstOrNull { it.id == id }
+  override fun flush() {
+    jobDatabase.flushPendingWrites()
+  }
+
+  private fun addDependency(dependencySpec: DependencySpec) {
+    val jobDependencies: MutableList<DependencySpec> = dependenciesByJobId.getOrPut(dependencySpec.jobId) { mutableListOf() }
+    jobDependencies += dependencySpec
+
+    dependentJobIdsByJobId.getOrPut(dependencySpec.dependsOnJobId) { LinkedHashSet() } += dependencySpec.jobId
+  }
+
+  /**
+   * Swaps [old] for [updated] in every index. The two must share the same id.
+   */
+  private fun replaceJob(old: JobSpec, updated: JobSpec) {
+    removeFromIndexes(old)
+    jobsById[updated.id] = updated
+    addToIndexes(updated)
+  }
+
+  /**
+   * Adds the job to the queue, count, and eligibility indexes. Does not touch [jobsById].
+   */
+  private fun addToIndexes(job: JobSpec) {
+    insertionOrderByJobId.getOrPut(job.id) { nextInsertionOrder++ }
+
+    jobCountsByFactory[job.factoryKey] = (jobCountsByFactory[job.factoryKey] ?: 0) + 1
+
+    if (job.queueKey != null) {
+      val countsByQueue: MutableMap<String, Int> = jobCountsByFactoryAndQueue.getOrPut(job.factoryKey) { HashMap() }
+      countsByQueue[job.queueKey] = (countsByQueue[job.queueKey] ?: 0) + 1
+
+      val queue: TreeSet<JobSpec> = jobsByQueue.getOrPut(job.queueKey) { TreeSet(queueComparator) }
+
+      // Only the head of a queue can be eligible, and the new job may displace the current head
+      if (queue.isNotEmpty()) {
+        eligibleJobs.remove(queue.first())
+      }
+
+      queue += job
+      refreshEligibility(queue.first())
+    } else {
+      refreshEligibility(job)
+    }
+  }
+
+  /**
+   * Removes the job from the queue, count, and eligibility indexes. Does not touch [jobsById].
+   */
+  private fun removeFromIndexes(job: JobSpec) {
+    eligibleJobs.remove(job)
+
+    decrement(jobCountsByFactory, job.factoryKey)
+
+    if (job.queueKey != null) {
+      jobCountsByFactoryAndQueue[job.factoryKey]?.let { countsByQueue ->
+        decrement(countsByQueue, job.queueKey)
+        if (countsByQueue.isEmpty()) {
+          jobCountsByFactoryAndQueue.remove(job.factoryKey)
+        }
+      }
+
+      val queue: TreeSet<JobSpec>? = jobsByQueue[job.queueKey]
+
+      if (queue != null) {
+        queue.remove(job)
+
+        if (queue.isEmpty()) {
+          jobsByQueue.remove(job.queueKey)
+        } else {
+          refreshEligibility(queue.first())
+        }
+      }
+    }
+  }
+
+  private fun refreshEligibility(job: JobSpec) {
+    eligibleJobs.remove(job)
+
+    if (job.isEligible()) {
+      eligibleJobs += job
+    }
+  }
+
+  private fun rebuildEligibleJobs() {
+    eligibleJobs.clear()
+
+    for (job in jobsById.values) {
+      if (job.isEligible()) {
+        eligibleJobs += job
+      }
+    }
+  }
+
+  private fun JobSpec.isEligible(): Boolean {
+    if (isRunning) {
+      return false
+    }
+
+    if (!dependenciesByJobId[id].isNullOrEmpty()) {
+      return false
+    }
+
+    return queueKey == null || jobsByQueue[queueKey]?.first() === this
+  }
+
+  private fun decrement(counts: MutableMap<String, Int>, key: String) {
+    val count: Int = counts[key] ?: return
+
+    if (count <= 1) {
+      counts.remove(key)
+    } else {
+      counts[key] = count - 1
+    }
   }
 
   /**
@@ -288,8 +414,8 @@ class FastJobStorage(private val jobDatabase: JobDatabase) : JobStorage {
    * serves the same effect and doesn't require new write methods. This should also be very rare.
    */
   private fun DependencySpec.hasCircularDependency(): Boolean {
-    val job = getJobById(this.jobId)
-    val dependsOnJob = getJobById(this.dependsOnJobId)
+    val job = jobsById[this.jobId]
+    val dependsOnJob = jobsById[this.dependsOnJobId]
 
     if (job == null || dependsOnJob == null) {
       return false
@@ -3,7 +3,10 @@ package org.thoughtcrime.securesms.keyboard.emoji
 import android.content.Context
 import org.signal.core.util.concurrent.SignalExecutors
 import org.thoughtcrime.securesms.components.emoji.EmojiPageModel
+import org.thoughtcrime.securesms.components.emoji.EmojiProvider
 import org.thoughtcrime.securesms.components.emoji.RecentEmojiPageModel
+import org.thoughtcrime.securesms.emoji.EmojiPage
+import org.thoughtcrime.securesms.emoji.EmojiPageCache
 import org.thoughtcrime.securesms.emoji.EmojiSource.Companion.latest
 import org.thoughtcrime.securesms.util.TextSecurePreferences
 import java.util.function.Consumer
@@ -17,4 +20,32 @@ class EmojiKeyboardPageRepository(private val context: Context) {
       consumer.accept(list)
     }
   }
+
+  /**
+   * Starts decoding the sprite pages behind the category with the given key and the categories on either side of it, so they're ready
+   * before the keyboard scrolls to them. The pages are taken from each category in turn, so that a large category doesn't use up the
+   * whole prefetch before its neighbours get a look in.
+   */
+  fun prefetchPages(models: List<EmojiPageModel>, key: String) {
+    SignalExecutors.BOUNDED.execute {
+      val index = models.indexOfFirst { it.key == key }
+      if (index == -1) {
+        return@execute
+      }
+
+      val emojiTree = latest.emojiTree
+      val pagesByCategory: List<List<EmojiPage>> = listOfNotNull(models.getOrNull(index), models.getOrNull(index + 1), models.getOrNull(index - 1))
+        .map { model -> model.displayEmoji.mapNotNull { emojiTree.getEmoji(it.value, 0, it.value.length)?.page }.distinct() }
+
+      EmojiPageCache.prefetch(context, interleave(pagesByCategory), EmojiProvider.getLowMemoryDecodeScale(context))
+    }
+  }
+
+  private fun <T : Any> interleave(lists: List<List<T>>): List<T> {
+    val longest: Int = lists.maxOfOrNull { it.size } ?: 0
+
+    return (0 until longest)
+      .flatMap { i -> lists.mapNotNull { it.getOrNull(i) } }
+      .distinct()
+  }
 }
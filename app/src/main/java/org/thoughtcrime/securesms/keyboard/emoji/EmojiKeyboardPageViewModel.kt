@@ -59,11 +59,20 @@ class EmojiKeyboardPageViewModel(private val repository: EmojiKeyboardPageReposi
   }
 
   fun onKeySelected(key: String) {
+    if (internalSelectedKey.value != key) {
+      allEmojiModels.value?.let { repository.prefetchPages(it, key) }
+    }
+
     internalSelectedKey.value = key
   }
 
   fun refreshRecentEmoji() {
-    repository.getEmoji(allEmojiModels::postValue)
+    val selectedKey: String = internalSelectedKey.value
+
+    repository.getEmoji { models ->
+      allEmojiModels.postValue(models)
+      repository.prefetchPages(models, selectedKey)
+    }
   }
 
   companion object {
@@ -1,61 +1,69 @@
 package org.thoughtcrime.securesms.keyvalue;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * A set of typed key-value pairs.
+ *
+ * Each key maps to a single immutable {@link Entry}, with primitives stored unboxed, so a read is one map lookup and never allocates.
+ * Because entries are immutable, copying a data set only copies references, which is what lets {@link KeyValueStore} publish a new
+ * snapshot on every write.
+ */
 public class KeyValueDataSet implements KeyValueReader {
-  private final Map<String, Object> values = new HashMap<>();
-  private final Map<String, Class>  types  = new HashMap<>();
+  private final Map<String, Entry> entries;
+
+  public KeyValueDataSet() {
+    this.entries = new HashMap<>();
+  }
+
+  KeyValueDataSet(@NonNull KeyValueDataSet other) {
+    this.entries = new HashMap<>(other.entries);
+  }
 
   public void putBlob(@NonNull String key, byte[] value) {
-    values.put(key, value);
-    types.put(key, byte[].class);
+    entries.put(key, new Entry(byte[].class, 0, value));
   }
 
   public void putBoolean(@NonNull String key, boolean value) {
-    values.put(key, value);
-    types.put(key, Boolean.class);
+    entries.put(key, value ? Entry.TRUE : Entry.FALSE);
   }
 
   public void putFloat(@NonNull String key, float value) {
-    values.put(key, value);
-    types.put(key, Float.class);
+    entries.put(key, new Entry(Float.class, Float.floatToRawIntBits(value), null));
   }
 
   public void putInteger(@NonNull String key, int value) {
-    values.put(key, value);
-    types.put(key, Integer.class);
+    entries.put(key, new Entry(Integer.class, value, null));
   }
 
   public void putLong(@NonNull String key, long value) {
-    values.put(key, value);
-    types.put(key, Long.class);
+    entries.put(key, new Entry(Long.class, value, null));
   }
 
   public void putString(@NonNull String key, String value) {
-    values.put(key, value);
-    types.put(key, String.class);
+    entries.put(key, new Entry(String.class, 0, value));
   }
 
   void putAll(@NonNull KeyValueDataSet other) {
-    values.putAll(other.values);
-    types.putAll(other.types);
+    entries.putAll(other.entries);
   }
 
   void removeAll(@NonNull Collection<String> removes) {
     for (String remove : removes) {
-      values.remove(remove);
-      types.remove(remove);
+      entries.remove(remove);
     }
   }
 
   @Override
   public byte[] getBlob(@NonNull String key, byte[] defaultValue) {
-    if (containsKey(key)) {
-      return readValueAsType(key, byte[].class, true);
+    Entry entry = entries.get(key);
+    if (entry != null) {
+      return (byte[]) entry.requireNullableType(byte[].class).object;
     } else {
       return defaultValue;
     }
@@ -63,8 +71,9 @@ public class KeyValueDataSet implements KeyValueReader {
 
   @Override
   public boolean getBoolean(@NonNull String key, boolean defaultValue) {
-    if (containsKey(key)) {
-      return readValueAsType(key, Boolean.class, false);
+    Entry entry = entries.get(key);
+    if (entry != null) {
+      return entry.requireType(Boolean.class).primitive != 0;
     } else {
       return defaultValue;
     }
@@ -72,8 +81,9 @@ public class KeyValueDataSet implements KeyValueReader {
 
   @Override
   public float getFloat(@NonNull String key, float defaultValue) {
-    if (containsKey(key)) {
-      return readValueAsType(key, Float.class, false);
+    Entry entry = entries.get(key);
+    if (entry != null) {
+      return Float.intBitsToFloat((int) entry.requireType(Float.class).primitive);
     } else {
       return defaultValue;
     }
@@ -81,8 +91,9 @@ public class KeyValueDataSet implements KeyValueReader {
 
   @Override
   public int getInteger(@NonNull String key, int defaultValue) {
-    if (containsKey(key)) {
-      return readValueAsType(key, Integer.class, false);
+    Entry entry = entries.get(key);
+    if (entry != null) {
+      return (int) entry.requireType(Integer.class).primitive;
     } else {
       return defaultValue;
     }
@@ -90,8 +101,9 @@ public class KeyValueDataSet implements KeyValueReader {
 
   @Override
   public long getLong(@NonNull String key, long defaultValue) {
-    if (containsKey(key)) {
-      return readValueAsType(key, Long.class, false);
+    Entry entry = entries.get(key);
+    if (entry != null) {
+      return entry.requireType(Long.class).primitive;
     } else {
       return defaultValue;
     }
@@ -99,8 +111,9 @@ public class KeyValueDataSet implements KeyValueReader {
 
   @Override
   public String getString(@NonNull String key, String defaultValue) {
-    if (containsKey(key)) {
-      return readValueAsType(key, String.class, true);
+    Entry entry = entries.get(key);
+    if (entry != null) {
+      return (String) entry.requireNullableType(String.class).object;
     } else {
       return defaultValue;
     }
@@ -108,23 +121,70 @@ public class KeyValueDataSet implements KeyValueReader {
 
   @Override
   public boolean containsKey(@NonNull String key) {
-    return values.containsKey(key);
+    return entries.containsKey(key);
   }
 
+  /**
+   * @return A copy of all of the values, boxed. Meant for persisting the data set, not for reads.
+   */
   public @NonNull Map<String, Object> getValues() {
+    Map<String, Object> values = new HashMap<>(entries.size());
+
+    for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+      values.put(entry.getKey(), entry.getValue().box());
+    }
+
     return values;
   }
 
   public Class getType(@NonNull String key) {
-    return types.get(key);
+    Entry entry = entries.get(key);
+    return entry != null ? entry.type : null;
   }
 
-  private <E> E readValueAsType(@NonNull String key, Class<E> type, boolean nullable) {
-    Object value = values.get(key);
-    if ((value == null && nullable) || (value != null && value.getClass() == type)) {
-      return type.cast(value);
-    } else {
-      throw new IllegalArgumentException("Type mismatch!");
+  private static final class Entry {
+    private static final Entry TRUE  = new Entry(Boolean.class, 1, null);
+    private static final Entry FALSE = new Entry(Boolean.class, 0, null);
+
+    private final Class  type;
+    private final long   primitive;
+    private final Object object;
+
+    private Entry(@NonNull Class type, long primitive, @Nullable Object object) {
+      this.type      = type;
+      this.primitive = primitive;
+      this.object    = object;
+    }
+
+    @NonNull Entry requireType(@NonNull Class expected) {
+      if (type != expected) {
+        throw new IllegalArgumentException("Type mismatch!");
+      }
+      return this;
+    }
+
+    /**
+     * Like {@link #requireType(Class)}, but a null blob or string can be read as either.
+     */
+    @NonNull Entry requireNullableType(@NonNull Class expected) {
+      if (object == null && (type == byte[].class || type == String.class)) {
+        return this;
+      }
+      return requireType(expected);
+    }
+
+    @Nullable Object box() {
+      if (type == Boolean.class) {
+        return primitive != 0;
+      } else if (type == Float.class) {
+        return Float.intBitsToFloat((int) primitive);
+      } else if (type == Integer.class) {
+        return (int) primitive;
+      } else if (type == Long.class) {
+        return primitive;
+      } else {
+        return object;
+      }
     }
   }
 }
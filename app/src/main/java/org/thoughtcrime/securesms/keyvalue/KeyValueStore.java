@@ -22,6 +22,9 @@ import java.util.concurrent.ExecutorService;
  *
  * Implemented as a write-through cache that is safe to read and write to on the main thread.
  *
+ * Reads never block. They're served from an immutable snapshot of the data, and each write publishes a new snapshot with its changes
+ * applied. Writes are much rarer than reads, so copying on write is cheap by comparison.
+ *
  * Writes are enqueued on a separate executor, but writes are finished up in
  * {@link SignalUncaughtExceptionHandler}, meaning all write should finish barring a native crash
  * or the system killing us unexpectedly (i.e. a force-stop).
@@ -33,7 +36,8 @@ public final class KeyValueStore implements KeyValueReader {
   private final ExecutorService           executor;
   private final KeyValuePersistentStorage storage;
 
-  private KeyValueDataSet dataSet;
+  /** Never modified once published. */
+  private volatile KeyValueDataSet snapshot;
 
   public KeyValueStore(@NonNull KeyValuePersistentStorage storage) {
     this.executor = SignalExecutors.newCachedSingleThreadExecutor("signal-KeyValueStore", ThreadUtil.PRIORITY_BACKGROUND_THREAD);
@@ -42,51 +46,44 @@ public final class KeyValueStore implements KeyValueReader {
 
   @AnyThread
   @Override
-  public synchronized byte[] getBlob(@NonNull String key, byte[] defaultValue) {
-    initializeIfNecessary();
-    return dataSet.getBlob(key, defaultValue);
+  public byte[] getBlob(@NonNull String key, byte[] defaultValue) {
+    return getSnapshot().getBlob(key, defaultValue);
   }
 
   @AnyThread
   @Override
-  public synchronized boolean getBoolean(@NonNull String key, boolean defaultValue) {
-    initializeIfNecessary();
-    return dataSet.getBoolean(key, defaultValue);
+  public boolean getBoolean(@NonNull String key, boolean defaultValue) {
+    return getSnapshot().getBoolean(key, defaultValue);
   }
 
   @AnyThread
   @Override
-  public synchronized float getFloat(@NonNull String key, float defaultValue) {
-    initializeIfNecessary();
-    return dataSet.getFloat(key, defaultValue);
+  public float getFloat(@NonNull String key, float defaultValue) {
+    return getSnapshot().getFloat(key, defaultValue);
   }
 
   @AnyThread
   @Override
-  public synchronized int getInteger(@NonNull String key, int defaultValue) {
-    initializeIfNecessary();
-    return dataSet.getInteger(key, defaultValue);
+  public int getInteger(@NonNull String key, int defaultValue) {
+    return getSnapshot().getInteger(key, defaultValue);
   }
 
   @AnyThread
   @Override
-  public synchronized long getLong(@NonNull String key, long defaultValue) {
-    initializeIfNecessary();
-    return dataSet.getLong(key, defaultValue);
+  public long getLong(@NonNull String key, long defaultValue) {
+    return getSnapshot().getLong(key, defaultValue);
   }
 
   @AnyThread
   @Override
-  public synchronized String getString(@NonNull String key, String defaultValue) {
-    initializeIfNecessary();
-    return dataSet.getString(key, defaultValue);
+  public String getString(@NonNull String key, String defaultValue) {
+    return getSnapshot().getString(key, defaultValue);
   }
 
   @AnyThread
   @Override
-  public synchronized boolean containsKey(@NonNull String key) {
-    initializeIfNecessary();
-    return dataSet.containsKey(key);
+  public boolean containsKey(@NonNull String key) {
+    return getSnapshot().containsKey(key);
   }
 
   /**
@@ -100,17 +97,11 @@ public final class KeyValueStore implements KeyValueReader {
 
   /**
    * @return A reader that lets you read from an immutable snapshot of the store, ensuring that data
-   *         is consistent between reads. If you're only reading a single value, it is more
-   *         efficient to use the various get* methods instead.
+   *         is consistent between reads. This is just the current snapshot, so it's free.
    */
   @AnyThread
-  synchronized @NonNull KeyValueReader beginRead() {
-    initializeIfNecessary();
-
-    KeyValueDataSet copy = new KeyValueDataSet();
-    copy.putAll(dataSet);
-
-    return copy;
+  @NonNull KeyValueReader beginRead() {
+    return getSnapshot();
   }
 
   /**
@@ -133,22 +124,38 @@ public final class KeyValueStore implements KeyValueReader {
    * Forces the store to re-fetch all of it's data from the database.
    */
   synchronized void resetCache() {
-    dataSet = null;
+    snapshot = null;
     initializeIfNecessary();
   }
 
   private synchronized void write(@NonNull KeyValueDataSet newDataSet, @NonNull Collection<String> removes) {
     initializeIfNecessary();
 
-    dataSet.putAll(newDataSet);
-    dataSet.removeAll(removes);
+    KeyValueDataSet updated = new KeyValueDataSet(snapshot);
+    updated.putAll(newDataSet);
+    updated.removeAll(removes);
+
+    snapshot = updated;
 
     executor.execute(() -> storage.writeDataSet(newDataSet, removes));
   }
 
+  private @NonNull KeyValueDataSet getSnapshot() {
+    KeyValueDataSet current = snapshot;
+
+    if (current == null) {
+      synchronized (this) {
+        initializeIfNecessary();
+        current = snapshot;
+      }
+    }
+
+    return current;
+  }
+
   private void initializeIfNecessary() {
-    if (dataSet != null) return;
-    this.dataSet = storage.getDataSet();
+    if (snapshot != null) return;
+    this.snapshot = new KeyValueDataSet(storage.getDataSet());
   }
 
   class Writer {
@@ -0,0 +1,21 @@
+package org.thoughtcrime.securesms.logging
+
+import java.text.SimpleDateFormat
+import java.util.Date
+import java.util.Locale
+
+/**
+ * Turns the pieces of a log entry into the line we display and submit.
+ *
+ * Not thread safe -- every writer or reader should have its own instance.
+ */
+class LogLineFormatter {
+
+  private val dateFormat = SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS zzz", Locale.US)
+  private val date = Date()
+
+  fun format(version: String, threadString: String, createdAt: Long, level: String, tag: String, message: String): String {
+    date.time = createdAt
+    return "[$version] [$threadString] ${dateFormat.format(date)} $level $tag: $message"
+  }
+}
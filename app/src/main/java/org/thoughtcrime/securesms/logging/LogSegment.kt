@@ -0,0 +1,399 @@
+package org.thoughtcrime.securesms.logging
+
+import org.thoughtcrime.securesms.database.model.LogEntry
+import java.io.BufferedInputStream
+import java.io.Closeable
+import java.io.DataInputStream
+import java.io.EOFException
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.security.GeneralSecurityException
+import java.security.SecureRandom
+import javax.crypto.Cipher
+import javax.crypto.SecretKey
+import javax.crypto.spec.GCMParameterSpec
+
+/**
+ * The on-disk format used by [SegmentedLogStore].
+ *
+ * A segment is a short header followed by encrypted frames. A frame holds a whole batch of entries, so we pay for encryption and the
+ * write itself once per batch rather than once per line.
+ *
+ *   header: [MAGIC] (4 bytes), [FORMAT_VERSION] (1 byte)
+ *   frame:  ciphertext length (4 bytes), IV (12 bytes), AES-GCM ciphertext
+ *
+ * Once decrypted, a frame is a sequence of records:
+ *
+ *   [RECORD_STRING]: length (varint), UTF-8 bytes. Assigned the next id in the segment's string table.
+ *   [RECORD_ENTRY]:  time delta (zigzag varint), level (1 byte), tag id (varint), thread id (varint), message length (varint), UTF-8 bytes
+ *
+ * Tags, thread names and the app version are interned in the string table, so each is only written once per segment. The app version is
+ * always string 0. Timestamps are relative to the previous entry in the segment. Every segment stands on its own, which is what allows
+ * the store to trim by deleting whole files.
+ */
+object LogSegment {
+
+  private val MAGIC = byteArrayOf('S'.code.toByte(), 'L'.code.toByte(), 'O'.code.toByte(), 'G'.code.toByte())
+  private const val FORMAT_VERSION = 1
+
+  private const val RECORD_STRING = 0
+  private const val RECORD_ENTRY = 1
+
+  private const val CIPHER = "AES/GCM/NoPadding"
+  private const val IV_LENGTH = 12
+  private const val TAG_LENGTH_BITS = 128
+  private const val FRAME_HEADER_LENGTH = 4 + IV_LENGTH
+
+  /** Batches larger than this are split across multiple frames so that a reader never has to hold too much at once. */
+  private const val TARGET_FRAME_SIZE = 256 * 1024
+
+  /** Anything claiming to be larger than this is corrupt. */
+  private const val MAX_FRAME_SIZE = 16 * 1024 * 1024
+
+  /**
+   * Writes a brand new segment. Segments are never reopened for writing, since the string table only lives in memory. Not thread safe.
+   */
+  class Writer(file: File, private val key: SecretKey, version: String) : Closeable {
+
+    private val output = FileOutputStream(file)
+    private val cipher = Cipher.getInstance(CIPHER)
+    private val random = SecureRandom()
+    private val iv = ByteArray(IV_LENGTH)
+    private val plaintext = GrowableBuffer()
+    private val strings = HashMap<String, Int>()
+
+    private var frame = ByteArray(0)
+    private var lastTime = 0L
+
+    /** The number of bytes in the segment so far. */
+    var size: Long = 0
+      private set
+
+    init {
+      output.write(MAGIC)
+      output.write(FORMAT_VERSION)
+      size = MAGIC.size + 1L
+      intern(version)
+    }
+
+    @Throws(IOException::class)
+    fun append(entries: List<LogEntry>) {
+      for (entry in entries) {
+        val tagId = intern(entry.tag)
+        val threadId = intern(entry.threadString)
+
+        plaintext.writeVarInt(RECORD_ENTRY.toLong())
+        plaintext.writeVarInt(zigZag(entry.createdAt - lastTime))
+        plaintext.writeByte(entry.level[0].code)
+        plaintext.writeVarInt(tagId.toLong())
+        plaintext.writeVarInt(threadId.toLong())
+        plaintext.writeString(entry.message)
+
+        lastTime = entry.createdAt
+
+        if (plaintext.size >= TARGET_FRAME_SIZE) {
+          writeFrame()
+        }
+      }
+
+      writeFrame()
+    }
+
+    override fun close() {
+      output.close()
+    }
+
+    private fun intern(value: String): Int {
+      val existing = strings[value]
+      if (existing != null) {
+        return existing
+      }
+
+      val id = strings.size
+      strings[value] = id
+
+      plaintext.writeVarInt(RECORD_STRING.toLong())
+      plaintext.writeString(value)
+
+      return id
+    }
+
+    private fun writeFrame() {
+      if (plaintext.size == 0) {
+        return
+      }
+
+      try {
+        random.nextBytes(iv)
+        cipher.init(Cipher.ENCRYPT_MODE, key, GCMParameterSpec(TAG_LENGTH_BITS, iv))
+
+        val frameLength = FRAME_HEADER_LENGTH + cipher.getOutputSize(plaintext.size)
+        if (frame.size < frameLength) {
+          frame = ByteArray(frameLength)
+        }
+
+        val ciphertextLength = cipher.doFinal(plaintext.bytes, 0, plaintext.size, frame, FRAME_HEADER_LENGTH)
+
+        frame[0] = (ciphertextLength ushr 24).toByte()
+        frame[1] = (ciphertextLength ushr 16).toByte()
+        frame[2] = (ciphertextLength ushr 8).toByte()
+        frame[3] = ciphertextLength.toByte()
+        System.arraycopy(iv, 0, frame, 4, IV_LENGTH)
+
+        output.write(frame, 0, FRAME_HEADER_LENGTH + ciphertextLength)
+        size += FRAME_HEADER_LENGTH + ciphertextLength
+      } catch (e: GeneralSecurityException) {
+        throw AssertionError(e)
+      } finally {
+        plaintext.reset()
+      }
+    }
+  }
+
+  /**
+   * Reads a segment front to back. Call [next] to advance, and then read the current entry from the properties.
+   *
+   * A segment that is still being written to may end in a partial frame, and a segment may have been damaged. In both cases we return
+   * everything up to that point and then stop, rather than failing the whole read.
+   */
+  class Reader(file: File, private val key: SecretKey) : Closeable {
+
+    private val input = DataInputStream(BufferedInputStream(FileInputStream(file)))
+    private val cipher = Cipher.getInstance(CIPHER)
+    private val iv = ByteArray(IV_LENGTH)
+    private val strings = ArrayList<String>()
+
+    private var frame = ByteArray(0)
+    private var plaintext = ByteArray(0)
+    private var plaintextLength = 0
+    private var position = 0
+    private var finished = !readHeader()
+
+    var createdAt: Long = 0
+      private set
+    var level: String = ""
+      private set
+    var tag: String = ""
+      private set
+    var threadString: String = ""
+      private set
+    var message: String = ""
+      private set
+
+    /** The app version that wrote this segment. */
+    val version: String
+      get() = strings.getOrElse(0) { "" }
+
+    /**
+     * Moves to the next entry, returning false once there are none left.
+     */
+    fun next(): Boolean {
+      while (!finished) {
+        if (position >= plaintextLength) {
+          if (!readFrame()) {
+            finished = true
+            return false
+          }
+          continue
+        }
+
+        when (readVarInt().toInt()) {
+          RECORD_STRING -> strings.add(readString())
+          RECORD_ENTRY -> {
+            createdAt += unZigZag(readVarInt())
+            level = levelString(plaintext[position++].toInt())
+            tag = strings[readVarInt().toInt()]
+            threadString = strings[readVarInt().toInt()]
+            message = readString()
+            return true
+          }
+          else -> {
+            finished = true
+          }
+        }
+      }
+
+      return false
+    }
+
+    override fun close() {
+      input.close()
+    }
+
+    private fun readHeader(): Boolean {
+      return try {
+        val magic = ByteArray(MAGIC.size)
+        input.readFully(magic)
+        magic.contentEquals(MAGIC) && input.readUnsignedByte() == FORMAT_VERSION
+      } catch (e: EOFException) {
+        false
+      }
+    }
+
+    private fun readFrame(): Boolean {
+      try {
+        val length = input.readInt()
+        if (length <= 0 || length > MAX_FRAME_SIZE) {
+          return false
+        }
+
+        input.readFully(iv)
+
+        if (frame.size < length) {
+          frame = ByteArray(length)
+        }
+        input.readFully(frame, 0, length)
+
+        cipher.init(Cipher.DECRYPT_MODE, key, GCMParameterSpec(TAG_LENGTH_BITS, iv))
+
+        val outputSize = cipher.getOutputSize(length)
+        if (plaintext.size < outputSize) {
+          plaintext = ByteArray(outputSize)
+        }
+
+        plaintextLength = cipher.doFinal(frame, 0, length, plaintext, 0)
+        position = 0
+        return true
+      } catch (e: EOFException) {
+        return false
+      } catch (e: GeneralSecurityException) {
+        return false
+      }
+    }
+
+    private fun readVarInt(): Long {
+      var result = 0L
+      var shift = 0
+
+      while (true) {
+        val b = plaintext[position++].toInt()
+        result = result or ((b and 0x7F).toLong() shl shift)
+
+        if (b and 0x80 == 0) {
+          return result
+        }
+        shift += 7
+      }
+    }
+
+    private fun readString(): String {
+      val length = readVarInt().toInt()
+      val value = String(plaintext, position, length, Charsets.UTF_8)
+      position += length
+      return value
+    }
+  }
+
+  private val LEVELS = arrayOfNulls<String>(128)
+
+  private fun levelString(code: Int): String {
+    val index = code and 0x7F
+    return LEVELS[index] ?: index.toChar().toString().also { LEVELS[index] = it }
+  }
+
+  private fun zigZag(value: Long): Long {
+    return (value shl 1) xor (value shr 63)
+  }
+
+  private fun unZigZag(value: Long): Long {
+    return (value ushr 1) xor -(value and 1)
+  }
+
+  /**
+   * A reusable byte buffer that encodes strings directly, so we don't allocate an intermediate byte array for every line.
+   */
+  private class GrowableBuffer {
+    var bytes = ByteArray(8 * 1024)
+      private set
+    var size = 0
+      private set
+
+    fun reset() {
+      size = 0
+    }
+
+    fun writeByte(value: Int) {
+      ensureCapacity(1)
+      bytes[size++] = value.toByte()
+    }
+
+    fun writeVarInt(value: Long) {
+      ensureCapacity(10)
+
+      var remaining = value
+      while (remaining and 0x7FL.inv() != 0L) {
+        bytes[size++] = ((remaining and 0x7F) or 0x80).toByte()
+        remaining = remaining ushr 7
+      }
+      bytes[size++] = remaining.toByte()
+    }
+
+    fun writeString(value: String) {
+      val length = utf8Length(value)
+      writeVarInt(length.toLong())
+      ensureCapacity(length)
+
+      var i = 0
+      while (i < value.length) {
+        val c = value[i]
+
+        when {
+          c.code < 0x80 -> {
+            bytes[size++] = c.code.toByte()
+          }
+          c.code < 0x800 -> {
+            bytes[size++] = (0xC0 or (c.code shr 6)).toByte()
+            bytes[size++] = (0x80 or (c.code and 0x3F)).toByte()
+          }
+          Character.isHighSurrogate(c) && i + 1 < value.length && Character.isLowSurrogate(value[i + 1]) -> {
+            val codePoint = Character.toCodePoint(c, value[++i])
+            bytes[size++] = (0xF0 or (codePoint shr 18)).toByte()
+            bytes[size++] = (0x80 or ((codePoint shr 12) and 0x3F)).toByte()
+            bytes[size++] = (0x80 or ((codePoint shr 6) and 0x3F)).toByte()
+            bytes[size++] = (0x80 or (codePoint and 0x3F)).toByte()
+          }
+          Character.isSurrogate(c) -> {
+            bytes[size++] = '?'.code.toByte()
+          }
+          else -> {
+            bytes[size++] = (0xE0 or (c.code shr 12)).toByte()
+            bytes[size++] = (0x80 or ((c.code shr 6) and 0x3F)).toByte()
+            bytes[size++] = (0x80 or (c.code and 0x3F)).toByte()
+          }
+        }
+        i++
+      }
+    }
+
+    private fun utf8Length(value: String): Int {
+      var length = 0
+      var i = 0
+
+      while (i < value.length) {
+        val c = value[i]
+
+        length += when {
+          c.code < 0x80 -> 1
+          c.code < 0x800 -> 2
+          Character.isHighSurrogate(c) && i + 1 < value.length && Character.isLowSurrogate(value[i + 1]) -> {
+            i++
+            4
+          }
+          Character.isSurrogate(c) -> 1
+          else -> 3
+        }
+        i++
+      }
+
+      return length
+    }
+
+    private fun ensureCapacity(additional: Int) {
+      if (size + additional > bytes.size) {
+        bytes = bytes.copyOf(maxOf(bytes.size * 2, size + additional))
+      }
+    }
+  }
+}
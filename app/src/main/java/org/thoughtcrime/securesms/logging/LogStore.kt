@@ -0,0 +1,60 @@
+package org.thoughtcrime.securesms.logging
+
+import android.app.Application
+import org.thoughtcrime.securesms.database.LogDatabase
+import org.thoughtcrime.securesms.database.model.LogEntry
+import org.thoughtcrime.securesms.util.TextSecurePreferences
+import java.io.Closeable
+
+/**
+ * Somewhere [PersistentLogger] can put logs so that they can later be shown and submitted.
+ *
+ * There are two implementations, [LogDatabase] and [SegmentedLogStore]. Which one is used is decided once per process (see
+ * [TextSecurePreferences.useSegmentedLogStore]) so that they can be compared against each other.
+ */
+interface LogStore {
+
+  companion object {
+    @Volatile
+    private var instance: LogStore? = null
+
+    @JvmStatic
+    fun getInstance(application: Application): LogStore {
+      if (instance == null) {
+        synchronized(LogStore::class.java) {
+          if (instance == null) {
+            instance = if (TextSecurePreferences.useSegmentedLogStore(application)) {
+              SegmentedLogStore.getInstance(application)
+            } else {
+              LogDatabase.getInstance(application)
+            }
+          }
+        }
+      }
+      return instance!!
+    }
+  }
+
+  /**
+   * Persists the entries and drops anything that has outlived its lifespan. Only ever called from the logging thread.
+   */
+  fun insert(logs: List<LogEntry>, currentTime: Long)
+
+  /**
+   * Streams every formatted line created before [time], oldest first.
+   */
+  fun getAllBeforeTime(time: Long): Reader
+
+  fun getRangeBeforeTime(start: Int, length: Int, time: Long): List<String>
+
+  fun getLogCountBeforeTime(time: Long): Int
+
+  /**
+   * Deletes the oldest logs until the store fits within its size limit.
+   */
+  fun trimToSize()
+
+  fun clearKeepLonger()
+
+  interface Reader : Iterator<String>, Closeable
+}
@@ -4,26 +4,21 @@ import android.app.Application
 import android.os.Looper
 import org.signal.core.util.logging.Log
 import org.signal.core.util.logging.Scrubber
-import org.thoughtcrime.securesms.BuildConfig
-import org.thoughtcrime.securesms.database.LogDatabase
 import org.thoughtcrime.securesms.database.model.LogEntry
 import org.thoughtcrime.securesms.logging.PersistentLogger.LogRequest
 import org.thoughtcrime.securesms.logging.PersistentLogger.WriteThread
 import java.io.ByteArrayOutputStream
 import java.io.PrintStream
-import java.text.SimpleDateFormat
-import java.util.Date
-import java.util.Locale
 
 /**
- * A logger that will persist log entries in [LogDatabase].
+ * A logger that will persist log entries in a [LogStore].
  *
  * We log everywhere, and we never want it to slow down the app, so performance is critical here.
  * This class takes special care to do as little as possible on the main thread, instead letting the background thread do the work.
  *
  * The process looks something like:
  * - Main thread creates a [LogRequest] object and puts it in a queue
- * - The [WriteThread] constantly pulls from that queue, formats the logs, and writes them to the database.
+ * - The [WriteThread] constantly pulls from that queue, scrubs the logs, and writes them to the store.
  */
 class PersistentLogger(
   application: Application
@@ -38,11 +33,11 @@ class PersistentLogger(
   }
 
   private val logEntries = LogRequests()
-  private val logDatabase = LogDatabase.getInstance(application)
+  private val logStore = LogStore.getInstance(application)
   private val cachedThreadString: ThreadLocal<String> = ThreadLocal()
 
   init {
-    WriteThread(logEntries, logDatabase).apply {
+    WriteThread(logEntries, logStore).apply {
       priority = Thread.MIN_PRIORITY
     }.start()
   }
@@ -103,16 +98,15 @@ class PersistentLogger(
 
   private class WriteThread(
     private val requests: LogRequests,
-    private val db: LogDatabase
+    private val store: LogStore
   ) : Thread("signal-logger") {
 
-    private val dateFormat = SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS zzz", Locale.US)
     private val buffer = mutableListOf<LogRequest>()
 
     override fun run() {
       while (true) {
         requests.blockForRequests(buffer)
-        db.insert(buffer.flatMap { requestToEntries(it) }, System.currentTimeMillis())
+        store.insert(buffer.flatMap { requestToEntries(it) }, System.currentTimeMillis())
         buffer.clear()
         requests.notifyFlushed()
       }
@@ -121,15 +115,7 @@ class PersistentLogger(
     fun requestToEntries(request: LogRequest): List<LogEntry> {
       val out = mutableListOf<LogEntry>()
 
-      val createDate = Date(request.createTime)
-
-      out.add(
-        LogEntry(
-          createdAt = request.createTime,
-          keepLonger = request.keepLonger,
-          body = formatBody(request.threadString, createDate, request.level, request.tag, request.message)
-        )
-      )
+      out.add(toEntry(request, request.message))
 
       if (request.throwable != null) {
         val outputStream = ByteArrayOutputStream()
@@ -138,22 +124,21 @@ class PersistentLogger(
         val trace = String(outputStream.toByteArray())
         val lines = trace.split("\\n".toRegex()).toTypedArray()
 
-        val entries = lines.map { line ->
-          LogEntry(
-            createdAt = request.createTime,
-            keepLonger = request.keepLonger,
-            body = formatBody(request.threadString, createDate, request.level, request.tag, line)
-          )
-        }
-
-        out.addAll(entries)
+        out.addAll(lines.map { line -> toEntry(request, line) })
       }
 
       return out
     }
 
-    fun formatBody(threadString: String, date: Date, level: String, tag: String, message: String?): String {
-      return "[${BuildConfig.VERSION_NAME}] [$threadString] ${dateFormat.format(date)} $level $tag: ${Scrubber.scrub(message ?: "")}"
+    fun toEntry(request: LogRequest, message: String?): LogEntry {
+      return LogEntry(
+        createdAt = request.createTime,
+        keepLonger = request.keepLonger,
+        level = request.level,
+        tag = request.tag,
+        threadString = request.threadString,
+        message = Scrubber.scrub(message ?: "").toString()
+      )
     }
   }
 
@@ -0,0 +1,374 @@
+package org.thoughtcrime.securesms.logging
+
+import android.annotation.SuppressLint
+import android.app.Application
+import androidx.annotation.VisibleForTesting
+import org.signal.core.util.Stopwatch
+import org.signal.core.util.logging.Log
+import org.thoughtcrime.securesms.BuildConfig
+import org.thoughtcrime.securesms.database.model.LogEntry
+import org.thoughtcrime.securesms.util.ByteUnit
+import java.io.File
+import java.io.IOException
+import java.util.concurrent.TimeUnit
+import javax.crypto.SecretKey
+import javax.crypto.spec.SecretKeySpec
+
+/**
+ * A [LogStore] that appends logs to encrypted segment files (see [LogSegment]) rather than inserting rows into a database.
+ *
+ * Writes are a single encrypt-and-append per batch. Logs that should be kept longer go into their own series of segments, so that
+ * everything can be expired and trimmed by deleting whole files, oldest first. Reads stream through the segments, merging the two
+ * series by time.
+ */
+class SegmentedLogStore @JvmOverloads constructor(
+  directory: File,
+  private val secretProvider: () -> ByteArray,
+  private val maxTotalSize: Long = MAX_TOTAL_SIZE,
+  private val maxSegmentSize: Long = MAX_SEGMENT_SIZE
+) : LogStore {
+
+  companion object {
+    private val TAG = Log.tag(SegmentedLogStore::class.java)
+
+    private val MAX_TOTAL_SIZE = ByteUnit.MEGABYTES.toBytes(20)
+    private val MAX_SEGMENT_SIZE = ByteUnit.MEGABYTES.toBytes(1)
+    private val DEFAULT_LIFESPAN = TimeUnit.DAYS.toMillis(3)
+    private val LONGER_LIFESPAN = TimeUnit.DAYS.toMillis(21)
+
+    private const val DIRECTORY = "logs"
+    private const val SEGMENT_SUFFIX = ".seg"
+
+    @SuppressLint("StaticFieldLeak") // We hold an Application context, not a view context
+    @Volatile
+    private var instance: SegmentedLogStore? = null
+
+    @JvmStatic
+    fun getInstance(application: Application): SegmentedLogStore {
+      if (instance == null) {
+        synchronized(SegmentedLogStore::class.java) {
+          if (instance == null) {
+            instance = SegmentedLogStore(File(application.filesDir, DIRECTORY), { LogSecretProvider.getOrCreateAttachmentSecret(application) })
+          }
+        }
+      }
+      return instance!!
+    }
+  }
+
+  /** Resolved lazily, since fetching the secret may hit the keystore and we're created on the main thread during startup. */
+  private val key: SecretKey by lazy { SecretKeySpec(secretProvider(), "AES") }
+
+  private val defaultSeries = Series(File(directory, "default"), DEFAULT_LIFESPAN)
+  private val keepLongerSeries = Series(File(directory, "keep_longer"), LONGER_LIFESPAN)
+  private val allSeries = listOf(defaultSeries, keepLongerSeries)
+
+  private val rangeLock = Any()
+  private var rangeCursor: RangeCursor? = null
+
+  override fun insert(logs: List<LogEntry>, currentTime: Long) {
+    synchronized(this) {
+      for (log in logs) {
+        if (log.keepLonger) {
+          keepLongerSeries.pending.add(log)
+        } else {
+          defaultSeries.pending.add(log)
+        }
+      }
+
+      allSeries.forEach { it.flush(currentTime) }
+    }
+  }
+
+  override fun getAllBeforeTime(time: Long): LogStore.Reader {
+    return MergingReader(snapshot(), time)
+  }
+
+  /**
+   * The debug log screen pages through the logs front to back, so we hold on to the reader from the previous call and continue from
+   * where it left off when we can, instead of re-reading everything before [start] each time. Once the reader runs out we close it,
+   * so that we're not holding on to open segments after the last page.
+   */
+  override fun getRangeBeforeTime(start: Int, length: Int, time: Long): List<String> {
+    synchronized(rangeLock) {
+      var cursor = rangeCursor
+
+      if (cursor == null || cursor.time != time || cursor.position > start) {
+        cursor?.reader?.close()
+        cursor = RangeCursor(MergingReader(snapshot(), time), time)
+        rangeCursor = cursor
+      }
+
+      while (cursor.position < start && cursor.reader.skip()) {
+        cursor.position++
+      }
+
+      val lines = ArrayList<String>(length)
+      while (lines.size < length && cursor.reader.hasNext()) {
+        lines.add(cursor.reader.next())
+        cursor.position++
+      }
+
+      if (!cursor.reader.hasNext()) {
+        cursor.reader.close()
+        rangeCursor = null
+      }
+
+      return lines
+    }
+  }
+
+  @VisibleForTesting
+  fun hasOpenRangeReader(): Boolean {
+    synchronized(rangeLock) {
+      return rangeCursor != null
+    }
+  }
+
+  override fun getLogCountBeforeTime(time: Long): Int {
+    var count = 0
+
+    for (segments in snapshot()) {
+      SeriesReader(segments, key, time).use { reader ->
+        while (reader.advance()) {
+          count++
+        }
+      }
+    }
+
+    return count
+  }
+
+  override fun trimToSize() {
+    val stopwatch = Stopwatch("trim")
+    val currentTime = System.currentTimeMillis()
+
+    synchronized(this) {
+      allSeries.forEach { it.deleteExpired(currentTime) }
+      stopwatch.split("expired")
+
+      var totalSize = allSeries.sumOf { series -> series.listSegments().sumOf { it.length() } }
+
+      // Segments are only ever appended to, so the last time one was modified is the age of the newest log in it
+      val oldestFirst = allSeries
+        .flatMap { series -> series.listSegments().filter { it != series.activeSegment } }
+        .map { it to it.lastModified() }
+        .sortedBy { (_, lastModified) -> lastModified }
+
+      for ((segment, _) in oldestFirst) {
+        if (totalSize <= maxTotalSize) {
+          break
+        }
+
+        val length = segment.length()
+        if (segment.delete()) {
+          totalSize -= length
+        }
+      }
+      stopwatch.split("size")
+    }
+
+    stopwatch.stop(TAG)
+  }
+
+  override fun clearKeepLonger() {
+    synchronized(this) {
+      keepLongerSeries.closeWriter()
+      keepLongerSeries.listSegments().forEach { it.delete() }
+    }
+  }
+
+  private fun snapshot(): List<List<File>> {
+    synchronized(this) {
+      return allSeries.map { it.listSegments() }
+    }
+  }
+
+  /**
+   * One sequence of segments, oldest first. Only the newest segment is ever written to.
+   */
+  private inner class Series(private val directory: File, private val lifespan: Long) {
+
+    val pending = ArrayList<LogEntry>()
+
+    private var writer: LogSegment.Writer? = null
+
+    var activeSegment: File? = null
+      private set
+
+    fun flush(currentTime: Long) {
+      if (pending.isEmpty()) {
+        return
+      }
+
+      try {
+        var writer = this.writer
+
+        if (writer == null || writer.size >= maxSegmentSize) {
+          closeWriter()
+          deleteExpired(currentTime)
+          writer = openWriter(currentTime)
+        }
+
+        writer.append(pending)
+      } catch (e: IOException) {
+        // Logging this through Log would land it right back here, so it only goes to logcat
+        android.util.Log.w(TAG, "Failed to write logs!", e)
+        closeWriter()
+      } finally {
+        pending.clear()
+      }
+    }
+
+    fun closeWriter() {
+      try {
+        writer?.close()
+      } catch (e: IOException) {
+        android.util.Log.w(TAG, "Failed to close segment.", e)
+      }
+      writer = null
+      activeSegment = null
+    }
+
+    fun deleteExpired(currentTime: Long) {
+      for (segment in listSegments()) {
+        if (segment != activeSegment && segment.lastModified() < currentTime - lifespan) {
+          segment.delete()
+        }
+      }
+    }
+
+    fun listSegments(): List<File> {
+      val files = directory.listFiles() ?: return emptyList()
+
+      return files
+        .filter { it.name.endsWith(SEGMENT_SUFFIX) && segmentId(it) != null }
+        .sortedBy { segmentId(it) }
+    }
+
+    private fun openWriter(currentTime: Long): LogSegment.Writer {
+      if (!directory.exists() && !directory.mkdirs()) {
+        throw IOException("Failed to create ${directory.name}")
+      }
+
+      var id = maxOf(currentTime, (listSegments().lastOrNull()?.let { segmentId(it) } ?: 0) + 1)
+      var file = File(directory, "$id$SEGMENT_SUFFIX")
+      while (file.exists()) {
+        id++
+        file = File(directory, "$id$SEGMENT_SUFFIX")
+      }
+
+      return LogSegment.Writer(file, key, BuildConfig.VERSION_NAME).also {
+        writer = it
+        activeSegment = file
+      }
+    }
+
+    private fun segmentId(file: File): Long? {
+      return file.name.removeSuffix(SEGMENT_SUFFIX).toLongOrNull()
+    }
+  }
+
+  /**
+   * Walks every entry created before [time] in one series of segments, opening each segment as the previous one runs out. Segments
+   * that were trimmed after we took our snapshot are skipped.
+   */
+  private class SeriesReader(segments: List<File>, private val key: SecretKey, private val time: Long) : AutoCloseable {
+
+    private val remaining = ArrayDeque(segments)
+    private var current: LogSegment.Reader? = null
+
+    fun advance(): Boolean {
+      while (true) {
+        val reader = current ?: openNext() ?: return false
+
+        while (reader.next()) {
+          if (reader.createdAt < time) {
+            return true
+          }
+        }
+
+        reader.close()
+        current = null
+      }
+    }
+
+    fun requireCurrent(): LogSegment.Reader {
+      return current!!
+    }
+
+    override fun close() {
+      current?.close()
+      current = null
+      remaining.clear()
+    }
+
+    private fun openNext(): LogSegment.Reader? {
+      while (remaining.isNotEmpty()) {
+        try {
+          return LogSegment.Reader(remaining.removeFirst(), key).also { current = it }
+        } catch (e: IOException) {
+          Log.w(TAG, "Failed to open segment, skipping.", e)
+        }
+      }
+      return null
+    }
+  }
+
+  /**
+   * Merges the series by creation time, and only formats a line when it's actually asked for.
+   */
+  private inner class MergingReader(segments: List<List<File>>, time: Long) : LogStore.Reader {
+
+    private val readers = segments.map { SeriesReader(it, key, time) }
+    private val hasEntry = BooleanArray(readers.size) { readers[it].advance() }
+    private val formatter = LogLineFormatter()
+
+    override fun hasNext(): Boolean {
+      return hasEntry.any { it }
+    }
+
+    override fun next(): String {
+      val index = nextIndex()
+      val entry = readers[index].requireCurrent()
+      val line = formatter.format(entry.version, entry.threadString, entry.createdAt, entry.level, entry.tag, entry.message)
+
+      hasEntry[index] = readers[index].advance()
+      return line
+    }
+
+    fun skip(): Boolean {
+      if (!hasNext()) {
+        return false
+      }
+
+      val index = nextIndex()
+      hasEntry[index] = readers[index].advance()
+      return true
+    }
+
+    override fun close() {
+      readers.forEach { it.close() }
+    }
+
+    private fun nextIndex(): Int {
+      var best = -1
+
+      for (i in readers.indices) {
+        if (hasEntry[i] && (best == -1 || readers[i].requireCurrent().createdAt < readers[best].requireCurrent().createdAt)) {
+          best = i
+        }
+      }
+
+      if (best == -1) {
+        throw NoSuchElementException()
+      }
+
+      return best
+    }
+  }
+
+  private class RangeCursor(val reader: MergingReader, val time: Long) {
+    var position = 0
+  }
+}
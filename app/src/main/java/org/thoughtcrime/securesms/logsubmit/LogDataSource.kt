@@ -3,12 +3,12 @@ package org.thoughtcrime.securesms.logsubmit
 import android.app.Application
 import org.signal.core.util.logging.Scrubber
 import org.signal.paging.PagedDataSource
-import org.thoughtcrime.securesms.database.LogDatabase
+import org.thoughtcrime.securesms.logging.LogStore
 
 /**
  * Retrieves logs to show in the [SubmitDebugLogActivity].
  *
- * @param prefixLines A static list of lines to show before all of the lines retrieved from [LogDatabase]
+ * @param prefixLines A static list of lines to show before all of the lines retrieved from the [LogStore]
  * @param untilTime Only show logs before this time. This is our way of making sure the set of logs we show on this screen doesn't grow.
  */
 class LogDataSource(
@@ -18,10 +18,10 @@ class LogDataSource(
 ) :
   PagedDataSource<Long, LogLine> {
 
-  val logDatabase = LogDatabase.getInstance(application)
+  val logStore = LogStore.getInstance(application)
 
   override fun size(): Int {
-    return prefixLines.size + logDatabase.getLogCountBeforeTime(untilTime)
+    return prefixLines.size + logStore.getLogCountBeforeTime(untilTime)
   }
 
   override fun load(start: Int, length: Int, cancellationSignal: PagedDataSource.CancellationSignal): List<LogLine> {
@@ -29,9 +29,9 @@ class LogDataSource(
       return prefixLines.subList(start, start + length)
     } else if (start < prefixLines.size) {
       return prefixLines.subList(start, prefixLines.size) +
-        logDatabase.getRangeBeforeTime(0, length - (prefixLines.size - start), untilTime).map { convertToLogLine(it) }
+        logStore.getRangeBeforeTime(0, length - (prefixLines.size - start), untilTime).map { convertToLogLine(it) }
     } else {
-      return logDatabase.getRangeBeforeTime(start - prefixLines.size, length, untilTime).map { convertToLogLine(it) }
+      return logStore.getRangeBeforeTime(start - prefixLines.size, length, untilTime).map { convertToLogLine(it) }
     }
   }
 
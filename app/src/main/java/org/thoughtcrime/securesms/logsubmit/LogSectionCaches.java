@@ -0,0 +1,76 @@
+package org.thoughtcrime.securesms.logsubmit;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+
+import org.thoughtcrime.securesms.database.SignalDatabase;
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
+import org.thoughtcrime.securesms.emoji.EmojiPageCache;
+
+import java.util.Locale;
+
+/**
+ * Renders hit rates and memory use for each of our in-memory caches, one after another.
+ */
+final class LogSectionCaches implements LogSection {
+
+  @Override
+  public @NonNull String getTitle() {
+    return "CACHES";
+  }
+
+  @Override
+  public @NonNull CharSequence getContent(@NonNull Context context) {
+    StringBuilder builder = new StringBuilder();
+
+    appendCache(builder, "Recipients", ApplicationDependencies.getRecipientCache().getStats());
+    appendCache(builder, "Sessions", SignalDatabase.sessions().getCacheStats());
+    appendCache(builder, "Emoji", getEmojiStats());
+
+    return builder;
+  }
+
+  private static void appendCache(@NonNull StringBuilder builder, @NonNull String name, @NonNull CharSequence stats) {
+    if (builder.length() > 0) {
+      builder.append('\n');
+    }
+
+    builder.append(name);
+
+    for (String line : stats.toString().split("\n")) {
+      builder.append('\n').append("  ").append(line);
+    }
+  }
+
+  private static @NonNull String getEmojiStats() {
+    EmojiPageCache.Stats stats   = EmojiPageCache.INSTANCE.getStats();
+    StringBuilder        builder = new StringBuilder();
+
+    if (stats.getTiers().isEmpty()) {
+      builder.append("No pages loaded\n");
+    }
+
+    for (EmojiPageCache.TierStats tier : stats.getTiers()) {
+      builder.append("inSampleSize ").append(tier.getInSampleSize()).append('\n')
+             .append("  Pages: ").append(tier.getPages())
+             .append(", Size: ").append(formatBytes(tier.getBytes())).append(" / ").append(formatBytes(tier.getMaxBytes())).append('\n')
+             .append("  Hits: ").append(tier.getHits())
+             .append(", Misses: ").append(tier.getMisses())
+             .append(", Evictions: ").append(tier.getEvictions()).append('\n')
+             .append("  Decodes: ").append(tier.getDecodes())
+             .append(", Decode time: ").append(tier.getDecodeMillis()).append(" ms").append('\n');
+    }
+
+    builder.append("Single emoji: ").append(stats.getEmoji())
+           .append(", Size: ").append(formatBytes(stats.getEmojiBytes()))
+           .append(", Hits: ").append(stats.getEmojiHits())
+           .append(", Misses: ").append(stats.getEmojiMisses());
+
+    return builder.toString();
+  }
+
+  private static @NonNull String formatBytes(int bytes) {
+    return String.format(Locale.US, "%.1f MiB", bytes / (1024f * 1024f));
+  }
+}
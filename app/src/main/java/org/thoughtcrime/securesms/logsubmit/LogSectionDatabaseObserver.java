@@ -0,0 +1,23 @@
+package org.thoughtcrime.securesms.logsubmit;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
+
+/**
+ * Renders how many database change notifications were dispatched vs coalesced.
+ */
+public class LogSectionDatabaseObserver implements LogSection {
+
+  @Override
+  public @NonNull String getTitle() {
+    return "DATABASE OBSERVER";
+  }
+
+  @Override
+  public @NonNull CharSequence getContent(@NonNull Context context) {
+    return ApplicationDependencies.getDatabaseObserver().getStats();
+  }
+}
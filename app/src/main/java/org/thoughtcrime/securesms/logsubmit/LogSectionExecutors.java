@@ -0,0 +1,64 @@
+package org.thoughtcrime.securesms.logsubmit;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+
+import org.signal.core.util.concurrent.ExecutorMetrics;
+import org.signal.core.util.concurrent.ExecutorMetrics.Snapshot;
+import org.signal.core.util.concurrent.ExecutorMetrics.TaskStats;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Renders queue depths, wait times and run times for each of our executors, broken down by task tag.
+ */
+final class LogSectionExecutors implements LogSection {
+
+  @Override
+  public @NonNull String getTitle() {
+    return "EXECUTORS";
+  }
+
+  @Override
+  public @NonNull CharSequence getContent(@NonNull Context context) {
+    StringBuilder builder = new StringBuilder();
+
+    for (Snapshot snapshot : ExecutorMetrics.getSnapshots()) {
+      builder.append(snapshot.getName()).append('\n')
+             .append("  ").append("Queued: ").append(snapshot.getQueueDepth())
+             .append(", Max Queued: ").append(snapshot.getMaxQueueDepth())
+             .append(", Active: ").append(snapshot.getActiveCount())
+             .append(", Rejected: ").append(snapshot.getRejectedCount()).append('\n')
+             .append("  ").append(formatStats(snapshot.getTotal())).append('\n');
+
+      List<Map.Entry<String, TaskStats>> tags = new ArrayList<>(snapshot.getTags().entrySet());
+      Collections.sort(tags, (lhs, rhs) -> Long.compare(rhs.getValue().getTotalRunNanos(), lhs.getValue().getTotalRunNanos()));
+
+      for (Map.Entry<String, TaskStats> tag : tags) {
+        builder.append("    ").append(tag.getKey()).append('\n')
+               .append("      ").append(formatStats(tag.getValue())).append('\n');
+      }
+    }
+
+    return builder;
+  }
+
+  private static @NonNull String formatStats(@NonNull TaskStats stats) {
+    if (stats.getCount() == 0) {
+      return "Tasks: 0";
+    }
+
+    return String.format(Locale.US,
+                         "Tasks: %d, Wait (avg): %.1f ms, Wait (max): %.1f ms, Run (avg): %.1f ms, Run (max): %.1f ms",
+                         stats.getCount(),
+                         stats.getTotalWaitNanos() / (double) stats.getCount() / 1_000_000,
+                         stats.getMaxWaitNanos() / 1_000_000d,
+                         stats.getTotalRunNanos() / (double) stats.getCount() / 1_000_000,
+                         stats.getMaxRunNanos() / 1_000_000d);
+  }
+}
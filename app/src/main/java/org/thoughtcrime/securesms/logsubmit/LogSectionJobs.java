@@ -4,6 +4,7 @@ import android.content.Context;
 
 import androidx.annotation.NonNull;
 
+import org.thoughtcrime.securesms.database.JobDatabase;
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
 
 public class LogSectionJobs implements LogSection {
@@ -15,6 +16,8 @@ public class LogSectionJobs implements LogSection {
 
   @Override
   public @NonNull CharSequence getContent(@NonNull Context context) {
-    return ApplicationDependencies.getJobManager().getDebugInfo();
+    return "-- Database Writes\n" +
+           JobDatabase.getInstance(ApplicationDependencies.getApplication()).getWriteStats() + "\n\n" +
+           ApplicationDependencies.getJobManager().getDebugInfo();
   }
 }
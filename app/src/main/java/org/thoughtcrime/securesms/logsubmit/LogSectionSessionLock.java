@@ -0,0 +1,23 @@
+package org.thoughtcrime.securesms.logsubmit;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+
+import org.thoughtcrime.securesms.crypto.ReentrantSessionLock;
+
+/**
+ * Renders how often, and for how long, we had to wait on the session lock.
+ */
+public class LogSectionSessionLock implements LogSection {
+
+  @Override
+  public @NonNull String getTitle() {
+    return "SESSION LOCK";
+  }
+
+  @Override
+  public @NonNull CharSequence getContent(@NonNull Context context) {
+    return ReentrantSessionLock.INSTANCE.getStats();
+  }
+}
@@ -19,8 +19,8 @@ import org.signal.core.util.concurrent.SignalExecutors;
 import org.signal.core.util.logging.Log;
 import org.signal.core.util.logging.Scrubber;
 import org.signal.core.util.tracing.Tracer;
-import org.thoughtcrime.securesms.database.LogDatabase;
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
+import org.thoughtcrime.securesms.logging.LogStore;
 import org.thoughtcrime.securesms.net.StandardUserAgentInterceptor;
 import org.thoughtcrime.securesms.providers.BlobProvider;
 import org.thoughtcrime.securesms.push.SignalServiceNetworkAccess;
@@ -75,6 +75,9 @@ public class SubmitDebugLogRepository {
     add(new LogSectionConstraints());
     add(new LogSectionCapabilities());
     add(new LogSectionLocalMetrics());
+    add(new LogSectionCaches());
+    add(new LogSectionDatabaseObserver());
+    add(new LogSectionSessionLock());
     add(new LogSectionFeatureFlags());
     add(new LogSectionPin());
     if (Build.VERSION.SDK_INT >= 28) {
@@ -89,6 +92,7 @@ public class SubmitDebugLogRepository {
     add(new LogSectionBadges());
     add(new LogSectionPermissions());
     add(new LogSectionTrace());
+    add(new LogSectionExecutors());
     add(new LogSectionThreads());
     add(new LogSectionThreadDump());
     if (FeatureFlags.internalUser()) {
@@ -114,7 +118,7 @@ public class SubmitDebugLogRepository {
   public void buildAndSubmitLog(@NonNull Callback<Optional<String>> callback) {
     SignalExecutors.UNBOUNDED.execute(() -> {
       Log.blockUntilAllWritesFinished();
-      LogDatabase.getInstance(context).trimToSize();
+      LogStore.getInstance(context).trimToSize();
       callback.onResult(submitLogInternal(System.currentTimeMillis(), getPrefixLogLinesInternal(), Tracer.getInstance().serialize()));
     });
   }
@@ -122,7 +126,7 @@ public class SubmitDebugLogRepository {
   /**
    * Submits a log with the provided prefix lines.
    *
-   * @param untilTime Only submit logs from {@link LogDatabase} if they were created before this time. This is our way of making sure that the logs we submit
+   * @param untilTime Only submit logs from {@link LogStore} if they were created before this time. This is our way of making sure that the logs we submit
    *                  only include the logs that we've already shown the user. It's possible some old logs may have been trimmed off in the meantime, but no
    *                  new ones could pop up.
    */
@@ -138,7 +142,7 @@ public class SubmitDebugLogRepository {
         outputStream.putNextEntry(new ZipEntry("log.txt"));
         outputStream.write(prefixLines.toString().getBytes(StandardCharsets.UTF_8));
 
-        try (LogDatabase.Reader reader = LogDatabase.getInstance(context).getAllBeforeTime(untilTime)) {
+        try (LogStore.Reader reader = LogStore.getInstance(context).getAllBeforeTime(untilTime)) {
           while (reader.hasNext()) {
             outputStream.write(reader.next().getBytes());
             outputStream.write("\n".getBytes());
@@ -191,7 +195,7 @@ public class SubmitDebugLogRepository {
 
       stopwatch.split("front-matter");
 
-      try (LogDatabase.Reader reader = LogDatabase.getInstance(context).getAllBeforeTime(untilTime)) {
+      try (LogStore.Reader reader = LogStore.getInstance(context).getAllBeforeTime(untilTime)) {
         while (reader.hasNext()) {
           gzipOutput.write(reader.next().getBytes());
           gzipOutput.write("\n".getBytes());
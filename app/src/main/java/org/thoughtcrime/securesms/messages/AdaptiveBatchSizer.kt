@@ -0,0 +1,103 @@
+package org.thoughtcrime.securesms.messages
+
+import org.signal.core.util.logging.Log
+
+/**
+ * Decides how many envelopes [IncomingMessageObserver] should read off of the websocket at once.
+ *
+ * Every batch is processed in a single transaction, so bigger batches amortize the cost of committing when we're draining
+ * a large backlog. However, nothing in a batch is visible to the user until it commits, so when we're not backlogged (or
+ * the user is actively looking at the app), we prefer small batches to keep latency low.
+ *
+ * We don't know how deep the server's queue is, but if a batch came back full and the server hasn't told us the queue is
+ * empty, we assume there's a backlog. While backlogged, we step the batch size up as long as a batch finishes within our
+ * time budget, and step it back down when it doesn't. A batch that comes back partially full steps the size down one
+ * level, and an empty queue drops it to the smallest size.
+ *
+ * The next batch may be read while this one is still being processed, so we're told about each batch in two parts: once
+ * when it's received, which is all the next read needs to know, and again once it's been processed.
+ */
+class AdaptiveBatchSizer(
+  private val foregroundBudgetMs: Long = FOREGROUND_BUDGET_MS,
+  private val backgroundBudgetMs: Long = BACKGROUND_BUDGET_MS
+) {
+
+  companion object {
+    private val TAG = Log.tag(AdaptiveBatchSizer::class.java)
+
+    /** The batch sizes we step between. The first is what we use whenever we're not draining a backlog. */
+    val BATCH_SIZES: IntArray = intArrayOf(10, 30, 60, 100, 150, 200)
+
+    private const val FOREGROUND_BUDGET_MS = 500L
+    private const val BACKGROUND_BUDGET_MS = 2_000L
+  }
+
+  private var index: Int = 1
+  private var backlogged: Boolean = false
+
+  /** The number of envelopes to request in the next batch. */
+  val batchSize: Int
+    get() = BATCH_SIZES[index]
+
+  /**
+   * Record that a batch was read, and update [batchSize] based on whether we still seem to be backlogged.
+   *
+   * @param requested The batch size that was requested.
+   * @param received The number of envelopes actually in the batch.
+   * @param hasMore Whether the server may still have more envelopes queued for us.
+   */
+  fun onBatchReceived(requested: Int, received: Int, hasMore: Boolean) {
+    val previous = batchSize
+    backlogged = hasMore && received >= requested
+
+    index = when {
+      !hasMore -> 0
+      received < requested -> (minOf(index, levelOf(requested)) - 1).coerceAtLeast(0)
+      else -> index
+    }
+
+    if (previous != batchSize) {
+      Log.d(TAG, "Batch size $previous -> $batchSize (requested: $requested, received: $received, hasMore: $hasMore)")
+    }
+  }
+
+  /**
+   * Record how long the most recently received batch took to process, and update [batchSize] accordingly. Only has an effect while
+   * we're backlogged.
+   *
+   * @param requested The batch size that was requested.
+   * @param received The number of envelopes actually in the batch.
+   * @param decryptTimeMs Time spent decrypting and processing the envelopes.
+   * @param commitTimeMs Time spent writing the results to disk and committing the transaction.
+   * @param appVisible Whether the user is currently looking at the app.
+   */
+  fun onBatchProcessed(requested: Int, received: Int, decryptTimeMs: Long, commitTimeMs: Long, appVisible: Boolean) {
+    if (!backlogged) {
+      return
+    }
+
+    val previous = batchSize
+    val level = levelOf(requested)
+    val budget = if (appVisible) foregroundBudgetMs else backgroundBudgetMs
+    val perEnvelopeMs = decryptTimeMs.toDouble() / received.coerceAtLeast(1)
+    val projectedNextMs = perEnvelopeMs * BATCH_SIZES[(level + 1).coerceAtMost(BATCH_SIZES.lastIndex)] + commitTimeMs
+
+    index = when {
+      decryptTimeMs + commitTimeMs > budget -> (level - 1).coerceAtLeast(0)
+      projectedNextMs <= budget -> (level + 1).coerceAtMost(BATCH_SIZES.lastIndex)
+      else -> level
+    }
+
+    if (previous != batchSize) {
+      Log.d(TAG, "Batch size $previous -> $batchSize (received: $received, decrypt: $decryptTimeMs ms, commit: $commitTimeMs ms, visible: $appVisible)")
+    }
+  }
+
+  /**
+   * Steps are taken from the size the batch was requested at, which may not be the current size if the next batch was already read.
+   */
+  private fun levelOf(requested: Int): Int {
+    val level = BATCH_SIZES.indexOf(requested)
+    return if (level >= 0) level else index
+  }
+}
@@ -37,6 +37,9 @@ import org.thoughtcrime.securesms.messages.protocol.BufferedProtocolStore
 import org.thoughtcrime.securesms.notifications.NotificationChannels
 import org.thoughtcrime.securesms.recipients.RecipientId
 import org.thoughtcrime.securesms.util.AppForegroundObserver
+import org.thoughtcrime.securesms.util.SignalLocalMetrics
+import org.whispersystems.signalservice.api.SignalWebSocket.EnvelopeBatch
+import org.whispersystems.signalservice.api.messages.EnvelopeResponse
 import org.whispersystems.signalservice.api.push.ServiceId
 import org.whispersystems.signalservice.api.util.UuidUtil
 import org.whispersystems.signalservice.api.websocket.WebSocketConnectionState
@@ -44,6 +47,9 @@ import org.whispersystems.signalservice.api.websocket.WebSocketUnavailableExcept
 import org.whispersystems.signalservice.internal.push.SignalServiceProtos
 import java.util.*
 import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Future
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.TimeoutException
 import java.util.concurrent.atomic.AtomicInteger
@@ -73,6 +79,9 @@ class IncomingMessageObserver(private val context: Application) {
   private val keepAliveTokens: MutableMap<String, Long> = mutableMapOf()
   private val connectionReceiver: BroadcastReceiver
 
+  private val batchSizer = AdaptiveBatchSizer()
+  private val prefetchExecutor: ExecutorService = SignalExecutors.newCachedSingleThreadExecutor("signal-MessagePrefetch", ThreadUtil.PRIORITY_IMPORTANT_BACKGROUND_THREAD)
+
   private val lock: ReentrantLock = ReentrantLock()
   private val condition: Condition = lock.newCondition()
 
@@ -256,8 +265,16 @@ class IncomingMessageObserver(private val context: Application) {
     }
   }
 
+  /**
+   * @param lockScope The envelope's [MessageDecryptor.getLockScope], if the caller already has it.
+   */
   @VisibleForTesting
-  fun processEnvelope(bufferedProtocolStore: BufferedProtocolStore, envelope: SignalServiceProtos.Envelope, serverDeliveredTimestamp: Long): List<FollowUpOperation>? {
+  fun processEnvelope(
+    bufferedProtocolStore: BufferedProtocolStore,
+    envelope: SignalServiceProtos.Envelope,
+    serverDeliveredTimestamp: Long,
+    lockScope: MessageDecryptor.LockScope? = null
+  ): List<FollowUpOperation>? {
     return when (envelope.type.number) {
       SignalServiceProtos.Envelope.Type.RECEIPT_VALUE -> {
         processReceipt(envelope)
@@ -268,7 +285,7 @@ class IncomingMessageObserver(private val context: Application) {
       SignalServiceProtos.Envelope.Type.CIPHERTEXT_VALUE,
       SignalServiceProtos.Envelope.Type.UNIDENTIFIED_SENDER_VALUE,
       SignalServiceProtos.Envelope.Type.PLAINTEXT_CONTENT_VALUE -> {
-        processMessage(bufferedProtocolStore, envelope, serverDeliveredTimestamp)
+        processMessage(bufferedProtocolStore, envelope, serverDeliveredTimestamp, lockScope)
       }
 
       else -> {
@@ -278,8 +295,13 @@ class IncomingMessageObserver(private val context: Application) {
     }
   }
 
-  private fun processMessage(bufferedProtocolStore: BufferedProtocolStore, envelope: SignalServiceProtos.Envelope, serverDeliveredTimestamp: Long): List<FollowUpOperation> {
-    val result = MessageDecryptor.decrypt(context, bufferedProtocolStore, envelope, serverDeliveredTimestamp)
+  private fun processMessage(
+    bufferedProtocolStore: BufferedProtocolStore,
+    envelope: SignalServiceProtos.Envelope,
+    serverDeliveredTimestamp: Long,
+    lockScope: MessageDecryptor.LockScope?
+  ): List<FollowUpOperation> {
+    val result = MessageDecryptor.decrypt(context, bufferedProtocolStore, envelope, serverDeliveredTimestamp, lockScope)
 
     val extraJob: Job? = when (result) {
       is MessageDecryptor.Result.Success -> {
@@ -371,35 +393,37 @@ class IncomingMessageObserver(private val context: Application) {
         }
 
         signalWebSocket.connect()
+
+        // Any prefetched batch that isn't processed by the time we disconnect is unacknowledged, and will be re-delivered
+        var prefetchedBatch: Future<EnvelopeBatch>? = null
+        var prefetchedBatchSize = 0
+
         try {
           while (isConnectionNecessary()) {
             try {
               Log.d(TAG, "Reading message...")
 
-              val hasMore = signalWebSocket.readMessageBatch(WEBSOCKET_READ_TIMEOUT, 30) { batch ->
-                Log.i(TAG, "Retrieved ${batch.size} envelopes!")
-                val bufferedStore = BufferedProtocolStore.create()
-
-                val startTime = System.currentTimeMillis()
-                ReentrantSessionLock.INSTANCE.acquire().use {
-                  SignalDatabase.rawDatabase.withinTransaction {
-                    val followUpOperations: List<FollowUpOperation> = batch
-                      .mapNotNull { processEnvelope(bufferedStore, it.envelope, it.serverDeliveredTimestamp) }
-                      .flatten()
+              val prefetched: Future<EnvelopeBatch>? = prefetchedBatch
+              prefetchedBatch = null
 
-                    bufferedStore.flushToDisk()
+              val requestedSize: Int = if (prefetched != null) prefetchedBatchSize else batchSizer.batchSize
+              val batch: EnvelopeBatch = prefetched?.await() ?: signalWebSocket.readEnvelopeBatch(WEBSOCKET_READ_TIMEOUT, requestedSize)
+              batchSizer.onBatchReceived(requestedSize, batch.responses.size, batch.hasMore())
 
-                    val jobs = followUpOperations.mapNotNull { it.run() }
-                    ApplicationDependencies.getJobManager().addAll(jobs)
-                  }
-                }
-
-                val duration = System.currentTimeMillis() - startTime
-                Log.d(TAG, "Decrypted ${batch.size} envelopes in $duration ms (~${duration / batch.size} ms per message)")
+              // While we're draining a backlog, read and parse the next batch while we process this one
+              if (batch.hasMore()) {
+                val nextSize = batchSizer.batchSize
+                prefetchedBatchSize = nextSize
+                prefetchedBatch = prefetchExecutor.submit<EnvelopeBatch> { signalWebSocket.readEnvelopeBatch(WEBSOCKET_READ_TIMEOUT, nextSize) }
+              }
 
-                true
+              if (batch.responses.isNotEmpty()) {
+                processBatch(batch, requestedSize)
+                signalWebSocket.acknowledge(batch)
               }
 
+              val hasMore = batch.hasMore()
+
               attempts = 0
 
               if (!hasMore && !decryptionDrained) {
@@ -437,6 +461,134 @@ class IncomingMessageObserver(private val context: Application) {
       Log.w(TAG, "Terminated! (${this.hashCode()})")
     }
 
+    /**
+     * Decrypts and processes a batch of envelopes, then lets the [batchSizer] know how it went.
+     *
+     * Envelopes are processed in as few transactions as we can, each holding just the session locks its envelopes need: the sender's
+     * address for most messages, or the whole lock for ones that consume a prekey. We always wait for the first envelope's lock before
+     * opening a transaction, but never for a later one, since another thread may hold it while waiting for the database. When a later
+     * envelope's lock isn't free, the transaction is committed and a new one started from that envelope. The batch lock also holds the
+     * lock that the protocol stores take internally, so that we never wait for it while holding the transaction.
+     *
+     * Envelopes from different senders are still decrypted one at a time, even though their address locks would let them run side by
+     * side. Decrypting isn't separable from the rest of processing yet: [MessageDecryptor] writes to the database (recipient merges,
+     * reporting tokens, retry receipts' threads), which would have to happen on this thread inside the open transaction, and the
+     * [BufferedProtocolStore] a transaction shares between its envelopes isn't thread-safe.
+     */
+    private fun processBatch(envelopeBatch: EnvelopeBatch, requestedSize: Int) {
+      val batch: List<EnvelopeResponse> = envelopeBatch.responses
+
+      Log.i(TAG, "Retrieved ${batch.size} envelopes!")
+      val metricId = SignalLocalMetrics.MessageReceiveBatch.start(requestedSize)
+      var completed = false
+
+      try {
+        val startTime = System.currentTimeMillis()
+        var lockNanos = 0L
+        var decryptNanos = 0L
+        var transactions = 0
+        var position = 0
+
+        // Finding the scope of a sealed sender envelope means unsealing it, so we only do that once and hand it to the decryptor
+        var nextScope: MessageDecryptor.LockScope? = null
+
+        while (position < batch.size) {
+          val bufferedStore = BufferedProtocolStore.create()
+
+          ReentrantSessionLock.INSTANCE.newBatchLock().use { batchLock ->
+            var mark = System.nanoTime()
+            var scope: MessageDecryptor.LockScope = nextScope ?: MessageDecryptor.getLockScope(bufferedStore, batch[position].envelope)
+            decryptNanos += System.nanoTime() - mark
+
+            mark = System.nanoTime()
+            batchLock.acquire(scope)
+            lockNanos += System.nanoTime() - mark
+
+            SignalDatabase.rawDatabase.withinTransaction {
+              val followUpOperations: MutableList<FollowUpOperation> = mutableListOf()
+
+              while (true) {
+                mark = System.nanoTime()
+                processEnvelope(bufferedStore, batch[position].envelope, batch[position].serverDeliveredTimestamp, scope)?.let { followUpOperations += it }
+                position++
+
+                if (position < batch.size) {
+                  scope = MessageDecryptor.getLockScope(bufferedStore, batch[position].envelope)
+                }
+                decryptNanos += System.nanoTime() - mark
+
+                if (position == batch.size) {
+                  break
+                }
+
+                mark = System.nanoTime()
+                val acquired = batchLock.tryAcquire(scope)
+                lockNanos += System.nanoTime() - mark
+
+                if (!acquired) {
+                  nextScope = scope
+                  break
+                }
+              }
+
+              bufferedStore.flushToDisk()
+
+              val jobs = followUpOperations.mapNotNull { it.run() }
+              ApplicationDependencies.getJobManager().addAll(jobs)
+            }
+          }
+
+          transactions++
+        }
+
+        val duration = System.currentTimeMillis() - startTime
+        val lockTime = TimeUnit.NANOSECONDS.toMillis(lockNanos)
+        val decryptTime = TimeUnit.NANOSECONDS.toMillis(decryptNanos)
+
+        SignalLocalMetrics.MessageReceiveBatch.end(metricId, lockTime, decryptTime, duration)
+        completed = true
+
+        Log.d(TAG, "Decrypted ${batch.size} envelopes in $transactions transaction(s) in $duration ms (~${duration / batch.size.coerceAtLeast(1)} ms per message, $lockTime ms waiting for locks)")
+
+        // Waiting for another thread's locks doesn't depend on the batch size, so it's left out of what the sizer sees
+        batchSizer.onBatchProcessed(
+          requested = requestedSize,
+          received = batch.size,
+          decryptTimeMs = decryptTime,
+          commitTimeMs = (duration - lockTime - decryptTime).coerceAtLeast(0),
+          appVisible = appVisible
+        )
+      } finally {
+        if (!completed) {
+          SignalLocalMetrics.MessageReceiveBatch.cancel(metricId)
+        }
+      }
+    }
+
+    private fun ReentrantSessionLock.BatchLock.acquire(scope: MessageDecryptor.LockScope) {
+      when (scope) {
+        is MessageDecryptor.LockScope.None -> Unit
+        is MessageDecryptor.LockScope.Exclusive -> acquireExclusive()
+        is MessageDecryptor.LockScope.Address -> acquire(scope.address)
+      }
+    }
+
+    private fun ReentrantSessionLock.BatchLock.tryAcquire(scope: MessageDecryptor.LockScope): Boolean {
+      return when (scope) {
+        is MessageDecryptor.LockScope.None -> true
+        is MessageDecryptor.LockScope.Exclusive -> tryAcquireExclusive()
+        is MessageDecryptor.LockScope.Address -> tryAcquire(scope.address)
+      }
+    }
+
+    private fun Future<EnvelopeBatch>.await(): EnvelopeBatch {
+      try {
+        return get()
+      } catch (e: ExecutionException) {
+        throw e.cause ?: e
+      }
+    }
+
     override fun uncaughtException(t: Thread, e: Throwable) {
       Log.w(TAG, "Uncaught exception in message thread!", e)
     }
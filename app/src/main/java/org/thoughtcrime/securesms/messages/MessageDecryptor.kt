@@ -72,17 +72,48 @@ object MessageDecryptor {
 
   private val TAG = Log.tag(MessageDecryptor::class.java)
 
+  /**
+   * Figures out how much of the session lock [decrypt] will need for this envelope, so the caller can hold it for the whole of its
+   * transaction. Sealed sender envelopes have to be unsealed to find their sender, which only uses our identity key.
+   */
+  fun getLockScope(bufferedProtocolStore: BufferedProtocolStore, envelope: Envelope): LockScope {
+    if (envelope.type == Envelope.Type.RECEIPT || !envelope.hasType()) {
+      return LockScope.None
+    }
+
+    val selfAci: ServiceId = SignalStore.account().requireAci()
+    val selfPni: ServiceId = SignalStore.account().requirePni()
+
+    val destination: ServiceId = envelope.getDestination(selfAci, selfPni)
+
+    if (destination == selfPni && !envelope.hasSourceUuid()) {
+      return LockScope.None
+    }
+
+    val bufferedStore = bufferedProtocolStore.get(destination)
+    val localAddress = SignalServiceAddress(selfAci, SignalStore.account().e164)
+    val cipher = SignalServiceCipher(localAddress, SignalStore.account().deviceId, bufferedStore, ReentrantSessionLock.INSTANCE, UnidentifiedAccessUtil.getCertificateValidator())
+
+    val address: Optional<SignalProtocolAddress> = cipher.getDecryptionScope(envelope)
+
+    return if (address.isPresent) LockScope.Address(address.get()) else LockScope.Exclusive
+  }
+
   /**
    * Decrypts an envelope and provides a [Result]. This method has side effects, but all of them are limited to [SignalDatabase].
    * That means that this operation should be atomic when performed within a transaction.
    * To keep that property, there may be [Result.followUpOperations] you have to perform after your transaction is committed.
    * These can vary from enqueueing jobs to inserting items into the [org.thoughtcrime.securesms.database.PendingRetryReceiptCache].
+   *
+   * @param lockScope The result of [getLockScope] for this envelope, if the caller already has it, which saves unsealing a sealed sender
+   *                  envelope an extra time.
    */
   fun decrypt(
     context: Context,
     bufferedProtocolStore: BufferedProtocolStore,
     envelope: Envelope,
-    serverDeliveredTimestamp: Long
+    serverDeliveredTimestamp: Long,
+    lockScope: LockScope? = null
   ): Result {
     val selfAci: ServiceId = SignalStore.account().requireAci()
     val selfPni: ServiceId = SignalStore.account().requirePni()
@@ -120,7 +151,11 @@ object MessageDecryptor {
     val cipher = SignalServiceCipher(localAddress, SignalStore.account().deviceId, bufferedStore, ReentrantSessionLock.INSTANCE, UnidentifiedAccessUtil.getCertificateValidator())
 
     return try {
-      val cipherResult: SignalServiceCipherResult? = cipher.decrypt(envelope, serverDeliveredTimestamp)
+      val cipherResult: SignalServiceCipherResult? = when (lockScope) {
+        is LockScope.Address -> cipher.decrypt(envelope, serverDeliveredTimestamp, Optional.of(lockScope.address))
+        is LockScope.Exclusive -> cipher.decrypt(envelope, serverDeliveredTimestamp, Optional.empty())
+        else -> cipher.decrypt(envelope, serverDeliveredTimestamp)
+      }
 
       if (cipherResult == null) {
         Log.w(TAG, "${logPrefix(envelope)} Decryption resulted in a null result!", true)
@@ -500,6 +535,17 @@ object MessageDecryptor {
     val groupId: GroupId?
   )
 
+  sealed interface LockScope {
+    /** Processing the envelope doesn't touch the protocol stores. */
+    object None : LockScope
+
+    /** Decrypting the envelope can change state shared between addresses, like our prekeys, so it needs the lock to itself. */
+    object Exclusive : LockScope
+
+    /** Decrypting the envelope only touches the state for this address. */
+    data class Address(val address: SignalProtocolAddress) : LockScope
+  }
+
   fun interface FollowUpOperation {
     fun run(): Job?
   }
@@ -154,6 +154,23 @@ public final class LiveRecipient {
     return updated;
   }
 
+  /**
+   * Same as {@link #resolve()}, but uses a record that was already read from disk, which lets
+   * callers resolve many recipients with a single query.
+   */
+  @WorkerThread
+  @NonNull Recipient resolve(@NonNull RecipientRecord record) {
+    Recipient current = recipient.get();
+
+    if (!current.isResolving() || current.getId().isUnknown()) {
+      return current;
+    }
+
+    Recipient updated = cacheRecipient(record);
+    set(updated);
+    return updated;
+  }
+
   @WorkerThread
   public void refresh() {
     refresh(getId());
@@ -188,7 +205,10 @@ public final class LiveRecipient {
   }
 
   private @NonNull Recipient fetchAndCacheRecipientFromDisk(@NonNull RecipientId id) {
-    RecipientRecord  record  = recipientTable.getRecord(id);
+    return cacheRecipient(recipientTable.getRecord(id));
+  }
+
+  private @NonNull Recipient cacheRecipient(@NonNull RecipientRecord record) {
     RecipientDetails details;
     if (record.getGroupId() != null) {
       details = getGroupRecipientDetails(record);
@@ -7,6 +7,7 @@ import androidx.annotation.AnyThread;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
 
 import org.signal.core.util.ThreadUtil;
 import org.signal.core.util.concurrent.SignalExecutors;
@@ -15,67 +16,112 @@ import org.thoughtcrime.securesms.database.RecipientTable;
 import org.thoughtcrime.securesms.database.RecipientTable.MissingRecipientException;
 import org.thoughtcrime.securesms.database.SignalDatabase;
 import org.thoughtcrime.securesms.database.ThreadTable;
+import org.thoughtcrime.securesms.database.model.RecipientRecord;
 import org.thoughtcrime.securesms.database.model.ThreadRecord;
 import org.thoughtcrime.securesms.keyvalue.SignalStore;
 import org.signal.core.util.CursorUtil;
-import org.thoughtcrime.securesms.util.LRUCache;
 import org.signal.core.util.Stopwatch;
-import org.thoughtcrime.securesms.util.concurrent.FilteredExecutor;
 import org.whispersystems.signalservice.api.push.ACI;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * Keeps a {@link LiveRecipient} for every recently-used recipient.
+ *
+ * The cache is split into stripes by {@link RecipientId}, each with its own lock and LRU order,
+ * so that lookups from different threads rarely contend with each other. The size limit applies to
+ * the cache as a whole: once it's full, adding an entry evicts the oldest one in its stripe.
+ *
+ * Unresolved recipients are put in a queue rather than each getting their own task. Whichever
+ * resolve task runs next drains everything that has built up in the meantime and loads it with a
+ * single {@link RecipientTable#getRecords(Collection)} query. Recipients requested inside a
+ * database transaction are resolved right away on the calling thread instead, since a background
+ * thread can't see anything the transaction hasn't committed yet.
+ */
 public final class LiveRecipientCache {
 
   private static final String TAG = Log.tag(LiveRecipientCache.class);
 
   private static final int CACHE_MAX              = 1000;
+  private static final int STRIPE_COUNT           = 16;
+  private static final int MAX_RESOLVE_BATCH      = 100;
   private static final int THREAD_CACHE_WARM_MAX  = 500;
   private static final int CONTACT_CACHE_WARM_MAX = 50;
 
-  private final Context                         context;
-  private final RecipientTable                  recipientTable;
-  private final Map<RecipientId, LiveRecipient> recipients;
-  private final LiveRecipient                   unknown;
-  private final Executor                        resolveExecutor;
+  private final Context               context;
+  private final RecipientTable        recipientTable;
+  private final Stripe[]              stripes;
+  private final AtomicInteger         size;
+  private final LiveRecipient         unknown;
+  private final Executor              resolveExecutor;
+  private final Queue<PendingResolve> pendingResolves;
+  private final AtomicBoolean         resolveScheduled;
 
   private final AtomicReference<RecipientId> localRecipientId;
   private final AtomicBoolean                warmedUp;
 
+  private final AtomicLong hitCount;
+  private final AtomicLong missCount;
+  private final AtomicLong resolveCount;
+  private final AtomicLong inlineResolveCount;
+  private final AtomicLong resolveBatchCount;
+  private final AtomicLong resolveTimeNanos;
+  private final AtomicLong maxResolveTimeNanos;
+
   public LiveRecipientCache(@NonNull Context context) {
-    this(context, new FilteredExecutor(SignalExecutors.newCachedBoundedExecutor("signal-recipients", ThreadUtil.PRIORITY_UI_BLOCKING_THREAD, 1, 4, 15), () -> !SignalDatabase.inTransaction()));
+    this(context, SignalExecutors.newCachedBoundedExecutor("signal-recipients", ThreadUtil.PRIORITY_UI_BLOCKING_THREAD, 1, 4, 15));
   }
 
   @VisibleForTesting
   public LiveRecipientCache(@NonNull Context context, @NonNull Executor executor) {
-    this.context        = context.getApplicationContext();
-    this.recipientTable = SignalDatabase.recipients();
-    this.recipients     = new LRUCache<>(CACHE_MAX);
-    this.warmedUp          = new AtomicBoolean(false);
-    this.localRecipientId  = new AtomicReference<>(null);
-    this.unknown           = new LiveRecipient(context, Recipient.UNKNOWN);
-    this.resolveExecutor   = executor;
+    this.context             = context.getApplicationContext();
+    this.recipientTable      = SignalDatabase.recipients();
+    this.size                = new AtomicInteger(0);
+    this.stripes             = createStripes(size);
+    this.warmedUp            = new AtomicBoolean(false);
+    this.localRecipientId    = new AtomicReference<>(null);
+    this.unknown             = new LiveRecipient(context, Recipient.UNKNOWN);
+    this.resolveExecutor     = executor;
+    this.pendingResolves     = new ConcurrentLinkedQueue<>();
+    this.resolveScheduled    = new AtomicBoolean(false);
+    this.hitCount            = new AtomicLong(0);
+    this.missCount           = new AtomicLong(0);
+    this.resolveCount        = new AtomicLong(0);
+    this.inlineResolveCount  = new AtomicLong(0);
+    this.resolveBatchCount   = new AtomicLong(0);
+    this.resolveTimeNanos    = new AtomicLong(0);
+    this.maxResolveTimeNanos = new AtomicLong(0);
   }
 
   @AnyThread
   @NonNull LiveRecipient getLive(@NonNull RecipientId id) {
     if (id.isUnknown()) return unknown;
 
+    Stripe stripe = stripeFor(id);
+
     LiveRecipient live;
     boolean       needsResolve;
 
-    synchronized (recipients) {
-      live = recipients.get(id);
+    synchronized (stripe) {
+      live = stripe.get(id);
 
       if (live == null) {
         live = new LiveRecipient(context, new Recipient(id));
-        recipients.put(id, live);
+        stripe.put(id, live);
         needsResolve = true;
       } else {
         needsResolve = false;
@@ -83,7 +129,10 @@ public final class LiveRecipientCache {
     }
 
     if (needsResolve) {
-      resolveExecutor.execute(live::resolve);
+      missCount.incrementAndGet();
+      requestResolve(new PendingResolve(live, null));
+    } else {
+      hitCount.incrementAndGet();
     }
 
     return live;
@@ -93,11 +142,20 @@ public final class LiveRecipientCache {
    * Handles remapping cache entries when recipients are merged.
    */
   public void remap(@NonNull RecipientId oldId, @NonNull RecipientId newId) {
-    synchronized (recipients) {
-      if (recipients.containsKey(newId)) {
-        recipients.put(oldId, recipients.get(newId));
+    Stripe newStripe = stripeFor(newId);
+    Stripe oldStripe = stripeFor(oldId);
+
+    LiveRecipient newLive;
+
+    synchronized (newStripe) {
+      newLive = newStripe.get(newId);
+    }
+
+    synchronized (oldStripe) {
+      if (newLive != null) {
+        oldStripe.put(oldId, newLive);
       } else {
-        recipients.remove(oldId);
+        oldStripe.remove(oldId);
       }
     }
   }
@@ -111,15 +169,17 @@ public final class LiveRecipientCache {
   @AnyThread
   public void addToCache(@NonNull Collection<Recipient> newRecipients) {
     newRecipients.stream().filter(this::isValidForCache).forEach(recipient -> {
+      Stripe stripe = stripeFor(recipient.getId());
+
       LiveRecipient live;
       boolean       needsResolve;
 
-      synchronized (recipients) {
-        live = recipients.get(recipient.getId());
+      synchronized (stripe) {
+        live = stripe.get(recipient.getId());
 
         if (live == null) {
           live = new LiveRecipient(context, recipient);
-          recipients.put(recipient.getId(), live);
+          stripe.put(recipient.getId(), live);
           needsResolve = recipient.isResolving();
         } else if (live.get().isResolving() || !recipient.isResolving()) {
           live.set(recipient);
@@ -130,16 +190,7 @@ public final class LiveRecipientCache {
       }
 
       if (needsResolve) {
-        LiveRecipient toResolve = live;
-
-        MissingRecipientException prettyStackTraceError = new MissingRecipientException(toResolve.getId());
-        resolveExecutor.execute(() -> {
-          try {
-            toResolve.resolve();
-          } catch (MissingRecipientException e) {
-            throw prettyStackTraceError;
-          }
-        });
+        requestResolve(new PendingResolve(live, new MissingRecipientException(live.getId())));
       }
     });
   }
@@ -211,7 +262,7 @@ public final class LiveRecipientCache {
 
     Stopwatch stopwatch = new Stopwatch("recipient-warm-up");
 
-    SignalExecutors.BOUNDED.execute(() -> {
+    SignalExecutors.BOUNDED.execute(SignalExecutors.tagged("recipient-warm-up", () -> {
       ThreadTable     threadTable = SignalDatabase.threads();
       List<Recipient> recipients  = new ArrayList<>();
 
@@ -246,7 +297,7 @@ public final class LiveRecipientCache {
       }
 
       stopwatch.stop(TAG);
-    });
+    }));
   }
 
   @AnyThread
@@ -258,12 +309,214 @@ public final class LiveRecipientCache {
 
   @AnyThread
   public void clear() {
-    synchronized (recipients) {
-      recipients.clear();
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        stripe.clear();
+      }
+    }
+  }
+
+  /**
+   * @return A summary of how well the cache is performing, for the debug log.
+   */
+  @AnyThread
+  public @NonNull String getStats() {
+    long   hits       = hitCount.get();
+    long   misses     = missCount.get();
+    long   resolved   = resolveCount.get();
+    long   inline     = inlineResolveCount.get();
+    long   batches    = resolveBatchCount.get();
+    long   maxTimeMs  = TimeUnit.NANOSECONDS.toMillis(maxResolveTimeNanos.get());
+    String hitRate    = hits + misses > 0 ? String.format(Locale.US, "%.1f%%", 100 * hits / (double) (hits + misses)) : "N/A";
+    String perBatch   = batches > 0 ? String.format(Locale.US, "%.1f", resolved / (double) batches) : "N/A";
+    String avgBatchMs = batches > 0 ? String.format(Locale.US, "%.1f", resolveTimeNanos.get() / (double) batches / 1_000_000) : "N/A";
+
+    return "Hits: " + hits + ", Misses: " + misses + ", Hit Rate: " + hitRate + ", Size: " + size.get() + "/" + CACHE_MAX + "\n" +
+           "Resolved: " + resolved + ", Batches: " + batches + ", Recipients/Batch: " + perBatch + ", Resolved In Transaction: " + inline + "\n" +
+           "Batch Latency (avg): " + avgBatchMs + " ms, Batch Latency (max): " + maxTimeMs + " ms, Pending: " + pendingResolves.size();
+  }
+
+  private static @NonNull Stripe[] createStripes(@NonNull AtomicInteger size) {
+    Stripe[] stripes = new Stripe[STRIPE_COUNT];
+
+    for (int i = 0; i < STRIPE_COUNT; i++) {
+      stripes[i] = new Stripe(size);
+    }
+
+    return stripes;
+  }
+
+  private @NonNull Stripe stripeFor(@NonNull RecipientId id) {
+    return stripes[(id.hashCode() & Integer.MAX_VALUE) % STRIPE_COUNT];
+  }
+
+  /**
+   * Resolves a recipient on the calling thread if it's inside a transaction, so that it can see any
+   * uncommitted changes, and otherwise queues it to be resolved in a batch.
+   */
+  private void requestResolve(@NonNull PendingResolve pending) {
+    if (SignalDatabase.inTransaction()) {
+      inlineResolveCount.incrementAndGet();
+      pending.resolve();
+    } else {
+      enqueueResolve(pending);
+    }
+  }
+
+  /**
+   * Queues a recipient to be resolved. A resolve task is only scheduled if there isn't one waiting
+   * to run already, so misses that arrive close together end up in the same batch.
+   */
+  private void enqueueResolve(@NonNull PendingResolve pending) {
+    pendingResolves.add(pending);
+
+    if (resolveScheduled.compareAndSet(false, true)) {
+      resolveExecutor.execute(this::resolvePending);
+    }
+  }
+
+  @WorkerThread
+  private void resolvePending() {
+    // Cleared before draining, so anything enqueued after we stop looking will schedule a new task
+    resolveScheduled.set(false);
+
+    List<PendingResolve>      batch   = new ArrayList<>(MAX_RESOLVE_BATCH);
+    MissingRecipientException missing = null;
+    PendingResolve            pending;
+
+    while ((pending = pendingResolves.poll()) != null) {
+      batch.add(pending);
+
+      if (batch.size() >= MAX_RESOLVE_BATCH) {
+        missing = firstNonNull(missing, resolveBatch(batch));
+        batch.clear();
+      }
+    }
+
+    if (batch.size() > 0) {
+      missing = firstNonNull(missing, resolveBatch(batch));
     }
+
+    // Only thrown once everything else has been resolved, so one bad ID doesn't leave the rest of the batch unresolved
+    if (missing != null) {
+      throw missing;
+    }
+  }
+
+  /**
+   * @return The error for the first recipient in the batch that couldn't be found, if any.
+   */
+  @WorkerThread
+  private @Nullable MissingRecipientException resolveBatch(@NonNull List<PendingResolve> batch) {
+    long startTime = System.nanoTime();
+
+    List<RecipientId> ids = new ArrayList<>(batch.size());
+    for (PendingResolve pending : batch) {
+      if (pending.live.get().isResolving()) {
+        ids.add(pending.live.getId());
+      }
+    }
+
+    Map<RecipientId, RecipientRecord> records = recipientTable.getRecords(ids);
+    MissingRecipientException         missing = null;
+
+    for (PendingResolve pending : batch) {
+      RecipientRecord record = records.get(pending.live.getId());
+
+      if (record != null) {
+        pending.live.resolve(record);
+      } else {
+        // Either already resolved, or not found by ID, in which case this will check the remapped records
+        try {
+          pending.resolve();
+        } catch (MissingRecipientException e) {
+          Log.w(TAG, "Failed to resolve " + pending.live.getId(), e);
+          missing = firstNonNull(missing, e);
+        }
+      }
+    }
+
+    long duration = System.nanoTime() - startTime;
+
+    resolveCount.addAndGet(batch.size());
+    resolveBatchCount.incrementAndGet();
+    resolveTimeNanos.addAndGet(duration);
+    maxResolveTimeNanos.accumulateAndGet(duration, Math::max);
+
+    return missing;
+  }
+
+  private static @Nullable MissingRecipientException firstNonNull(@Nullable MissingRecipientException first, @Nullable MissingRecipientException second) {
+    return first != null ? first : second;
   }
 
   private boolean isValidForCache(@NonNull Recipient recipient) {
     return !recipient.getId().isUnknown() && (recipient.hasServiceId() || recipient.getGroupId().isPresent() || recipient.hasSmsAddress());
   }
+
+  private static final class PendingResolve {
+    private final LiveRecipient             live;
+    private final MissingRecipientException creationError;
+
+    /**
+     * @param creationError If present, this is thrown instead of any failure to resolve, so that the
+     *                      stack trace shows where the resolve was requested.
+     */
+    private PendingResolve(@NonNull LiveRecipient live, @Nullable MissingRecipientException creationError) {
+      this.live          = live;
+      this.creationError = creationError;
+    }
+
+    @WorkerThread
+    private void resolve() {
+      try {
+        live.resolve();
+      } catch (MissingRecipientException e) {
+        throw creationError != null ? creationError : e;
+      }
+    }
+  }
+
+  /**
+   * One stripe of the cache, kept in LRU order. Every stripe shares the same size counter, and once
+   * the cache as a whole is full, putting a new entry in a stripe evicts that stripe's oldest entry.
+   * Must be synchronized on while in use.
+   */
+  private static final class Stripe {
+    private final Map<RecipientId, LiveRecipient> entries;
+    private final AtomicInteger                   size;
+
+    private Stripe(@NonNull AtomicInteger size) {
+      this.entries = new LinkedHashMap<>(16, 0.75f, true);
+      this.size    = size;
+    }
+
+    private @Nullable LiveRecipient get(@NonNull RecipientId id) {
+      return entries.get(id);
+    }
+
+    private void put(@NonNull RecipientId id, @NonNull LiveRecipient live) {
+      if (entries.put(id, live) != null) {
+        return;
+      }
+
+      if (size.incrementAndGet() > CACHE_MAX && entries.size() > 1) {
+        Iterator<RecipientId> iterator = entries.keySet().iterator();
+        iterator.next();
+        iterator.remove();
+        size.decrementAndGet();
+      }
+    }
+
+    private void remove(@NonNull RecipientId id) {
+      if (entries.remove(id) != null) {
+        size.decrementAndGet();
+      }
+    }
+
+    private void clear() {
+      size.addAndGet(-entries.size());
+      entries.clear();
+    }
+  }
 }
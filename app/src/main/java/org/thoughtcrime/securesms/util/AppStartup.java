@@ -6,16 +6,32 @@ import android.os.Looper;
 
 import androidx.annotation.MainThread;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
 import org.signal.core.util.Stopwatch;
+import org.signal.core.util.ThreadUtil;
 import org.signal.core.util.concurrent.SignalExecutors;
 import org.signal.core.util.logging.Log;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * Manages our app startup flow.
+ *
+ * Blocking tasks form a dependency graph. Each one runs once everything it depends on has finished, either on the main thread or on a
+ * background thread, and {@link #execute()} doesn't return until all of them are done. Main thread tasks run in the order they were
+ * added, so the main thread only ever waits on a background task when it has nothing else it can do.
  */
 public final class AppStartup {
 
@@ -29,12 +45,26 @@ public final class AppStartup {
 
   private static final AppStartup INSTANCE = new AppStartup();
 
+  private static final int MAX_BACKGROUND_THREADS = 4;
+
+  /** Where the benchmark build stores whether it wants {@link #setSerial(boolean)}. */
+  public static final String BENCHMARK_PREFERENCES = "app_startup_benchmark";
+  public static final String BENCHMARK_SERIAL      = "serial";
+
+  /**
+   * Where a blocking task runs.
+   */
+  public enum Affinity {
+    MAIN, BACKGROUND
+  }
+
   private final List<Task> blocking;
   private final List<Task> nonBlocking;
   private final List<Task> postRender;
   private final Handler    postRenderHandler;
 
-  private int outstandingCriticalRenderEvents;
+  private int     outstandingCriticalRenderEvents;
+  private boolean serial;
 
   private long applicationStartTime;
   private long renderStartTime;
@@ -44,7 +74,8 @@ public final class AppStartup {
     return INSTANCE;
   }
 
-  private AppStartup() {
+  @VisibleForTesting
+  AppStartup() {
     this.blocking          = new LinkedList<>();
     this.nonBlocking       = new LinkedList<>();
     this.postRender        = new LinkedList<>();
@@ -56,14 +87,46 @@ public final class AppStartup {
   }
 
   /**
-   * Schedules a task that must happen during app startup in a blocking fashion.
+   * Schedules a task that must happen during app startup in a blocking fashion. It runs on the main thread, after every blocking task
+   * that was added before it.
    */
   @MainThread
   public @NonNull AppStartup addBlocking(@NonNull String name, @NonNull Runnable task) {
-    blocking.add(new Task(name, task));
+    Set<String> dependencies = new LinkedHashSet<>();
+
+    for (Task existing : blocking) {
+      dependencies.add(existing.getName());
+    }
+
+    blocking.add(new Task(name, task, Affinity.MAIN, dependencies));
+    return this;
+  }
+
+  /**
+   * Schedules a task that must happen during app startup in a blocking fashion. It runs on the requested thread as soon as the named
+   * blocking tasks have finished, which must have been added before it.
+   */
+  @MainThread
+  public @NonNull AppStartup addBlocking(@NonNull String name, @NonNull Affinity affinity, @NonNull Runnable task, @NonNull String... dependencies) {
+    for (String dependency : dependencies) {
+      if (!hasBlocking(dependency)) {
+        throw new IllegalArgumentException("Task " + name + " depends on " + dependency + ", which hasn't been added!");
+      }
+    }
+
+    blocking.add(new Task(name, task, affinity, new LinkedHashSet<>(Arrays.asList(dependencies))));
     return this;
   }
 
+  /**
+   * Runs every blocking task on the main thread in the order it was added, ignoring dependencies and affinity. Only exists so that we
+   * can compare against it.
+   */
+  @MainThread
+  public void setSerial(boolean serial) {
+    this.serial = serial;
+  }
+
   /**
    * Schedules a task that should not block app startup, but should still happen as quickly as
    * possible.
@@ -139,12 +202,21 @@ public final class AppStartup {
    */
   @MainThread
   public void execute() {
-    Stopwatch stopwatch = new Stopwatch("init");
+    Stopwatch stopwatch = new Stopwatch(serial ? "init-serial" : "init");
+
+    if (serial) {
+      for (Task task : blocking) {
+        task.run();
+        stopwatch.split(task.getName());
+      }
+    } else {
+      executeBlocking(stopwatch);
+    }
 
     for (Task task : blocking) {
-      task.getRunnable().run();
-      stopwatch.split(task.getName());
+      SignalLocalMetrics.ColdStart.onStartupTaskFinished(task.getName(), task.getDuration());
     }
+    Log.i(TAG, "Blocking task durations: " + blocking);
     blocking.clear();
 
     for (Task task : nonBlocking) {
@@ -161,6 +233,101 @@ public final class AppStartup {
     }, UI_WAIT_TIME);
   }
 
+  /**
+   * Runs the blocking tasks according to their dependencies. Background tasks are started as soon as they're ready, and then the main
+   * thread runs the first ready main thread task, if there is one. Otherwise it waits for a background task to finish.
+   */
+  @VisibleForTesting
+  void executeBlocking(@NonNull Stopwatch stopwatch) {
+    List<Task>           pending   = new LinkedList<>(blocking);
+    Set<String>          finished  = new HashSet<>();
+    BlockingQueue<Task>  completed = new LinkedBlockingQueue<>();
+    ExecutorService      executor  = SignalExecutors.newCachedBoundedExecutor("signal-startup", ThreadUtil.PRIORITY_UI_BLOCKING_THREAD, 1, MAX_BACKGROUND_THREADS, 1);
+    int                  running   = 0;
+
+    try {
+      while (!pending.isEmpty() || running > 0) {
+        Task main = null;
+
+        for (Iterator<Task> iterator = pending.iterator(); iterator.hasNext(); ) {
+          Task task = iterator.next();
+
+          if (!finished.containsAll(task.getDependencies())) {
+            continue;
+          }
+
+          if (task.getAffinity() == Affinity.BACKGROUND) {
+            iterator.remove();
+            running++;
+            executor.execute(() -> {
+              task.runCatching();
+              completed.add(task);
+            });
+          } else if (main == null) {
+            iterator.remove();
+            main = task;
+          }
+        }
+
+        if (main != null) {
+          main.run();
+          finished.add(main.getName());
+          stopwatch.split(main.getName());
+        } else if (running > 0) {
+          Task task = takeUninterruptibly(completed);
+          running--;
+          finished.add(complete(task));
+          stopwatch.split(task.getName());
+        } else {
+          throw new IllegalStateException("Blocking tasks can never run: " + pending);
+        }
+
+        Task task;
+        while ((task = completed.poll()) != null) {
+          running--;
+          finished.add(complete(task));
+          stopwatch.split(task.getName());
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private static @NonNull String complete(@NonNull Task task) {
+    if (task.getError() != null) {
+      throw new RuntimeException("Blocking task " + task.getName() + " failed!", task.getError());
+    }
+    return task.getName();
+  }
+
+  private static @NonNull Task takeUninterruptibly(@NonNull BlockingQueue<Task> queue) {
+    boolean interrupted = false;
+
+    try {
+      while (true) {
+        try {
+          return queue.take();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private boolean hasBlocking(@NonNull String name) {
+    for (Task task : blocking) {
+      if (task.getName().equals(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   private void executePostRender() {
     for (Task task : postRender) {
       SignalExecutors.BOUNDED.execute(task.getRunnable());
@@ -168,13 +335,24 @@ public final class AppStartup {
     postRender.clear();
   }
 
-  private class Task {
-    private final String   name;
-    private final Runnable runnable;
+  private static class Task {
+    private final String      name;
+    private final Runnable    runnable;
+    private final Affinity    affinity;
+    private final Set<String> dependencies;
+
+    private volatile long      duration;
+    private volatile Throwable error;
 
     protected Task(@NonNull String name, @NonNull Runnable runnable) {
-      this.name = name;
-      this.runnable = runnable;
+      this(name, runnable, Affinity.BACKGROUND, Collections.emptySet());
+    }
+
+    protected Task(@NonNull String name, @NonNull Runnable runnable, @NonNull Affinity affinity, @NonNull Set<String> dependencies) {
+      this.name         = name;
+      this.runnable     = runnable;
+      this.affinity     = affinity;
+      this.dependencies = dependencies;
     }
 
     @NonNull String getName() {
@@ -184,5 +362,43 @@ public final class AppStartup {
     public @NonNull Runnable getRunnable() {
       return runnable;
     }
+
+    @NonNull Affinity getAffinity() {
+      return affinity;
+    }
+
+    @NonNull Set<String> getDependencies() {
+      return dependencies;
+    }
+
+    long getDuration() {
+      return duration;
+    }
+
+    @Nullable Throwable getError() {
+      return error;
+    }
+
+    void run() {
+      long start = System.currentTimeMillis();
+      runnable.run();
+      duration = System.currentTimeMillis() - start;
+    }
+
+    /**
+     * Runs the task, holding on to any failure so it can be rethrown on the main thread, where it would have happened before.
+     */
+    void runCatching() {
+      try {
+        run();
+      } catch (Throwable t) {
+        error = t;
+      }
+    }
+
+    @Override
+    public @NonNull String toString() {
+      return name + ": " + duration + " ms";
+    }
   }
 }
@@ -21,6 +21,7 @@ import org.thoughtcrime.securesms.database.GroupTable;
 import org.thoughtcrime.securesms.database.IdentityTable;
 import org.thoughtcrime.securesms.database.MessageTable;
 import org.thoughtcrime.securesms.database.MessageTable.InsertResult;
+import org.thoughtcrime.securesms.database.SessionTable;
 import org.thoughtcrime.securesms.database.SignalDatabase;
 import org.thoughtcrime.securesms.database.model.GroupRecord;
 import org.thoughtcrime.securesms.database.model.IdentityRecord;
@@ -168,7 +169,7 @@ public final class IdentityUtil {
 
       if (ApplicationDependencies.getProtocolStore().aci().identities().saveIdentity(address, identityKey)) {
         if (sessionStore.containsSession(address)) {
-          SessionRecord sessionRecord = sessionStore.loadSession(address);
+          SessionRecord sessionRecord = SessionTable.copyOf(sessionStore.loadSession(address));
           sessionRecord.archiveCurrentState();
 
           sessionStore.storeSession(address, sessionRecord);
@@ -1,5 +1,6 @@
 package org.thoughtcrime.securesms.util
 
+import androidx.annotation.WorkerThread
 import org.signal.core.util.ThreadUtil
 import org.signal.core.util.concurrent.SignalExecutors
 import org.signal.core.util.logging.Log
@@ -7,7 +8,9 @@ import org.thoughtcrime.securesms.database.LocalMetricsDatabase
 import org.thoughtcrime.securesms.database.model.LocalMetricsEvent
 import org.thoughtcrime.securesms.database.model.LocalMetricsSplit
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies
-import java.util.concurrent.Executor
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.TimeUnit
 
 /**
  * A class for keeping track of local-only metrics.
@@ -23,16 +26,34 @@ import java.util.concurrent.Executor
  *  - end("mySpecialId")
  *
  * These metrics are only ever included in debug logs in an aggregate fashion (i.e. p50, p90, p99) and are never automatically uploaded anywhere.
+ *
+ * Finished events are recorded into in-memory histograms, so ending an event never touches the disk. They're merged into
+ * [LocalMetricsDatabase] [FLUSH_INTERVAL] after the first one is recorded, and whenever the app is backgrounded, so at most that much is
+ * lost if the process is killed.
  */
 object LocalMetrics {
   private val TAG: String = Log.tag(LocalMetrics::class.java)
 
+  private val FLUSH_INTERVAL = TimeUnit.MINUTES.toMillis(1)
+
   private val eventsById: MutableMap<String, LocalMetricsEvent> = LRUCache(200)
   private val lastSplitTimeById: MutableMap<String, Long> = LRUCache(200)
 
-  private val executor: Executor = SignalExecutors.newCachedSingleThreadExecutor("signal-LocalMetrics", ThreadUtil.PRIORITY_BACKGROUND_THREAD)
+  private val executor: ExecutorService = SignalExecutors.newCachedSingleThreadExecutor("signal-LocalMetrics", ThreadUtil.PRIORITY_BACKGROUND_THREAD)
   private val db: LocalMetricsDatabase by lazy { LocalMetricsDatabase.getInstance(ApplicationDependencies.getApplication()) }
 
+  /** Event name to split name to histogram, for events that ended since the last flush. Only accessed on the [executor]. */
+  private val pending: MutableMap<String, MutableMap<String, LocalMetricsHistogram>> = LinkedHashMap()
+  private var pendingWindowStart: Long = 0
+  private var flushScheduled: Boolean = false
+
+  private val scheduledFlush = Runnable {
+    executor.execute {
+      flushScheduled = false
+      flush(System.currentTimeMillis())
+    }
+  }
+
   @JvmStatic
   fun getInstance(): LocalMetrics {
     return LocalMetrics
@@ -77,6 +98,33 @@ object LocalMetrics {
     }
   }
 
+  /**
+   * Marks a split for an event with a duration that was measured elsewhere, e.g. for work that ran in parallel with other splits. Unlike
+   * [split], this does not affect the duration of the next split.
+   *
+   * If an event with the provided ID does not exist, this is effectively a no-op.
+   */
+  fun splitWithDuration(id: String, split: String, duration: Long) {
+    executor.execute {
+      val event: LocalMetricsEvent? = eventsById[id]
+      if (event != null && event.splits.none { it.name == split }) {
+        event.splits.add(LocalMetricsSplit(split, duration))
+      }
+    }
+  }
+
+  /**
+   * Records a single value that isn't a duration, e.g. a size or a count, into the histogram for [name]. It's reported like the total of
+   * an event with no splits, so keep the name distinct from any timed event.
+   */
+  fun recordValue(name: String, value: Long) {
+    val time = System.currentTimeMillis()
+
+    executor.execute {
+      record(time, name, emptyMap(), value)
+    }
+  }
+
   /**
    * Stop tracking an event you were previously tracking. All future calls to [split] and [end] will do nothing for this id.
    */
@@ -93,19 +141,77 @@ object LocalMetrics {
     executor.execute {
       val event: LocalMetricsEvent? = eventsById[id]
       if (event != null) {
-        db.insert(System.currentTimeMillis(), event)
+        record(System.currentTimeMillis(), event.eventName, event.splits.associate { it.name to it.duration }, event.splits.sumOf { it.duration })
         Log.d(TAG, event.toString())
       }
     }
   }
 
+  /**
+   * Writes anything that's pending to the database, e.g. because the app is going into the background and may be killed.
+   */
+  fun flush() {
+    executor.execute {
+      flush(System.currentTimeMillis())
+    }
+  }
+
   /**
    * Clears the entire local metrics store.
    */
   fun clear() {
     executor.execute {
       Log.w(TAG, "Clearing local metrics store.")
+      pending.clear()
       db.clear()
     }
   }
+
+  /**
+   * Flushes anything pending and returns the aggregated metrics for every event. Blocks until the read is complete.
+   */
+  @WorkerThread
+  fun getMetrics(): List<LocalMetricsDatabase.EventMetrics> {
+    return executor.submit(
+      Callable {
+        flush(System.currentTimeMillis())
+        db.getMetrics()
+      }
+    ).get()
+  }
+
+  private fun record(time: Long, name: String, splitValues: Map<String, Long>, total: Long) {
+    val windowStart = time - time % LocalMetricsDatabase.HOUR
+
+    if (windowStart != pendingWindowStart) {
+      flush(time)
+      pendingWindowStart = windowStart
+    }
+
+    val splits = pending.getOrPut(name) { LinkedHashMap() }
+
+    splits.getOrPut(LocalMetricsDatabase.SPLIT_TOTAL) { LocalMetricsHistogram() }.record(total)
+    splitValues.forEach { (splitName, value) ->
+      splits.getOrPut(splitName) { LocalMetricsHistogram() }.record(value)
+    }
+
+    if (!flushScheduled) {
+      flushScheduled = true
+      ThreadUtil.runOnMainDelayed(scheduledFlush, FLUSH_INTERVAL)
+    }
+  }
+
+  private fun flush(time: Long) {
+    if (pending.isEmpty()) {
+      return
+    }
+
+    try {
+      db.merge(time, pendingWindowStart, pending)
+    } catch (e: Exception) {
+      Log.w(TAG, "Failed to flush metrics.", e)
+    }
+
+    pending.clear()
+  }
 }
@@ -0,0 +1,178 @@
+package org.thoughtcrime.securesms.util
+
+import java.io.ByteArrayOutputStream
+
+/**
+ * A compact, mergeable histogram of durations, used by [LocalMetrics] so that we can report percentiles without keeping every sample.
+ *
+ * Buckets are log-linear, like an HDR histogram: every value below [EXACT_LIMIT] has its own bucket, and every power of two above that is
+ * split into [SUB_BUCKETS] buckets. That bounds the error of any percentile to about 6%, while a histogram covering values up to a day in
+ * milliseconds only needs a few hundred buckets, of which we only store the non-empty ones.
+ *
+ * Not thread safe.
+ */
+class LocalMetricsHistogram private constructor(
+  private var counts: LongArray,
+  count: Long,
+  min: Long,
+  max: Long
+) {
+
+  constructor() : this(LongArray(0), 0, Long.MAX_VALUE, Long.MIN_VALUE)
+
+  companion object {
+    private const val SUB_BUCKET_BITS = 4
+    private const val SUB_BUCKETS = 1 shl SUB_BUCKET_BITS
+    private const val EXACT_LIMIT = SUB_BUCKETS * 2
+
+    @JvmStatic
+    fun deserialize(bytes: ByteArray): LocalMetricsHistogram {
+      val reader = VarintReader(bytes)
+      val count = reader.read()
+      val min = reader.read()
+      val max = reader.read()
+      val buckets = reader.read().toInt()
+
+      var counts = LongArray(0)
+      var index = -1
+
+      for (i in 0 until buckets) {
+        index += reader.read().toInt() + 1
+        if (index >= counts.size) {
+          counts = counts.copyOf(index + 1)
+        }
+        counts[index] = reader.read()
+      }
+
+      return LocalMetricsHistogram(counts, count, if (count > 0) min else Long.MAX_VALUE, if (count > 0) max else Long.MIN_VALUE)
+    }
+
+    internal fun bucketOf(value: Long): Int {
+      val shift = maxOf(0, 63 - java.lang.Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS)
+      return (SUB_BUCKETS * shift) + (value ushr shift).toInt()
+    }
+
+    /** The largest value that lands in the bucket. */
+    internal fun highestValueOf(bucket: Int): Long {
+      val shift = maxOf(0, bucket / SUB_BUCKETS - 1)
+      val base = (bucket - SUB_BUCKETS * shift).toLong()
+      return ((base + 1) shl shift) - 1
+    }
+  }
+
+  var count: Long = count
+    private set
+
+  /** Only meaningful if [count] is greater than 0. */
+  var min: Long = min
+    private set
+
+  /** Only meaningful if [count] is greater than 0. */
+  var max: Long = max
+    private set
+
+  fun record(value: Long) {
+    val clamped = maxOf(0, value)
+    val bucket = bucketOf(clamped)
+
+    if (bucket >= counts.size) {
+      counts = counts.copyOf(maxOf(bucket + 1, EXACT_LIMIT))
+    }
+
+    counts[bucket]++
+    count++
+    min = minOf(min, clamped)
+    max = maxOf(max, clamped)
+  }
+
+  fun merge(other: LocalMetricsHistogram) {
+    if (other.counts.size > counts.size) {
+      counts = counts.copyOf(other.counts.size)
+    }
+
+    for (i in other.counts.indices) {
+      counts[i] += other.counts[i]
+    }
+
+    count += other.count
+    min = minOf(min, other.min)
+    max = maxOf(max, other.max)
+  }
+
+  /**
+   * The value at the given percentile, matching what the old sorted-table query returned: the value at position `count * percent / 100`
+   * (1-based) in sorted order, or -1 if nothing has been recorded.
+   */
+  fun percentile(percent: Int): Long {
+    if (count == 0L) {
+      return -1
+    }
+
+    val rank = maxOf(1, count * percent / 100)
+    var seen = 0L
+
+    for (i in counts.indices) {
+      seen += counts[i]
+      if (seen >= rank) {
+        return highestValueOf(i).coerceIn(min, max)
+      }
+    }
+
+    return max
+  }
+
+  /**
+   * Encodes the histogram as a series of varints: the count, min, max and number of non-empty buckets, then the gap to and count of each
+   * non-empty bucket.
+   */
+  fun serialize(): ByteArray {
+    val output = ByteArrayOutputStream()
+
+    writeVarint(output, count)
+    writeVarint(output, if (count > 0) min else 0)
+    writeVarint(output, if (count > 0) max else 0)
+    writeVarint(output, counts.count { it > 0 }.toLong())
+
+    var previous = -1
+    for (i in counts.indices) {
+      if (counts[i] > 0) {
+        writeVarint(output, (i - previous - 1).toLong())
+        writeVarint(output, counts[i])
+        previous = i
+      }
+    }
+
+    return output.toByteArray()
+  }
+
+  private fun writeVarint(output: ByteArrayOutputStream, value: Long) {
+    var remaining = value
+
+    while (remaining and 0x7FL.inv() != 0L) {
+      output.write(((remaining and 0x7F) or 0x80).toInt())
+      remaining = remaining ushr 7
+    }
+
+    output.write(remaining.toInt())
+  }
+
+  private class VarintReader(private val bytes: ByteArray) {
+    private var position = 0
+
+    fun read(): Long {
+      var result = 0L
+      var shift = 0
+
+      while (true) {
+        val byte = bytes[position++].toInt()
+        result = result or ((byte and 0x7F).toLong() shl shift)
+
+        if (byte and 0x80 == 0) {
+          return result
+        }
+
+        shift += 7
+      }
+    }
+  }
+}
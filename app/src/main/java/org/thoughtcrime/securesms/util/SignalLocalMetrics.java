@@ -17,6 +17,7 @@ public final class SignalLocalMetrics {
   public static final class ColdStart {
     private static final String NAME_CONVERSATION_LIST = "cold-start-conversation-list";
     private static final String NAME_OTHER             = "cold-start-other";
+    private static final String NAME_STARTUP_TASKS     = "cold-start-startup-tasks";
 
     private static final String SPLIT_APPLICATION_CREATE = "application-create";
     private static final String SPLIT_ACTIVITY_CREATE    = "start-activity";
@@ -25,6 +26,7 @@ public final class SignalLocalMetrics {
 
     private static String conversationListId;
     private static String otherId;
+    private static String startupTasksId;
 
     private static boolean isConversationList;
 
@@ -32,15 +34,27 @@ public final class SignalLocalMetrics {
     public static void start() {
       conversationListId = NAME_CONVERSATION_LIST + "-" + System.currentTimeMillis();
       otherId            = NAME_OTHER + "-" + System.currentTimeMillis();
+      startupTasksId     = NAME_STARTUP_TASKS + "-" + System.currentTimeMillis();
 
       LocalMetrics.getInstance().start(conversationListId, NAME_CONVERSATION_LIST);
       LocalMetrics.getInstance().start(otherId, NAME_OTHER);
+      LocalMetrics.getInstance().start(startupTasksId, NAME_STARTUP_TASKS);
+    }
+
+    /**
+     * Records how long a single blocking startup task took. These are kept in their own event, since tasks can run in parallel and
+     * their durations would otherwise be double-counted in the cold start total.
+     */
+    @MainThread
+    public static void onStartupTaskFinished(@NonNull String name, long duration) {
+      LocalMetrics.getInstance().splitWithDuration(startupTasksId, name, duration);
     }
 
     @MainThread
     public static void onApplicationCreateFinished() {
       LocalMetrics.getInstance().split(conversationListId, SPLIT_APPLICATION_CREATE);
       LocalMetrics.getInstance().split(otherId, SPLIT_APPLICATION_CREATE);
+      LocalMetrics.getInstance().end(startupTasksId);
     }
 
     @MainThread
@@ -296,4 +310,43 @@ public final class SignalLocalMetrics {
       }
     }
   }
+
+  /**
+   * Tracks the time spent processing a batch of envelopes read off of the websocket, split into time spent waiting for session locks,
+   * decrypting, and everything else (mostly writing and committing). The batch size chosen by
+   * {@link org.thoughtcrime.securesms.messages.AdaptiveBatchSizer} is recorded as a value of its own, so we can see the distribution of
+   * sizes without splitting the timings up by size.
+   */
+  public static final class MessageReceiveBatch {
+    private static final String NAME      = "message-receive-batch";
+    private static final String NAME_SIZE = "message-receive-batch-size";
+
+    private static final String SPLIT_LOCK    = "lock";
+    private static final String SPLIT_DECRYPT = "decrypt";
+    private static final String SPLIT_COMMIT  = "commit";
+
+    public static @NonNull String start(int batchSize) {
+      LocalMetrics.getInstance().recordValue(NAME_SIZE, batchSize);
+
+      String id = NAME + "-" + System.nanoTime();
+      LocalMetrics.getInstance().start(id, NAME);
+      return id;
+    }
+
+    /**
+     * @param lockTime Time spent waiting for session locks.
+     * @param decryptTime Time spent decrypting and processing envelopes, not including waiting for locks.
+     * @param totalTime The total time taken by the batch. Whatever isn't locking or decrypting is reported as the commit.
+     */
+    public static void end(@NonNull String id, long lockTime, long decryptTime, long totalTime) {
+      LocalMetrics.getInstance().splitWithDuration(id, SPLIT_LOCK, lockTime);
+      LocalMetrics.getInstance().splitWithDuration(id, SPLIT_DECRYPT, decryptTime);
+      LocalMetrics.getInstance().splitWithDuration(id, SPLIT_COMMIT, Math.max(0, totalTime - lockTime - decryptTime));
+      LocalMetrics.getInstance().end(id);
+    }
+
+    public static void cancel(@NonNull String id) {
+      LocalMetrics.getInstance().cancel(id);
+    }
+  }
 }
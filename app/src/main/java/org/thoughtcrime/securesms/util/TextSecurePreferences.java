@@ -156,8 +156,9 @@ public class TextSecurePreferences {
   private static final String LAST_FULL_CONTACT_SYNC_TIME = "pref_last_full_contact_sync_time";
   private static final String NEEDS_FULL_CONTACT_SYNC     = "pref_needs_full_contact_sync";
 
-  private static final String LOG_ENCRYPTED_SECRET   = "pref_log_encrypted_secret";
-  private static final String LOG_UNENCRYPTED_SECRET = "pref_log_unencrypted_secret";
+  private static final String LOG_ENCRYPTED_SECRET    = "pref_log_encrypted_secret";
+  private static final String LOG_UNENCRYPTED_SECRET  = "pref_log_unencrypted_secret";
+  private static final String LOG_USE_SEGMENTED_STORE = "pref_log_use_segmented_store";
 
   private static final String NOTIFICATION_CHANNEL_VERSION          = "pref_notification_channel_version";
   private static final String NOTIFICATION_MESSAGES_CHANNEL_VERSION = "pref_notification_messages_channel_version";
@@ -991,6 +992,14 @@ public class TextSecurePreferences {
     return getStringPreference(context, LOG_UNENCRYPTED_SECRET, null);
   }
 
+  public static void setUseSegmentedLogStore(Context context, boolean enabled) {
+    setBooleanPreference(context, LOG_USE_SEGMENTED_STORE, enabled);
+  }
+
+  public static boolean useSegmentedLogStore(Context context) {
+    return getBooleanPreference(context, LOG_USE_SEGMENTED_STORE, false);
+  }
+
   public static int getNotificationChannelVersion(Context context) {
     return getIntegerPreference(context, NOTIFICATION_CHANNEL_VERSION, 1);
   }
@@ -0,0 +1,243 @@
+package org.thoughtcrime.securesms.backup
+
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertThrows
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.signal.core.util.Conversions
+import org.thoughtcrime.securesms.backup.proto.BackupFrame
+import org.thoughtcrime.securesms.backup.proto.SqlStatement
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.FileNotFoundException
+import java.io.IOException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import javax.crypto.Cipher
+import javax.crypto.Mac
+import javax.crypto.spec.IvParameterSpec
+import javax.crypto.spec.SecretKeySpec
+import kotlin.random.Random
+
+class BackupExportPipelineTest {
+
+  companion object {
+    private const val CHUNK_SIZE = 64
+    private val STREAM_SIZES = listOf(0, 1, 15, 16, 63, 64, 65, 200, 1000)
+  }
+
+  private val random = Random(1234)
+  private val cipherKey = random.nextBytes(32)
+  private val macKey = random.nextBytes(32)
+
+  private val pipelines = mutableListOf<BackupExportPipeline>()
+
+  @After
+  fun tearDown() {
+    pipelines.forEach { it.close() }
+  }
+
+  @Test
+  fun `frames and streams match serial output`() {
+    val iv = random.nextBytes(16)
+    val output = ByteArrayOutputStream()
+    val pipeline = pipeline(output, iv)
+    val expected = SerialWriter(iv)
+
+    for (i in 0 until 150) {
+      val frame = frame("statement $i")
+      pipeline.writeFrame(frame)
+      expected.writeFrame(frame)
+    }
+
+    for (size in STREAM_SIZES) {
+      val data = random.nextBytes(size)
+
+      pipeline.writeStream(frame("stream $size"), ByteArrayInputStream(data), size.toLong())
+      expected.writeFrame(frame("stream $size"))
+      expected.writeStream(data)
+
+      pipeline.writeStream(frame("source $size"), source(data), size.toLong())
+      expected.writeFrame(frame("source $size"))
+      expected.writeStream(data)
+
+      pipeline.writeFrame(frame("after $size"))
+      expected.writeFrame(frame("after $size"))
+    }
+
+    pipeline.finish()
+
+    assertArrayEquals(expected.output.toByteArray(), output.toByteArray())
+  }
+
+  @Test
+  fun `streams match serial output when the keystream carries into the counter`() {
+    val iv = ByteArray(16) { 0xFF.toByte() }
+    val output = ByteArrayOutputStream()
+    val pipeline = pipeline(output, iv)
+    val expected = SerialWriter(iv)
+
+    for (size in listOf(1000, 1000, 1000)) {
+      val data = random.nextBytes(size)
+
+      pipeline.writeStream(frame("source"), source(data), size.toLong())
+      expected.writeFrame(frame("source"))
+      expected.writeStream(data)
+    }
+
+    pipeline.finish()
+
+    assertArrayEquals(expected.output.toByteArray(), output.toByteArray())
+  }
+
+  @Test
+  fun `missing source writes nothing`() {
+    val iv = random.nextBytes(16)
+    val output = ByteArrayOutputStream()
+    val pipeline = pipeline(output, iv)
+    val expected = SerialWriter(iv)
+
+    pipeline.writeFrame(frame("before"))
+    expected.writeFrame(frame("before"))
+
+    assertThrows(FileNotFoundException::class.java) {
+      pipeline.writeStream(frame("missing"), { throw FileNotFoundException() }, 100)
+    }
+
+    pipeline.writeFrame(frame("after"))
+    expected.writeFrame(frame("after"))
+
+    pipeline.finish()
+
+    assertArrayEquals(expected.output.toByteArray(), output.toByteArray())
+  }
+
+  @Test
+  fun `short stream fails`() {
+    val pipeline = pipeline(ByteArrayOutputStream(), random.nextBytes(16))
+
+    assertThrows(IOException::class.java) {
+      pipeline.writeStream(frame("short"), ByteArrayInputStream(ByteArray(100)), 200)
+    }
+  }
+
+  @Test
+  fun `long stream fails`() {
+    val pipeline = pipeline(ByteArrayOutputStream(), random.nextBytes(16))
+
+    assertThrows(IOException::class.java) {
+      pipeline.writeStream(frame("long"), ByteArrayInputStream(ByteArray(300)), 200)
+    }
+  }
+
+  @Test
+  fun `short source fails on finish`() {
+    val pipeline = pipeline(ByteArrayOutputStream(), random.nextBytes(16))
+
+    pipeline.writeStream(frame("short"), source(ByteArray(100)), 200)
+
+    assertThrows(IOException::class.java) {
+      pipeline.finish()
+    }
+  }
+
+  @Test
+  fun `long source fails on finish`() {
+    val pipeline = pipeline(ByteArrayOutputStream(), random.nextBytes(16))
+
+    pipeline.writeStream(frame("long"), source(ByteArray(300)), 200)
+
+    assertThrows(IOException::class.java) {
+      pipeline.finish()
+    }
+  }
+
+  @Test
+  fun `failed output is reported to the caller`() {
+    val output = object : ByteArrayOutputStream() {
+      override fun write(b: ByteArray, off: Int, len: Int) {
+        throw IOException("Disk full")
+      }
+    }
+
+    val pipeline = pipeline(output, random.nextBytes(16))
+
+    assertThrows(IOException::class.java) {
+      for (i in 0 until 10_000) {
+        pipeline.writeFrame(frame("statement $i"))
+      }
+      pipeline.finish()
+    }
+  }
+
+  private fun pipeline(
+    output: ByteArrayOutputStream,
+    iv: ByteArray,
+    workers: ExecutorService = Executors.newFixedThreadPool(3),
+    writer: ExecutorService = Executors.newSingleThreadExecutor()
+  ): BackupExportPipeline {
+    return BackupExportPipeline(output, cipherKey, macKey, iv, workers, writer, 4, CHUNK_SIZE).also { pipelines += it }
+  }
+
+  @Test
+  fun `close stops the writer and workers`() {
+    val workers = Executors.newFixedThreadPool(3)
+    val writer = Executors.newSingleThreadExecutor()
+    val pipeline = pipeline(ByteArrayOutputStream(), random.nextBytes(16), workers, writer)
+
+    for (i in 0 until 100) {
+      pipeline.writeFrame(frame("statement $i"))
+    }
+    pipeline.writeStream(frame("stream"), ByteArrayInputStream(random.nextBytes(1000)), 1000)
+
+    pipeline.close()
+
+    assertTrue(writer.isTerminated)
+    assertTrue(workers.isTerminated)
+  }
+
+  private fun frame(statement: String): BackupFrame {
+    return BackupFrame.Builder().statement(SqlStatement.Builder().statement(statement).build()).build()
+  }
+
+  private fun source(data: ByteArray): BackupExportPipeline.StreamSource {
+    return BackupExportPipeline.StreamSource { offset -> ByteArrayInputStream(data, offset.toInt(), data.size) }
+  }
+
+  /**
+   * How the exporter wrote backups before they were written in parallel, one frame at a time on a single cipher.
+   */
+  private inner class SerialWriter(iv: ByteArray) {
+    val output = ByteArrayOutputStream()
+
+    private val iv = iv.clone()
+    private val cipher = Cipher.getInstance("AES/CTR/NoPadding")
+    private val mac = Mac.getInstance("HmacSHA256").apply { init(SecretKeySpec(macKey, "HmacSHA256")) }
+    private var counter = Conversions.byteArrayToInt(iv)
+
+    fun writeFrame(frame: BackupFrame) {
+      Conversions.intToByteArray(iv, 0, counter++)
+      cipher.init(Cipher.ENCRYPT_MODE, SecretKeySpec(cipherKey, "AES"), IvParameterSpec(iv))
+
+      val frameCiphertext = cipher.doFinal(frame.encode())
+      val frameMac = mac.doFinal(frameCiphertext)
+
+      output.write(Conversions.intToByteArray(frameCiphertext.size + 10))
+      output.write(frameCiphertext)
+      output.write(frameMac, 0, 10)
+    }
+
+    fun writeStream(data: ByteArray) {
+      Conversions.intToByteArray(iv, 0, counter++)
+      cipher.init(Cipher.ENCRYPT_MODE, SecretKeySpec(cipherKey, "AES"), IvParameterSpec(iv))
+      mac.update(iv)
+
+      val ciphertext = cipher.doFinal(data)
+      output.write(ciphertext)
+      mac.update(ciphertext)
+
+      output.write(mac.doFinal(), 0, 10)
+    }
+  }
+}
@@ -1,6 +1,7 @@
 package org.thoughtcrime.securesms.backup
 
 import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
 import org.junit.Test
 
 class FullBackupImporterTest {
@@ -159,4 +160,30 @@ class FullBackupImporterTest {
 
     assertEquals(listOf("A", "B", "C", "D"), order)
   }
+
+  @Test
+  fun `getTriggerName - plain`() {
+    assertEquals("message_ai", FullBackupImporter.getTriggerName("CREATE TRIGGER message_ai AFTER INSERT ON message BEGIN SELECT 1; END"))
+  }
+
+  @Test
+  fun `getTriggerName - leading whitespace and lower case`() {
+    assertEquals("message_ad", FullBackupImporter.getTriggerName("\n    create trigger message_ad after delete on message begin select 1; end"))
+  }
+
+  @Test
+  fun `getTriggerName - if not exists, schema and quotes`() {
+    assertEquals("message_au", FullBackupImporter.getTriggerName("CREATE TRIGGER IF NOT EXISTS main.\"message_au\" AFTER UPDATE ON message BEGIN SELECT 1; END"))
+  }
+
+  @Test
+  fun `getTriggerName - a trigger that only mentions the fts table`() {
+    assertEquals("msl_message_delete", FullBackupImporter.getTriggerName("CREATE TRIGGER msl_message_delete AFTER DELETE ON message BEGIN DELETE FROM message_fts; END"))
+  }
+
+  @Test
+  fun `getTriggerName - not a trigger`() {
+    assertNull(FullBackupImporter.getTriggerName("CREATE INDEX message_ai ON message (_id)"))
+    assertNull(FullBackupImporter.getTriggerName("CREATE TRIGGER"))
+  }
 }
@@ -0,0 +1,46 @@
+package org.thoughtcrime.securesms.components.emoji.parsing
+
+import android.app.Application
+import org.junit.Ignore
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import kotlin.system.measureNanoTime
+
+/**
+ * Compares [EmojiParser] against the matcher it replaced over a generated corpus of messages, along with the cost of compiling the tree.
+ *
+ * Ignored by default, since it's a benchmark rather than a correctness test. Run it manually
+ * and look at the output.
+ */
+@Ignore
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE, application = Application::class)
+class EmojiParserBenchmark {
+
+  @Test
+  fun findCandidates_corpus() {
+    val source = EmojiTestCorpus.loadBundledEmojiSource()
+    val variations = EmojiTestCorpus.allVariations(source)
+    val corpus = EmojiTestCorpus.generate(variations, 20_000)
+
+    val tree = source.emojiTree
+    val compile = measureNanoTime { tree.getTrie() }
+    val parser = EmojiParser(tree)
+    val legacy = LegacyEmojiParser(variations.associateWith { tree.getEmoji(it, 0, it.length)!! })
+
+    // Warm up both before timing
+    repeat(3) {
+      corpus.forEach { parser.findCandidates(it) }
+      corpus.forEach { legacy.findCandidates(it) }
+    }
+
+    val trie = measureNanoTime { repeat(5) { corpus.forEach { parser.findCandidates(it) } } }
+    val hashMap = measureNanoTime { repeat(5) { corpus.forEach { legacy.findCandidates(it) } } }
+    val chars = corpus.sumOf { it.length } * 5L
+
+    println("[${corpus.size} messages, ${variations.size} emoji] compile: ${compile / 1_000} us")
+    println("trie: ${trie / 1_000_000} ms (${trie / chars} ns/char), legacy: ${hashMap / 1_000_000} ms (${hashMap / chars} ns/char)")
+  }
+}
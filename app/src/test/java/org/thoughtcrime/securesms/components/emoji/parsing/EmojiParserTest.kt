@@ -0,0 +1,121 @@
+package org.thoughtcrime.securesms.components.emoji.parsing
+
+import android.app.Application
+import android.net.Uri
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.BeforeClass
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import org.thoughtcrime.securesms.emoji.EmojiPage
+import org.thoughtcrime.securesms.emoji.EmojiSource
+
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE, application = Application::class)
+class EmojiParserTest {
+
+  companion object {
+    private const val GRINNING = "\uD83D\uDE00"
+    private const val HEART = "\u2764\uFE0F"
+    private const val HEART_WITHOUT_SELECTOR = "\u2764"
+    private const val THUMBS_UP_MEDIUM = "\uD83D\uDC4D\uD83C\uDFFD"
+    private const val MEDIUM_SKIN_TONE = "\uD83C\uDFFD"
+    private const val FAMILY = "\uD83D\uDC68\u200D\uD83D\uDC69\u200D\uD83D\uDC67\u200D\uD83D\uDC66"
+
+    private lateinit var source: EmojiSource
+    private lateinit var parser: EmojiParser
+
+    @JvmStatic
+    @BeforeClass
+    fun setUpClass() {
+      source = EmojiTestCorpus.loadBundledEmojiSource()
+      parser = EmojiParser(source.emojiTree)
+    }
+  }
+
+  @Test
+  fun `findCandidates finds the same emoji as the legacy parser`() {
+    val variations = EmojiTestCorpus.allVariations(source)
+    val legacy = LegacyEmojiParser(variations.associateWith { source.emojiTree.getEmoji(it, 0, it.length)!! })
+
+    EmojiTestCorpus.generate(variations, 2_000).forEach { message ->
+      val expected = legacy.findCandidates(message).map { Triple(it.startIndex, it.endIndex, it.drawInfo) }
+      val actual = parser.findCandidates(message).map { Triple(it.startIndex, it.endIndex, it.drawInfo) }
+
+      assertEquals(message, expected, actual)
+    }
+  }
+
+  @Test
+  fun `findCandidates matches an emoji sent without its variation selector`() {
+    val candidates = parser.findCandidates("a${HEART_WITHOUT_SELECTOR}b").list
+
+    assertEquals(1, candidates.size)
+    assertEquals(1, candidates[0].startIndex)
+    assertEquals(2, candidates[0].endIndex)
+    assertSame(source.emojiTree.getEmoji(HEART, 0, HEART.length), candidates[0].drawInfo)
+  }
+
+  @Test
+  fun `findCandidates prefers the longest match`() {
+    val candidates = parser.findCandidates("hi $FAMILY$THUMBS_UP_MEDIUM").list
+
+    assertEquals(2, candidates.size)
+    assertEquals(3, candidates[0].startIndex)
+    assertEquals(3 + FAMILY.length, candidates[0].endIndex)
+    assertEquals(3 + FAMILY.length + THUMBS_UP_MEDIUM.length, candidates[1].endIndex)
+    assertSame(source.emojiTree.getEmoji(THUMBS_UP_MEDIUM, 0, THUMBS_UP_MEDIUM.length), candidates[1].drawInfo)
+  }
+
+  @Test
+  fun `findCandidates includes a trailing skin tone the emoji has no variation for`() {
+    val candidates = parser.findCandidates("$GRINNING$MEDIUM_SKIN_TONE").list
+
+    assertEquals(1, candidates.size)
+    assertEquals(4, candidates[0].endIndex)
+    assertSame(source.emojiTree.getEmoji(GRINNING, 0, GRINNING.length), candidates[0].drawInfo)
+  }
+
+  @Test
+  fun `findCandidates only marks text as all emojis when there is nothing else but spaces`() {
+    assertTrue(parser.findCandidates("$GRINNING $HEART").allEmojis)
+    assertFalse(parser.findCandidates("$GRINNING hi").allEmojis)
+    assertFalse(parser.findCandidates("").allEmojis)
+    assertFalse(parser.findCandidates(null).allEmojis)
+  }
+
+  @Test
+  fun `isEmoji reports exact, possible and impossible matches`() {
+    val tree = source.emojiTree
+
+    assertEquals(EmojiTree.Matches.EXACTLY, tree.isEmoji(GRINNING, 0, 2))
+    assertEquals(EmojiTree.Matches.EXACTLY, tree.isEmoji(HEART_WITHOUT_SELECTOR, 0, 1))
+    assertEquals(EmojiTree.Matches.POSSIBLY, tree.isEmoji(GRINNING, 0, 1))
+    assertEquals(EmojiTree.Matches.IMPOSSIBLE, tree.isEmoji("cat", 0, 1))
+  }
+
+  @Test
+  fun `adding to a tree after it has been searched is picked up`() {
+    val tree = EmojiTree()
+    val first = drawInfo("a")
+    val second = drawInfo("ab")
+
+    tree.add("a", first)
+    assertSame(first, tree.getEmoji("a", 0, 1))
+    assertNull(tree.getEmoji("ab", 0, 2))
+
+    tree.add("ab", second)
+    assertSame(second, tree.getEmoji("ab", 0, 2))
+    assertNotNull(EmojiParser(tree).findCandidates("xaby").list.singleOrNull { it.drawInfo === second })
+  }
+
+  private fun drawInfo(emoji: String): EmojiDrawInfo {
+    return EmojiDrawInfo(EmojiPage.Asset(Uri.EMPTY), 0, emoji, null, null)
+  }
+}
@@ -0,0 +1,69 @@
+package org.thoughtcrime.securesms.components.emoji.parsing
+
+import android.app.Application
+import android.net.Uri
+import androidx.test.core.app.ApplicationProvider
+import org.thoughtcrime.securesms.emoji.EmojiJsonParser
+import org.thoughtcrime.securesms.emoji.EmojiPage
+import org.thoughtcrime.securesms.emoji.EmojiSource
+import kotlin.random.Random
+
+/**
+ * Generates message bodies shaped like real conversations: mostly plain text, some text with a few emoji mixed in, some messages that are
+ * only emoji, and the odd long message. Emoji are sometimes sent without their variation selector, or with a skin tone the emoji data
+ * doesn't have a variation for.
+ */
+object EmojiTestCorpus {
+
+  private val WORDS = listOf(
+    "ok", "yeah", "lol", "see", "you", "at", "the", "park", "tomorrow", "what", "time", "works", "for", "dinner", "sounds", "good", "thanks",
+    "haha", "did", "watch", "game", "last", "night", "running", "late", "be", "there", "in", "10", "min", "can't", "wait", "love", "it",
+    "happy", "birthday", "congrats", "on", "new", "job", "#1", "@everyone", "http://example.com/a?b=c", "1:30", "ü", "ça", "va", "¿qué", "tal?"
+  )
+
+  private val SKIN_TONES = listOf("\uD83C\uDFFB", "\uD83C\uDFFC", "\uD83C\uDFFD", "\uD83C\uDFFE", "\uD83C\uDFFF")
+
+  /**
+   * Loads the emoji data bundled with the app. Needs Robolectric for the assets.
+   */
+  fun loadBundledEmojiSource(): EmojiSource {
+    val application: Application = ApplicationProvider.getApplicationContext()
+
+    return application.assets.open("emoji/emoji_data.json").use {
+      EmojiSource(1f, EmojiJsonParser.parse(it) { _, _ -> Uri.EMPTY }.getOrThrow()) { uri -> EmojiPage.Asset(uri) }
+    }
+  }
+
+  fun allVariations(source: EmojiSource): List<String> {
+    return source.dataPages.flatMap { page -> page.displayEmoji.flatMap { it.variations } }
+  }
+
+  fun generate(emoji: List<String>, count: Int, seed: Long = 42): List<String> {
+    val random = Random(seed)
+
+    // Most emoji in real messages come from a small set of favourites
+    val favourites = emoji.shuffled(random).take(50)
+
+    fun pickEmoji(): String {
+      val pool = if (random.nextInt(4) == 0) emoji else favourites
+      val picked = pool[random.nextInt(pool.size)]
+
+      return when (random.nextInt(10)) {
+        0 -> picked.replace("\uFE0F", "")
+        1 -> picked + SKIN_TONES[random.nextInt(SKIN_TONES.size)]
+        else -> picked
+      }
+    }
+
+    fun words(count: Int): String = (0 until count).joinToString(" ") { WORDS[random.nextInt(WORDS.size)] }
+
+    return (0 until count).map {
+      when (random.nextInt(20)) {
+        in 0..11 -> words(1 + random.nextInt(12))
+        in 12..16 -> (0 until 1 + random.nextInt(3)).joinToString(" ") { words(1 + random.nextInt(6)) + " " + pickEmoji() }
+        in 17..18 -> (0 until 1 + random.nextInt(3)).joinToString("") { pickEmoji() }
+        else -> words(100 + random.nextInt(150)) + pickEmoji()
+      }
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package org.thoughtcrime.securesms.components.emoji.parsing
+
+/**
+ * A copy of the matcher [EmojiParser] replaced, which walks a tree of hash maps from the root once for every possible end position. Kept
+ * to check that the new one finds the same emoji, and to compare against it in [EmojiParserPerformanceTest].
+ */
+class LegacyEmojiParser(emoji: Map<String, EmojiDrawInfo>) {
+
+  private val root = Node()
+
+  init {
+    emoji.forEach { (encoding, drawInfo) ->
+      var node = root
+      encoding.forEach { c -> node = node.children.getOrPut(c) { Node() } }
+      node.emoji = drawInfo
+    }
+  }
+
+  fun findCandidates(text: CharSequence): List<EmojiParser.Candidate> {
+    val results: MutableList<EmojiParser.Candidate> = mutableListOf()
+
+    var i = 0
+    while (i < text.length) {
+      var emojiEnd = getEmojiEndPos(text, i)
+
+      if (emojiEnd != -1) {
+        val drawInfo = getEmoji(text, i, emojiEnd)
+
+        if (emojiEnd + 2 <= text.length && Fitzpatrick.fitzpatrickFromUnicode(text, emojiEnd) != null) {
+          emojiEnd += 2
+        }
+
+        results += EmojiParser.Candidate(i, emojiEnd, drawInfo)
+        i = emojiEnd
+      } else {
+        i++
+      }
+    }
+
+    return results
+  }
+
+  private fun getEmojiEndPos(text: CharSequence, startPos: Int): Int {
+    var best = -1
+
+    for (j in startPos + 1..text.length) {
+      val node = walk(text, startPos, j) ?: return best
+
+      if (node.emoji != null || (text[j - 1] != TERMINATOR && node.children[TERMINATOR]?.emoji != null)) {
+        best = j
+      }
+    }
+
+    return best
+  }
+
+  private fun getEmoji(text: CharSequence, start: Int, end: Int): EmojiDrawInfo? {
+    val node = walk(text, start, end) ?: return null
+
+    return when {
+      node.emoji != null -> node.emoji
+      text[end - 1] != TERMINATOR -> node.children[TERMINATOR]?.emoji
+      else -> null
+    }
+  }
+
+  private fun walk(text: CharSequence, start: Int, end: Int): Node? {
+    var node = root
+
+    for (i in start until end) {
+      node = node.children[text[i]] ?: return null
+    }
+
+    return node
+  }
+
+  private class Node {
+    val children: MutableMap<Char, Node> = HashMap()
+    var emoji: EmojiDrawInfo? = null
+  }
+
+  companion object {
+    private const val TERMINATOR = '\uFE0F'
+  }
+}
@@ -0,0 +1,292 @@
+package org.thoughtcrime.securesms.crypto;
+
+import org.junit.Test;
+import org.signal.libsignal.protocol.SignalProtocolAddress;
+import org.whispersystems.signalservice.api.SignalSessionLock;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class ReentrantSessionLockTest {
+
+  private static final ReentrantSessionLock LOCK = ReentrantSessionLock.INSTANCE;
+
+  private static final SignalProtocolAddress ALICE   = new SignalProtocolAddress("alice", 1);
+  private static final SignalProtocolAddress ALICE_2 = new SignalProtocolAddress("alice", 2);
+  private static final SignalProtocolAddress BOB     = findAddressOnOtherStripe(ALICE);
+
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+
+  @Test
+  public void differentAddresses_doNotBlockEachOther() throws Exception {
+    try (SignalSessionLock.Lock unused = LOCK.acquire(ALICE)) {
+      assertTrue(completesWhileHeld(() -> LOCK.acquire(BOB).close()));
+    }
+  }
+
+  @Test
+  public void sameName_differentDevice_blocks() throws Exception {
+    try (SignalSessionLock.Lock unused = LOCK.acquire(ALICE)) {
+      assertFalse(completesWhileHeld(() -> LOCK.acquire(ALICE_2).close()));
+    }
+  }
+
+  @Test
+  public void exclusive_blocksAddresses() throws Exception {
+    try (SignalSessionLock.Lock unused = LOCK.acquire()) {
+      assertFalse(completesWhileHeld(() -> LOCK.acquire(BOB).close()));
+    }
+  }
+
+  @Test
+  public void address_blocksExclusive() throws Exception {
+    try (SignalSessionLock.Lock unused = LOCK.acquire(ALICE)) {
+      assertFalse(completesWhileHeld(() -> LOCK.acquire().close()));
+    }
+  }
+
+  @Test
+  public void exclusive_isReentrant_forAllKinds() {
+    try (SignalSessionLock.Lock outer = LOCK.acquire()) {
+      LOCK.acquire().close();
+      LOCK.acquire(ALICE).close();
+      LOCK.acquire(Arrays.asList(ALICE, BOB)).close();
+    }
+  }
+
+  @Test
+  public void nestedExclusive_insideAddress_onlyBlocksOtherStoreAccess() throws Exception {
+    try (SignalSessionLock.Lock address = LOCK.acquire(ALICE)) {
+      try (SignalSessionLock.Lock store = LOCK.acquire()) {
+        assertTrue(completesWhileHeld(() -> LOCK.acquire(BOB).close()));
+        assertFalse(completesWhileHeld(() -> {
+          try (SignalSessionLock.Lock bob = LOCK.acquire(BOB)) {
+            LOCK.acquire().close();
+          }
+        }));
+      }
+    }
+  }
+
+  @Test
+  public void multipleAddresses_inOppositeOrders_doNotDeadlock() throws Exception {
+    Future<?> first = executor.submit(() -> {
+      for (int i = 0; i < 10_000; i++) {
+        LOCK.acquire(Arrays.asList(ALICE, BOB)).close();
+      }
+    });
+
+    Future<?> second = executor.submit(() -> {
+      for (int i = 0; i < 10_000; i++) {
+        LOCK.acquire(Arrays.asList(BOB, ALICE)).close();
+      }
+    });
+
+    first.get(10, TimeUnit.SECONDS);
+    second.get(10, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void waitingExclusive_isNotStarvedByAddresses() throws Exception {
+    CountDownLatch held = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(1);
+
+    executor.submit(() -> {
+      try (SignalSessionLock.Lock unused = LOCK.acquire(ALICE)) {
+        held.countDown();
+        done.await();
+      }
+      return null;
+    });
+
+    held.await();
+
+    Future<?> exclusive = executor.submit(() -> LOCK.acquire().close());
+    Thread.sleep(100);
+
+    assertFalse(completesWhileHeld(() -> LOCK.acquire(BOB).close()));
+
+    done.countDown();
+    exclusive.get(5, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void batchLock_tryAcquire_failsWhenAnotherThreadHoldsTheAddress() throws Exception {
+    CountDownLatch held = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(1);
+
+    executor.submit(() -> {
+      try (SignalSessionLock.Lock unused = LOCK.acquire(ALICE_2)) {
+        held.countDown();
+        done.await();
+      }
+      return null;
+    });
+
+    held.await();
+
+    try (ReentrantSessionLock.BatchLock batchLock = LOCK.newBatchLock()) {
+      assertTrue(batchLock.tryAcquire(BOB));
+      assertFalse(batchLock.tryAcquire(ALICE));
+    } finally {
+      done.countDown();
+    }
+  }
+
+  @Test
+  public void batchLock_tryAcquireExclusive_failsWhileHoldingAddresses() {
+    try (ReentrantSessionLock.BatchLock batchLock = LOCK.newBatchLock()) {
+      batchLock.acquire(ALICE);
+
+      assertTrue(batchLock.tryAcquire(ALICE_2));
+      assertFalse(batchLock.tryAcquireExclusive());
+    }
+  }
+
+  @Test
+  public void batchLock_exclusive_coversEveryAddress() throws Exception {
+    try (ReentrantSessionLock.BatchLock batchLock = LOCK.newBatchLock()) {
+      batchLock.acquireExclusive();
+
+      assertTrue(batchLock.tryAcquire(ALICE));
+      assertTrue(batchLock.tryAcquire(BOB));
+      assertFalse(completesWhileHeld(() -> LOCK.acquire(BOB).close()));
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void batchLock_acquireExclusive_afterAddress_throws() {
+    try (ReentrantSessionLock.BatchLock batchLock = LOCK.newBatchLock()) {
+      batchLock.acquire(ALICE);
+      batchLock.acquireExclusive();
+    }
+  }
+
+  @Test
+  public void batchLock_close_releasesEverything() throws Exception {
+    try (ReentrantSessionLock.BatchLock batchLock = LOCK.newBatchLock()) {
+      batchLock.acquire(ALICE);
+      assertTrue(batchLock.tryAcquire(BOB));
+    }
+
+    assertTrue(completesWhileHeld(() -> LOCK.acquire().close()));
+  }
+
+  /**
+   * The receive thread holds a batch lock and then a transaction (standing in for the database lock here), and only then uses the
+   * stores. A sender working on another address uses the stores, and writes to the database while doing so. If the batch lock didn't
+   * take the store lock up front, each would end up waiting on the other.
+   */
+  @Test
+  public void batchLock_storesInsideTransaction_doNotDeadlockWithOtherAddress() throws Exception {
+    ReentrantLock  database    = new ReentrantLock();
+    CountDownLatch batchHeld   = new CountDownLatch(1);
+    CountDownLatch senderStore = new CountDownLatch(1);
+
+    Future<?> receive = executor.submit(() -> {
+      try (ReentrantSessionLock.BatchLock batchLock = LOCK.newBatchLock()) {
+        batchLock.acquire(ALICE);
+        batchHeld.countDown();
+
+        // Give the sender a chance to get to the stores first
+        senderStore.await(200, TimeUnit.MILLISECONDS);
+
+        database.lock();
+        try {
+          LOCK.acquire().close();
+        } finally {
+          database.unlock();
+        }
+      }
+      return null;
+    });
+
+    Future<?> send = executor.submit(() -> {
+      batchHeld.await();
+
+      try (SignalSessionLock.Lock address = LOCK.acquire(BOB)) {
+        try (SignalSessionLock.Lock store = LOCK.acquire()) {
+          senderStore.countDown();
+
+          database.lock();
+          database.unlock();
+        }
+      }
+      return null;
+    });
+
+    receive.get(5, TimeUnit.SECONDS);
+    send.get(5, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void batchLock_tryAcquire_failsWhileAnotherThreadUsesTheStores() throws Exception {
+    CountDownLatch held = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(1);
+
+    executor.submit(() -> {
+      try (SignalSessionLock.Lock address = LOCK.acquire(ALICE)) {
+        try (SignalSessionLock.Lock store = LOCK.acquire()) {
+          held.countDown();
+          done.await();
+        }
+      }
+      return null;
+    });
+
+    held.await();
+
+    try (ReentrantSessionLock.BatchLock batchLock = LOCK.newBatchLock()) {
+      assertFalse(batchLock.tryAcquire(BOB));
+    } finally {
+      done.countDown();
+    }
+
+    assertTrue(completesWhileHeld(() -> LOCK.acquire().close()));
+  }
+
+  @Test
+  public void stats_includeBothKinds() {
+    LOCK.acquire().close();
+    LOCK.acquire(ALICE).close();
+
+    String stats = LOCK.getStats();
+    assertTrue(stats.contains("Exclusive: Acquisitions: "));
+    assertTrue(stats.contains("Address  : Acquisitions: "));
+  }
+
+  /**
+   * Runs the task on another thread and waits briefly. If it didn't finish, it's left to complete once the caller releases its locks.
+   */
+  private boolean completesWhileHeld(Runnable task) throws Exception {
+    Future<?> future = executor.submit(task);
+
+    try {
+      future.get(200, TimeUnit.MILLISECONDS);
+      return true;
+    } catch (TimeoutException e) {
+      return false;
+    }
+  }
+
+  private static SignalProtocolAddress findAddressOnOtherStripe(SignalProtocolAddress address) {
+    for (int i = 0; i < 1000; i++) {
+      SignalProtocolAddress candidate = new SignalProtocolAddress("bob" + i, 1);
+      if (ReentrantSessionLock.getStripeIndex(candidate) != ReentrantSessionLock.getStripeIndex(address)) {
+        return candidate;
+      }
+    }
+    fail("Couldn't find an address on another stripe");
+    return null;
+  }
+}
@@ -0,0 +1,82 @@
+package org.thoughtcrime.securesms.database
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import org.thoughtcrime.securesms.database.EmojiSearchIndex.Entry
+
+class EmojiSearchIndexTest {
+
+  private val index = EmojiSearchIndex(
+    listOf(
+      Entry("heart", "❤️", 3),
+      Entry("red heart", "❤️", 3),
+      Entry("heart eyes", "😍", 1),
+      Entry("broken heart", "💔", 10),
+      Entry("hearts", "💕", Int.MAX_VALUE),
+      Entry("cat", "🐱", 5),
+      Entry("cat face", "🐱", 5),
+      Entry("scatter", "🌪️", Int.MAX_VALUE),
+      Entry("Thumbs Up", "👍", 2)
+    )
+  )
+
+  @Test
+  fun `exact matches come first, then prefixes ahead of infixes`() {
+    assertEquals(listOf("❤️", "💕", "😍", "💔"), index.search("heart", 10))
+  }
+
+  @Test
+  fun `results are distinct and limited`() {
+    assertEquals(listOf("🐱"), index.search("cat", 1))
+    assertEquals(listOf("🐱", "🌪️"), index.search("cat", 10))
+  }
+
+  @Test
+  fun `short queries scan every label`() {
+    assertEquals(listOf("🐱", "🌪️"), index.search("ca", 10))
+    assertEquals(listOf("🌪️"), index.search("sc", 10))
+    assertEquals(listOf("😍"), index.search("y", 10))
+  }
+
+  @Test
+  fun `queries are case insensitive`() {
+    assertEquals(listOf("👍"), index.search("thumbs", 10))
+    assertEquals(listOf("👍"), index.search("UP", 10))
+  }
+
+  @Test
+  fun `queries without a match return nothing`() {
+    assertEquals(emptyList<String>(), index.search("dog", 10))
+    assertEquals(emptyList<String>(), index.search("heartz", 10))
+  }
+
+  @Test
+  fun `typing narrows the previous results to the same answer as a fresh search`() {
+    val typed = listOf("h", "he", "hea", "heart", "heart ", "heart e", "heart eyes").map { index.search(it, 10) }
+    val fresh = listOf("h", "he", "hea", "heart", "heart ", "heart e", "heart eyes").map { EmojiSearchIndex(entries()).search(it, 10) }
+
+    assertEquals(fresh, typed)
+    assertEquals(listOf("😍"), typed.last())
+  }
+
+  @Test
+  fun `deleting characters searches more than the previous results`() {
+    index.search("heart eyes", 10)
+
+    assertEquals(listOf("❤️", "💕", "😍", "💔"), index.search("heart", 10))
+  }
+
+  private fun entries(): List<Entry> {
+    return listOf(
+      Entry("heart", "❤️", 3),
+      Entry("red heart", "❤️", 3),
+      Entry("heart eyes", "😍", 1),
+      Entry("broken heart", "💔", 10),
+      Entry("hearts", "💕", Int.MAX_VALUE),
+      Entry("cat", "🐱", 5),
+      Entry("cat face", "🐱", 5),
+      Entry("scatter", "🌪️", Int.MAX_VALUE),
+      Entry("Thumbs Up", "👍", 2)
+    )
+  }
+}
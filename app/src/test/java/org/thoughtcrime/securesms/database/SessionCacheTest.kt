@@ -0,0 +1,98 @@
+package org.thoughtcrime.securesms.database
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Test
+import org.signal.libsignal.protocol.SignalProtocolAddress
+import org.signal.libsignal.protocol.state.SessionRecord
+
+class SessionCacheTest {
+
+  private val alice1 = SignalProtocolAddress("alice", 1)
+  private val alice2 = SignalProtocolAddress("alice", 2)
+  private val bob1 = SignalProtocolAddress("bob", 1)
+
+  @Test
+  fun `get returns what was put and tracks hits and misses`() {
+    val cache = SessionCache(10_000)
+    val record = SessionRecord()
+
+    assertNull(cache.get(alice1))
+    cache.put(alice1, record, 100)
+
+    assertSame(record, cache.get(alice1))
+    assertSame(record, cache.get(SignalProtocolAddress("alice", 1)))
+
+    val stats = cache.getStats()
+    assertEquals(2, stats.hits)
+    assertEquals(1, stats.misses)
+    assertEquals(1, stats.entries)
+  }
+
+  @Test
+  fun `evicts least recently used entries once over budget`() {
+    val cache = SessionCache(1_000)
+
+    cache.put(alice1, SessionRecord(), 300)
+    cache.put(alice2, SessionRecord(), 300)
+    cache.get(alice1)
+    cache.put(bob1, SessionRecord(), 300)
+
+    assertNull(cache.get(alice2))
+    assertEquals(1, cache.getStats().evictions)
+    assertEquals(2, cache.getStats().entries)
+    assertNotNull(cache.get(alice1))
+    assertNotNull(cache.get(bob1))
+  }
+
+  @Test
+  fun `does not cache records larger than the budget`() {
+    val cache = SessionCache(1_000)
+
+    cache.put(alice1, SessionRecord(), 100)
+    cache.put(alice1, SessionRecord(), 5_000)
+
+    assertNull(cache.get(alice1))
+    assertEquals(0, cache.getStats().bytes)
+  }
+
+  @Test
+  fun `putIfUnchanged ignores reads that raced with a write`() {
+    val cache = SessionCache(10_000)
+    val stale = SessionRecord()
+    val fresh = SessionRecord()
+
+    val version = cache.getVersion()
+    cache.put(alice1, fresh, 100)
+    cache.putIfUnchanged(alice1, stale, 100, version)
+
+    assertSame(fresh, cache.get(alice1))
+
+    cache.remove(alice1)
+    cache.putIfUnchanged(alice1, stale, 100, version)
+
+    assertNull(cache.get(alice1))
+
+    cache.putIfUnchanged(alice1, fresh, 100, cache.getVersion())
+
+    assertSame(fresh, cache.get(alice1))
+  }
+
+  @Test
+  fun `removeAll removes every device for a name`() {
+    val cache = SessionCache(10_000)
+
+    cache.put(alice1, SessionRecord(), 100)
+    cache.put(alice2, SessionRecord(), 100)
+    cache.put(bob1, SessionRecord(), 100)
+
+    cache.removeAll("alice")
+
+    assertNull(cache.get(alice1))
+    assertNull(cache.get(alice2))
+    assertNotNull(cache.get(bob1))
+    assertEquals(1, cache.getStats().entries)
+  }
+}
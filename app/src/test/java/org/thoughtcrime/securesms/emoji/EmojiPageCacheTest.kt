@@ -0,0 +1,172 @@
+package org.thoughtcrime.securesms.emoji
+
+import android.app.Application
+import android.graphics.Bitmap
+import android.graphics.Rect
+import android.net.Uri
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import org.thoughtcrime.securesms.components.emoji.parsing.EmojiDrawInfo
+
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE, application = Application::class)
+class EmojiPageCacheTest {
+
+  private val page = EmojiPage.Asset(Uri.parse("file:///android_asset/emoji/People_0.webp"))
+  private val pageBitmap = Bitmap.createBitmap(128, 128, Bitmap.Config.ARGB_8888)
+  private val bounds = Rect(1, 1, 63, 63)
+
+  @Before
+  fun setUp() {
+    EmojiPageCache.clear()
+  }
+
+  @Test
+  fun `an emoji gets its own bitmap once it has been drawn enough times`() {
+    val drawInfo = drawInfo(0)
+
+    EmojiPageCache.onEmojiDrawn(drawInfo, 1, pageBitmap, bounds)
+    EmojiPageCache.onEmojiDrawn(drawInfo, 1, pageBitmap, bounds)
+    assertNull(EmojiPageCache.getEmojiBitmap(drawInfo, 1))
+
+    EmojiPageCache.onEmojiDrawn(drawInfo, 1, pageBitmap, bounds)
+    val emojiBitmap = EmojiPageCache.getEmojiBitmap(drawInfo, 1)
+
+    assertNotNull(emojiBitmap)
+    assertEquals(bounds.width(), emojiBitmap!!.width)
+    assertEquals(bounds.height(), emojiBitmap.height)
+  }
+
+  @Test
+  fun `emoji bitmaps are kept separately for each sample size and index`() {
+    repeat(3) { EmojiPageCache.onEmojiDrawn(drawInfo(0), 1, pageBitmap, bounds) }
+
+    assertNull(EmojiPageCache.getEmojiBitmap(drawInfo(0), 2))
+    assertNull(EmojiPageCache.getEmojiBitmap(drawInfo(1), 1))
+  }
+
+  @Test
+  fun `bounds outside of the page are ignored`() {
+    repeat(3) { EmojiPageCache.onEmojiDrawn(drawInfo(0), 1, pageBitmap, Rect(100, 100, 200, 200)) }
+
+    assertNull(EmojiPageCache.getEmojiBitmap(drawInfo(0), 1))
+  }
+
+  @Test
+  fun `clear drops emoji bitmaps and use counts`() {
+    repeat(3) { EmojiPageCache.onEmojiDrawn(drawInfo(0), 1, pageBitmap, bounds) }
+    EmojiPageCache.clear()
+
+    assertNull(EmojiPageCache.getEmojiBitmap(drawInfo(0), 1))
+
+    EmojiPageCache.onEmojiDrawn(drawInfo(0), 1, pageBitmap, bounds)
+    assertNull(EmojiPageCache.getEmojiBitmap(drawInfo(0), 1))
+  }
+
+  @Test
+  fun `stats count emoji bitmaps`() {
+    repeat(3) { EmojiPageCache.onEmojiDrawn(drawInfo(0), 1, pageBitmap, bounds) }
+
+    val stats = EmojiPageCache.getStats()
+
+    assertEquals(1, stats.emoji)
+    assertEquals(bounds.width() * bounds.height() * 4, stats.emojiBytes)
+  }
+
+  @Test
+  fun `each step of downsampling quarters the page budget`() {
+    EmojiPageCache.putPage(page, 1, pageBitmap)
+    EmojiPageCache.putPage(page, 2, pageBitmap)
+    EmojiPageCache.putPage(page, 4, pageBitmap)
+
+    val (full, half, quarter) = EmojiPageCache.getStats().tiers
+
+    assertEquals(listOf(1, 2, 4), listOf(full.inSampleSize, half.inSampleSize, quarter.inSampleSize))
+    assertTrue(full.maxBytes in 12 * 1024 * 1024..32 * 1024 * 1024)
+    assertEquals(full.maxBytes / 4, half.maxBytes)
+    assertEquals(full.maxBytes / 16, quarter.maxBytes)
+  }
+
+  @Test
+  fun `pages are evicted once their allocation byte count exceeds the budget`() {
+    EmojiPageCache.putPage(page(0), 4, pageBitmap)
+    val maxBytes = EmojiPageCache.getStats().tiers.single().maxBytes
+    EmojiPageCache.clear()
+
+    // Each page takes up a bit less than a third of the budget
+    val bitmaps = (0 until 4).map { Bitmap.createBitmap(maxBytes / 3 / 4, 1, Bitmap.Config.ARGB_8888) }
+    bitmaps.forEachIndexed { i, bitmap -> EmojiPageCache.putPage(page(i), 4, bitmap) }
+
+    val tier = EmojiPageCache.getStats().tiers.single()
+
+    assertEquals(3, tier.pages)
+    assertEquals(1, tier.evictions)
+    assertEquals(bitmaps.drop(1).sumOf { it.allocationByteCount }, tier.bytes)
+  }
+
+  @Test
+  fun `prefetch only takes as many pages as fit in what is left of the budget`() {
+    EmojiPageCache.putPage(page(0), 4, pageBitmap)
+    val maxBytes = EmojiPageCache.getStats().tiers.single().maxBytes
+    EmojiPageCache.clear()
+
+    // Each page takes up a bit less than a quarter of the budget, so there's room for two more
+    EmojiPageCache.putPage(page(0), 4, Bitmap.createBitmap(maxBytes / 4 / 4, 1, Bitmap.Config.ARGB_8888))
+    EmojiPageCache.putPage(page(1), 4, Bitmap.createBitmap(maxBytes / 4 / 4, 1, Bitmap.Config.ARGB_8888))
+
+    assertEquals(listOf(page(2), page(3)), EmojiPageCache.getPagesToPrefetch((0 until 10).map { page(it) }, 4))
+
+    // A third page leaves no room without evicting one of them
+    EmojiPageCache.putPage(page(2), 4, Bitmap.createBitmap(maxBytes / 3 / 4, 1, Bitmap.Config.ARGB_8888))
+
+    assertEquals(emptyList<EmojiPage>(), EmojiPageCache.getPagesToPrefetch((0 until 10).map { page(it) }, 4))
+    assertEquals(0, EmojiPageCache.getStats().tiers.single().evictions)
+  }
+
+  @Test
+  fun `prefetch only takes one page when there is nothing loaded to size it by`() {
+    assertEquals(listOf(page(0)), EmojiPageCache.getPagesToPrefetch((0 until 4).map { page(it) }, 1))
+  }
+
+  @Test
+  fun `prefetch skips pages that are already loaded at that sample size`() {
+    EmojiPageCache.putPage(page(0), 1, pageBitmap)
+    EmojiPageCache.putPage(page(2), 1, pageBitmap)
+
+    assertEquals(listOf(page(1), page(3)), EmojiPageCache.getPagesToPrefetch((0 until 4).map { page(it) }, 1))
+    assertEquals(listOf(page(0)), EmojiPageCache.getPagesToPrefetch(listOf(page(0)), 2))
+  }
+
+  @Test
+  fun `prefetch is limited to a few pages`() {
+    EmojiPageCache.putPage(page(10), 1, pageBitmap)
+
+    assertEquals((0 until 4).map { page(it) }, EmojiPageCache.getPagesToPrefetch((0 until 10).map { page(it) }, 1))
+  }
+
+  @Test
+  fun `checking what to prefetch does not count as hits or misses`() {
+    EmojiPageCache.putPage(page(0), 1, pageBitmap)
+
+    EmojiPageCache.getPagesToPrefetch(listOf(page(0), page(1)), 1)
+
+    val tier = EmojiPageCache.getStats().tiers.single()
+    assertEquals(0, tier.hits)
+    assertEquals(0, tier.misses)
+  }
+
+  private fun page(index: Int): EmojiPage {
+    return EmojiPage.Asset(Uri.parse("file:///android_asset/emoji/Test_$index.webp"))
+  }
+
+  private fun drawInfo(index: Int): EmojiDrawInfo {
+    return EmojiDrawInfo(page, index, "emoji-$index", null, null)
+  }
+}
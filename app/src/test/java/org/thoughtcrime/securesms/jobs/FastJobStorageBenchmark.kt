@@ -0,0 +1,140 @@
+package org.thoughtcrime.securesms.jobs
+
+import org.junit.Ignore
+import org.junit.Test
+import org.mockito.kotlin.mock
+import org.mockito.kotlin.whenever
+import org.thoughtcrime.securesms.database.JobDatabase
+import org.thoughtcrime.securesms.jobmanager.persistence.FullSpec
+import org.thoughtcrime.securesms.jobmanager.persistence.JobSpec
+import org.thoughtcrime.securesms.jobmanager.persistence.JobStorage
+import kotlin.system.measureNanoTime
+
+/**
+ * Compares [FastJobStorage] against the list-based storage it replaced by simulating the
+ * access pattern of [org.thoughtcrime.securesms.jobmanager.JobController] draining a large backlog:
+ * find the next eligible job, mark it as running, check factory limits, then delete it.
+ *
+ * Ignored by default, since it's a benchmark rather than a correctness test. Run it manually
+ * and look at the output.
+ */
+@Ignore
+class FastJobStorageBenchmark {
+
+  @Test
+  fun drain_10k() {
+    benchmark(10_000)
+  }
+
+  @Test
+  fun drain_100k() {
+    benchmark(100_000)
+  }
+
+  private fun benchmark(jobCount: Int) {
+    // The list-based storage is quadratic, so only drain a slice of the backlog with it
+    val drainCount = minOf(jobCount, 2_000)
+
+    val indexed = drain(IndexedStorage(FastJobStorage(noopDatabase())), jobCount, drainCount)
+    val list = drain(ListJobStorage(), jobCount, drainCount)
+
+    println("[$jobCount jobs, $drainCount drained] indexed: ${indexed / 1_000_000} ms, list: ${list / 1_000_000} ms")
+  }
+
+  private fun drain(storage: BenchmarkStorage, jobCount: Int, drainCount: Int): Long {
+    storage.insertJobs(buildJobs(jobCount))
+
+    return measureNanoTime {
+      for (i in 0 until drainCount) {
+        val next: JobSpec = storage.getPendingJobsWithNoDependenciesInCreatedOrder(Long.MAX_VALUE).first()
+        storage.updateJobRunningState(next.id, true)
+        storage.getJobCountForFactory(next.factoryKey)
+        storage.deleteJob(next.id)
+      }
+    }
+  }
+
+  private fun buildJobs(count: Int): List<FullSpec> {
+    return (0 until count).map { i ->
+      val jobSpec = JobSpec(
+        id = "job-$i",
+        factoryKey = "factory-${i % 10}",
+        queueKey = if (i % 3 == 0) null else "queue-${i % 50}",
+        createTime = i.toLong(),
+        nextRunAttemptTime = 0,
+        runAttempt = 0,
+        maxAttempts = 1,
+        lifespan = -1,
+        serializedData = null,
+        serializedInputData = null,
+        isRunning = false,
+        isMemoryOnly = true
+      )
+
+      FullSpec(jobSpec, emptyList(), emptyList())
+    }
+  }
+
+  private fun noopDatabase(): JobDatabase {
+    val database: JobDatabase = mock()
+    whenever(database.allJobSpecs).thenReturn(emptyList())
+    whenever(database.allConstraintSpecs).thenReturn(emptyList())
+    whenever(database.allDependencySpecs).thenReturn(emptyList())
+    return database
+  }
+
+  private interface BenchmarkStorage {
+    fun insertJobs(fullSpecs: List<FullSpec>)
+    fun getPendingJobsWithNoDependenciesInCreatedOrder(currentTime: Long): List<JobSpec>
+    fun updateJobRunningState(id: String, isRunning: Boolean)
+    fun getJobCountForFactory(factoryKey: String): Int
+    fun deleteJob(id: String)
+  }
+
+  private class IndexedStorage(private val storage: JobStorage) : BenchmarkStorage {
+    override fun insertJobs(fullSpecs: List<FullSpec>) = storage.insertJobs(fullSpecs)
+    override fun getPendingJobsWithNoDependenciesInCreatedOrder(currentTime: Long): List<JobSpec> = storage.getPendingJobsWithNoDependenciesInCreatedOrder(currentTime)
+    override fun updateJobRunningState(id: String, isRunning: Boolean) = storage.updateJobRunningState(id, isRunning)
+    override fun getJobCountForFactory(factoryKey: String): Int = storage.getJobCountForFactory(factoryKey)
+    override fun deleteJob(id: String) = storage.deleteJob(id)
+  }
+
+  /**
+   * The relevant parts of the previous, list-based [FastJobStorage], kept here for comparison.
+   * Memory-only jobs are used, so there's no database to worry about.
+   */
+  private class ListJobStorage : BenchmarkStorage {
+    private val jobs: MutableList<JobSpec> = mutableListOf()
+
+    override fun insertJobs(fullSpecs: List<FullSpec>) {
+      jobs += fullSpecs.map { it.jobSpec }
+    }
+
+    override fun getPendingJobsWithNoDependenciesInCreatedOrder(currentTime: Long): List<JobSpec> {
+      return jobs
+        .groupBy { it.queueKey ?: it.id }
+        .mapNotNull { it.value.minByOrNull { job -> job.createTime } }
+        .filterNot { it.isRunning }
+        .filter { it.nextRunAttemptTime <= currentTime }
+        .sortedBy { it.createTime }
+    }
+
+    override fun updateJobRunningState(id: String, isRunning: Boolean) {
+      val iter = jobs.listIterator()
+      while (iter.hasNext()) {
+        val current = iter.next()
+        if (current.id == id) {
+          iter.set(current.copy(isRunning = isRunning))
+        }
+      }
+    }
+
+    override fun getJobCountForFactory(factoryKey: String): Int {
+      return jobs.filter { it.factoryKey == factoryKey }.size
+    }
+
+    override fun deleteJob(id: String) {
+      jobs.removeIf { it.id == id }
+    }
+  }
+}
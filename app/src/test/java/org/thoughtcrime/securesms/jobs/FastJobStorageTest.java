@@ -441,6 +441,63 @@ public class FastJobStorageTest {
     assertTrue(jobs.isEmpty());
   }
 
+  @Test
+  public void getPendingJobsWithNoDependenciesInCreatedOrder_nextItemInQueueAfterDelete() {
+    FullSpec fullSpec1 = new FullSpec(new JobSpec("1", "f1", "q", 0, 0, 0, 0, -1, null, null, false, false),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+    FullSpec fullSpec2 = new FullSpec(new JobSpec("2", "f2", "q", 1, 0, 0, 0, -1, null, null, false, false),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+
+    FastJobStorage subject = new FastJobStorage(fixedDataDatabase(Arrays.asList(fullSpec1, fullSpec2)));
+    subject.init();
+    subject.deleteJob("1");
+
+    List<JobSpec> jobs = subject.getPendingJobsWithNoDependenciesInCreatedOrder(10);
+
+    assertEquals(1, jobs.size());
+    assertEquals("2", jobs.get(0).getId());
+  }
+
+  @Test
+  public void getPendingJobsWithNoDependenciesInCreatedOrder_eligibleAfterDependencyDeleted() {
+    FullSpec fullSpec1 = new FullSpec(new JobSpec("1", "f1", null, 0, 0, 0, 0, -1, null, null, true, false),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+    FullSpec fullSpec2 = new FullSpec(new JobSpec("2", "f2", null, 1, 0, 0, 0, -1, null, null, false, false),
+                                      Collections.emptyList(),
+                                      Collections.singletonList(new DependencySpec("2", "1", false)));
+
+    FastJobStorage subject = new FastJobStorage(fixedDataDatabase(Arrays.asList(fullSpec1, fullSpec2)));
+    subject.init();
+
+    assertEquals(0, subject.getPendingJobsWithNoDependenciesInCreatedOrder(10).size());
+
+    subject.deleteJob("1");
+
+    List<JobSpec> jobs = subject.getPendingJobsWithNoDependenciesInCreatedOrder(10);
+
+    assertEquals(1, jobs.size());
+    assertEquals("2", jobs.get(0).getId());
+  }
+
+  @Test
+  public void getPendingJobsWithNoDependenciesInCreatedOrder_eligibleAfterRetryTimeUpdated() {
+    FullSpec fullSpec = new FullSpec(new JobSpec("1", "f1", "q", 0, 20, 0, 0, -1, null, null, false, false),
+                                     Collections.emptyList(),
+                                     Collections.emptyList());
+
+    FastJobStorage subject = new FastJobStorage(fixedDataDatabase(Collections.singletonList(fullSpec)));
+    subject.init();
+
+    assertEquals(0, subject.getPendingJobsWithNoDependenciesInCreatedOrder(10).size());
+
+    subject.updateJobAfterRetry("1", false, 1, 5, null);
+
+    assertEquals(1, subject.getPendingJobsWithNoDependenciesInCreatedOrder(10).size());
+  }
+
   @Test
   public void deleteJobs_writesToDatabase() {
     JobDatabase    database = fixedDataDatabase(DataSet1.FULL_SPECS);
@@ -593,6 +650,16 @@ public class FastJobStorageTest {
     assertTrue(subject.areQueuesEmpty(setOf("q4", "q5")));
   }
 
+  @Test
+  public void flush_flushesDatabase() {
+    JobDatabase    database = noopDatabase();
+    FastJobStorage subject  = new FastJobStorage(database);
+
+    subject.flush();
+
+    verify(database).flushPendingWrites();
+  }
+
   private JobDatabase noopDatabase() {
     JobDatabase database = mock(JobDatabase.class);
 
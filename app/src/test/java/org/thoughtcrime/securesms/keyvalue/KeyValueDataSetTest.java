@@ -3,6 +3,7 @@ package org.thoughtcrime.securesms.keyvalue;
 import org.junit.Test;
 
 import java.util.Collections;
+import java.util.Map;
 
 import static junit.framework.TestCase.assertTrue;
 import static org.junit.Assert.assertEquals;
@@ -201,4 +202,37 @@ public class KeyValueDataSetTest {
 
     assertFalse(subject.containsKey("key"));
   }
+
+  @Test
+  public void getValues_boxesEveryType() {
+    KeyValueDataSet subject = new KeyValueDataSet();
+    subject.putBoolean("b", true);
+    subject.putFloat("c", -1.5f);
+    subject.putInteger("d", -3);
+    subject.putLong("e", Long.MIN_VALUE);
+    subject.putString("f", null);
+
+    Map<String, Object> values = subject.getValues();
+
+    assertEquals(5, values.size());
+    assertEquals(true, values.get("b"));
+    assertEquals(-1.5f, values.get("c"));
+    assertEquals(-3, values.get("d"));
+    assertEquals(Long.MIN_VALUE, values.get("e"));
+    assertTrue(values.containsKey("f"));
+    assertNull(values.get("f"));
+  }
+
+  @Test
+  public void copy_isNotAffectedByChangesToOriginal() {
+    KeyValueDataSet original = new KeyValueDataSet();
+    original.putLong("key", 1);
+
+    KeyValueDataSet copy = new KeyValueDataSet(original);
+    original.putLong("key", 2);
+    original.putLong("other", 3);
+
+    assertEquals(1, copy.getLong("key", 0));
+    assertFalse(copy.containsKey("other"));
+  }
 }
@@ -0,0 +1,112 @@
+package org.thoughtcrime.securesms.keyvalue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class KeyValueStoreTest {
+
+  private KeyValueDataSet persisted;
+  private KeyValueStore   subject;
+
+  @Before
+  public void setUp() {
+    persisted = new KeyValueDataSet();
+    persisted.putLong("long", 1);
+    persisted.putString("string", "a");
+
+    subject = new KeyValueStore(MockKeyValuePersistentStorage.withDataSet(persisted));
+  }
+
+  @Test
+  public void get_readsPersistedValues() {
+    assertEquals(1, subject.getLong("long", 0));
+    assertEquals("a", subject.getString("string", null));
+    assertFalse(subject.containsKey("missing"));
+  }
+
+  @Test
+  public void apply_isVisibleImmediately() {
+    subject.beginWrite().putLong("long", 2).putBoolean("boolean", true).remove("string").apply();
+
+    assertEquals(2, subject.getLong("long", 0));
+    assertTrue(subject.getBoolean("boolean", false));
+    assertFalse(subject.containsKey("string"));
+  }
+
+  @Test
+  public void commit_isPersisted() {
+    subject.beginWrite().putInteger("int", 5).remove("string").commit();
+
+    assertEquals(5, persisted.getInteger("int", 0));
+    assertFalse(persisted.containsKey("string"));
+  }
+
+  @Test
+  public void beginRead_isNotAffectedByLaterWrites() {
+    subject.getLong("long", 0);
+
+    KeyValueReader reader = subject.beginRead();
+
+    subject.beginWrite().putLong("long", 2).remove("string").apply();
+
+    assertEquals(1, reader.getLong("long", 0));
+    assertEquals("a", reader.getString("string", null));
+    assertEquals(2, subject.getLong("long", 0));
+    assertNull(subject.getString("string", null));
+  }
+
+  @Test
+  public void resetCache_rereadsPersistedValues() {
+    subject.getLong("long", 0);
+    persisted.putLong("long", 3);
+
+    subject.resetCache();
+
+    assertEquals(3, subject.getLong("long", 0));
+  }
+
+  @Test
+  public void beginRead_neverSeesPartialWrites() throws InterruptedException {
+    AtomicBoolean             done    = new AtomicBoolean();
+    AtomicReference<String>   failure = new AtomicReference<>();
+    List<Thread>              readers = new ArrayList<>();
+
+    for (int i = 0; i < 4; i++) {
+      Thread reader = new Thread(() -> {
+        while (!done.get()) {
+          KeyValueReader snapshot = subject.beginRead();
+          long           first    = snapshot.getLong("first", 0);
+          long           second   = snapshot.getLong("second", 0);
+
+          if (first != second) {
+            failure.set(first + " != " + second);
+          }
+        }
+      });
+      reader.start();
+      readers.add(reader);
+    }
+
+    for (long i = 1; i <= 10_000; i++) {
+      subject.beginWrite().putLong("first", i).putLong("second", i).apply();
+    }
+
+    done.set(true);
+    for (Thread reader : readers) {
+      reader.join();
+    }
+
+    assertNull(failure.get());
+    assertEquals(10_000, subject.getLong("second", 0));
+  }
+}
@@ -0,0 +1,229 @@
+package org.thoughtcrime.securesms.logging
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.BeforeClass
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.signal.core.util.logging.Log
+import org.thoughtcrime.securesms.BuildConfig
+import org.thoughtcrime.securesms.database.model.LogEntry
+import org.thoughtcrime.securesms.testutil.EmptyLogger
+import java.io.File
+import kotlin.random.Random
+
+class SegmentedLogStoreTest {
+
+  companion object {
+    private const val NOW = 1_600_000_000_000L
+
+    @BeforeClass
+    @JvmStatic
+    fun setUpClass() {
+      Log.initialize(EmptyLogger())
+    }
+  }
+
+  @get:Rule
+  val folder = TemporaryFolder()
+
+  private val secret = Random(1).nextBytes(32)
+  private val formatter = LogLineFormatter()
+
+  private lateinit var directory: File
+  private lateinit var subject: SegmentedLogStore
+
+  @Before
+  fun setUp() {
+    directory = folder.newFolder()
+    subject = SegmentedLogStore(directory, { secret })
+  }
+
+  @Test
+  fun insert_thenReadAll_returnsFormattedLinesInOrder() {
+    val entries = listOf(
+      entry(NOW, "Tag1", "main ", "first"),
+      entry(NOW + 5, "Tag2", "12   ", "second é😀"),
+      entry(NOW + 5, "Tag1", "main ", "")
+    )
+
+    subject.insert(entries, NOW)
+
+    assertEquals(entries.map { format(it) }, readAll(Long.MAX_VALUE))
+  }
+
+  @Test
+  fun getAllBeforeTime_excludesNewerEntries() {
+    subject.insert(listOf(entry(NOW, message = "a"), entry(NOW + 10, message = "b")), NOW)
+
+    assertEquals(listOf(format(entry(NOW, message = "a"))), readAll(NOW + 10))
+    assertEquals(1, subject.getLogCountBeforeTime(NOW + 10))
+  }
+
+  @Test
+  fun keepLongerEntries_areMergedByTime() {
+    subject.insert(
+      listOf(
+        entry(NOW, message = "a"),
+        entry(NOW + 1, message = "b", keepLonger = true),
+        entry(NOW + 2, message = "c")
+      ),
+      NOW
+    )
+
+    assertEquals(listOf("a", "b", "c"), readAll(Long.MAX_VALUE).map { it.substringAfterLast(": ") })
+  }
+
+  @Test
+  fun getRangeBeforeTime_pagesForwardAndBackward() {
+    subject.insert((0 until 50).map { entry(NOW + it, message = it.toString()) }, NOW)
+
+    val expected = (0 until 50).map { it.toString() }
+
+    assertEquals(expected.subList(0, 10), subject.getRangeBeforeTime(0, 10, Long.MAX_VALUE).map { it.substringAfterLast(": ") })
+    assertEquals(expected.subList(20, 30), subject.getRangeBeforeTime(20, 10, Long.MAX_VALUE).map { it.substringAfterLast(": ") })
+    assertEquals(expected.subList(5, 15), subject.getRangeBeforeTime(5, 10, Long.MAX_VALUE).map { it.substringAfterLast(": ") })
+    assertEquals(expected.subList(45, 50), subject.getRangeBeforeTime(45, 10, Long.MAX_VALUE).map { it.substringAfterLast(": ") })
+  }
+
+  @Test
+  fun getRangeBeforeTime_closesReaderAfterLastPage() {
+    subject.insert((0 until 25).map { entry(NOW + it, message = it.toString()) }, NOW)
+
+    subject.getRangeBeforeTime(0, 10, Long.MAX_VALUE)
+    assertTrue(subject.hasOpenRangeReader())
+
+    subject.getRangeBeforeTime(10, 10, Long.MAX_VALUE)
+    assertTrue(subject.hasOpenRangeReader())
+
+    assertEquals(5, subject.getRangeBeforeTime(20, 10, Long.MAX_VALUE).size)
+    assertFalse(subject.hasOpenRangeReader())
+
+    assertEquals(listOf("20", "21"), subject.getRangeBeforeTime(20, 2, Long.MAX_VALUE).map { it.substringAfterLast(": ") })
+    assertTrue(subject.hasOpenRangeReader())
+  }
+
+  @Test
+  fun getRangeBeforeTime_pageEndingOnLastEntry_closesReader() {
+    subject.insert((0 until 20).map { entry(NOW + it, message = it.toString()) }, NOW)
+
+    subject.getRangeBeforeTime(0, 10, Long.MAX_VALUE)
+    subject.getRangeBeforeTime(10, 10, Long.MAX_VALUE)
+
+    assertFalse(subject.hasOpenRangeReader())
+  }
+
+  @Test
+  fun largeSegments_rollOverAndTrimWholeSegments() {
+    subject = SegmentedLogStore(directory, { secret }, maxTotalSize = 8 * 1024, maxSegmentSize = 1024)
+
+    for (i in 0 until 100) {
+      subject.insert(listOf(entry(NOW + i, message = "message $i ${"x".repeat(100)}")), NOW + i)
+    }
+
+    val segmentsBefore = segmentFiles().size
+    assertTrue(segmentsBefore > 1)
+
+    subject.trimToSize()
+
+    val lines = readAll(Long.MAX_VALUE)
+    assertTrue(segmentFiles().size < segmentsBefore)
+    assertTrue(segmentFiles().sumOf { it.length() } <= 8 * 1024)
+    assertTrue(lines.last().contains("message 99 "))
+    assertEquals(lines.size, subject.getLogCountBeforeTime(Long.MAX_VALUE))
+  }
+
+  @Test
+  fun trimToSize_deletesOldestSegmentsAcrossBothSeries() {
+    subject = SegmentedLogStore(directory, { secret }, maxSegmentSize = 1)
+
+    subject.insert(listOf(entry(NOW, message = "old", keepLonger = true)), NOW)
+    subject.insert(listOf(entry(NOW + 1, message = "a")), NOW + 1)
+    subject.insert(listOf(entry(NOW + 2, message = "b")), NOW + 2)
+    subject.insert(listOf(entry(NOW + 3, message = "new", keepLonger = true)), NOW + 3)
+
+    val keepLonger = segmentFiles(File(directory, "keep_longer"))
+    val default = segmentFiles(File(directory, "default"))
+    val now = System.currentTimeMillis()
+
+    keepLonger[0].setLastModified(now - 4_000_000)
+    default[0].setLastModified(now - 3_000_000)
+    default[1].setLastModified(now - 2_000_000)
+    keepLonger[1].setLastModified(now - 1_000_000)
+
+    // A fresh store has no active segments, so every segment can be trimmed
+    val totalSize = segmentFiles().sumOf { it.length() }
+    subject = SegmentedLogStore(directory, { secret }, maxTotalSize = totalSize - keepLonger[0].length())
+
+    subject.trimToSize()
+
+    assertEquals(listOf("a", "b", "new"), readAll(Long.MAX_VALUE).map { it.substringAfterLast(": ") })
+  }
+
+  @Test
+  fun expiredSegments_areDeletedOnTrim() {
+    subject = SegmentedLogStore(directory, { secret }, maxSegmentSize = 1)
+
+    subject.insert(listOf(entry(NOW, message = "old")), NOW)
+    subject.insert(listOf(entry(NOW, message = "new")), NOW)
+    segmentFiles().minByOrNull { it.name }!!.setLastModified(System.currentTimeMillis() - 4 * 24 * 60 * 60 * 1000L)
+
+    subject.trimToSize()
+
+    assertEquals(listOf("new"), readAll(Long.MAX_VALUE).map { it.substringAfterLast(": ") })
+  }
+
+  @Test
+  fun clearKeepLonger_onlyRemovesKeepLongerEntries() {
+    subject.insert(listOf(entry(NOW, message = "a"), entry(NOW + 1, message = "b", keepLonger = true)), NOW)
+
+    subject.clearKeepLonger()
+
+    assertEquals(listOf("a"), readAll(Long.MAX_VALUE).map { it.substringAfterLast(": ") })
+  }
+
+  @Test
+  fun truncatedSegment_returnsCompleteFrames() {
+    subject.insert(listOf(entry(NOW, message = "a")), NOW)
+    subject.insert(listOf(entry(NOW + 1, message = "b")), NOW)
+
+    val segment = segmentFiles().single()
+    segment.writeBytes(segment.readBytes().copyOf(segment.length().toInt() - 3))
+
+    assertEquals(listOf("a"), readAll(Long.MAX_VALUE).map { it.substringAfterLast(": ") })
+  }
+
+  @Test
+  fun wrongSecret_readsNothing() {
+    subject.insert(listOf(entry(NOW, message = "a")), NOW)
+
+    val other = SegmentedLogStore(directory, { Random(2).nextBytes(32) })
+
+    assertEquals(0, other.getLogCountBeforeTime(Long.MAX_VALUE))
+  }
+
+  private fun readAll(time: Long): List<String> {
+    val lines = mutableListOf<String>()
+    subject.getAllBeforeTime(time).use { reader ->
+      while (reader.hasNext()) {
+        lines.add(reader.next())
+      }
+    }
+    return lines
+  }
+
+  private fun segmentFiles(parent: File = directory): List<File> {
+    return parent.walk().filter { it.isFile }.sortedBy { it.name }.toList()
+  }
+
+  private fun format(entry: LogEntry): String {
+    return formatter.format(BuildConfig.VERSION_NAME, entry.threadString, entry.createdAt, entry.level, entry.tag, entry.message)
+  }
+
+  private fun entry(createdAt: Long, tag: String = "Tag", thread: String = "main ", message: String, keepLonger: Boolean = false): LogEntry {
+    return LogEntry(createdAt = createdAt, keepLonger = keepLonger, level = "I", tag = tag, threadString = thread, message = message)
+  }
+}
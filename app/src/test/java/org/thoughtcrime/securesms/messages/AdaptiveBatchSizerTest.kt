@@ -0,0 +1,150 @@
+package org.thoughtcrime.securesms.messages
+
+import org.junit.Assert.assertEquals
+import org.junit.BeforeClass
+import org.junit.Test
+import org.signal.core.util.logging.Log
+import org.thoughtcrime.securesms.testutil.EmptyLogger
+
+class AdaptiveBatchSizerTest {
+
+  companion object {
+    @BeforeClass
+    @JvmStatic
+    fun setUpClass() {
+      Log.initialize(EmptyLogger())
+    }
+  }
+
+  private val sizes = AdaptiveBatchSizer.BATCH_SIZES
+
+  @Test
+  fun `given a fresh sizer, then start at the previous default of 30`() {
+    assertEquals(30, AdaptiveBatchSizer().batchSize)
+  }
+
+  @Test
+  fun `given a fast full batch with more pending, then grow`() {
+    val sizer = AdaptiveBatchSizer()
+
+    sizer.onBatch(requested = 30, received = 30, hasMore = true, decryptTimeMs = 30, commitTimeMs = 10, appVisible = false)
+
+    assertEquals(60, sizer.batchSize)
+  }
+
+  @Test
+  fun `given repeated fast full batches, then stop at the max`() {
+    val sizer = AdaptiveBatchSizer()
+
+    repeat(20) {
+      sizer.onBatch(requested = sizer.batchSize, received = sizer.batchSize, hasMore = true, decryptTimeMs = 1, commitTimeMs = 1, appVisible = false)
+    }
+
+    assertEquals(sizes.last(), sizer.batchSize)
+  }
+
+  @Test
+  fun `given a slow full batch, then shrink`() {
+    val sizer = AdaptiveBatchSizer(foregroundBudgetMs = 100, backgroundBudgetMs = 100)
+
+    sizer.onBatch(requested = 30, received = 30, hasMore = true, decryptTimeMs = 150, commitTimeMs = 10, appVisible = false)
+
+    assertEquals(10, sizer.batchSize)
+  }
+
+  @Test
+  fun `given a batch that would exceed the budget if grown, then stay the same`() {
+    val sizer = AdaptiveBatchSizer(foregroundBudgetMs = 100, backgroundBudgetMs = 100)
+
+    // 2ms per envelope * 60 envelopes = 120ms, which is over budget
+    sizer.onBatch(requested = 30, received = 30, hasMore = true, decryptTimeMs = 60, commitTimeMs = 10, appVisible = false)
+
+    assertEquals(30, sizer.batchSize)
+  }
+
+  @Test
+  fun `given the foreground budget is tighter, when visible, then do not grow as far`() {
+    val sizer = AdaptiveBatchSizer(foregroundBudgetMs = 100, backgroundBudgetMs = 1000)
+
+    sizer.onBatch(requested = 30, received = 30, hasMore = true, decryptTimeMs = 60, commitTimeMs = 10, appVisible = true)
+    assertEquals(30, sizer.batchSize)
+
+    sizer.onBatch(requested = 30, received = 30, hasMore = true, decryptTimeMs = 60, commitTimeMs = 10, appVisible = false)
+    assertEquals(60, sizer.batchSize)
+  }
+
+  @Test
+  fun `given a partial batch, then step down one size`() {
+    val sizer = AdaptiveBatchSizer()
+
+    sizer.onBatch(requested = 30, received = 30, hasMore = true, decryptTimeMs = 1, commitTimeMs = 1, appVisible = false)
+    sizer.onBatch(requested = 60, received = 12, hasMore = true, decryptTimeMs = 1, commitTimeMs = 1, appVisible = false)
+
+    assertEquals(30, sizer.batchSize)
+  }
+
+  @Test
+  fun `given repeated partial batches, then stop at the smallest size`() {
+    val sizer = AdaptiveBatchSizer()
+
+    repeat(5) {
+      sizer.onBatch(requested = sizer.batchSize, received = 1, hasMore = true, decryptTimeMs = 1, commitTimeMs = 1, appVisible = false)
+    }
+
+    assertEquals(sizes.first(), sizer.batchSize)
+  }
+
+  @Test
+  fun `given a partial batch, when received, then the next read already uses the smaller size`() {
+    val sizer = AdaptiveBatchSizer()
+    sizer.onBatch(requested = 30, received = 30, hasMore = true, decryptTimeMs = 1, commitTimeMs = 1, appVisible = false)
+
+    sizer.onBatchReceived(requested = 60, received = 12, hasMore = true)
+
+    assertEquals(30, sizer.batchSize)
+  }
+
+  @Test
+  fun `given the queue is drained, when received, then the next read already uses the smallest size`() {
+    val sizer = AdaptiveBatchSizer()
+
+    sizer.onBatchReceived(requested = 30, received = 30, hasMore = false)
+
+    assertEquals(sizes.first(), sizer.batchSize)
+  }
+
+  @Test
+  fun `given a batch that was prefetched at an older size, then step from the size it was requested at`() {
+    val sizer = AdaptiveBatchSizer()
+    sizer.onBatch(requested = 30, received = 30, hasMore = true, decryptTimeMs = 1, commitTimeMs = 1, appVisible = false)
+    assertEquals(60, sizer.batchSize)
+
+    // This batch was read at the old size while the previous one was being processed
+    sizer.onBatch(requested = 30, received = 30, hasMore = true, decryptTimeMs = 1, commitTimeMs = 1, appVisible = false)
+
+    assertEquals(60, sizer.batchSize)
+  }
+
+  @Test
+  fun `given a partial batch, then processing time does not grow the size`() {
+    val sizer = AdaptiveBatchSizer()
+
+    sizer.onBatch(requested = 30, received = 29, hasMore = true, decryptTimeMs = 1, commitTimeMs = 1, appVisible = false)
+
+    assertEquals(10, sizer.batchSize)
+  }
+
+  @Test
+  fun `given the queue is drained, then drop to the smallest size`() {
+    val sizer = AdaptiveBatchSizer()
+
+    sizer.onBatch(requested = 30, received = 30, hasMore = false, decryptTimeMs = 1, commitTimeMs = 1, appVisible = false)
+
+    assertEquals(sizes.first(), sizer.batchSize)
+  }
+
+  private fun AdaptiveBatchSizer.onBatch(requested: Int, received: Int, hasMore: Boolean, decryptTimeMs: Long, commitTimeMs: Long, appVisible: Boolean) {
+    onBatchReceived(requested, received, hasMore)
+    onBatchProcessed(requested, received, decryptTimeMs, commitTimeMs, appVisible)
+  }
+}
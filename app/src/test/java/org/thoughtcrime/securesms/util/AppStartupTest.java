@@ -0,0 +1,168 @@
+package org.thoughtcrime.securesms.util;
+
+import android.app.Application;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.signal.core.util.Stopwatch;
+import org.signal.core.util.ThreadUtil;
+import org.thoughtcrime.securesms.util.AppStartup.Affinity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public class AppStartupTest {
+
+  private AppStartup          subject;
+  private List<String>        order;
+  private Map<String, Thread> threads;
+
+  @Before
+  public void setUp() {
+    subject = new AppStartup();
+    order   = Collections.synchronizedList(new ArrayList<>());
+    threads = new ConcurrentHashMap<>();
+  }
+
+  @Test
+  public void executeBlocking_runsTasksAfterTheirDependencies() {
+    subject.addBlocking("slow", Affinity.BACKGROUND, record("slow", 100))
+           .addBlocking("fast", Affinity.BACKGROUND, record("fast", 0))
+           .addBlocking("after-slow", Affinity.MAIN, record("after-slow", 0), "slow")
+           .addBlocking("after-both", Affinity.BACKGROUND, record("after-both", 0), "after-slow", "fast");
+
+    subject.executeBlocking(new Stopwatch("test"));
+
+    assertEquals(4, order.size());
+    assertTrue(order.indexOf("slow") < order.indexOf("after-slow"));
+    assertTrue(order.indexOf("after-slow") < order.indexOf("after-both"));
+    assertTrue(order.indexOf("fast") < order.indexOf("after-both"));
+  }
+
+  @Test
+  public void executeBlocking_mainTasksRunInTheOrderTheyWereAdded() {
+    subject.addBlocking("first", Affinity.MAIN, record("first", 0))
+           .addBlocking("background", Affinity.BACKGROUND, record("background", 50))
+           .addBlocking("second", Affinity.MAIN, record("second", 0))
+           .addBlocking("third", Affinity.MAIN, record("third", 0));
+
+    subject.executeBlocking(new Stopwatch("test"));
+
+    List<String> mainOrder = new ArrayList<>(order);
+    mainOrder.remove("background");
+
+    assertEquals(Arrays.asList("first", "second", "third"), mainOrder);
+  }
+
+  @Test
+  public void executeBlocking_plainBlockingTaskRunsAfterEverythingAddedBeforeIt() {
+    subject.addBlocking("background", Affinity.BACKGROUND, record("background", 100))
+           .addBlocking("main", Affinity.MAIN, record("main", 0))
+           .addBlocking("serial", record("serial", 0));
+
+    subject.executeBlocking(new Stopwatch("test"));
+
+    assertEquals("serial", order.get(2));
+  }
+
+  @Test
+  public void executeBlocking_runsTasksOnTheirAffinity() {
+    subject.addBlocking("main", Affinity.MAIN, record("main", 0))
+           .addBlocking("background", Affinity.BACKGROUND, record("background", 0))
+           .addBlocking("serial", record("serial", 0));
+
+    subject.executeBlocking(new Stopwatch("test"));
+
+    assertSame(Thread.currentThread(), threads.get("main"));
+    assertSame(Thread.currentThread(), threads.get("serial"));
+    assertNotEquals(Thread.currentThread(), threads.get("background"));
+  }
+
+  @Test
+  public void executeBlocking_runsIndependentBackgroundTasksInParallel() {
+    CountDownLatch started  = new CountDownLatch(2);
+    boolean[]      overlaps = new boolean[2];
+
+    subject.addBlocking("a", Affinity.BACKGROUND, () -> overlaps[0] = awaitOther(started))
+           .addBlocking("b", Affinity.BACKGROUND, () -> overlaps[1] = awaitOther(started));
+
+    subject.executeBlocking(new Stopwatch("test"));
+
+    assertTrue(overlaps[0]);
+    assertTrue(overlaps[1]);
+  }
+
+  @Test
+  public void executeBlocking_rethrowsBackgroundFailureOnTheCallingThread() {
+    IllegalStateException failure = new IllegalStateException();
+
+    subject.addBlocking("failing", Affinity.BACKGROUND, () -> { throw failure; })
+           .addBlocking("after", Affinity.MAIN, record("after", 0), "failing");
+
+    try {
+      subject.executeBlocking(new Stopwatch("test"));
+      fail("Expected the background failure to be rethrown");
+    } catch (RuntimeException e) {
+      assertSame(failure, e.getCause());
+    }
+
+    assertTrue(order.isEmpty());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void addBlocking_dependingOnItself_throws() {
+    subject.addBlocking("cycle", Affinity.MAIN, record("cycle", 0), "cycle");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void addBlocking_dependingOnATaskAddedLater_throws() {
+    subject.addBlocking("first", Affinity.MAIN, record("first", 0), "second")
+           .addBlocking("second", Affinity.MAIN, record("second", 0), "first");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void addBlocking_dependingOnAnUnknownTask_throws() {
+    subject.addBlocking("first", Affinity.MAIN, record("first", 0))
+           .addBlocking("second", Affinity.BACKGROUND, record("second", 0), "unknown");
+  }
+
+  private Runnable record(String name, long sleepMs) {
+    return () -> {
+      if (sleepMs > 0) {
+        ThreadUtil.sleep(sleepMs);
+      }
+      threads.put(name, Thread.currentThread());
+      order.add(name);
+    };
+  }
+
+  /**
+   * Counts down and then waits for the other task to do the same, which only happens if both are running at once.
+   */
+  private static boolean awaitOther(CountDownLatch started) {
+    started.countDown();
+
+    try {
+      return started.await(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package org.thoughtcrime.securesms.util
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import kotlin.random.Random
+
+class LocalMetricsHistogramTest {
+
+  @Test
+  fun `empty histogram has no percentiles`() {
+    val histogram = LocalMetricsHistogram()
+
+    assertEquals(0, histogram.count)
+    assertEquals(-1, histogram.percentile(50))
+    assertEquals(-1, LocalMetricsHistogram.deserialize(histogram.serialize()).percentile(99))
+  }
+
+  @Test
+  fun `small values are exact and match sorted ranks`() {
+    val values = (1L..20L).shuffled(Random(1))
+    val histogram = LocalMetricsHistogram().apply { values.forEach { record(it) } }
+
+    assertEquals(20, histogram.count)
+    assertEquals(10, histogram.percentile(50))
+    assertEquals(18, histogram.percentile(90))
+    assertEquals(19, histogram.percentile(99))
+    assertEquals(1, histogram.percentile(0))
+  }
+
+  @Test
+  fun `large values are within the bucket error`() {
+    val random = Random(1234)
+    val values = (0 until 10_000).map { random.nextLong(0, 600_000) }
+    val histogram = LocalMetricsHistogram().apply { values.forEach { record(it) } }
+    val sorted = values.sorted()
+
+    for (percent in listOf(1, 10, 50, 90, 99, 100)) {
+      val exact = sorted[maxOf(1, sorted.size * percent / 100) - 1]
+      val approximate = histogram.percentile(percent)
+
+      assertTrue("p$percent: $approximate vs $exact", approximate >= exact && approximate <= exact + exact / 16 + 1)
+    }
+  }
+
+  @Test
+  fun `percentiles never leave the recorded range`() {
+    val histogram = LocalMetricsHistogram().apply { record(1000) }
+
+    assertEquals(1000, histogram.percentile(50))
+    assertEquals(1000, histogram.percentile(99))
+  }
+
+  @Test
+  fun `negative values are recorded as zero`() {
+    val histogram = LocalMetricsHistogram().apply { record(-5) }
+
+    assertEquals(0, histogram.percentile(50))
+  }
+
+  @Test
+  fun `merge matches recording everything in one histogram`() {
+    val random = Random(5678)
+    val first = LocalMetricsHistogram()
+    val second = LocalMetricsHistogram()
+    val combined = LocalMetricsHistogram()
+
+    repeat(1000) {
+      val value = random.nextLong(0, 10_000)
+      (if (it % 3 == 0) first else second).record(value)
+      combined.record(value)
+    }
+
+    first.merge(second)
+
+    assertEquals(combined.count, first.count)
+    assertEquals(combined.min, first.min)
+    assertEquals(combined.max, first.max)
+    assertArrayEquals(combined.serialize(), first.serialize())
+  }
+
+  @Test
+  fun `serialize round trips`() {
+    val random = Random(42)
+    val histogram = LocalMetricsHistogram().apply {
+      repeat(500) { record(random.nextLong(0, Long.MAX_VALUE / 2)) }
+      record(0)
+      record(Long.MAX_VALUE)
+    }
+
+    val copy = LocalMetricsHistogram.deserialize(histogram.serialize())
+
+    assertEquals(histogram.count, copy.count)
+    assertEquals(histogram.min, copy.min)
+    assertEquals(histogram.max, copy.max)
+    for (percent in 0..100) {
+      assertEquals(histogram.percentile(percent), copy.percentile(percent))
+    }
+    assertArrayEquals(histogram.serialize(), copy.serialize())
+  }
+
+  @Test
+  fun `buckets are contiguous`() {
+    var previousBucket = LocalMetricsHistogram.bucketOf(0)
+
+    for (value in 1L..100_000L) {
+      val bucket = LocalMetricsHistogram.bucketOf(value)
+
+      assertTrue(bucket == previousBucket || bucket == previousBucket + 1)
+      assertTrue(value <= LocalMetricsHistogram.highestValueOf(bucket))
+      if (bucket != previousBucket) {
+        assertEquals(value - 1, LocalMetricsHistogram.highestValueOf(previousBucket))
+      }
+
+      previousBucket = bucket
+    }
+  }
+}
@@ -9,4 +9,16 @@ object BenchmarkSetup {
     device.executeShellCommand("am start -W -n org.thoughtcrime.securesms/org.signal.benchmark.BenchmarkSetupActivity --es setup-type $type")
     device.wait(Until.hasObject(By.textContains("done")), 25_000L)
   }
+
+  /**
+   * Reads the app's aggregated local metrics, one line per event (e.g. "cold-start-other count=5 p50=800 p90=950 p99=990") and one per
+   * split of each event (e.g. "cold-start-other/render p50=...").
+   */
+  fun readLocalMetrics(device: UiDevice): List<String> {
+    device.executeShellCommand("am start -W -n org.thoughtcrime.securesms/org.signal.benchmark.BenchmarkSetupActivity --es setup-type local-metrics")
+
+    val text: String = device.wait(Until.findObject(By.textEndsWith("done")), 25_000L)?.text ?: return emptyList()
+
+    return text.lines().dropLast(1)
+  }
 }
\ No newline at end of file
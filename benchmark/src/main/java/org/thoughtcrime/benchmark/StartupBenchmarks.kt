@@ -2,6 +2,7 @@ package org.thoughtcrime.benchmark
 
 import android.content.ComponentName
 import android.content.Intent
+import android.util.Log
 import androidx.benchmark.macro.CompilationMode
 import androidx.benchmark.macro.ExperimentalMetricApi
 import androidx.benchmark.macro.MacrobenchmarkScope
@@ -10,7 +11,9 @@ import androidx.benchmark.macro.StartupTimingMetric
 import androidx.benchmark.macro.TraceSectionMetric
 import androidx.benchmark.macro.junit4.MacrobenchmarkRule
 import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
 import androidx.test.uiautomator.By
+import androidx.test.uiautomator.UiDevice
 import androidx.test.uiautomator.Until
 import org.junit.Rule
 import org.junit.Test
@@ -23,6 +26,10 @@ import org.junit.runner.RunWith
  */
 @RunWith(AndroidJUnit4::class)
 class StartupBenchmarks {
+  companion object {
+    private const val TAG = "StartupBenchmarks"
+  }
+
   @get:Rule
   val benchmarkRule = MacrobenchmarkRule()
 
@@ -36,8 +43,16 @@ class StartupBenchmarks {
     measureStartup(5, CompilationMode.Partial())
   }
 
+  /**
+   * Runs the blocking startup tasks one after another, to compare against [coldStartBaselineProfile].
+   */
+  @Test
+  fun coldStartBaselineProfileSerial() {
+    measureStartup(5, CompilationMode.Partial(), "cold-start-serial")
+  }
+
   @OptIn(ExperimentalMetricApi::class)
-  private fun measureStartup(iterations: Int, compilationMode: CompilationMode) {
+  private fun measureStartup(iterations: Int, compilationMode: CompilationMode, setupType: String = "cold-start") {
     var setup = false
     benchmarkRule.measureRepeated(
       packageName = "org.thoughtcrime.securesms",
@@ -47,7 +62,7 @@ class StartupBenchmarks {
       compilationMode = compilationMode,
       setupBlock = {
         if (!setup) {
-          BenchmarkSetup.setup("cold-start", device)
+          BenchmarkSetup.setup(setupType, device)
 
           killProcess()
           dropKernelPageCache()
@@ -58,5 +73,9 @@ class StartupBenchmarks {
       pressHome()
       startActivityAndWait()
     }
+
+    BenchmarkSetup.readLocalMetrics(UiDevice.getInstance(InstrumentationRegistry.getInstrumentation()))
+      .filter { it.startsWith("cold-start") }
+      .forEach { Log.i(TAG, it) }
   }
 }
\ No newline at end of file
@@ -0,0 +1,234 @@
+package org.signal.core.util.concurrent;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks how work moves through the executors created by {@link SignalExecutors}: how long tasks wait in the queue before they start, how
+ * long they run, how deep the queue gets and how often the pool is saturated to the point of rejecting work.
+ * <p>
+ * Metrics are kept per pool name, so pools that are created and shut down repeatedly (like the backup workers) accumulate into one entry.
+ * Tasks can be tagged with {@link SignalExecutors#tagged(String, Runnable)} to break down a pool's metrics by the kind of work it's doing.
+ */
+public final class ExecutorMetrics {
+
+  private static final Map<String, ExecutorMetrics> POOLS = new ConcurrentHashMap<>();
+
+  /** Tags are supplied by callers, so we cap how many we'll track per pool. Anything past this is counted as {@link #OTHER_TAG}. */
+  static final int    MAX_TAGS  = 32;
+  static final String OTHER_TAG = "other";
+
+  private final String                 name;
+  private final TaskStats              total = new TaskStats();
+  private final Map<String, TaskStats> tags  = new HashMap<>();
+
+  private int  queued;
+  private int  maxQueued;
+  private int  active;
+  private long rejected;
+
+  private ExecutorMetrics(@NonNull String name) {
+    this.name = name;
+  }
+
+  static @NonNull ExecutorMetrics forPool(@NonNull String name) {
+    ExecutorMetrics metrics = POOLS.get(name);
+
+    if (metrics == null) {
+      metrics = new ExecutorMetrics(name);
+      ExecutorMetrics existing = POOLS.putIfAbsent(name, metrics);
+
+      if (existing != null) {
+        metrics = existing;
+      }
+    }
+
+    return metrics;
+  }
+
+  /**
+   * @return A snapshot of every pool that has been created, sorted by name.
+   */
+  public static @NonNull List<Snapshot> getSnapshots() {
+    List<Snapshot> snapshots = new ArrayList<>(POOLS.size());
+
+    for (ExecutorMetrics metrics : POOLS.values()) {
+      snapshots.add(metrics.snapshot());
+    }
+
+    Collections.sort(snapshots, (lhs, rhs) -> lhs.getName().compareTo(rhs.getName()));
+
+    return snapshots;
+  }
+
+  /**
+   * @return A snapshot of the pool with the given name, or null if no such pool has been created.
+   */
+  public static @Nullable Snapshot getSnapshot(@NonNull String name) {
+    ExecutorMetrics metrics = POOLS.get(name);
+    return metrics != null ? metrics.snapshot() : null;
+  }
+
+  synchronized void onQueued() {
+    queued++;
+    maxQueued = Math.max(maxQueued, queued);
+  }
+
+  synchronized void onDropped(int count) {
+    queued = Math.max(0, queued - count);
+  }
+
+  synchronized void onRejected() {
+    rejected++;
+  }
+
+  synchronized void onStart() {
+    queued = Math.max(0, queued - 1);
+    active++;
+  }
+
+  synchronized void onFinish(@Nullable String tag, long waitNanos, long runNanos) {
+    active--;
+    total.add(waitNanos, runNanos);
+
+    if (tag != null) {
+      TaskStats stats = tags.get(tag);
+
+      if (stats == null) {
+        if (tags.size() >= MAX_TAGS) {
+          tag = OTHER_TAG;
+        }
+
+        stats = tags.get(tag);
+
+        if (stats == null) {
+          stats = new TaskStats();
+          tags.put(tag, stats);
+        }
+      }
+
+      stats.add(waitNanos, runNanos);
+    }
+  }
+
+  private synchronized @NonNull Snapshot snapshot() {
+    Map<String, TaskStats> tagCopies = new HashMap<>(tags.size());
+
+    for (Map.Entry<String, TaskStats> entry : tags.entrySet()) {
+      tagCopies.put(entry.getKey(), entry.getValue().copy());
+    }
+
+    return new Snapshot(name, queued, maxQueued, active, rejected, total.copy(), tagCopies);
+  }
+
+  public static final class Snapshot {
+    private final String                 name;
+    private final int                    queueDepth;
+    private final int                    maxQueueDepth;
+    private final int                    activeCount;
+    private final long                   rejectedCount;
+    private final TaskStats              total;
+    private final Map<String, TaskStats> tags;
+
+    private Snapshot(@NonNull String name, int queueDepth, int maxQueueDepth, int activeCount, long rejectedCount, @NonNull TaskStats total, @NonNull Map<String, TaskStats> tags) {
+      this.name          = name;
+      this.queueDepth    = queueDepth;
+      this.maxQueueDepth = maxQueueDepth;
+      this.activeCount   = activeCount;
+      this.rejectedCount = rejectedCount;
+      this.total         = total;
+      this.tags          = Collections.unmodifiableMap(tags);
+    }
+
+    public @NonNull String getName() {
+      return name;
+    }
+
+    /** The number of tasks that have been submitted but haven't started yet. */
+    public int getQueueDepth() {
+      return queueDepth;
+    }
+
+    public int getMaxQueueDepth() {
+      return maxQueueDepth;
+    }
+
+    public int getActiveCount() {
+      return activeCount;
+    }
+
+    /**
+     * The number of times the pool's rejection handler ran. For pools from {@link SignalExecutors#newCachedBoundedExecutor} this is how
+     * often every thread was busy and the task had to wait in the queue, rather than a task actually being dropped.
+     */
+    public long getRejectedCount() {
+      return rejectedCount;
+    }
+
+    /** Stats for every task that has finished running on the pool. */
+    public @NonNull TaskStats getTotal() {
+      return total;
+    }
+
+    /** Stats for finished tasks, by tag. Untagged tasks are only included in {@link #getTotal()}. */
+    public @NonNull Map<String, TaskStats> getTags() {
+      return tags;
+    }
+  }
+
+  public static final class TaskStats {
+    private long count;
+    private long totalWaitNanos;
+    private long maxWaitNanos;
+    private long totalRunNanos;
+    private long maxRunNanos;
+
+    private void add(long waitNanos, long runNanos) {
+      count++;
+      totalWaitNanos += waitNanos;
+      maxWaitNanos    = Math.max(maxWaitNanos, waitNanos);
+      totalRunNanos  += runNanos;
+      maxRunNanos     = Math.max(maxRunNanos, runNanos);
+    }
+
+    private @NonNull TaskStats copy() {
+      TaskStats copy = new TaskStats();
+
+      copy.count          = count;
+      copy.totalWaitNanos = totalWaitNanos;
+      copy.maxWaitNanos   = maxWaitNanos;
+      copy.totalRunNanos  = totalRunNanos;
+      copy.maxRunNanos    = maxRunNanos;
+
+      return copy;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    /** Total time between tasks being submitted and starting to run. */
+    public long getTotalWaitNanos() {
+      return totalWaitNanos;
+    }
+
+    public long getMaxWaitNanos() {
+      return maxWaitNanos;
+    }
+
+    public long getTotalRunNanos() {
+      return totalRunNanos;
+    }
+
+    public long getMaxRunNanos() {
+      return maxRunNanos;
+    }
+  }
+}
@@ -0,0 +1,169 @@
+package org.signal.core.util.concurrent;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link ThreadPoolExecutor} that reports to {@link ExecutorMetrics} under the given pool name. Every executor made by
+ * {@link SignalExecutors} is one of these.
+ */
+final class InstrumentedThreadPoolExecutor extends ThreadPoolExecutor {
+
+  private final ExecutorMetrics metrics;
+
+  InstrumentedThreadPoolExecutor(@NonNull String name,
+                                 int corePoolSize,
+                                 int maximumPoolSize,
+                                 long keepAliveTime,
+                                 @NonNull TimeUnit unit,
+                                 @NonNull BlockingQueue<Runnable> workQueue,
+                                 @NonNull ThreadFactory threadFactory)
+  {
+    super(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue, threadFactory);
+    this.metrics = ExecutorMetrics.forPool(name);
+    setRejectedExecutionHandler(getRejectedExecutionHandler());
+  }
+
+  @Override
+  public void execute(@NonNull Runnable command) {
+    metrics.onQueued();
+    super.execute(new InstrumentedRunnable(command, getTag(command), System.nanoTime(), metrics));
+  }
+
+  @Override
+  public void setRejectedExecutionHandler(@NonNull RejectedExecutionHandler handler) {
+    if (handler instanceof CountingRejectedExecutionHandler) {
+      super.setRejectedExecutionHandler(handler);
+    } else {
+      super.setRejectedExecutionHandler(new CountingRejectedExecutionHandler(handler, metrics));
+    }
+  }
+
+  @Override
+  public @NonNull RejectedExecutionHandler getRejectedExecutionHandler() {
+    RejectedExecutionHandler handler = super.getRejectedExecutionHandler();
+
+    if (handler instanceof CountingRejectedExecutionHandler) {
+      return ((CountingRejectedExecutionHandler) handler).delegate;
+    } else {
+      return handler;
+    }
+  }
+
+  @Override
+  public @NonNull List<Runnable> shutdownNow() {
+    List<Runnable> dropped = super.shutdownNow();
+    metrics.onDropped(dropped.size());
+    return dropped;
+  }
+
+  @Override
+  protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+    String tag = getTag(runnable);
+
+    if (tag != null) {
+      return new TaggedFutureTask<>(runnable, value, tag);
+    } else {
+      return super.newTaskFor(runnable, value);
+    }
+  }
+
+  private static @Nullable String getTag(@NonNull Runnable runnable) {
+    return runnable instanceof Tagged ? ((Tagged) runnable).getTag() : null;
+  }
+
+  interface Tagged {
+    @NonNull String getTag();
+  }
+
+  static final class TaggedRunnable implements Runnable, Tagged {
+    private final Runnable runnable;
+    private final String   tag;
+
+    TaggedRunnable(@NonNull Runnable runnable, @NonNull String tag) {
+      this.runnable = runnable;
+      this.tag      = tag;
+    }
+
+    @Override
+    public void run() {
+      runnable.run();
+    }
+
+    @Override
+    public @NonNull String getTag() {
+      return tag;
+    }
+  }
+
+  private static final class TaggedFutureTask<T> extends FutureTask<T> implements Tagged {
+    private final String tag;
+
+    TaggedFutureTask(@NonNull Runnable runnable, T result, @NonNull String tag) {
+      super(runnable, result);
+      this.tag = tag;
+    }
+
+    @Override
+    public @NonNull String getTag() {
+      return tag;
+    }
+  }
+
+  private static final class InstrumentedRunnable implements Runnable {
+    private final Runnable        runnable;
+    private final String          tag;
+    private final long            queuedTime;
+    private final ExecutorMetrics metrics;
+
+    InstrumentedRunnable(@NonNull Runnable runnable, @Nullable String tag, long queuedTime, @NonNull ExecutorMetrics metrics) {
+      this.runnable   = runnable;
+      this.tag        = tag;
+      this.queuedTime = queuedTime;
+      this.metrics    = metrics;
+    }
+
+    @Override
+    public void run() {
+      long startTime = System.nanoTime();
+      metrics.onStart();
+
+      try {
+        runnable.run();
+      } finally {
+        metrics.onFinish(tag, startTime - queuedTime, System.nanoTime() - startTime);
+      }
+    }
+  }
+
+  private static final class CountingRejectedExecutionHandler implements RejectedExecutionHandler {
+    private final RejectedExecutionHandler delegate;
+    private final ExecutorMetrics          metrics;
+
+    CountingRejectedExecutionHandler(@NonNull RejectedExecutionHandler delegate, @NonNull ExecutorMetrics metrics) {
+      this.delegate = delegate;
+      this.metrics  = metrics;
+    }
+
+    @Override
+    public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+      metrics.onRejected();
+
+      try {
+        delegate.rejectedExecution(runnable, executor);
+      } catch (RuntimeException e) {
+        metrics.onDropped(1);
+        throw e;
+      }
+    }
+  }
+}
@@ -8,9 +8,10 @@ import androidx.annotation.NonNull;
 import org.signal.core.util.LinkedBlockingLifoQueue;
 import org.signal.core.util.ThreadUtil;
 
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -18,15 +19,15 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 public final class SignalExecutors {
 
-  public static final ExecutorService UNBOUNDED  = Executors.newCachedThreadPool(new NumberedThreadFactory("signal-unbounded", ThreadUtil.PRIORITY_BACKGROUND_THREAD));
-  public static final ExecutorService BOUNDED    = Executors.newFixedThreadPool(4, new NumberedThreadFactory("signal-bounded", ThreadUtil.PRIORITY_BACKGROUND_THREAD));
-  public static final ExecutorService SERIAL     = Executors.newSingleThreadExecutor(new NumberedThreadFactory("signal-serial", ThreadUtil.PRIORITY_BACKGROUND_THREAD));
+  public static final ExecutorService UNBOUNDED  = new InstrumentedThreadPoolExecutor("signal-unbounded", 0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), new NumberedThreadFactory("signal-unbounded", ThreadUtil.PRIORITY_BACKGROUND_THREAD));
+  public static final ExecutorService BOUNDED    = new InstrumentedThreadPoolExecutor("signal-bounded", 4, 4, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), new NumberedThreadFactory("signal-bounded", ThreadUtil.PRIORITY_BACKGROUND_THREAD));
+  public static final ExecutorService SERIAL     = new InstrumentedThreadPoolExecutor("signal-serial", 1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), new NumberedThreadFactory("signal-serial", ThreadUtil.PRIORITY_BACKGROUND_THREAD));
   public static final ExecutorService BOUNDED_IO = newCachedBoundedExecutor("signal-io-bounded", ThreadUtil.PRIORITY_IMPORTANT_BACKGROUND_THREAD, 1, 32, 30);
 
   private SignalExecutors() {}
 
   public static ExecutorService newCachedSingleThreadExecutor(final String name, int priority) {
-    ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 15, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> new Thread(r, name) {
+    ThreadPoolExecutor executor = new InstrumentedThreadPoolExecutor(name, 1, 1, 15, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> new Thread(r, name) {
       @Override public void run() {
         Process.setThreadPriority(priority);
         super.run();
@@ -48,20 +49,21 @@ public final class SignalExecutors {
    * created. Then, if a task gets rejected, we simply add it to the queue.
    */
   public static ExecutorService newCachedBoundedExecutor(final String name, int priority, int minThreads, int maxThreads, int timeoutSeconds) {
-    ThreadPoolExecutor threadPool = new ThreadPoolExecutor(minThreads,
-                                                           maxThreads,
-                                                           timeoutSeconds,
-                                                           TimeUnit.SECONDS,
-                                                           new LinkedBlockingQueue<Runnable>() {
-                                                             @Override
-                                                             public boolean offer(Runnable runnable) {
-                                                               if (isEmpty()) {
-                                                                 return super.offer(runnable);
-                                                               } else {
-                                                                 return false;
-                                                               }
-                                                             }
-                                                           }, new NumberedThreadFactory(name, priority));
+    ThreadPoolExecutor threadPool = new InstrumentedThreadPoolExecutor(name,
+                                                                       minThreads,
+                                                                       maxThreads,
+                                                                       timeoutSeconds,
+                                                                       TimeUnit.SECONDS,
+                                                                       new LinkedBlockingQueue<Runnable>() {
+                                                                         @Override
+                                                                         public boolean offer(Runnable runnable) {
+                                                                           if (isEmpty()) {
+                                                                             return super.offer(runnable);
+                                                                           } else {
+                                                                             return false;
+                                                                           }
+                                                                         }
+                                                                       }, new NumberedThreadFactory(name, priority));
 
     threadPool.setRejectedExecutionHandler((runnable, executor) -> {
       try {
@@ -79,7 +81,23 @@ public final class SignalExecutors {
    * which processor work in FIFO order.
    */
   public static ExecutorService newFixedLifoThreadExecutor(String name, int minThreads, int maxThreads) {
-    return new ThreadPoolExecutor(minThreads, maxThreads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingLifoQueue<>(), new NumberedThreadFactory(name, ThreadUtil.PRIORITY_BACKGROUND_THREAD));
+    return new InstrumentedThreadPoolExecutor(name, minThreads, maxThreads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingLifoQueue<>(), new NumberedThreadFactory(name, ThreadUtil.PRIORITY_BACKGROUND_THREAD));
+  }
+
+  /**
+   * Tags a task so that {@link ExecutorMetrics} can break down the time spent on it separately from the rest of the pool's work.
+   */
+  public static @NonNull Runnable tagged(@NonNull String tag, @NonNull Runnable runnable) {
+    return new InstrumentedThreadPoolExecutor.TaggedRunnable(runnable, tag);
+  }
+
+  /**
+   * Returns an executor that tags every task it's given before passing it to the provided executor.
+   *
+   * @see #tagged(String, Runnable)
+   */
+  public static @NonNull Executor tagged(@NonNull String tag, @NonNull Executor executor) {
+    return runnable -> executor.execute(tagged(tag, runnable));
   }
 
   public static HandlerThread getAndStartHandlerThread(@NonNull String name, int priority) {
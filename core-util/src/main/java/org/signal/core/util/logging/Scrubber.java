@@ -18,6 +18,7 @@
 package org.signal.core.util.logging;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
 
 import java.util.Arrays;
 import java.util.HashSet;
@@ -89,52 +90,150 @@ public final class Scrubber {
                                                                                 "mobi", "by", "cat", "wiki", "la", "ga", "xxx", "cf", "hr", "ng", "jobs", "online", "kz", "ug", "gq", "ae", "is",
                                                                                 "lv", "pro", "fm", "tips", "ms", "sa", "app"));
 
+  private static final String GROUP_ID_V1_PREFIX = "__textsecure_group__!";
+  private static final String GROUP_ID_V2_PREFIX = "__signal_group__v2__!";
+
+  private static final int E164     = 1;
+  private static final int EMAIL    = 1 << 1;
+  private static final int GROUP_V1 = 1 << 2;
+  private static final int GROUP_V2 = 1 << 3;
+  private static final int UUID     = 1 << 4;
+  private static final int DOMAIN   = 1 << 5;
+  private static final int IPV4     = 1 << 6;
+  private static final int ALL      = E164 | EMAIL | GROUP_V1 | GROUP_V2 | UUID | DOMAIN | IPV4;
+
   public static CharSequence scrub(@NonNull CharSequence in) {
+    return scrub(in, findCandidates(in));
+  }
+
+  /**
+   * Runs every pattern regardless of what {@link #findCandidates(CharSequence)} thinks, which is what {@link #scrub(CharSequence)} has
+   * to be equivalent to.
+   */
+  @VisibleForTesting
+  static CharSequence scrubAllPatterns(@NonNull CharSequence in) {
+    return scrub(in, ALL);
+  }
 
-    in = scrubE164(in);
-    in = scrubEmail(in);
-    in = scrubGroupsV1(in);
-    in = scrubGroupsV2(in);
-    in = scrubUuids(in);
-    in = scrubDomains(in);
-    in = scrubIpv4(in);
+  private static CharSequence scrub(@NonNull CharSequence in, int candidates) {
+    if (candidates == 0) {
+      return in;
+    }
+
+    Buffers buffers = new Buffers(in);
+
+    if ((candidates & E164) != 0)     in = scrubE164(in, buffers);
+    if ((candidates & EMAIL) != 0)    in = scrubEmail(in, buffers);
+    if ((candidates & GROUP_V1) != 0) in = scrubGroupsV1(in, buffers);
+    if ((candidates & GROUP_V2) != 0) in = scrubGroupsV2(in, buffers);
+    if ((candidates & UUID) != 0)     in = scrubUuids(in, buffers);
+    if ((candidates & DOMAIN) != 0)   in = scrubDomains(in, buffers);
+    if ((candidates & IPV4) != 0)     in = scrubIpv4(in, buffers);
 
     return in;
   }
 
-  private static CharSequence scrubE164(@NonNull CharSequence in) {
+  /**
+   * Makes a single pass over the input to find which of the patterns could possibly match, so that we only run the ones that might.
+   * Most log lines contain nothing sensitive, and then we don't run any of them.
+   *
+   * Each check is a necessary condition for its pattern, and none of them can be created by the replacements of the patterns that run
+   * before it, which is what lets us decide everything up front from the original input.
+   */
+  private static int findCandidates(@NonNull CharSequence in) {
+    int candidates = 0;
+    int hexRun     = 0;
+    int length     = in.length();
+
+    for (int i = 0; i < length; i++) {
+      char c = in.charAt(i);
+
+      switch (c) {
+        case '+':
+          if (i + 1 < length && isDigit(in.charAt(i + 1))) {
+            candidates |= E164;
+          }
+          break;
+        case '%':
+          if (i + 3 < length && in.charAt(i + 1) == '2' && in.charAt(i + 2) == 'B' && isDigit(in.charAt(i + 3))) {
+            candidates |= E164;
+          }
+          break;
+        case '@':
+          candidates |= EMAIL;
+          break;
+        case '!':
+          if (endsWith(in, i + 1, GROUP_ID_V1_PREFIX)) {
+            candidates |= GROUP_V1;
+          } else if (endsWith(in, i + 1, GROUP_ID_V2_PREFIX)) {
+            candidates |= GROUP_V2;
+          }
+          break;
+        case '-':
+          if (hexRun >= 4) {
+            candidates |= UUID;
+          }
+          break;
+        case '.':
+          if (i > 0 && i + 1 < length) {
+            char previous = in.charAt(i - 1);
+            char next     = in.charAt(i + 1);
+
+            if (isAsciiLetterOrDigit(previous) && (isAsciiLetterOrDigit(next) || next == '-')) {
+              candidates |= DOMAIN;
+            }
+
+            if (isDigit(previous) && isDigit(next)) {
+              candidates |= IPV4;
+            }
+          }
+          break;
+      }
+
+      hexRun = isHex(c) ? hexRun + 1 : 0;
+    }
+
+    return candidates;
+  }
+
+  private static CharSequence scrubE164(@NonNull CharSequence in, @NonNull Buffers buffers) {
     return scrub(in,
+                 buffers,
                  E164_PATTERN,
                  (matcher, output) -> output.append(matcher.group(1))
                                             .append(E164_CENSOR, 0, matcher.group(2).length())
                                             .append(matcher.group(3)));
   }
 
-  private static CharSequence scrubEmail(@NonNull CharSequence in) {
+  private static CharSequence scrubEmail(@NonNull CharSequence in, @NonNull Buffers buffers) {
     return scrub(in,
+                 buffers,
                  CRUDE_EMAIL_PATTERN,
                  (matcher, output) -> output.append(matcher.group(1))
                                             .append(EMAIL_CENSOR));
   }
 
-  private static CharSequence scrubGroupsV1(@NonNull CharSequence in) {
+  private static CharSequence scrubGroupsV1(@NonNull CharSequence in, @NonNull Buffers buffers) {
     return scrub(in,
+                 buffers,
                  GROUP_ID_V1_PATTERN,
                  (matcher, output) -> output.append(matcher.group(1))
                                             .append(GROUP_ID_V1_CENSOR)
                                             .append(matcher.group(3)));
   }
 
-  private static CharSequence scrubGroupsV2(@NonNull CharSequence in) {
+  private static CharSequence scrubGroupsV2(@NonNull CharSequence in, @NonNull Buffers buffers) {
     return scrub(in,
+                 buffers,
                  GROUP_ID_V2_PATTERN,
                  (matcher, output) -> output.append(matcher.group(1))
                                             .append(GROUP_ID_V2_CENSOR)
                                             .append(matcher.group(3)));
   }
 
-  private static CharSequence scrubUuids(@NonNull CharSequence in) {
+  private static CharSequence scrubUuids(@NonNull CharSequence in, @NonNull Buffers buffers) {
     return scrub(in,
+                 buffers,
                  UUID_PATTERN,
                  (matcher, output) -> {
                    if (matcher.group(1) != null && !matcher.group(1).isEmpty()) {
@@ -148,8 +247,9 @@ public final class Scrubber {
                  });
   }
 
-  private static CharSequence scrubDomains(@NonNull CharSequence in) {
+  private static CharSequence scrubDomains(@NonNull CharSequence in, @NonNull Buffers buffers) {
     return scrub(in,
+                 buffers,
                  DOMAIN_PATTERN,
                  (matcher, output) -> {
                    String match = matcher.group(0);
@@ -165,34 +265,104 @@ public final class Scrubber {
                  });
   }
 
-  private static CharSequence scrubIpv4(@NonNull CharSequence in) {
+  private static CharSequence scrubIpv4(@NonNull CharSequence in, @NonNull Buffers buffers) {
     return scrub(in,
+                 buffers,
                  IPV4_PATTERN,
                  (matcher, output) -> output.append(IPV4_CENSOR));
   }
 
 
-  private static CharSequence scrub(@NonNull CharSequence in, @NonNull Pattern pattern, @NonNull ProcessMatch processMatch) {
-    final StringBuilder output  = new StringBuilder(in.length());
+  private static CharSequence scrub(@NonNull CharSequence in, @NonNull Buffers buffers, @NonNull Pattern pattern, @NonNull ProcessMatch processMatch) {
     final Matcher matcher = pattern.matcher(in);
 
+    if (!matcher.find()) {
+      // there were no matches, save copying all the data
+      return in;
+    }
+
+    final StringBuilder output = buffers.next(in.length());
+
     int lastEndingPos = 0;
 
-    while (matcher.find()) {
+    do {
       output.append(in, lastEndingPos, matcher.start());
 
       processMatch.scrubMatch(matcher, output);
 
       lastEndingPos = matcher.end();
+    } while (matcher.find());
+
+    output.append(in, lastEndingPos, in.length());
+
+    buffers.release(in);
+
+    return output;
+  }
+
+  private static boolean endsWith(@NonNull CharSequence in, int end, @NonNull String suffix) {
+    int start = end - suffix.length();
+
+    if (start < 0) {
+      return false;
     }
 
-    if (lastEndingPos == 0) {
-      // there were no matches, save copying all the data
-      return in;
-    } else {
-      output.append(in, lastEndingPos, in.length());
+    for (int i = 0; i < suffix.length(); i++) {
+      if (in.charAt(start + i) != suffix.charAt(i)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private static boolean isHex(char c) {
+    return isDigit(c) || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+  }
+
+  private static boolean isAsciiLetterOrDigit(char c) {
+    return isDigit(c) || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+  }
+
+  /**
+   * The two builders that the patterns write into for a single {@link #scrub(CharSequence)} call. Each pattern reads the previous
+   * pattern's output and writes into the other builder, so no matter how many patterns match we allocate at most two.
+   */
+  private static final class Buffers {
+    private final CharSequence  original;
+    private       StringBuilder spare;
+
+    Buffers(@NonNull CharSequence original) {
+      this.original = original;
+    }
+
+    /**
+     * Returns an empty builder that is not the current input. The caller's own input is never written into.
+     */
+    @NonNull StringBuilder next(int capacity) {
+      StringBuilder builder = spare;
+
+      if (builder == null) {
+        builder = new StringBuilder(capacity);
+      } else {
+        builder.setLength(0);
+      }
+
+      spare = null;
+      return builder;
+    }
 
-      return output;
+    /**
+     * Called once a pattern has produced new output, making its input available for reuse.
+     */
+    void release(@NonNull CharSequence previous) {
+      if (previous != original && previous instanceof StringBuilder) {
+        spare = (StringBuilder) previous;
+      }
     }
   }
 
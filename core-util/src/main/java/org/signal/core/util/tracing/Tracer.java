@@ -4,6 +4,7 @@ import android.os.SystemClock;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
 import com.google.protobuf.ByteString;
 
@@ -13,14 +14,13 @@ import org.signal.core.util.tracing.TraceProtos.TrackDescriptor;
 import org.signal.core.util.tracing.TraceProtos.TrackEvent;
 
 import java.nio.ByteBuffer;
-import java.util.Collections;
+import java.util.Iterator;
 import java.util.Map;
-import java.util.Queue;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * A class to create Perfetto-compatible traces. Currently keeps the entire trace in memory to
@@ -35,17 +35,19 @@ import java.util.concurrent.atomic.AtomicInteger;
  *   - End of a method
  *   - (And a bunch of other stuff that's not relevant to use at this point)
  *
- * We keep a circular buffer of TracePackets for method calls, and we keep a separate list of
- * TracePackets for threads so we don't lose any of those.
- *
- * Serializing is just a matter of throwing all the TracePackets we have into a proto.
+ * Recording has to be cheap enough to leave on everywhere, so we don't build any protos until
+ * {@link #serialize()}. Instead, events go into a single preallocated ring buffer of primitives: an
+ * interned name id, a timestamp and a track id, plus references to any annotations the caller
+ * already had. Recording an event claims a slot with one atomic increment, then it's a handful of
+ * array writes, with no locks and no allocation. The buffer is shared by every thread, so the
+ * number of events we hold on to doesn't grow with the number of threads.
  *
  * Note: This class aims to be largely-thread-safe, but prioritizes speed and memory efficiency
  * above all else. These methods are going to be called very quickly from every thread imaginable,
  * and we want to create as little overhead as possible. The idea being that it's ok if we don't,
- * for example, keep a perfect circular buffer size if it allows us to reduce overhead. The only
- * cost of screwing up would be dropping a trace packet or something, which, while sad, won't affect
- * how the app functions
+ * for example, perfectly capture the oldest event of a buffer that's being written while we
+ * serialize it if it allows us to reduce overhead. The only cost of screwing up would be dropping
+ * a trace packet or something, which, while sad, won't affect how the app functions.
  */
 public final class Tracer {
 
@@ -55,122 +57,170 @@ public final class Tracer {
     private static final String DB_LOCK_NAME = "Database Lock";
   }
 
-  private static final Tracer INSTANCE = new Tracer();
+  private static final Tracer INSTANCE = new Tracer(SystemClock::elapsedRealtimeNanos, 3_500);
+
+  private static final int    TRUSTED_SEQUENCE_ID    = 1;
+  private static final byte[] SYNCHRONIZATION_MARKER = toByteArray(UUID.fromString("82477a76-b28d-42ba-81dc-33326d57a079"));
 
-  private static final int    TRUSTED_SEQUENCE_ID      = 1;
-  private static final byte[] SYNCHRONIZATION_MARKER   = toByteArray(UUID.fromString("82477a76-b28d-42ba-81dc-33326d57a079"));
-  private static final long   SYNCHRONIZATION_INTERVAL = TimeUnit.SECONDS.toNanos(3);
+  /** Name ids are stored negated for end events. Ids start at 1 so that this is unambiguous. */
+  private static final int END = -1;
 
-  private final Clock                  clock;
-  private final Map<Long, TracePacket> threadPackets;
-  private final Queue<TracePacket>     eventPackets;
-  private final AtomicInteger          eventCount;
+  private final Clock                              clock;
+  private final ConcurrentHashMap<String, Integer> nameIds;
+  private final AtomicInteger                      nextNameId;
+  private final ConcurrentHashMap<Long, Thread>    threads;
+  private final ThreadLocal<Long>                  threadIds;
 
-  private long lastSyncTime;
-  private long maxBufferSize;
+  private volatile EventBuffer events;
 
-  private Tracer() {
-    this.clock         = SystemClock::elapsedRealtimeNanos;
-    this.threadPackets = new ConcurrentHashMap<>();
-    this.eventPackets  = new ConcurrentLinkedQueue<>();
-    this.eventCount    = new AtomicInteger(0);
-    this.maxBufferSize = 3_500;
+  @VisibleForTesting
+  Tracer(@NonNull Clock clock, int maxBufferSize) {
+    this.clock      = clock;
+    this.nameIds    = new ConcurrentHashMap<>();
+    this.nextNameId = new AtomicInteger(1);
+    this.threads    = new ConcurrentHashMap<>();
+    this.threadIds  = new ThreadLocal<>();
+    this.events     = new EventBuffer(maxBufferSize);
   }
 
   public static @NonNull Tracer getInstance() {
     return INSTANCE;
   }
 
+  /**
+   * Sets how many events are kept across all threads. Anything recorded before this is dropped, so
+   * it should be called before the first trace.
+   */
   public void setMaxBufferSize(long maxBufferSize) {
-    this.maxBufferSize = maxBufferSize;
+    this.events = new EventBuffer((int) Math.max(2, Math.min(maxBufferSize, 1 << 20)));
   }
 
   public void start(@NonNull String methodName) {
-    start(methodName, Thread.currentThread().getId(), null);
+    record(methodName, 0, null, null);
   }
 
   public void start(@NonNull String methodName, long trackId) {
-    start(methodName, trackId, null);
+    record(methodName, trackId, null, null);
   }
 
   public void start(@NonNull String methodName, @NonNull String key, @Nullable String value) {
-    start(methodName, Thread.currentThread().getId(), key, value);
+    record(methodName, 0, key, value);
   }
 
   public void start(@NonNull String methodName, long trackId, @NonNull String key, @Nullable String value) {
-    start(methodName, trackId, Collections.singletonMap(key, value));
+    record(methodName, trackId, key, value);
+  }
+
+  /**
+   * Annotates the event with two values without the caller having to build a map for them.
+   */
+  public void start(@NonNull String methodName, @NonNull String key, @Nullable String value, @NonNull String otherKey, @Nullable String otherValue) {
+    record(methodName, 0, key, value, otherKey, otherValue, 1);
   }
 
   public void start(@NonNull String methodName, @Nullable Map<String, String> values) {
-    start(methodName, Thread.currentThread().getId(), values);
+    record(methodName, 0, values, null);
   }
 
   public void start(@NonNull String methodName, long trackId, @Nullable Map<String, String> values) {
-    long time = clock.getTimeNanos();
-
-    if (time - lastSyncTime > SYNCHRONIZATION_INTERVAL) {
-      addPacket(forSynchronization(time));
-      lastSyncTime = time;
-    }
-
-    if (!threadPackets.containsKey(trackId)) {
-      threadPackets.put(trackId, forTrackId(trackId));
-    }
-
-    addPacket(forMethodStart(methodName, time, trackId, values));
+    record(methodName, trackId, values, null);
   }
 
   public void end(@NonNull String methodName) {
-    addPacket(forMethodEnd(methodName, clock.getTimeNanos(), Thread.currentThread().getId()));
+    record(methodName, 0, null, null, null, null, END);
   }
 
   public void end(@NonNull String methodName, long trackId) {
-    addPacket(forMethodEnd(methodName, clock.getTimeNanos(), trackId));
+    record(methodName, trackId, null, null, null, null, END);
   }
 
   public @NonNull byte[] serialize() {
     Trace.Builder trace = Trace.newBuilder();
 
-    for (TracePacket thread : threadPackets.values()) {
-      trace.addPacket(thread);
-    }
+    trace.addPacket(forSynchronization(clock.getTimeNanos()));
+    trace.addPacket(forTrack(TrackId.DB_LOCK, TrackId.DB_LOCK_NAME));
 
-    for (TracePacket event : eventPackets) {
-      trace.addPacket(event);
+    for (Map.Entry<Long, Thread> thread : threads.entrySet()) {
+      trace.addPacket(forTrack(thread.getKey(), thread.getValue().getName()));
     }
 
+    events.serialize(getNames(), trace);
+
     trace.addPacket(forSynchronization(clock.getTimeNanos()));
 
     return trace.build().toByteArray();
   }
 
   /**
-   * Attempts to add a packet to our list while keeping the size of our circular buffer in-check.
-   * The tracking of the event count is not perfectly thread-safe, but doing it in a thread-safe
-   * way would likely involve adding a lock, which we really don't want to do, since it'll add
-   * unnecessary overhead.
-   *
-   * Note that we keep track of the event count separately because
-   * {@link ConcurrentLinkedQueue#size()} is NOT a constant-time operation.
+   * @param key Either a single annotation's key, or a map of all of the annotations.
    */
-  private void addPacket(@NonNull TracePacket packet) {
-    eventPackets.add(packet);
+  private void record(@NonNull String name, long trackId, @Nullable Object key, @Nullable String value) {
+    record(name, trackId, key, value, null, null, 1);
+  }
+
+  private void record(@NonNull String name, long trackId, @Nullable Object key, @Nullable String value, @Nullable String otherKey, @Nullable String otherValue, int sign) {
+    long time     = clock.getTimeNanos();
+    Long threadId = threadIds.get();
+
+    if (threadId == null) {
+      threadId = registerThread();
+    }
+
+    events.add(time, trackId != 0 ? trackId : threadId, sign * getNameId(name), key, value, otherKey, otherValue);
+  }
+
+  private int getNameId(@NonNull String name) {
+    Integer id = nameIds.get(name);
+
+    if (id == null) {
+      Integer newId = nextNameId.getAndIncrement();
+
+      id = nameIds.putIfAbsent(name, newId);
+      if (id == null) {
+        id = newId;
+      }
+    }
+
+    return id;
+  }
 
-    int size = eventCount.incrementAndGet();
+  private @NonNull String[] getNames() {
+    String[] names = new String[nextNameId.get()];
 
-    for (int i = size; i > maxBufferSize; i--) {
-      eventPackets.poll();
-      eventCount.decrementAndGet();
+    for (Map.Entry<String, Integer> entry : nameIds.entrySet()) {
+      int id = entry.getValue();
+      if (id < names.length) {
+        names[id] = entry.getKey();
+      }
     }
+
+    return names;
   }
 
-  private TracePacket forTrackId(long id) {
-    if (id == TrackId.DB_LOCK) {
-      return forTrack(id, TrackId.DB_LOCK_NAME);
-    } else {
-      Thread currentThread = Thread.currentThread();
-      return forTrack(currentThread.getId(), currentThread.getName());
+  /**
+   * Remembers the current thread so that we can name its track. Threads come and go from pools, so
+   * this is also when we forget about the ones that have died. Their events stay in the buffer
+   * until they're overwritten, but they'll no longer have a name.
+   */
+  private @NonNull Long registerThread() {
+    Thread thread = Thread.currentThread();
+    Long   id     = thread.getId();
+
+    for (Iterator<Thread> iterator = threads.values().iterator(); iterator.hasNext(); ) {
+      if (!iterator.next().isAlive()) {
+        iterator.remove();
+      }
     }
+
+    threads.put(id, thread);
+    threadIds.set(id);
+
+    return id;
+  }
+
+  @VisibleForTesting
+  int getThreadCount() {
+    return threads.size();
   }
 
   private static TracePacket forTrack(long id, String name) {
@@ -183,18 +233,32 @@ public final class Tracer {
 
   }
 
-  private static TracePacket forMethodStart(@NonNull String name, long time, long threadId, @Nullable Map<String, String> values) {
+  @SuppressWarnings("unchecked")
+  private static TracePacket forMethodStart(@NonNull String name,
+                                            long time,
+                                            long threadId,
+                                            @Nullable Object key,
+                                            @Nullable String value,
+                                            @Nullable String otherKey,
+                                            @Nullable String otherValue)
+  {
     TrackEvent.Builder event = TrackEvent.newBuilder()
                                          .setTrackUuid(threadId)
                                          .setName(name)
                                          .setType(TrackEvent.Type.TYPE_SLICE_BEGIN);
 
-    if (values != null) {
-      for (Map.Entry<String, String> entry : values.entrySet()) {
+    if (key instanceof String) {
+      event.addDebugAnnotations(debugAnnotation((String) key, value));
+    } else if (key instanceof Map) {
+      for (Map.Entry<String, String> entry : ((Map<String, String>) key).entrySet()) {
         event.addDebugAnnotations(debugAnnotation(entry.getKey(), entry.getValue()));
       }
     }
 
+    if (otherKey != null) {
+      event.addDebugAnnotations(debugAnnotation(otherKey, otherValue));
+    }
+
     return TracePacket.newBuilder()
                       .setTrustedPacketSequenceId(TRUSTED_SEQUENCE_ID)
                       .setTimestamp(time)
@@ -236,7 +300,104 @@ public final class Tracer {
     return buffer.array();
   }
 
-  private interface Clock {
+  @VisibleForTesting
+  interface Clock {
     long getTimeNanos();
   }
+
+  /**
+   * A ring buffer of events shared by every thread. Each event is spread across parallel arrays.
+   * Writers claim an index from {@link #head}, fill in the slot, and then publish it by writing the
+   * index to {@link #sequences}.
+   */
+  private static final class EventBuffer {
+    private final long[]          times;
+    private final long[]          trackIds;
+    private final int[]           nameIds;
+    private final Object[]        keys;
+    private final String[]        values;
+    private final String[]        otherKeys;
+    private final String[]        otherValues;
+    private final AtomicLongArray sequences;
+    private final AtomicLong      head;
+    private final int             size;
+
+    EventBuffer(int size) {
+      this.times       = new long[size];
+      this.trackIds    = new long[size];
+      this.nameIds     = new int[size];
+      this.keys        = new Object[size];
+      this.values      = new String[size];
+      this.otherKeys   = new String[size];
+      this.otherValues = new String[size];
+      this.sequences   = new AtomicLongArray(size);
+      this.head        = new AtomicLong();
+      this.size        = size;
+    }
+
+    void add(long time, long trackId, int nameId, @Nullable Object key, @Nullable String value, @Nullable String otherKey, @Nullable String otherValue) {
+      long index = head.getAndIncrement();
+      int  slot  = (int) (index % size);
+
+      times[slot]       = time;
+      trackIds[slot]    = trackId;
+      nameIds[slot]     = nameId;
+      keys[slot]        = key;
+      values[slot]      = value;
+      otherKeys[slot]   = otherKey;
+      otherValues[slot] = otherValue;
+
+      sequences.lazySet(slot, index + 1);
+    }
+
+    /**
+     * Copies out everything that's been published, then throws away anything a writer could have
+     * overwritten while we were copying. An event that was claimed but not published yet is skipped.
+     */
+    void serialize(@NonNull String[] names, @NonNull Trace.Builder trace) {
+      long end   = head.get();
+      long start = Math.max(0, end - size);
+      int  count = (int) (end - start);
+
+      long[]    copiedTimes       = new long[count];
+      long[]    copiedTrackIds    = new long[count];
+      int[]     copiedNameIds     = new int[count];
+      Object[]  copiedKeys        = new Object[count];
+      String[]  copiedValues      = new String[count];
+      String[]  copiedOtherKeys   = new String[count];
+      String[]  copiedOtherValues = new String[count];
+      boolean[] copiedPublished   = new boolean[count];
+
+      for (int i = 0; i < count; i++) {
+        long index = start + i;
+        int  slot  = (int) (index % size);
+
+        copiedPublished[i]   = sequences.get(slot) == index + 1;
+        copiedTimes[i]       = times[slot];
+        copiedTrackIds[i]    = trackIds[slot];
+        copiedNameIds[i]     = nameIds[slot];
+        copiedKeys[i]        = keys[slot];
+        copiedValues[i]      = values[slot];
+        copiedOtherKeys[i]   = otherKeys[slot];
+        copiedOtherValues[i] = otherValues[slot];
+      }
+
+      long overwritten = head.get() - size;
+
+      for (int i = (int) Math.max(0, Math.min(count, overwritten - start)); i < count; i++) {
+        if (!copiedPublished[i]) {
+          continue;
+        }
+
+        int    nameId = Math.abs(copiedNameIds[i]);
+        String name   = nameId < names.length && names[nameId] != null ? names[nameId] : "";
+
+        if (copiedNameIds[i] < 0) {
+          trace.addPacket(forMethodEnd(name, copiedTimes[i], copiedTrackIds[i]));
+        } else {
+          trace.addPacket(forMethodStart(name, copiedTimes[i], copiedTrackIds[i], copiedKeys[i], copiedValues[i], copiedOtherKeys[i], copiedOtherValues[i]));
+        }
+      }
+    }
+  }
 }
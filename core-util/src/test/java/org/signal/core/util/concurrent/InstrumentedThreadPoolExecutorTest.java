@@ -0,0 +1,156 @@
+package org.signal.core.util.concurrent;
+
+import org.junit.Test;
+import org.signal.core.util.concurrent.ExecutorMetrics.Snapshot;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class InstrumentedThreadPoolExecutorTest {
+
+  @Test
+  public void execute_tracksQueueDepthAndTimes() throws Exception {
+    ThreadPoolExecutor executor = newExecutor("test-execute", new LinkedBlockingQueue<>());
+    CountDownLatch     started  = new CountDownLatch(1);
+    CountDownLatch     release  = new CountDownLatch(1);
+
+    executor.execute(SignalExecutors.tagged("blocker", () -> {
+      started.countDown();
+      await(release);
+    }));
+    started.await();
+
+    executor.execute(() -> {});
+    executor.execute(SignalExecutors.tagged("quick", () -> {}));
+    executor.execute(SignalExecutors.tagged("quick", () -> {}));
+
+    Snapshot during = ExecutorMetrics.getSnapshot("test-execute");
+    assertEquals(3, during.getQueueDepth());
+    assertEquals(1, during.getActiveCount());
+    assertEquals(0, during.getTotal().getCount());
+
+    Thread.sleep(5);
+    release.countDown();
+    shutdown(executor);
+
+    Snapshot after = ExecutorMetrics.getSnapshot("test-execute");
+    assertEquals(0, after.getQueueDepth());
+    assertEquals(3, after.getMaxQueueDepth());
+    assertEquals(0, after.getActiveCount());
+    assertEquals(0, after.getRejectedCount());
+    assertEquals(4, after.getTotal().getCount());
+    assertEquals(2, after.getTags().size());
+    assertEquals(1, after.getTags().get("blocker").getCount());
+    assertEquals(2, after.getTags().get("quick").getCount());
+    assertTrue(after.getTags().get("blocker").getTotalRunNanos() >= TimeUnit.MILLISECONDS.toNanos(5));
+    assertTrue(after.getTags().get("quick").getMaxWaitNanos() >= TimeUnit.MILLISECONDS.toNanos(5));
+  }
+
+  @Test
+  public void submit_keepsTag() throws Exception {
+    ThreadPoolExecutor executor = newExecutor("test-submit", new LinkedBlockingQueue<>());
+
+    executor.submit(SignalExecutors.tagged("submitted", () -> {})).get();
+    executor.submit(() -> "untagged").get();
+    shutdown(executor);
+
+    Snapshot snapshot = ExecutorMetrics.getSnapshot("test-submit");
+    assertEquals(2, snapshot.getTotal().getCount());
+    assertEquals(1, snapshot.getTags().size());
+    assertEquals(1, snapshot.getTags().get("submitted").getCount());
+  }
+
+  @Test
+  public void execute_countsRejections() throws Exception {
+    ThreadPoolExecutor executor = newExecutor("test-rejected", new ArrayBlockingQueue<>(1));
+    CountDownLatch     release  = new CountDownLatch(1);
+
+    executor.execute(() -> await(release));
+    executor.execute(() -> {});
+
+    try {
+      executor.execute(() -> {});
+      fail();
+    } catch (RejectedExecutionException e) {
+      // Expected
+    }
+
+    Snapshot during = ExecutorMetrics.getSnapshot("test-rejected");
+    assertEquals(1, during.getRejectedCount());
+    assertEquals(1, during.getQueueDepth());
+
+    release.countDown();
+    shutdown(executor);
+
+    assertEquals(2, ExecutorMetrics.getSnapshot("test-rejected").getTotal().getCount());
+  }
+
+  @Test
+  public void execute_capsNumberOfTags() throws Exception {
+    ThreadPoolExecutor executor = newExecutor("test-tags", new LinkedBlockingQueue<>());
+
+    for (int i = 0; i < ExecutorMetrics.MAX_TAGS + 10; i++) {
+      executor.execute(SignalExecutors.tagged("tag-" + i, () -> {}));
+    }
+    shutdown(executor);
+
+    Snapshot snapshot = ExecutorMetrics.getSnapshot("test-tags");
+    assertEquals(ExecutorMetrics.MAX_TAGS + 1, snapshot.getTags().size());
+    assertEquals(10, snapshot.getTags().get(ExecutorMetrics.OTHER_TAG).getCount());
+  }
+
+  @Test
+  public void shutdownNow_clearsQueueDepth() throws Exception {
+    ThreadPoolExecutor executor = newExecutor("test-shutdown", new LinkedBlockingQueue<>());
+    CountDownLatch     started  = new CountDownLatch(1);
+
+    executor.execute(() -> {
+      started.countDown();
+      try {
+        Thread.sleep(10_000);
+      } catch (InterruptedException e) {
+        // Expected
+      }
+    });
+    started.await();
+    executor.execute(() -> {});
+    executor.execute(() -> {});
+
+    assertEquals(2, executor.shutdownNow().size());
+    assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+    assertEquals(0, ExecutorMetrics.getSnapshot("test-shutdown").getQueueDepth());
+  }
+
+  @Test
+  public void getSnapshot_unknownPool() {
+    assertNull(ExecutorMetrics.getSnapshot("test-unknown"));
+  }
+
+  private static ThreadPoolExecutor newExecutor(String name, BlockingQueue<Runnable> queue) {
+    return new InstrumentedThreadPoolExecutor(name, 1, 1, 0, TimeUnit.MILLISECONDS, queue, Thread::new);
+  }
+
+  private static void shutdown(ThreadPoolExecutor executor) throws InterruptedException {
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
@@ -0,0 +1,84 @@
+package org.signal.core.util.logging;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * {@link Scrubber#scrub(CharSequence)} skips the patterns that can't match. These make sure that doesn't change the output compared to
+ * running every pattern.
+ */
+public final class ScrubberCandidatesTest {
+
+  private static final String[] FRAGMENTS = {
+      "+15551234567", "%2B447700900099", "+1555", "+", "%2B", "%2b15551234567",
+      "abc@def.com", "a@b", "@", "d.c+b.a@mulitpart.domain.com",
+      "__textsecure_group__!abcdefghijk", "__signal_group__v2__!0123456789", "__textsecure_group__", "_group__!",
+      "JOB::", "d8f2b0c1-1234-4abc-9def-0123456789ab", "D8F2B0C1-1234-4ABC-9DEF-0123456789AB", "abcd-", "0123456789abcdef",
+      "chat.signal.org", "www.example.com", "sub.domain.co", "a.b", "x.-y", "example.invalid", "whispersystems.org", "3.141",
+      "192.168.1.1", "255.255.255.255", "999.1.1.1", "10.0.0", "1.2.3.4.com",
+      "...", "***.", "...@...", "-", "!", "_", "/", ":", "=", "{", "}", " ", "\u00a0", "\n", "\t", "\u00e9", "\uD83D\uDE00"
+  };
+
+  @Test
+  public void scrub_matchesAllPatterns_forExistingCases() {
+    for (Object[] testCase : ScrubberTest.data()) {
+      String input = (String) testCase[0];
+      assertEquals(input, Scrubber.scrubAllPatterns(input).toString(), Scrubber.scrub(input).toString());
+    }
+  }
+
+  @Test
+  public void scrub_matchesAllPatterns_forRandomCombinations() {
+    Random random = new Random(1234);
+
+    for (int i = 0; i < 20_000; i++) {
+      StringBuilder input = new StringBuilder();
+      int           count = 1 + random.nextInt(8);
+
+      for (int j = 0; j < count; j++) {
+        input.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+      }
+
+      String line = input.toString();
+      assertEquals(line, Scrubber.scrubAllPatterns(line).toString(), Scrubber.scrub(line).toString());
+    }
+  }
+
+  @Test
+  public void scrub_matchesAllPatterns_forRandomCharacters() {
+    Random random   = new Random(5678);
+    String alphabet = "0123456789abcdefABCDEFxyz+%2B@._-!:/ ";
+
+    for (int i = 0; i < 20_000; i++) {
+      StringBuilder input  = new StringBuilder();
+      int           length = random.nextInt(40);
+
+      for (int j = 0; j < length; j++) {
+        input.append(alphabet.charAt(random.nextInt(alphabet.length())));
+      }
+
+      String line = input.toString();
+      assertEquals(line, Scrubber.scrubAllPatterns(line).toString(), Scrubber.scrub(line).toString());
+    }
+  }
+
+  @Test
+  public void scrub_returnsInput_whenNothingCanMatch() {
+    String input = "Nothing to see here: 42 items, done in 12ms [main]";
+
+    assertSame(input, Scrubber.scrub(input));
+  }
+
+  @Test
+  public void scrub_doesNotModifyStringBuilderInput() {
+    StringBuilder input = new StringBuilder("+15551234567 abc@def.com 192.168.1.1");
+
+    Scrubber.scrub(input);
+
+    assertEquals("+15551234567 abc@def.com 192.168.1.1", input.toString());
+  }
+}
@@ -0,0 +1,195 @@
+package org.signal.core.util.tracing;
+
+import org.junit.Test;
+import org.signal.core.util.tracing.TraceProtos.Trace;
+import org.signal.core.util.tracing.TraceProtos.TracePacket;
+import org.signal.core.util.tracing.TraceProtos.TrackEvent;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public final class TracerTest {
+
+  private final AtomicLong clock = new AtomicLong();
+
+  @Test
+  public void serialize_includesEventsInOrder() throws Exception {
+    Tracer tracer = new Tracer(clock::incrementAndGet, 16);
+
+    tracer.start("outer");
+    tracer.start("inner");
+    tracer.end("inner");
+    tracer.end("outer");
+
+    List<TrackEvent> events = getEvents(tracer);
+    long             track  = Thread.currentThread().getId();
+
+    assertEquals(4, events.size());
+    assertEvent(events.get(0), "outer", TrackEvent.Type.TYPE_SLICE_BEGIN, track);
+    assertEvent(events.get(1), "inner", TrackEvent.Type.TYPE_SLICE_BEGIN, track);
+    assertEvent(events.get(2), "inner", TrackEvent.Type.TYPE_SLICE_END, track);
+    assertEvent(events.get(3), "outer", TrackEvent.Type.TYPE_SLICE_END, track);
+  }
+
+  @Test
+  public void serialize_includesAnnotationsAndTracks() throws Exception {
+    Tracer              tracer = new Tracer(clock::incrementAndGet, 16);
+    Map<String, String> values = new LinkedHashMap<>();
+
+    values.put("a", "1");
+    values.put("b", null);
+
+    tracer.start("lock", Tracer.TrackId.DB_LOCK, "thread", "main");
+    tracer.start("query", values);
+    tracer.end("query");
+    tracer.end("lock", Tracer.TrackId.DB_LOCK);
+
+    List<TrackEvent> events = getEvents(tracer);
+
+    assertEvent(events.get(0), "lock", TrackEvent.Type.TYPE_SLICE_BEGIN, Tracer.TrackId.DB_LOCK);
+    assertEquals(1, events.get(0).getDebugAnnotationsCount());
+    assertEquals("thread", events.get(0).getDebugAnnotations(0).getName());
+    assertEquals("main", events.get(0).getDebugAnnotations(0).getStringValue());
+
+    assertEquals(2, events.get(1).getDebugAnnotationsCount());
+    assertEquals("1", events.get(1).getDebugAnnotations(0).getStringValue());
+    assertEquals("", events.get(1).getDebugAnnotations(1).getStringValue());
+
+    assertEvent(events.get(3), "lock", TrackEvent.Type.TYPE_SLICE_END, Tracer.TrackId.DB_LOCK);
+  }
+
+  @Test
+  public void serialize_includesBothAnnotationsWithoutAMap() throws Exception {
+    Tracer tracer = new Tracer(clock::incrementAndGet, 16);
+
+    tracer.start("query", "query", "SELECT 1", "table", "message");
+    tracer.end("query");
+    tracer.start("query", "thread", "main");
+
+    List<TrackEvent> events = getEvents(tracer);
+
+    assertEquals(2, events.get(0).getDebugAnnotationsCount());
+    assertEquals("query", events.get(0).getDebugAnnotations(0).getName());
+    assertEquals("SELECT 1", events.get(0).getDebugAnnotations(0).getStringValue());
+    assertEquals("table", events.get(0).getDebugAnnotations(1).getName());
+    assertEquals("message", events.get(0).getDebugAnnotations(1).getStringValue());
+
+    assertEquals(1, events.get(2).getDebugAnnotationsCount());
+  }
+
+  @Test
+  public void serialize_keepsMostRecentEvents() throws Exception {
+    Tracer tracer = new Tracer(clock::incrementAndGet, 8);
+
+    for (int i = 0; i < 20; i++) {
+      tracer.start("event-" + i);
+    }
+
+    Thread other = new Thread(() -> tracer.start("other"));
+    other.start();
+    other.join();
+
+    List<TrackEvent> events = getEvents(tracer);
+
+    assertEquals(8, events.size());
+    for (int i = 0; i < 7; i++) {
+      assertEquals("event-" + (13 + i), events.get(i).getName());
+    }
+    assertEvent(events.get(7), "other", TrackEvent.Type.TYPE_SLICE_BEGIN, other.getId());
+  }
+
+  @Test
+  public void serialize_keepsOneBudgetAcrossThreads() throws Exception {
+    Tracer tracer = new Tracer(clock::incrementAndGet, 10);
+
+    for (int i = 0; i < 5; i++) {
+      Thread thread = new Thread(() -> {
+        for (int j = 0; j < 10; j++) {
+          tracer.start("event");
+          tracer.end("event");
+        }
+      });
+      thread.start();
+      thread.join();
+    }
+
+    assertEquals(10, getEvents(tracer).size());
+  }
+
+  @Test
+  public void setMaxBufferSize_changesTheBudget() throws Exception {
+    Tracer tracer = new Tracer(clock::incrementAndGet, 4);
+
+    tracer.start("dropped");
+    tracer.setMaxBufferSize(6);
+
+    for (int i = 0; i < 10; i++) {
+      tracer.start("event-" + i);
+    }
+
+    List<TrackEvent> events = getEvents(tracer);
+
+    assertEquals(6, events.size());
+    assertEquals("event-4", events.get(0).getName());
+  }
+
+  @Test
+  public void start_forgetsThreadsThatHaveDied() throws Exception {
+    Tracer tracer = new Tracer(clock::incrementAndGet, 8);
+
+    for (int i = 0; i < 5; i++) {
+      Thread thread = new Thread(() -> tracer.start("event"));
+      thread.start();
+      thread.join();
+    }
+
+    tracer.start("main");
+
+    assertEquals(1, tracer.getThreadCount());
+  }
+
+  @Test
+  public void serialize_describesEveryThread() throws Exception {
+    Tracer tracer = new Tracer(clock::incrementAndGet, 8);
+    Thread other  = new Thread(() -> tracer.start("other"), "other-thread");
+
+    tracer.start("main");
+    other.start();
+    other.join();
+
+    List<String> tracks = new ArrayList<>();
+    for (TracePacket packet : Trace.parseFrom(tracer.serialize()).getPacketList()) {
+      if (packet.hasTrackDescriptor()) {
+        tracks.add(packet.getTrackDescriptor().getName());
+      }
+    }
+
+    assertTrue(tracks.contains("Database Lock"));
+    assertTrue(tracks.contains(Thread.currentThread().getName()));
+    assertTrue(tracks.contains("other-thread"));
+  }
+
+  private static List<TrackEvent> getEvents(Tracer tracer) throws Exception {
+    List<TrackEvent> events = new ArrayList<>();
+
+    for (TracePacket packet : Trace.parseFrom(tracer.serialize()).getPacketList()) {
+      if (packet.hasTrackEvent()) {
+        events.add(packet.getTrackEvent());
+      }
+    }
+
+    return events;
+  }
+
+  private static void assertEvent(TrackEvent event, String name, TrackEvent.Type type, long track) {
+    assertEquals(name, event.getName());
+    assertEquals(type, event.getType());
+    assertEquals(track, event.getTrackUuid());
+  }
+}
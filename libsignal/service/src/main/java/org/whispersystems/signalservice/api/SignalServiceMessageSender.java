@@ -126,6 +126,7 @@ import org.whispersystems.signalservice.internal.push.http.PartialSendBatchCompl
 import org.whispersystems.signalservice.internal.push.http.PartialSendCompleteListener;
 import org.whispersystems.signalservice.internal.push.http.ResumableUploadSpec;
 import org.whispersystems.signalservice.internal.util.Util;
+import org.whispersystems.signalservice.internal.util.concurrent.FanOut;
 import org.whispersystems.util.Base64;
 import org.whispersystems.util.ByteArrayUtil;
 
@@ -141,10 +142,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import javax.annotation.Nonnull;
@@ -160,6 +161,14 @@ public class SignalServiceMessageSender {
 
   private static final int RETRY_COUNT = 4;
 
+  /**
+   * The most recipients a single multi-recipient send will have in flight at once. Each recipient only takes the session lock for its own
+   * address, so encryption runs in parallel too, and this bounds both the number of requests we have open against the service and the
+   * number of cores a large group send can occupy. Sends are dominated by network latency, so throughput would keep climbing past this, but
+   * eight already gets a 1000-member group out in a few seconds without hogging the connection or the device.
+   */
+  private static final int MAX_CONCURRENT_SENDS = 8;
+
   private final PushServiceSocket             socket;
   private final SignalServiceAccountDataStore aciStore;
   private final SignalSessionLock             sessionLock;
@@ -196,11 +205,21 @@ public class SignalServiceMessageSender {
     this.attachmentService = new AttachmentService(signalWebSocket);
     this.messagingService  = new MessagingService(signalWebSocket);
     this.eventListener     = eventListener;
-    this.executor          = executor != null ? executor : Executors.newSingleThreadExecutor();
+    this.executor          = executor != null ? executor : newDefaultExecutor();
     this.maxEnvelopeSize   = maxEnvelopeSize;
     this.localPniIdentity  = store.pni().getIdentityKeyPair();
   }
 
+  /**
+   * Used when no executor is provided. Has enough threads for a multi-recipient send to actually run in parallel, but lets them time out so
+   * an idle sender doesn't hold onto them.
+   */
+  private static ExecutorService newDefaultExecutor() {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_CONCURRENT_SENDS, MAX_CONCURRENT_SENDS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
   /**
    * Send a read receipt for a received message.
    *
@@ -1759,56 +1778,46 @@ public class SignalServiceMessageSender {
     Log.d(TAG, "[" + timestamp + "] Sending to " + recipients.size() + " recipients.");
     enforceMaxContentSize(content);
 
-    long                                   startTime                  = System.currentTimeMillis();
-    List<Future<SendMessageResult>>        futureResults              = new LinkedList<>();
-    Iterator<SignalServiceAddress>         recipientIterator          = recipients.iterator();
-    Iterator<Optional<UnidentifiedAccess>> unidentifiedAccessIterator = unidentifiedAccess.iterator();
-
-    while (recipientIterator.hasNext()) {
-      SignalServiceAddress         recipient = recipientIterator.next();
-      Optional<UnidentifiedAccess> access    = unidentifiedAccessIterator.next();
-      futureResults.add(executor.submit(() -> {
-        SendMessageResult result = sendMessage(recipient, access, timestamp, content, online, cancelationSignal, urgent, story);
-        if (partialListener != null) {
-          partialListener.onPartialSendComplete(result);
-        }
-        return result;
-      }));
-    }
+    long                               startTime = System.currentTimeMillis();
+    List<SignalServiceAddress>         addresses = new ArrayList<>(recipients);
+    List<Optional<UnidentifiedAccess>> accesses  = new ArrayList<>(unidentifiedAccess);
+    List<Integer>                      indexes   = new ArrayList<>(addresses.size());
 
-    List<SendMessageResult> results = new ArrayList<>(futureResults.size());
-    recipientIterator = recipients.iterator();
+    for (int i = 0; i < addresses.size(); i++) {
+      indexes.add(i);
+    }
 
-    for (Future<SendMessageResult> futureResult : futureResults) {
-      SignalServiceAddress recipient = recipientIterator.next();
-      try {
-        results.add(futureResult.get());
-      } catch (ExecutionException e) {
-        if (e.getCause() instanceof UntrustedIdentityException) {
-          Log.w(TAG, e);
-          results.add(SendMessageResult.identityFailure(recipient, ((UntrustedIdentityException) e.getCause()).getIdentityKey()));
-        } else if (e.getCause() instanceof UnregisteredUserException) {
-          Log.w(TAG, "[" + timestamp + "] Found unregistered user.");
-          results.add(SendMessageResult.unregisteredFailure(recipient));
-        } else if (e.getCause() instanceof PushNetworkException) {
-          Log.w(TAG, e);
-          results.add(SendMessageResult.networkFailure(recipient));
-        } else if (e.getCause() instanceof ServerRejectedException) {
-          Log.w(TAG, e);
-          throw ((ServerRejectedException) e.getCause());
-        } else if (e.getCause() instanceof ProofRequiredException) {
-          Log.w(TAG, e);
-          results.add(SendMessageResult.proofRequiredFailure(recipient, (ProofRequiredException) e.getCause()));
-        } else if (e.getCause() instanceof RateLimitException) {
-          Log.w(TAG, e);
-          results.add(SendMessageResult.rateLimitFailure(recipient, (RateLimitException) e.getCause()));
-        } else {
-          throw new IOException(e);
-        }
-      } catch (InterruptedException e) {
-        throw new IOException(e);
+    List<SendMessageResult> results = FanOut.run(executor, MAX_CONCURRENT_SENDS, indexes, i -> {
+      SendMessageResult result = sendMessage(addresses.get(i), accesses.get(i), timestamp, content, online, cancelationSignal, urgent, story);
+      if (partialListener != null) {
+        partialListener.onPartialSendComplete(result);
       }
-    }
+      return result;
+    }, (i, error) -> {
+      SignalServiceAddress recipient = addresses.get(i);
+
+      if (error instanceof UntrustedIdentityException) {
+        Log.w(TAG, error);
+        return SendMessageResult.identityFailure(recipient, ((UntrustedIdentityException) error).getIdentityKey());
+      } else if (error instanceof UnregisteredUserException) {
+        Log.w(TAG, "[" + timestamp + "] Found unregistered user.");
+        return SendMessageResult.unregisteredFailure(recipient);
+      } else if (error instanceof PushNetworkException) {
+        Log.w(TAG, error);
+        return SendMessageResult.networkFailure(recipient);
+      } else if (error instanceof ServerRejectedException) {
+        Log.w(TAG, error);
+        throw ((ServerRejectedException) error);
+      } else if (error instanceof ProofRequiredException) {
+        Log.w(TAG, error);
+        return SendMessageResult.proofRequiredFailure(recipient, (ProofRequiredException) error);
+      } else if (error instanceof RateLimitException) {
+        Log.w(TAG, error);
+        return SendMessageResult.rateLimitFailure(recipient, (RateLimitException) error);
+      } else {
+        throw new IOException(error);
+      }
+    });
 
     double sendsForAverage = 0;
     for (SendMessageResult result : results) {
@@ -2269,7 +2278,7 @@ public class SignalServiceMessageSender {
         for (PreKeyBundle preKey : preKeys) {
           try {
             SignalProtocolAddress preKeyAddress  = new SignalProtocolAddress(recipient.getIdentifier(), preKey.getDeviceId());
-            SignalSessionBuilder  sessionBuilder = new SignalSessionBuilder(sessionLock, new SessionBuilder(aciStore, preKeyAddress));
+            SignalSessionBuilder  sessionBuilder = new SignalSessionBuilder(sessionLock, new SessionBuilder(aciStore, preKeyAddress), preKeyAddress);
             sessionBuilder.process(preKey);
           } catch (org.signal.libsignal.protocol.UntrustedIdentityException e) {
             throw new UntrustedIdentityException("Untrusted identity key!", recipient.getIdentifier(), preKey.getIdentityKey());
@@ -2315,7 +2324,8 @@ public class SignalServiceMessageSender {
         PreKeyBundle preKey = socket.getPreKey(recipient, missingDeviceId);
 
         try {
-          SignalSessionBuilder sessionBuilder = new SignalSessionBuilder(sessionLock, new SessionBuilder(aciStore, new SignalProtocolAddress(recipient.getIdentifier(), missingDeviceId)));
+          SignalProtocolAddress address        = new SignalProtocolAddress(recipient.getIdentifier(), missingDeviceId);
+          SignalSessionBuilder  sessionBuilder = new SignalSessionBuilder(sessionLock, new SessionBuilder(aciStore, address), address);
           sessionBuilder.process(preKey);
         } catch (org.signal.libsignal.protocol.UntrustedIdentityException e) {
           throw new UntrustedIdentityException("Untrusted identity key!", recipient.getIdentifier(), preKey.getIdentityKey());
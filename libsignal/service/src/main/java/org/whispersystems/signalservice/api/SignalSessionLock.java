@@ -1,6 +1,9 @@
 package org.whispersystems.signalservice.api;
 
+import org.signal.libsignal.protocol.SignalProtocolAddress;
+
 import java.io.Closeable;
+import java.util.Collection;
 
 /**
  * An interface to allow the injection of a lock that will be used to keep interactions with
@@ -10,6 +13,22 @@ public interface SignalSessionLock {
 
   Lock acquire();
 
+  /**
+   * Acquires the lock for an operation that only touches the sessions and identity of a single
+   * remote address. Implementations may let operations on unrelated addresses run concurrently.
+   */
+  default Lock acquire(SignalProtocolAddress address) {
+    return acquire();
+  }
+
+  /**
+   * Like {@link #acquire(SignalProtocolAddress)}, but for an operation that touches several
+   * addresses at once. Implementations must acquire them in a consistent order.
+   */
+  default Lock acquire(Collection<SignalProtocolAddress> addresses) {
+    return acquire();
+  }
+
   interface Lock extends Closeable {
     @Override
     void close();
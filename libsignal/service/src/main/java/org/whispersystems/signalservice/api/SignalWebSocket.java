@@ -244,10 +244,40 @@ public final class SignalWebSocket {
   public boolean readMessageBatch(long timeout, int batchSize, MessageReceivedCallback callback)
       throws TimeoutException, WebSocketUnavailableException, IOException
   {
+    EnvelopeBatch batch = readEnvelopeBatch(timeout, batchSize);
+
+    if (batch.getResponses().size() > 0) {
+      boolean successfullyProcessed = false;
+
+      try {
+        successfullyProcessed = callback.onMessageBatch(batch.getResponses());
+      } finally {
+        if (successfullyProcessed) {
+          acknowledge(batch);
+        }
+      }
+    }
+
+    return batch.hasMore();
+  }
+
+  /**
+   * Like {@link #readMessageBatch(long, int, MessageReceivedCallback)}, but rather than processing the batch
+   * inline, it is returned to you unacknowledged. Once you've successfully processed it, you must call
+   * {@link #acknowledge(EnvelopeBatch)}, otherwise the messages will be re-delivered on the next connection.
+   *
+   * This lets you read (and parse) the next batch while a previous one is still being processed. It is safe
+   * to call this on a different thread than the one processing and acknowledging batches.
+   */
+  @SuppressWarnings("DuplicateThrows")
+  public EnvelopeBatch readEnvelopeBatch(long timeout, int batchSize)
+      throws TimeoutException, WebSocketUnavailableException, IOException
+  {
+    WebSocketConnection    connection    = getWebSocket();
     List<EnvelopeResponse> responses     = new ArrayList<>();
     boolean                hitEndOfQueue = false;
 
-    Optional<EnvelopeResponse> firstEnvelope = waitForSingleMessage(timeout);
+    Optional<EnvelopeResponse> firstEnvelope = waitForSingleMessage(connection, timeout);
 
     if (firstEnvelope.isPresent()) {
       responses.add(firstEnvelope.get());
@@ -257,7 +287,7 @@ public final class SignalWebSocket {
 
     if (!hitEndOfQueue) {
       for (int i = 1; i < batchSize; i++) {
-        Optional<WebSocketRequestMessage> request = getWebSocket().readRequestIfAvailable();
+        Optional<WebSocketRequestMessage> request = connection.readRequestIfAvailable();
 
         if (request.isPresent()) {
           if (isSignalServiceEnvelope(request.get())) {
@@ -272,29 +302,25 @@ public final class SignalWebSocket {
       }
     }
 
-    if (responses.size() > 0) {
-      boolean successfullyProcessed = false;
+    return new EnvelopeBatch(connection, responses, !hitEndOfQueue);
+  }
 
-      try {
-        successfullyProcessed = callback.onMessageBatch(responses);
-      } finally {
-        if (successfullyProcessed) {
-          for (EnvelopeResponse response : responses) {
-            getWebSocket().sendResponse(createWebSocketResponse(response.getWebsocketRequest()));
-          }
-        }
-      }
+  /**
+   * Acknowledges a batch read via {@link #readEnvelopeBatch(long, int)} on the connection it was read from.
+   * If that connection has since been closed, this will throw, and the server will re-deliver the messages.
+   */
+  public void acknowledge(EnvelopeBatch batch) throws IOException {
+    for (EnvelopeResponse response : batch.getResponses()) {
+      batch.connection.sendResponse(createWebSocketResponse(response.getWebsocketRequest()));
     }
-
-    return !hitEndOfQueue;
   }
 
   @SuppressWarnings("DuplicateThrows")
-  private Optional<EnvelopeResponse> waitForSingleMessage(long timeout)
-      throws TimeoutException, WebSocketUnavailableException, IOException
+  private Optional<EnvelopeResponse> waitForSingleMessage(WebSocketConnection connection, long timeout)
+      throws TimeoutException, IOException
   {
     while (true) {
-      WebSocketRequestMessage request = getWebSocket().readRequest(timeout);
+      WebSocketRequestMessage request = connection.readRequest(timeout);
 
       if (isSignalServiceEnvelope(request)) {
         return Optional.of(requestToEnvelopeResponse(request));
@@ -364,6 +390,33 @@ public final class SignalWebSocket {
     return Optional.empty();
   }
 
+  /**
+   * A batch of envelopes read off of a specific connection that have not yet been acknowledged.
+   */
+  public static final class EnvelopeBatch {
+    private final WebSocketConnection    connection;
+    private final List<EnvelopeResponse> responses;
+    private final boolean                hasMore;
+
+    private EnvelopeBatch(WebSocketConnection connection, List<EnvelopeResponse> responses, boolean hasMore) {
+      this.connection = connection;
+      this.responses  = responses;
+      this.hasMore    = hasMore;
+    }
+
+    public List<EnvelopeResponse> getResponses() {
+      return responses;
+    }
+
+    /**
+     * True if there are still more messages in the queue to be read, otherwise false. See
+     * {@link #readMessageBatch(long, int, MessageReceivedCallback)} for caveats.
+     */
+    public boolean hasMore() {
+      return hasMore;
+    }
+  }
+
   /**
    * For receiving a callback when a new message has been
    * received.
@@ -18,11 +18,11 @@ import java.io.FileInputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -36,6 +36,10 @@ import javax.crypto.spec.SecretKeySpec;
 /**
  * Class for streaming an encrypted push attachment off disk.
  *
+ * The MAC covers the whole file, so it's verified in a pass over the file before any plaintext is released. After that, decryption
+ * goes through a pair of buffers that are reused for the lifetime of the stream, and for files, {@link #skip(long)} seeks rather than
+ * decrypting everything it skips over.
+ *
  * @author Moxie Marlinspike
  */
 
@@ -44,12 +48,21 @@ public class AttachmentCipherInputStream extends FilterInputStream {
   private static final int BLOCK_SIZE      = 16;
   private static final int CIPHER_KEY_SIZE = 32;
   private static final int MAC_KEY_SIZE    = 32;
+  private static final int BUFFER_SIZE     = 64 * 1024;
+
+  private final Cipher        cipher;
+  private final SecretKeySpec cipherKey;
+  private final FileChannel   channel;
+  private final long          totalDataSize;
+  private final byte[]        ciphertextBuffer;
+  private final byte[]        plaintextBuffer;
+  private final byte[]        singleByte;
 
-  private Cipher  cipher;
   private boolean done;
-  private long    totalDataSize;
   private long    totalRead;
-  private byte[]  overflowBuffer;
+  private long    plaintextPosition;
+  private int     plaintextOffset;
+  private int     plaintextLength;
 
   public static InputStream createForAttachment(File file, long plaintextLength, byte[] combinedKeyMaterial, byte[] digest)
       throws InvalidMessageException, IOException
@@ -67,11 +80,17 @@ public class AttachmentCipherInputStream extends FilterInputStream {
         throw new InvalidMacException("Missing digest!");
       }
 
-      try (FileInputStream fin = new FileInputStream(file)) {
+      FileInputStream fin = new FileInputStream(file);
+
+      try {
         verifyMac(fin, file.length(), mac, digest);
+        fin.getChannel().position(0);
+      } catch (InvalidMacException | IOException e) {
+        fin.close();
+        throw e;
       }
 
-      InputStream inputStream = new AttachmentCipherInputStream(new FileInputStream(file), parts[0], file.length() - BLOCK_SIZE - mac.getMacLength());
+      InputStream inputStream = new AttachmentCipherInputStream(fin, fin.getChannel(), parts[0], file.length() - BLOCK_SIZE - mac.getMacLength());
 
       if (plaintextLength != 0) {
         inputStream = new ContentLengthInputStream(inputStream, plaintextLength);
@@ -102,7 +121,7 @@ public class AttachmentCipherInputStream extends FilterInputStream {
         verifyMac(inputStream, data.length, mac, null);
       }
 
-      return new AttachmentCipherInputStream(new ByteArrayInputStream(data), parts[0], data.length - BLOCK_SIZE - mac.getMacLength());
+      return new AttachmentCipherInputStream(new ByteArrayInputStream(data), null, parts[0], data.length - BLOCK_SIZE - mac.getMacLength());
     } catch (NoSuchAlgorithmException | InvalidKeyException e) {
       throw new AssertionError(e);
     } catch (InvalidMacException e) {
@@ -110,7 +129,10 @@ public class AttachmentCipherInputStream extends FilterInputStream {
     }
   }
 
-  private AttachmentCipherInputStream(InputStream inputStream, byte[] cipherKey, long totalDataSize)
+  /**
+   * @param channel If present, the channel that the input stream reads from, used to seek when skipping.
+   */
+  private AttachmentCipherInputStream(InputStream inputStream, FileChannel channel, byte[] cipherKey, long totalDataSize)
       throws IOException
   {
     super(inputStream);
@@ -119,12 +141,17 @@ public class AttachmentCipherInputStream extends FilterInputStream {
       byte[] iv = new byte[BLOCK_SIZE];
       readFully(iv);
 
-      this.cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-      this.cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
-
-      this.done          = false;
-      this.totalRead     = 0;
-      this.totalDataSize = totalDataSize;
+      this.cipherKey = new SecretKeySpec(cipherKey, "AES");
+      this.cipher    = Cipher.getInstance("AES/CBC/PKCS5Padding");
+      this.cipher.init(Cipher.DECRYPT_MODE, this.cipherKey, new IvParameterSpec(iv));
+
+      this.channel          = channel;
+      this.done             = false;
+      this.totalRead        = 0;
+      this.totalDataSize    = totalDataSize;
+      this.ciphertextBuffer = new byte[(int) Math.min(BUFFER_SIZE, Math.max(BLOCK_SIZE, totalDataSize))];
+      this.plaintextBuffer  = new byte[ciphertextBuffer.length + BLOCK_SIZE];
+      this.singleByte       = new byte[1];
     } catch (NoSuchAlgorithmException | InvalidKeyException | NoSuchPaddingException | InvalidAlgorithmParameterException e) {
       throw new AssertionError(e);
     }
@@ -132,13 +159,12 @@ public class AttachmentCipherInputStream extends FilterInputStream {
 
   @Override
   public int read() throws IOException {
-    byte[] buffer = new byte[1];
-    int    read;
+    int read;
 
     //noinspection StatementWithEmptyBody
-    while ((read = read(buffer)) == 0);
+    while ((read = read(singleByte)) == 0);
 
-    return (read == -1) ? -1 : ((int) buffer[0]) & 0xFF;
+    return (read == -1) ? -1 : ((int) singleByte[0]) & 0xFF;
   }
 
   @Override
@@ -148,9 +174,20 @@ public class AttachmentCipherInputStream extends FilterInputStream {
 
   @Override
   public int read(byte[] buffer, int offset, int length) throws IOException {
-    if      (totalRead != totalDataSize) return readIncremental(buffer, offset, length);
-    else if (!done)                      return readFinal(buffer, offset, length);
-    else                                 return -1;
+    if (length == 0) {
+      return 0;
+    }
+
+    if (!fillPlaintext()) {
+      return -1;
+    }
+
+    int read = Math.min(length, plaintextLength - plaintextOffset);
+
+    System.arraycopy(plaintextBuffer, plaintextOffset, buffer, offset, read);
+    plaintextOffset += read;
+
+    return read;
   }
 
   @Override
@@ -158,81 +195,114 @@ public class AttachmentCipherInputStream extends FilterInputStream {
     return false;
   }
 
+  /**
+   * Skips over plaintext. When reading from a file, whole blocks are skipped by seeking and restarting the cipher with the ciphertext
+   * block before them as the IV, so only a partial block at the end of the skipped range is decrypted.
+   */
   @Override
   public long skip(long byteCount) throws IOException {
     long skipped = 0L;
+
     while (skipped < byteCount) {
-      byte[] buf  = new byte[Math.min(4096, (int)(byteCount-skipped))];
-      int    read = read(buf);
+      if (plaintextOffset == plaintextLength && channel != null) {
+        long seeked = seek(byteCount - skipped);
+
+        if (seeked > 0) {
+          skipped += seeked;
+          continue;
+        }
+      }
+
+      if (!fillPlaintext()) {
+        break;
+      }
 
-      skipped += read;
+      int count = (int) Math.min(byteCount - skipped, plaintextLength - plaintextOffset);
+
+      plaintextOffset += count;
+      skipped         += count;
     }
 
     return skipped;
   }
 
-  private int readFinal(byte[] buffer, int offset, int length) throws IOException {
+  /**
+   * Decrypts more ciphertext into the plaintext buffer if it's been fully consumed.
+   *
+   * @return False if there is no more plaintext.
+   */
+  private boolean fillPlaintext() throws IOException {
     try {
-      byte[] internal = new byte[buffer.length];
-      int actualLength = Math.min(length, cipher.doFinal(internal, 0));
-      System.arraycopy(internal, 0, buffer, offset, actualLength);
+      while (plaintextOffset == plaintextLength) {
+        if (done) {
+          return false;
+        }
+
+        plaintextOffset = 0;
+
+        if (totalRead < totalDataSize) {
+          int read = super.read(ciphertextBuffer, 0, (int) Math.min(ciphertextBuffer.length, totalDataSize - totalRead));
+
+          if (read == -1) {
+            throw new IOException("Unexpected end of stream!");
+          }
 
-      done = true;
-      return actualLength;
-    } catch (IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
+          totalRead      += read;
+          plaintextLength = cipher.update(ciphertextBuffer, 0, read, plaintextBuffer, 0);
+        } else {
+          plaintextLength = cipher.doFinal(plaintextBuffer, 0);
+          done            = true;
+        }
+
+        plaintextPosition += plaintextLength;
+      }
+
+      return true;
+    } catch (IllegalBlockSizeException | BadPaddingException e) {
       throw new IOException(e);
+    } catch (ShortBufferException e) {
+      throw new AssertionError(e);
     }
   }
 
-  private int readIncremental(byte[] buffer, int offset, int length) throws IOException {
-    int readLength = 0;
-    if (null != overflowBuffer) {
-      if (overflowBuffer.length > length) {
-        System.arraycopy(overflowBuffer, 0, buffer, offset, length);
-        overflowBuffer = Arrays.copyOfRange(overflowBuffer, length, overflowBuffer.length);
-        return length;
-      } else if (overflowBuffer.length == length) {
-        System.arraycopy(overflowBuffer, 0, buffer, offset, length);
-        overflowBuffer = null;
-        return length;
-      } else {
-        System.arraycopy(overflowBuffer, 0, buffer, offset, overflowBuffer.length);
-        readLength += overflowBuffer.length;
-        offset += readLength;
-        length -= readLength;
-        overflowBuffer = null;
-      }
+  /**
+   * Moves forward by as many whole blocks of the given amount of plaintext as possible. Never moves past the start of the final block,
+   * which has to go through {@link Cipher#doFinal} to have its padding removed.
+   *
+   * Must only be called once the plaintext buffer has been consumed. Until the final block, the cipher only ever returns whole blocks,
+   * so at that point the next plaintext we'd return is the block at {@link #plaintextPosition} in the ciphertext.
+   *
+   * @return How much plaintext we skipped, or 0 if we can't seek.
+   */
+  private long seek(long plaintextCount) throws IOException {
+    if (done) {
+      return 0;
     }
 
-    if (length + totalRead > totalDataSize)
-      length = (int)(totalDataSize - totalRead);
+    long target = Math.min((plaintextPosition + plaintextCount) / BLOCK_SIZE * BLOCK_SIZE, totalDataSize - BLOCK_SIZE);
 
-    byte[] internalBuffer = new byte[length];
-    int read              = super.read(internalBuffer, 0, internalBuffer.length <= cipher.getBlockSize() ? internalBuffer.length : internalBuffer.length - cipher.getBlockSize());
-    totalRead            += read;
+    if (target <= plaintextPosition) {
+      return 0;
+    }
 
     try {
-      int outputLen = cipher.getOutputSize(read);
+      byte[] iv = new byte[BLOCK_SIZE];
 
-      if (outputLen <= length) {
-        readLength += cipher.update(internalBuffer, 0, read, buffer, offset);
-        return readLength;
-      }
+      // The ciphertext starts after the IV, so this is the file offset of the block before the target.
+      channel.position(target);
+      readFully(iv);
 
-      byte[] transientBuffer = new byte[outputLen];
-      outputLen = cipher.update(internalBuffer, 0, read, transientBuffer, 0);
-      if (outputLen <= length) {
-        System.arraycopy(transientBuffer, 0, buffer, offset, outputLen);
-        readLength += outputLen;
-      } else {
-        System.arraycopy(transientBuffer, 0, buffer, offset, length);
-        overflowBuffer = Arrays.copyOfRange(transientBuffer, length, outputLen);
-        readLength += length;
-      }
-      return readLength;
-    } catch (ShortBufferException e) {
+      cipher.init(Cipher.DECRYPT_MODE, cipherKey, new IvParameterSpec(iv));
+    } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
       throw new AssertionError(e);
     }
+
+    long skipped = target - plaintextPosition;
+
+    totalRead         = target;
+    plaintextPosition = target;
+
+    return skipped;
   }
 
   private static void verifyMac(InputStream inputStream, long length, Mac mac, byte[] theirDigest)
@@ -240,11 +310,16 @@ public class AttachmentCipherInputStream extends FilterInputStream {
   {
     try {
       MessageDigest   digest        = MessageDigest.getInstance("SHA256");
-      int             remainingData = Util.toIntExact(length) - mac.getMacLength();
-      byte[]          buffer        = new byte[4096];
+      long            remainingData = length - mac.getMacLength();
+      byte[]          buffer        = new byte[(int) Math.min(BUFFER_SIZE, remainingData)];
 
       while (remainingData > 0) {
-        int read = inputStream.read(buffer, 0, Math.min(buffer.length, remainingData));
+        int read = inputStream.read(buffer, 0, (int) Math.min(buffer.length, remainingData));
+
+        if (read == -1) {
+          throw new InvalidMacException("Unexpected end of stream!");
+        }
+
         mac.update(buffer, 0, read);
         digest.update(buffer, 0, read);
         remainingData -= read;
@@ -264,7 +339,7 @@ public class AttachmentCipherInputStream extends FilterInputStream {
         throw new InvalidMacException("Digest doesn't match!");
       }
 
-    } catch (IOException | ArithmeticException e1) {
+    } catch (IOException e1) {
       throw new InvalidMacException(e1);
     } catch (NoSuchAlgorithmException e) {
       throw new AssertionError(e);
@@ -13,15 +13,18 @@ import org.signal.libsignal.metadata.ProtocolUntrustedIdentityException;
 import org.signal.libsignal.metadata.SealedSessionCipher;
 import org.signal.libsignal.metadata.SelfSendException;
 import org.signal.libsignal.metadata.certificate.CertificateValidator;
+import org.signal.libsignal.metadata.certificate.SenderCertificate;
 import org.signal.libsignal.metadata.protocol.UnidentifiedSenderMessageContent;
 import org.signal.libsignal.protocol.InvalidKeyException;
 import org.signal.libsignal.protocol.InvalidRegistrationIdException;
 import org.signal.libsignal.protocol.NoSessionException;
 import org.signal.libsignal.protocol.SignalProtocolAddress;
 import org.signal.libsignal.protocol.UntrustedIdentityException;
+import org.signal.libsignal.protocol.message.CiphertextMessage;
 import org.whispersystems.signalservice.api.SignalSessionLock;
 
 import java.util.List;
+import java.util.Optional;
 
 /**
  * A thread-safe wrapper around {@link SealedSessionCipher}.
@@ -39,7 +42,7 @@ public class SignalSealedSessionCipher {
   public byte[] encrypt(SignalProtocolAddress destinationAddress, UnidentifiedSenderMessageContent content)
       throws InvalidKeyException, UntrustedIdentityException
   {
-    try (SignalSessionLock.Lock unused = lock.acquire()) {
+    try (SignalSessionLock.Lock unused = lock.acquire(destinationAddress)) {
       return cipher.encrypt(destinationAddress, content);
     }
   }
@@ -47,25 +50,57 @@ public class SignalSealedSessionCipher {
   public byte[] multiRecipientEncrypt(List<SignalProtocolAddress> recipients, UnidentifiedSenderMessageContent content)
       throws InvalidKeyException, UntrustedIdentityException, NoSessionException, InvalidRegistrationIdException
   {
-    try (SignalSessionLock.Lock unused = lock.acquire()) {
+    try (SignalSessionLock.Lock unused = lock.acquire(recipients)) {
       return cipher.multiRecipientEncrypt(recipients, content);
     }
   }
 
   public SealedSessionCipher.DecryptionResult decrypt(CertificateValidator validator, byte[] ciphertext, long timestamp) throws InvalidMetadataMessageException, InvalidMetadataVersionException, ProtocolInvalidMessageException, ProtocolInvalidKeyException, ProtocolNoSessionException, ProtocolLegacyMessageException, ProtocolInvalidVersionException, ProtocolDuplicateMessageException, ProtocolInvalidKeyIdException, ProtocolUntrustedIdentityException, SelfSendException {
-    try (SignalSessionLock.Lock unused = lock.acquire()) {
+    return decrypt(validator, ciphertext, timestamp, getDecryptionScope(ciphertext));
+  }
+
+  /**
+   * Same as {@link #decrypt(CertificateValidator, byte[], long)}, for callers that already have the result of
+   * {@link #getDecryptionScope(byte[])}, so that the message isn't unsealed an extra time just to pick the lock.
+   */
+  public SealedSessionCipher.DecryptionResult decrypt(CertificateValidator validator, byte[] ciphertext, long timestamp, Optional<SignalProtocolAddress> scope) throws InvalidMetadataMessageException, InvalidMetadataVersionException, ProtocolInvalidMessageException, ProtocolInvalidKeyException, ProtocolNoSessionException, ProtocolLegacyMessageException, ProtocolInvalidVersionException, ProtocolDuplicateMessageException, ProtocolInvalidKeyIdException, ProtocolUntrustedIdentityException, SelfSendException {
+    try (SignalSessionLock.Lock unused = scope.isPresent() ? lock.acquire(scope.get()) : lock.acquire()) {
       return cipher.decrypt(validator, ciphertext, timestamp);
     }
   }
 
+  /**
+   * Unseals just the outer layer of the message to find out who sent it, which only needs our own identity key.
+   *
+   * @return The sender's address if decrypting the message will only touch their session and identity (or their sender key), or empty
+   *         if it needs the lock exclusively: a PreKeySignalMessage consumes one of our prekeys, and a message we can't unseal could
+   *         be anything.
+   */
+  public Optional<SignalProtocolAddress> getDecryptionScope(byte[] ciphertext) {
+    try {
+      UnidentifiedSenderMessageContent content = cipher.decryptToUsmc(ciphertext);
+
+      switch (content.getType()) {
+        case CiphertextMessage.WHISPER_TYPE:
+        case CiphertextMessage.SENDERKEY_TYPE:
+          SenderCertificate sender = content.getSenderCertificate();
+          return Optional.of(new SignalProtocolAddress(sender.getSenderUuid(), sender.getSenderDeviceId()));
+        default:
+          return Optional.empty();
+      }
+    } catch (InvalidMetadataMessageException | InvalidMetadataVersionException e) {
+      return Optional.empty();
+    }
+  }
+
   public int getSessionVersion(SignalProtocolAddress remoteAddress) {
-    try (SignalSessionLock.Lock unused = lock.acquire()) {
+    try (SignalSessionLock.Lock unused = lock.acquire(remoteAddress)) {
       return cipher.getSessionVersion(remoteAddress);
     }
   }
 
   public int getRemoteRegistrationId(SignalProtocolAddress remoteAddress) {
-    try (SignalSessionLock.Lock unused = lock.acquire()) {
+    try (SignalSessionLock.Lock unused = lock.acquire(remoteAddress)) {
       return cipher.getRemoteRegistrationId(remoteAddress);
     }
   }
@@ -64,6 +64,8 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 
+import javax.annotation.Nullable;
+
 /**
  * This is used to encrypt + decrypt received {@link SignalServiceEnvelope}s.
  */
@@ -118,12 +120,12 @@ public class SignalServiceCipher {
       throws UntrustedIdentityException, InvalidKeyException
   {
     if (unidentifiedAccess.isPresent()) {
-      SignalSessionCipher       sessionCipher        = new SignalSessionCipher(sessionLock, new SessionCipher(signalProtocolStore, destination));
+      SignalSessionCipher       sessionCipher        = new SignalSessionCipher(sessionLock, new SessionCipher(signalProtocolStore, destination), destination);
       SignalSealedSessionCipher sealedSessionCipher  = new SignalSealedSessionCipher(sessionLock, new SealedSessionCipher(signalProtocolStore, localAddress.getServiceId().uuid(), localAddress.getNumber().orElse(null), localDeviceId));
 
       return content.processSealedSender(sessionCipher, sealedSessionCipher, destination, unidentifiedAccess.get().getUnidentifiedCertificate());
     } else {
-      SignalSessionCipher sessionCipher = new SignalSessionCipher(sessionLock, new SessionCipher(signalProtocolStore, destination));
+      SignalSessionCipher sessionCipher = new SignalSessionCipher(sessionLock, new SessionCipher(signalProtocolStore, destination), destination);
 
       return content.processUnsealedSender(sessionCipher, destination);
     }
@@ -146,7 +148,7 @@ public class SignalServiceCipher {
   {
     try {
       if (envelope.hasContent()) {
-        Plaintext                   plaintext = decryptInternal(envelope.getProto(), envelope.getServerDeliveredTimestamp());
+        Plaintext                   plaintext = decryptInternal(envelope.getProto(), envelope.getServerDeliveredTimestamp(), null);
         SignalServiceProtos.Content content   = SignalServiceProtos.Content.parseFrom(plaintext.getData());
 
         SignalServiceContentProto contentProto = SignalServiceContentProto.newBuilder()
@@ -171,10 +173,36 @@ public class SignalServiceCipher {
              ProtocolInvalidVersionException, ProtocolInvalidMessageException,
              ProtocolInvalidKeyException, ProtocolDuplicateMessageException,
              SelfSendException, InvalidMessageStructureException
+  {
+    return decryptWithScope(envelope, serverDeliveredTimestamp, null);
+  }
+
+  /**
+   * Same as {@link #decrypt(Envelope, long)}, for callers that already have the result of {@link #getDecryptionScope(Envelope)}.
+   * Sealed sender envelopes have to be unsealed to find their scope, so passing it in saves doing that a second time.
+   */
+  public SignalServiceCipherResult decrypt(Envelope envelope, long serverDeliveredTimestamp, Optional<SignalProtocolAddress> decryptionScope)
+      throws InvalidMetadataMessageException, InvalidMetadataVersionException,
+             ProtocolInvalidKeyIdException, ProtocolLegacyMessageException,
+             ProtocolUntrustedIdentityException, ProtocolNoSessionException,
+             ProtocolInvalidVersionException, ProtocolInvalidMessageException,
+             ProtocolInvalidKeyException, ProtocolDuplicateMessageException,
+             SelfSendException, InvalidMessageStructureException
+  {
+    return decryptWithScope(envelope, serverDeliveredTimestamp, decryptionScope);
+  }
+
+  private SignalServiceCipherResult decryptWithScope(Envelope envelope, long serverDeliveredTimestamp, @Nullable Optional<SignalProtocolAddress> decryptionScope)
+      throws InvalidMetadataMessageException, InvalidMetadataVersionException,
+             ProtocolInvalidKeyIdException, ProtocolLegacyMessageException,
+             ProtocolUntrustedIdentityException, ProtocolNoSessionException,
+             ProtocolInvalidVersionException, ProtocolInvalidMessageException,
+             ProtocolInvalidKeyException, ProtocolDuplicateMessageException,
+             SelfSendException, InvalidMessageStructureException
   {
     try {
       if (envelope.hasContent()) {
-        Plaintext                   plaintext = decryptInternal(envelope, serverDeliveredTimestamp);
+        Plaintext                   plaintext = decryptInternal(envelope, serverDeliveredTimestamp, decryptionScope);
         SignalServiceProtos.Content content   = SignalServiceProtos.Content.parseFrom(plaintext.getData());
 
         return new SignalServiceCipherResult(
@@ -196,7 +224,24 @@ public class SignalServiceCipher {
     }
   }
 
-  private Plaintext decryptInternal(Envelope envelope, long serverDeliveredTimestamp)
+  /**
+   * @return The only remote address whose state decrypting this envelope will touch, or empty if it needs the session lock exclusively,
+   *         because it can change state shared between addresses (like our prekeys) or we can't tell who it's from.
+   */
+  public Optional<SignalProtocolAddress> getDecryptionScope(Envelope envelope) {
+    switch (envelope.getType().getNumber()) {
+      case Envelope.Type.CIPHERTEXT_VALUE:
+        return envelope.hasSourceUuid() ? Optional.of(new SignalProtocolAddress(envelope.getSourceUuid(), envelope.getSourceDevice()))
+                                        : Optional.empty();
+      case Envelope.Type.UNIDENTIFIED_SENDER_VALUE:
+        SignalSealedSessionCipher sealedSessionCipher = new SignalSealedSessionCipher(sessionLock, new SealedSessionCipher(signalProtocolStore, localAddress.getServiceId().uuid(), localAddress.getNumber().orElse(null), localDeviceId));
+        return sealedSessionCipher.getDecryptionScope(envelope.getContent().toByteArray());
+      default:
+        return Optional.empty();
+    }
+  }
+
+  private Plaintext decryptInternal(Envelope envelope, long serverDeliveredTimestamp, @Nullable Optional<SignalProtocolAddress> decryptionScope)
       throws InvalidMetadataMessageException, InvalidMetadataVersionException,
       ProtocolDuplicateMessageException, ProtocolUntrustedIdentityException,
       ProtocolLegacyMessageException, ProtocolInvalidKeyException,
@@ -215,7 +260,7 @@ public class SignalServiceCipher {
 
       if (envelope.getType().getNumber() == Envelope.Type.PREKEY_BUNDLE_VALUE) {
         SignalProtocolAddress sourceAddress = new SignalProtocolAddress(envelope.getSourceUuid(), envelope.getSourceDevice());
-        SignalSessionCipher   sessionCipher = new SignalSessionCipher(sessionLock, new SessionCipher(signalProtocolStore, sourceAddress));
+        SignalSessionCipher   sessionCipher = new SignalSessionCipher(sessionLock, new SessionCipher(signalProtocolStore, sourceAddress), sourceAddress);
 
         paddedMessage = sessionCipher.decrypt(new PreKeySignalMessage(envelope.getContent().toByteArray()));
         metadata      = new SignalServiceMetadata(getSourceAddress(envelope), envelope.getSourceDevice(), envelope.getTimestamp(), envelope.getServerTimestamp(), serverDeliveredTimestamp, false, envelope.getServerGuid(), Optional.empty(), envelope.getDestinationUuid());
@@ -223,7 +268,7 @@ public class SignalServiceCipher {
         signalProtocolStore.clearSenderKeySharedWith(Collections.singleton(sourceAddress));
       } else if (envelope.getType().getNumber() == Envelope.Type.CIPHERTEXT_VALUE) {
         SignalProtocolAddress sourceAddress = new SignalProtocolAddress(envelope.getSourceUuid(), envelope.getSourceDevice());
-        SignalSessionCipher   sessionCipher = new SignalSessionCipher(sessionLock, new SessionCipher(signalProtocolStore, sourceAddress));
+        SignalSessionCipher   sessionCipher = new SignalSessionCipher(sessionLock, new SessionCipher(signalProtocolStore, sourceAddress), sourceAddress);
 
         paddedMessage = sessionCipher.decrypt(new SignalMessage(envelope.getContent().toByteArray()));
         metadata      = new SignalServiceMetadata(getSourceAddress(envelope), envelope.getSourceDevice(), envelope.getTimestamp(), envelope.getServerTimestamp(), serverDeliveredTimestamp, false, envelope.getServerGuid(), Optional.empty(), envelope.getDestinationUuid());
@@ -232,7 +277,9 @@ public class SignalServiceCipher {
         metadata      = new SignalServiceMetadata(getSourceAddress(envelope), envelope.getSourceDevice(), envelope.getTimestamp(), envelope.getServerTimestamp(), serverDeliveredTimestamp, false, envelope.getServerGuid(), Optional.empty(), envelope.getDestinationUuid());
       } else if (envelope.getType().getNumber() == Envelope.Type.UNIDENTIFIED_SENDER_VALUE) {
         SignalSealedSessionCipher sealedSessionCipher = new SignalSealedSessionCipher(sessionLock, new SealedSessionCipher(signalProtocolStore, localAddress.getServiceId().uuid(), localAddress.getNumber().orElse(null), localDeviceId));
-        DecryptionResult          result              = sealedSessionCipher.decrypt(certificateValidator, envelope.getContent().toByteArray(), envelope.getServerTimestamp());
+        byte[]                    ciphertext          = envelope.getContent().toByteArray();
+        DecryptionResult          result              = decryptionScope != null ? sealedSessionCipher.decrypt(certificateValidator, ciphertext, envelope.getServerTimestamp(), decryptionScope)
+                                                                                : sealedSessionCipher.decrypt(certificateValidator, ciphertext, envelope.getServerTimestamp());
         SignalServiceAddress      resultAddress       = new SignalServiceAddress(ACI.parseOrThrow(result.getSenderUuid()), result.getSenderE164());
         Optional<byte[]>          groupId             = result.getGroupId();
         boolean                   needsReceipt        = true;
@@ -8,6 +8,7 @@ import org.signal.libsignal.protocol.InvalidVersionException;
 import org.signal.libsignal.protocol.LegacyMessageException;
 import org.signal.libsignal.protocol.NoSessionException;
 import org.signal.libsignal.protocol.SessionCipher;
+import org.signal.libsignal.protocol.SignalProtocolAddress;
 import org.signal.libsignal.protocol.UntrustedIdentityException;
 import org.signal.libsignal.protocol.message.CiphertextMessage;
 import org.signal.libsignal.protocol.message.PreKeySignalMessage;
@@ -19,20 +20,25 @@ import org.whispersystems.signalservice.api.SignalSessionLock;
  */
 public class SignalSessionCipher {
 
-  private final SignalSessionLock lock;
-  private final SessionCipher     cipher;
+  private final SignalSessionLock     lock;
+  private final SessionCipher         cipher;
+  private final SignalProtocolAddress remoteAddress;
 
-  public SignalSessionCipher(SignalSessionLock lock, SessionCipher cipher) {
-    this.lock   = lock;
-    this.cipher = cipher;
+  public SignalSessionCipher(SignalSessionLock lock, SessionCipher cipher, SignalProtocolAddress remoteAddress) {
+    this.lock          = lock;
+    this.cipher        = cipher;
+    this.remoteAddress = remoteAddress;
   }
 
   public CiphertextMessage encrypt(byte[] paddedMessage) throws org.signal.libsignal.protocol.UntrustedIdentityException {
-    try (SignalSessionLock.Lock unused = lock.acquire()) {
+    try (SignalSessionLock.Lock unused = lock.acquire(remoteAddress)) {
       return cipher.encrypt(paddedMessage);
     }
   }
 
+  /**
+   * Takes the lock exclusively, since this consumes one of our prekeys, which every address shares.
+   */
   public byte[] decrypt(PreKeySignalMessage ciphertext) throws DuplicateMessageException, LegacyMessageException, InvalidMessageException, InvalidKeyIdException, InvalidKeyException, org.signal.libsignal.protocol.UntrustedIdentityException {
     try (SignalSessionLock.Lock unused = lock.acquire()) {
       return cipher.decrypt(ciphertext);
@@ -40,19 +46,19 @@ public class SignalSessionCipher {
   }
 
   public byte[] decrypt(SignalMessage ciphertext) throws InvalidMessageException, InvalidVersionException, DuplicateMessageException, LegacyMessageException, NoSessionException, UntrustedIdentityException {
-    try (SignalSessionLock.Lock unused = lock.acquire()) {
+    try (SignalSessionLock.Lock unused = lock.acquire(remoteAddress)) {
       return cipher.decrypt(ciphertext);
     }
   }
 
   public int getRemoteRegistrationId() {
-    try (SignalSessionLock.Lock unused = lock.acquire()) {
+    try (SignalSessionLock.Lock unused = lock.acquire(remoteAddress)) {
       return cipher.getRemoteRegistrationId();
     }
   }
 
   public int getSessionVersion() {
-    try (SignalSessionLock.Lock unused = lock.acquire()) {
+    try (SignalSessionLock.Lock unused = lock.acquire(remoteAddress)) {
       return cipher.getSessionVersion();
     }
   }
@@ -0,0 +1,111 @@
+package org.whispersystems.signalservice.internal.util.concurrent;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+
+/**
+ * Runs a task for each of a list of inputs on an executor, with at most a fixed number of them in flight at once, and handles the results on
+ * the calling thread in the order they complete.
+ * <p>
+ * Bounding how many tasks are in flight means a fan-out to a large group can't fill a shared executor's queue and hold unrelated work up
+ * behind it, while still letting the CPU-bound part of one task (like encrypting) overlap with the network-bound part of another.
+ */
+public final class FanOut {
+
+  private FanOut() {}
+
+  /**
+   * @param maxInFlight  The most tasks that will be submitted to the executor at once.
+   * @param errorHandler Called on the calling thread for each task that throws, as it completes. It can either turn the error into a result,
+   *                     or throw to stop the fan-out. If it throws, no more tasks are started, but tasks that are already running are left
+   *                     to finish.
+   * @return The results, in the same order as the inputs.
+   */
+  public static <Input, Result> List<Result> run(Executor executor,
+                                                 int maxInFlight,
+                                                 List<Input> inputs,
+                                                 Task<Input, Result> task,
+                                                 ErrorHandler<Input, Result> errorHandler)
+      throws IOException
+  {
+    if (maxInFlight < 1) {
+      throw new IllegalArgumentException("maxInFlight must be positive!");
+    }
+
+    ExecutorCompletionService<Completion<Result>> completionService = new ExecutorCompletionService<>(executor);
+    List<Result>                                  results           = new ArrayList<>(Collections.nCopies(inputs.size(), null));
+
+    int next     = 0;
+    int inFlight = 0;
+
+    while (next < inputs.size() && inFlight < maxInFlight) {
+      submit(completionService, task, inputs.get(next), next);
+      next++;
+      inFlight++;
+    }
+
+    while (inFlight > 0) {
+      Completion<Result> completion;
+
+      try {
+        completion = completionService.take().get();
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      } catch (ExecutionException e) {
+        // We catch everything inside of the task, so this shouldn't happen
+        throw new IOException(e);
+      }
+
+      inFlight--;
+
+      if (completion.error != null) {
+        results.set(completion.index, errorHandler.onError(inputs.get(completion.index), completion.error));
+      } else {
+        results.set(completion.index, completion.result);
+      }
+
+      if (next < inputs.size()) {
+        submit(completionService, task, inputs.get(next), next);
+        next++;
+        inFlight++;
+      }
+    }
+
+    return results;
+  }
+
+  private static <Input, Result> void submit(ExecutorCompletionService<Completion<Result>> completionService, Task<Input, Result> task, Input input, int index) {
+    completionService.submit(() -> {
+      try {
+        return new Completion<>(index, task.run(input), null);
+      } catch (Exception e) {
+        return new Completion<>(index, null, e);
+      }
+    });
+  }
+
+  public interface Task<Input, Result> {
+    Result run(Input input) throws Exception;
+  }
+
+  public interface ErrorHandler<Input, Result> {
+    Result onError(Input input, Exception error) throws IOException;
+  }
+
+  private static final class Completion<Result> {
+    private final int       index;
+    private final Result    result;
+    private final Exception error;
+
+    private Completion(int index, Result result, Exception error) {
+      this.index  = index;
+      this.result = result;
+      this.error  = error;
+    }
+  }
+}
@@ -17,8 +17,10 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.Security;
 import java.util.Arrays;
+import java.util.Random;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.whispersystems.signalservice.testutil.LibSignalLibraryUtil.assumeLibSignalSupportedOnOS;
 
@@ -143,6 +145,64 @@ public final class AttachmentCipherTest {
     }
   }
 
+  @Test
+  public void attachment_encryptDecryptWithVariousReadSizes() throws IOException, InvalidMessageException {
+    byte[]        key            = Util.getSecretBytes(64);
+    byte[]        plaintextInput = randomBytes(200_000);
+    EncryptResult encryptResult  = encryptData(plaintextInput, key);
+    File          cipherFile     = writeToFile(encryptResult.ciphertext);
+
+    for (int readSize : new int[] { 1, 15, 16, 17, 4096, 100_000 }) {
+      InputStream           inputStream = AttachmentCipherInputStream.createForAttachment(cipherFile, plaintextInput.length, key, encryptResult.digest);
+      ByteArrayOutputStream output      = new ByteArrayOutputStream();
+      byte[]                buffer      = new byte[readSize];
+      int                   read;
+
+      while ((read = inputStream.read(buffer)) != -1) {
+        output.write(buffer, 0, read);
+      }
+
+      assertArrayEquals(plaintextInput, output.toByteArray());
+    }
+
+    cipherFile.delete();
+  }
+
+  @Test
+  public void attachment_skipThenRead() throws IOException, InvalidMessageException {
+    byte[]        key            = Util.getSecretBytes(64);
+    byte[]        plaintextInput = randomBytes(100_003);
+    EncryptResult encryptResult  = encryptData(plaintextInput, key);
+    File          cipherFile     = writeToFile(encryptResult.ciphertext);
+
+    for (int skip : new int[] { 0, 1, 15, 16, 17, 65_536, 99_987, 99_988, 100_000, 100_003 }) {
+      InputStream inputStream = AttachmentCipherInputStream.createForAttachment(cipherFile, plaintextInput.length, key, encryptResult.digest);
+
+      assertEquals(skip, inputStream.skip(skip));
+      assertArrayEquals(Arrays.copyOfRange(plaintextInput, skip, plaintextInput.length), readInputStreamFully(inputStream));
+    }
+
+    cipherFile.delete();
+  }
+
+  @Test
+  public void attachment_readThenSkipPastEnd() throws IOException, InvalidMessageException {
+    byte[]        key            = Util.getSecretBytes(64);
+    byte[]        plaintextInput = randomBytes(50_000);
+    EncryptResult encryptResult  = encryptData(plaintextInput, key);
+    File          cipherFile     = writeToFile(encryptResult.ciphertext);
+    InputStream   inputStream    = AttachmentCipherInputStream.createForAttachment(cipherFile, plaintextInput.length, key, encryptResult.digest);
+    byte[]        head           = new byte[1000];
+
+    Util.readFully(inputStream, head);
+
+    assertArrayEquals(Arrays.copyOf(plaintextInput, 1000), head);
+    assertEquals(49_000, inputStream.skip(1_000_000));
+    assertEquals(-1, inputStream.read());
+
+    cipherFile.delete();
+  }
+
   @Test
   public void attachment_decryptFailOnNullDigest() throws IOException {
     File    cipherFile          = null;
@@ -289,6 +349,12 @@ public final class AttachmentCipherTest {
     return outputStream.toByteArray();
   }
 
+  private static byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    new Random(length).nextBytes(bytes);
+    return bytes;
+  }
+
   private static byte[] expandPackKey(byte[] shortKey) {
     return new HKDFv3().deriveSecrets(shortKey, "Sticker Pack".getBytes(), 64);
   }
@@ -0,0 +1,105 @@
+package org.whispersystems.signalservice.internal.util.concurrent;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class FanOutTest {
+
+  private final ExecutorService executor = Executors.newFixedThreadPool(16);
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void run_returnsResultsInInputOrder() throws IOException {
+    List<Integer> inputs = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      inputs.add(i);
+    }
+
+    // Later inputs finish first
+    List<String> results = FanOut.run(executor, 8, inputs, i -> {
+      Thread.sleep(50 - i);
+      return "result-" + i;
+    }, (i, e) -> {
+      throw new AssertionError(e);
+    });
+
+    assertEquals(50, results.size());
+    for (int i = 0; i < 50; i++) {
+      assertEquals("result-" + i, results.get(i));
+    }
+  }
+
+  @Test
+  public void run_neverExceedsMaxInFlight() throws IOException {
+    AtomicInteger running    = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+
+    FanOut.run(executor, 4, Collections.nCopies(40, 0), i -> {
+      int now = running.incrementAndGet();
+      maxRunning.accumulateAndGet(now, Math::max);
+      Thread.sleep(2);
+      running.decrementAndGet();
+      return i;
+    }, (i, e) -> {
+      throw new AssertionError(e);
+    });
+
+    assertTrue(maxRunning.get() <= 4);
+    assertTrue(maxRunning.get() > 1);
+  }
+
+  @Test
+  public void run_mapsErrorsToResults() throws IOException {
+    List<String> results = FanOut.run(executor, 2, Arrays.asList(1, 2, 3, 4), i -> {
+      if (i % 2 == 0) {
+        throw new IllegalStateException("even");
+      }
+      return "odd";
+    }, (i, e) -> e.getMessage() + "-" + i);
+
+    assertEquals(Arrays.asList("odd", "even-2", "odd", "even-4"), results);
+  }
+
+  @Test
+  public void run_stopsStartingTasksWhenErrorHandlerThrows() {
+    AtomicInteger started = new AtomicInteger();
+
+    try {
+      FanOut.run(executor, 1, Collections.nCopies(10, 0), i -> {
+        if (started.incrementAndGet() == 3) {
+          throw new IllegalStateException();
+        }
+        return i;
+      }, (i, e) -> {
+        throw new IOException(e);
+      });
+      fail();
+    } catch (IOException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+
+    assertEquals(3, started.get());
+  }
+
+  @Test
+  public void run_emptyInputs() throws IOException {
+    assertEquals(Collections.emptyList(), FanOut.run(executor, 8, Collections.emptyList(), i -> i, (i, e) -> i));
+  }
+}
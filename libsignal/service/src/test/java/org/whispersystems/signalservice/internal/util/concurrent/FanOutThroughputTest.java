@@ -0,0 +1,95 @@
+package org.whispersystems.signalservice.internal.util.concurrent;
+
+import org.junit.After;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.whispersystems.signalservice.internal.push.OutgoingPushMessageList;
+import org.whispersystems.signalservice.internal.push.PushServiceSocket;
+import org.whispersystems.signalservice.internal.push.SendMessageResponse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Measures how many recipients per second a multi-recipient send can get through, with a {@link PushServiceSocket} that takes a fixed amount
+ * of time per request and an encrypt step that, like the real one, only locks the recipient it's encrypting for. The encrypt cost is varied
+ * from a cheap ratchet step to a session setup, so the limit on in-flight sends can be checked against the cores it ends up occupying.
+ */
+@Ignore("Ignore test in normal testing as it's a performance test with no assertions")
+public final class FanOutThroughputTest {
+
+  private static final long NETWORK_LATENCY_MS = 20;
+
+  private final ExecutorService      executor     = Executors.newFixedThreadPool(16);
+  private final Map<Integer, Object> sessionLocks = new ConcurrentHashMap<>();
+  private final PushServiceSocket    socket       = mock(PushServiceSocket.class);
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void throughput() throws Exception {
+    when(socket.sendMessage(any(), any(), anyBoolean())).thenAnswer(invocation -> {
+      Thread.sleep(NETWORK_LATENCY_MS);
+      return new SendMessageResponse(false, true);
+    });
+
+    System.out.printf("cores: %d%n", Runtime.getRuntime().availableProcessors());
+
+    for (long encryptTimeUs : new long[] { 200, 2000 }) {
+      for (int recipients : new int[] { 10, 100, 1000 }) {
+        for (int maxInFlight : new int[] { 1, 4, 8, 16 }) {
+          long start = System.nanoTime();
+          send(recipients, maxInFlight, TimeUnit.MICROSECONDS.toNanos(encryptTimeUs));
+          long duration = System.nanoTime() - start;
+
+          System.out.printf("encrypt: %4d us, recipients: %4d, in flight: %2d, duration: %6d ms, throughput: %7.1f recipients/s%n",
+                            encryptTimeUs,
+                            recipients,
+                            maxInFlight,
+                            TimeUnit.NANOSECONDS.toMillis(duration),
+                            recipients / (duration / 1_000_000_000d));
+        }
+      }
+    }
+  }
+
+  private void send(int recipients, int maxInFlight, long encryptTimeNs) throws Exception {
+    List<Integer> inputs = new ArrayList<>(recipients);
+    for (int i = 0; i < recipients; i++) {
+      inputs.add(i);
+    }
+
+    FanOut.run(executor, maxInFlight, inputs, i -> {
+      OutgoingPushMessageList messages = encrypt(i, encryptTimeNs);
+      return socket.sendMessage(messages, Optional.empty(), false);
+    }, (i, e) -> {
+      throw new AssertionError(e);
+    });
+  }
+
+  private OutgoingPushMessageList encrypt(int recipient, long encryptTimeNs) {
+    synchronized (sessionLocks.computeIfAbsent(recipient, r -> new Object())) {
+      long end = System.nanoTime() + encryptTimeNs;
+      while (System.nanoTime() < end) {
+        // Busy wait to stand in for encryption
+      }
+    }
+
+    return new OutgoingPushMessageList("recipient-" + recipient, 0, Collections.emptyList(), false, true);
+  }
+}
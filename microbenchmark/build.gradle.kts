@@ -57,7 +57,9 @@ dependencies {
     androidTestImplementation(benchmarkLibs.androidx.benchmark.micro)
 
     // Dependencies of modules being tested
+    androidTestImplementation(project(":core-util"))
     androidTestImplementation(project(":libsignal-service"))
+    androidTestImplementation(project(":paging"))
     androidTestImplementation(libs.libsignal.android)
     androidTestImplementation(libs.google.protobuf.javalite)
 }
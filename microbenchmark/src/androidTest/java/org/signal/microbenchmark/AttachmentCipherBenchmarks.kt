@@ -0,0 +1,92 @@
+package org.signal.microbenchmark
+
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.benchmark.junit4.measureRepeated
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import org.junit.After
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.whispersystems.signalservice.api.crypto.AttachmentCipherInputStream
+import org.whispersystems.signalservice.api.crypto.AttachmentCipherOutputStream
+import org.whispersystems.signalservice.internal.util.Util
+import java.io.File
+import java.io.InputStream
+import kotlin.random.Random
+
+/**
+ * Benchmarks for decrypting a downloaded attachment with [AttachmentCipherInputStream], compared to [LegacyAttachmentCipherInputStream].
+ *
+ * The read size matches what we'd see when copying the attachment into local storage, and seeking is what media playback does when the
+ * user scrubs through a video that's still being read from the downloaded file.
+ */
+@RunWith(AndroidJUnit4::class)
+class AttachmentCipherBenchmarks {
+
+  companion object {
+    private const val PLAINTEXT_SIZE = 8 * 1024 * 1024
+    private const val READ_SIZE = 8 * 1024
+  }
+
+  @get:Rule
+  val benchmarkRule = BenchmarkRule()
+
+  private lateinit var file: File
+  private lateinit var key: ByteArray
+  private lateinit var digest: ByteArray
+
+  @Before
+  fun setup() {
+    key = Util.getSecretBytes(64)
+    file = File.createTempFile("attachment", ".benchmark", InstrumentationRegistry.getInstrumentation().targetContext.cacheDir)
+
+    val output = AttachmentCipherOutputStream(key, null, file.outputStream())
+    output.write(Random(1).nextBytes(PLAINTEXT_SIZE))
+    output.flush()
+    output.close()
+
+    digest = output.transmittedDigest
+  }
+
+  @After
+  fun tearDown() {
+    file.delete()
+  }
+
+  @Test
+  fun decrypt_8mb_current() = readAll { AttachmentCipherInputStream.createForAttachment(file, PLAINTEXT_SIZE.toLong(), key, digest) }
+
+  @Test
+  fun decrypt_8mb_legacy() = readAll { LegacyAttachmentCipherInputStream.createForAttachment(file, PLAINTEXT_SIZE.toLong(), key, digest) }
+
+  @Test
+  fun seekToEnd_8mb_current() = skipToEnd { AttachmentCipherInputStream.createForAttachment(file, PLAINTEXT_SIZE.toLong(), key, digest) }
+
+  @Test
+  fun seekToEnd_8mb_legacy() = skipToEnd { LegacyAttachmentCipherInputStream.createForAttachment(file, PLAINTEXT_SIZE.toLong(), key, digest) }
+
+  private fun readAll(open: () -> InputStream) {
+    val buffer = ByteArray(READ_SIZE)
+
+    benchmarkRule.measureRepeated {
+      open().use { input ->
+        while (input.read(buffer) != -1) {
+          // Consume
+        }
+      }
+    }
+  }
+
+  private fun skipToEnd(open: () -> InputStream) {
+    val buffer = ByteArray(READ_SIZE)
+
+    benchmarkRule.measureRepeated {
+      open().use { input ->
+        input.skip(PLAINTEXT_SIZE - READ_SIZE.toLong())
+        input.read(buffer)
+      }
+    }
+  }
+}
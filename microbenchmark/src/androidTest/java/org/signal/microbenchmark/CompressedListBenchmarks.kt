@@ -0,0 +1,166 @@
+package org.signal.microbenchmark
+
+import android.util.Log
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.benchmark.junit4.measureRepeated
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.signal.paging.CompressedList
+
+/**
+ * Benchmarks for [CompressedList], compared against the [ArrayList] it used to wrap.
+ *
+ * Each operation mirrors what the paging controllers do: create a list of empty placeholders, copy it
+ * on every update, fill in a page of loaded items, insert new items at the front, and read rows
+ * sequentially while binding.
+ *
+ * The memory tests aren't timed. They log how much heap a list with every tenth page loaded retains,
+ * which is roughly what a long conversation looks like after scrolling through it.
+ */
+@RunWith(AndroidJUnit4::class)
+class CompressedListBenchmarks {
+
+  companion object {
+    private const val TAG = "CompressedListBenchmarks"
+
+    private const val PAGE_SIZE = 50
+  }
+
+  @get:Rule
+  val benchmarkRule = BenchmarkRule()
+
+  @Test
+  fun create_compressed_10k() = create(10_000) { CompressedList<Any?>(it) }
+
+  @Test
+  fun create_compressed_1m() = create(1_000_000) { CompressedList<Any?>(it) }
+
+  @Test
+  fun create_arrayList_10k() = create(10_000) { arrayListOfNulls(it) }
+
+  @Test
+  fun create_arrayList_1m() = create(1_000_000) { arrayListOfNulls(it) }
+
+  @Test
+  fun copyAndSetPage_compressed_100k() = copyAndSetPage(100_000, { CompressedList<Any?>(it) }, { CompressedList(it) })
+
+  @Test
+  fun copyAndSetPage_compressed_1m() = copyAndSetPage(1_000_000, { CompressedList<Any?>(it) }, { CompressedList(it) })
+
+  @Test
+  fun copyAndSetPage_arrayList_100k() = copyAndSetPage(100_000, { arrayListOfNulls(it) }, { ArrayList(it) })
+
+  @Test
+  fun copyAndSetPage_arrayList_1m() = copyAndSetPage(1_000_000, { arrayListOfNulls(it) }, { ArrayList(it) })
+
+  @Test
+  fun insertAtFront_compressed_100k() = insertAtFront(100_000) { CompressedList<Any?>(it) }
+
+  @Test
+  fun insertAtFront_arrayList_100k() = insertAtFront(100_000) { arrayListOfNulls(it) }
+
+  @Test
+  fun sequentialGet_compressed_100k() = sequentialGet(100_000) { CompressedList<Any?>(it) }
+
+  @Test
+  fun sequentialGet_arrayList_100k() = sequentialGet(100_000) { arrayListOfNulls(it) }
+
+  @Test
+  fun memory_compressed_10k() = memory("compressed", 10_000) { CompressedList<Any?>(it) }
+
+  @Test
+  fun memory_compressed_100k() = memory("compressed", 100_000) { CompressedList<Any?>(it) }
+
+  @Test
+  fun memory_compressed_1m() = memory("compressed", 1_000_000) { CompressedList<Any?>(it) }
+
+  @Test
+  fun memory_arrayList_10k() = memory("arrayList", 10_000) { arrayListOfNulls(it) }
+
+  @Test
+  fun memory_arrayList_100k() = memory("arrayList", 100_000) { arrayListOfNulls(it) }
+
+  @Test
+  fun memory_arrayList_1m() = memory("arrayList", 1_000_000) { arrayListOfNulls(it) }
+
+  private fun create(size: Int, factory: (Int) -> MutableList<Any?>) {
+    benchmarkRule.measureRepeated {
+      factory(size)
+    }
+  }
+
+  private fun copyAndSetPage(size: Int, factory: (Int) -> MutableList<Any?>, copy: (MutableList<Any?>) -> MutableList<Any?>) {
+    var list = factory(size)
+    var page = 0
+
+    benchmarkRule.measureRepeated {
+      val start = (page * PAGE_SIZE) % (size - PAGE_SIZE)
+
+      list = copy(list)
+      for (i in start until start + PAGE_SIZE) {
+        list[i] = i
+      }
+
+      page++
+    }
+  }
+
+  private fun insertAtFront(size: Int, factory: (Int) -> MutableList<Any?>) {
+    val list = factory(size)
+
+    benchmarkRule.measureRepeated {
+      list.add(0, list.size)
+    }
+  }
+
+  private fun sequentialGet(size: Int, factory: (Int) -> MutableList<Any?>) {
+    val list = withLoadedPages(factory(size))
+    var index = 0
+    var loaded = 0
+
+    benchmarkRule.measureRepeated {
+      for (i in 0 until PAGE_SIZE) {
+        if (list[index] != null) {
+          loaded++
+        }
+        index = (index + 1) % size
+      }
+    }
+  }
+
+  private fun memory(name: String, size: Int, factory: (Int) -> MutableList<Any?>) {
+    val before = usedMemory()
+    val list = withLoadedPages(factory(size))
+    val after = usedMemory()
+
+    Log.i(TAG, "[memory] $name, ${list.size} items: ${(after - before) / 1024} KiB retained")
+  }
+
+  private fun usedMemory(): Long {
+    val runtime = Runtime.getRuntime()
+
+    repeat(3) {
+      runtime.gc()
+      System.runFinalization()
+    }
+
+    return runtime.totalMemory() - runtime.freeMemory()
+  }
+
+  private fun withLoadedPages(list: MutableList<Any?>): MutableList<Any?> {
+    for (start in 0 until list.size step PAGE_SIZE * 10) {
+      for (i in start until minOf(start + PAGE_SIZE, list.size)) {
+        list[i] = i
+      }
+    }
+    return list
+  }
+
+  private fun arrayListOfNulls(size: Int): MutableList<Any?> {
+    return ArrayList<Any?>(size).apply {
+      repeat(size) { add(null) }
+    }
+  }
+}
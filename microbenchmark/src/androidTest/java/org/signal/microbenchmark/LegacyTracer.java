@@ -0,0 +1,216 @@
+package org.signal.microbenchmark;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.protobuf.ByteString;
+
+import org.signal.core.util.tracing.TraceProtos;
+import org.signal.core.util.tracing.TraceProtos.Trace;
+import org.signal.core.util.tracing.TraceProtos.TracePacket;
+import org.signal.core.util.tracing.TraceProtos.TrackDescriptor;
+import org.signal.core.util.tracing.TraceProtos.TrackEvent;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A copy of Tracer from before it recorded into per-thread ring buffers, so that {@link TracerBenchmarks} has a baseline to compare
+ * against.
+ */
+public final class LegacyTracer {
+
+  public static final class TrackId {
+    public static final long DB_LOCK        = -8675309;
+
+    private static final String DB_LOCK_NAME = "Database Lock";
+  }
+
+  private static final int    TRUSTED_SEQUENCE_ID      = 1;
+  private static final byte[] SYNCHRONIZATION_MARKER   = toByteArray(UUID.fromString("82477a76-b28d-42ba-81dc-33326d57a079"));
+  private static final long   SYNCHRONIZATION_INTERVAL = TimeUnit.SECONDS.toNanos(3);
+
+  private final Clock                  clock;
+  private final Map<Long, TracePacket> threadPackets;
+  private final Queue<TracePacket>     eventPackets;
+  private final AtomicInteger          eventCount;
+
+  private long lastSyncTime;
+  private long maxBufferSize;
+
+  public LegacyTracer() {
+    this.clock         = SystemClock::elapsedRealtimeNanos;
+    this.threadPackets = new ConcurrentHashMap<>();
+    this.eventPackets  = new ConcurrentLinkedQueue<>();
+    this.eventCount    = new AtomicInteger(0);
+    this.maxBufferSize = 3_500;
+  }
+
+  public void setMaxBufferSize(long maxBufferSize) {
+    this.maxBufferSize = maxBufferSize;
+  }
+
+  public void start(@NonNull String methodName) {
+    start(methodName, Thread.currentThread().getId(), null);
+  }
+
+  public void start(@NonNull String methodName, long trackId) {
+    start(methodName, trackId, null);
+  }
+
+  public void start(@NonNull String methodName, @NonNull String key, @Nullable String value) {
+    start(methodName, Thread.currentThread().getId(), key, value);
+  }
+
+  public void start(@NonNull String methodName, long trackId, @NonNull String key, @Nullable String value) {
+    start(methodName, trackId, Collections.singletonMap(key, value));
+  }
+
+  public void start(@NonNull String methodName, @Nullable Map<String, String> values) {
+    start(methodName, Thread.currentThread().getId(), values);
+  }
+
+  public void start(@NonNull String methodName, long trackId, @Nullable Map<String, String> values) {
+    long time = clock.getTimeNanos();
+
+    if (time - lastSyncTime > SYNCHRONIZATION_INTERVAL) {
+      addPacket(forSynchronization(time));
+      lastSyncTime = time;
+    }
+
+    if (!threadPackets.containsKey(trackId)) {
+      threadPackets.put(trackId, forTrackId(trackId));
+    }
+
+    addPacket(forMethodStart(methodName, time, trackId, values));
+  }
+
+  public void end(@NonNull String methodName) {
+    addPacket(forMethodEnd(methodName, clock.getTimeNanos(), Thread.currentThread().getId()));
+  }
+
+  public void end(@NonNull String methodName, long trackId) {
+    addPacket(forMethodEnd(methodName, clock.getTimeNanos(), trackId));
+  }
+
+  public @NonNull byte[] serialize() {
+    Trace.Builder trace = Trace.newBuilder();
+
+    for (TracePacket thread : threadPackets.values()) {
+      trace.addPacket(thread);
+    }
+
+    for (TracePacket event : eventPackets) {
+      trace.addPacket(event);
+    }
+
+    trace.addPacket(forSynchronization(clock.getTimeNanos()));
+
+    return trace.build().toByteArray();
+  }
+
+  /**
+   * Attempts to add a packet to our list while keeping the size of our circular buffer in-check.
+   * The tracking of the event count is not perfectly thread-safe, but doing it in a thread-safe
+   * way would likely involve adding a lock, which we really don't want to do, since it'll add
+   * unnecessary overhead.
+   *
+   * Note that we keep track of the event count separately because
+   * {@link ConcurrentLinkedQueue#size()} is NOT a constant-time operation.
+   */
+  private void addPacket(@NonNull TracePacket packet) {
+    eventPackets.add(packet);
+
+    int size = eventCount.incrementAndGet();
+
+    for (int i = size; i > maxBufferSize; i--) {
+      eventPackets.poll();
+      eventCount.decrementAndGet();
+    }
+  }
+
+  private TracePacket forTrackId(long id) {
+    if (id == TrackId.DB_LOCK) {
+      return forTrack(id, TrackId.DB_LOCK_NAME);
+    } else {
+      Thread currentThread = Thread.currentThread();
+      return forTrack(currentThread.getId(), currentThread.getName());
+    }
+  }
+
+  private static TracePacket forTrack(long id, String name) {
+    return TracePacket.newBuilder()
+                      .setTrustedPacketSequenceId(TRUSTED_SEQUENCE_ID)
+                      .setTrackDescriptor(TrackDescriptor.newBuilder()
+                                                         .setUuid(id)
+                                                         .setName(name))
+                      .build();
+
+  }
+
+  private static TracePacket forMethodStart(@NonNull String name, long time, long threadId, @Nullable Map<String, String> values) {
+    TrackEvent.Builder event = TrackEvent.newBuilder()
+                                         .setTrackUuid(threadId)
+                                         .setName(name)
+                                         .setType(TrackEvent.Type.TYPE_SLICE_BEGIN);
+
+    if (values != null) {
+      for (Map.Entry<String, String> entry : values.entrySet()) {
+        event.addDebugAnnotations(debugAnnotation(entry.getKey(), entry.getValue()));
+      }
+    }
+
+    return TracePacket.newBuilder()
+                      .setTrustedPacketSequenceId(TRUSTED_SEQUENCE_ID)
+                      .setTimestamp(time)
+                      .setTrackEvent(event)
+                      .build();
+  }
+
+  private static TraceProtos.DebugAnnotation debugAnnotation(@NonNull String key, @Nullable String value) {
+    return TraceProtos.DebugAnnotation.newBuilder()
+                                      .setName(key)
+                                      .setStringValue(value != null ? value : "")
+                                      .build();
+  }
+
+  private static TracePacket forMethodEnd(@NonNull String name, long time, long threadId) {
+    return TracePacket.newBuilder()
+                      .setTrustedPacketSequenceId(TRUSTED_SEQUENCE_ID)
+                      .setTimestamp(time)
+                      .setTrackEvent(TrackEvent.newBuilder()
+                                               .setTrackUuid(threadId)
+                                               .setName(name)
+                                               .setType(TrackEvent.Type.TYPE_SLICE_END))
+                      .build();
+  }
+
+  private static TracePacket forSynchronization(long time) {
+    return TracePacket.newBuilder()
+                      .setTrustedPacketSequenceId(TRUSTED_SEQUENCE_ID)
+                      .setTimestamp(time)
+                      .setSynchronizationMarker(ByteString.copyFrom(SYNCHRONIZATION_MARKER))
+                      .build();
+  }
+
+  public static byte[] toByteArray(UUID uuid) {
+    ByteBuffer buffer = ByteBuffer.wrap(new byte[16]);
+    buffer.putLong(uuid.getMostSignificantBits());
+    buffer.putLong(uuid.getLeastSignificantBits());
+
+    return buffer.array();
+  }
+
+  private interface Clock {
+    long getTimeNanos();
+  }
+}
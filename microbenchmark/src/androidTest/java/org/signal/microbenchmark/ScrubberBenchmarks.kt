@@ -0,0 +1,56 @@
+package org.signal.microbenchmark
+
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.benchmark.junit4.measureRepeated
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.signal.core.util.logging.Scrubber
+
+/**
+ * Benchmarks for [Scrubber], which runs over every line of every submitted debug log.
+ *
+ * The mixed log is shaped like a real one: most lines have nothing to scrub, and a few have numbers, emails, UUIDs, hosts or addresses.
+ */
+@RunWith(AndroidJUnit4::class)
+class ScrubberBenchmarks {
+
+  companion object {
+    private val CLEAN_LINES = listOf(
+      "[6.10.0] [main ] 2022-11-02 10:31:07.123 EDT I ConversationFragment: onResume() took 12 ms",
+      "[6.10.0] [1234 ] 2022-11-02 10:31:07.456 EDT D JobManager: [JOB::PushProcessMessageJob] Job finished with result SUCCESS in 35 ms. (Time Since Submission: 40 ms, Lifespan: Immortal, Run Attempt: 0/Unlimited)",
+      "[6.10.0] [5678 ] 2022-11-02 10:31:07.789 EDT W WebSocketConnection: Keepalive request timed out, retrying in 5000 ms"
+    )
+
+    private val DIRTY_LINES = listOf(
+      "[6.10.0] [main ] 2022-11-02 10:31:08.001 EDT I RecipientUtil: Resolved +15551234567 to d8f2b0c1-1234-4abc-9def-0123456789ab",
+      "[6.10.0] [1234 ] 2022-11-02 10:31:08.002 EDT W OkHttp: Failed to connect to chat.signal.org/142.251.32.211:443 for abc@example.com",
+      "[6.10.0] [5678 ] 2022-11-02 10:31:08.003 EDT I GroupsV2: Updating __signal_group__v2__!0123456789abcdef0123456789abcdef"
+    )
+
+    private val MIXED_LINES = (0 until 1000).map { i ->
+      if (i % 10 == 0) DIRTY_LINES[i % DIRTY_LINES.size] else CLEAN_LINES[i % CLEAN_LINES.size]
+    }
+  }
+
+  @get:Rule
+  val benchmarkRule = BenchmarkRule()
+
+  @Test
+  fun scrub_clean_1k() = scrubAll((0 until 1000).map { CLEAN_LINES[it % CLEAN_LINES.size] })
+
+  @Test
+  fun scrub_dirty_1k() = scrubAll((0 until 1000).map { DIRTY_LINES[it % DIRTY_LINES.size] })
+
+  @Test
+  fun scrub_mixed_1k() = scrubAll(MIXED_LINES)
+
+  private fun scrubAll(lines: List<String>) {
+    benchmarkRule.measureRepeated {
+      for (line in lines) {
+        Scrubber.scrub(line)
+      }
+    }
+  }
+}
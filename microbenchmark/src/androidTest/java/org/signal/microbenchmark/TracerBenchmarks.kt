@@ -0,0 +1,68 @@
+package org.signal.microbenchmark
+
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.benchmark.junit4.measureRepeated
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.signal.core.util.tracing.Tracer
+
+/**
+ * Benchmarks for recording a traced section with [Tracer], compared to [LegacyTracer].
+ *
+ * Every database call is wrapped in one of these, most of them with the query as an annotation, so this is the overhead tracing adds
+ * to every query.
+ */
+@RunWith(AndroidJUnit4::class)
+class TracerBenchmarks {
+
+  companion object {
+    private const val METHOD_NAME = "query()"
+    private const val KEY_QUERY = "query"
+    private const val QUERY = "SELECT * FROM message WHERE thread_id = ? ORDER BY date_received DESC LIMIT 50"
+  }
+
+  @get:Rule
+  val benchmarkRule = BenchmarkRule()
+
+  @Test
+  fun tracer_startEnd() {
+    val tracer = Tracer.getInstance()
+
+    benchmarkRule.measureRepeated {
+      tracer.start(METHOD_NAME)
+      tracer.end(METHOD_NAME)
+    }
+  }
+
+  @Test
+  fun tracer_startEnd_withAnnotation() {
+    val tracer = Tracer.getInstance()
+
+    benchmarkRule.measureRepeated {
+      tracer.start(METHOD_NAME, KEY_QUERY, QUERY)
+      tracer.end(METHOD_NAME)
+    }
+  }
+
+  @Test
+  fun legacyTracer_startEnd() {
+    val tracer = LegacyTracer()
+
+    benchmarkRule.measureRepeated {
+      tracer.start(METHOD_NAME)
+      tracer.end(METHOD_NAME)
+    }
+  }
+
+  @Test
+  fun legacyTracer_startEnd_withAnnotation() {
+    val tracer = LegacyTracer()
+
+    benchmarkRule.measureRepeated {
+      tracer.start(METHOD_NAME, KEY_QUERY, QUERY)
+      tracer.end(METHOD_NAME)
+    }
+  }
+}
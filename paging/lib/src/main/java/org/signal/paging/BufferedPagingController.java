@@ -15,8 +15,10 @@ import java.util.concurrent.Executors;
  * {@link #onDataNeededAroundIndex(int)} are guaranteed to have an active controller.
  *
  * It's also worth noting that this controller has lifecycle that matches the {@link PagedData} that
- * contains it. When invalidations come in, this class will just swap out the active controller with
- * a new one.
+ * contains it. When invalidations come in, this class will first ask the data source what changed,
+ * and if it knows, forward just those changes to the active controller. Otherwise (or if the active
+ * controller finds that the changes don't add up), it will swap out the active controller with a
+ * new one.
  */
 class BufferedPagingController<Key, Data> implements PagingController<Key> {
 
@@ -40,7 +42,7 @@ class BufferedPagingController<Key, Data> implements PagingController<Key> {
     this.activeController   = null;
     this.lastRequestedIndex = config.startIndex();
 
-    onDataInvalidated();
+    serializationExecutor.execute(this::reload);
   }
 
   @Override
@@ -54,12 +56,13 @@ class BufferedPagingController<Key, Data> implements PagingController<Key> {
   @Override
   public void onDataInvalidated() {
     serializationExecutor.execute(() -> {
-      if (activeController != null) {
-        activeController.onDataInvalidated();
-      }
+      PagedDataChanges<Key> changes = dataSource.getChanges();
 
-      activeController = new FixedSizePagingController<>(dataSource, config, dataStream, dataSource.size());
-      activeController.onDataNeededAroundIndex(lastRequestedIndex);
+      if (changes != null) {
+        activeController.onDataChanged(changes);
+      } else {
+        reload();
+      }
     });
   }
 
@@ -80,4 +83,43 @@ class BufferedPagingController<Key, Data> implements PagingController<Key> {
       }
     });
   }
+
+  @Override
+  public void onDataChanged(@NonNull PagedDataChanges<Key> changes) {
+    serializationExecutor.execute(() -> {
+      if (activeController != null) {
+        activeController.onDataChanged(changes);
+      }
+    });
+  }
+
+  /**
+   * Replaces the active controller with one that loads everything from scratch. Any changes the
+   * data source has been keeping track of are thrown away first, since they'll be included in what
+   * we load, and the next call to {@link PagedDataSource#getChanges()} should only describe what
+   * changed after this.
+   */
+  private void reload() {
+    if (activeController != null) {
+      activeController.onDataInvalidated();
+    }
+
+    dataSource.getChanges();
+
+    activeController = new FixedSizePagingController<>(dataSource, config, dataStream, dataSource.size(), this::onChangesRejected);
+    activeController.onDataNeededAroundIndex(lastRequestedIndex);
+  }
+
+  /**
+   * The rejecting controller may have been replaced by the time this runs (e.g. by an invalidation
+   * that the data source couldn't describe), in which case the controller that replaced it already
+   * has a fresh view of the data, and shouldn't be thrown away.
+   */
+  private void onChangesRejected(@NonNull PagingController<?> controller) {
+    serializationExecutor.execute(() -> {
+      if (controller == activeController) {
+        reload();
+      }
+    });
+  }
 }
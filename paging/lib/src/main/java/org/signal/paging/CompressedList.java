@@ -1,48 +1,382 @@
 package org.signal.paging;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import java.util.AbstractList;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
- * A placeholder class for efficiently storing lists that are mostly empty space.
- * TODO [greyson][paging]
+ * A list that efficiently stores data that is mostly empty space (i.e. nulls), which is what a
+ * paged list looks like when only a few pages have been loaded.
+ *
+ * The list is split into a sequence of chunks. A chunk is either an empty run, which represents
+ * any number of nulls without storing them, or a materialized chunk of at most {@link #CHUNK_SIZE}
+ * items. Setting an item inside an empty run only materializes the chunk-aligned window around it.
+ *
+ * Copying a CompressedList shares all of its chunks without touching the source, and the copy
+ * copies a chunk lazily the first time it writes to it. That makes the copy-per-update pattern of
+ * the paging controllers proportional to the number of chunks rather than the number of items. The
+ * source still owns its chunks though, so like the paging controllers, callers must treat a list
+ * as read-only once it has been copied.
+ *
+ * Lookups remember the last chunk that was accessed, so sequential access (e.g. binding adjacent
+ * rows) is O(1). Random access is a binary search over the chunks. Inserts and removals only
+ * shift items within a single chunk, splitting it when it's full and dropping it when it's empty.
  */
 public class CompressedList<E> extends AbstractList<E> {
 
-  private final List<E> wrapped;
+  static final int CHUNK_SIZE = 64;
+
+  private Chunk[] chunks;
+  private int[]   chunkStarts;
+  private int     chunkCount;
+  private int     size;
+  private Object  owner;
+  private int     lastChunk;
 
   public CompressedList(@NonNull List<E> source) {
-    this.wrapped = new ArrayList<>(source);
+    if (source instanceof CompressedList) {
+      CompressedList<E> other = (CompressedList<E>) source;
+
+      this.chunks      = other.chunks.clone();
+      this.chunkStarts = other.chunkStarts.clone();
+      this.chunkCount  = other.chunkCount;
+      this.size        = other.size;
+      this.owner       = new Object();
+    } else {
+      this.chunks      = new Chunk[4];
+      this.chunkStarts = new int[4];
+      this.owner       = new Object();
+
+      for (E item : source) {
+        add(size, item);
+      }
+    }
   }
 
   public CompressedList(int totalSize) {
-    this.wrapped = new ArrayList<>(totalSize);
+    this.chunks      = new Chunk[4];
+    this.chunkStarts = new int[4];
+    this.owner       = new Object();
 
-    for (int i = 0; i < totalSize; i++) {
-      wrapped.add(null);
+    if (totalSize > 0) {
+      insertChunks(0, 0, Chunk.empty(owner, totalSize));
+      this.size = totalSize;
     }
   }
 
   @Override
   public int size() {
-    return wrapped.size();
+    return size;
   }
 
   @Override
   public E get(int index) {
-    return wrapped.get(index);
+    checkIndex(index, size);
+
+    int   chunkIndex = findChunk(index);
+    Chunk chunk      = chunks[chunkIndex];
+
+    if (chunk.items == null) {
+      return null;
+    }
+
+    //noinspection unchecked
+    return (E) chunk.items[index - chunkStarts[chunkIndex]];
   }
 
   @Override
   public E set(int globalIndex, E element) {
-    return wrapped.set(globalIndex, element);
+    checkIndex(globalIndex, size);
+
+    int   chunkIndex = findChunk(globalIndex);
+    Chunk chunk      = chunks[chunkIndex];
+
+    if (chunk.items == null) {
+      if (element == null) {
+        return null;
+      }
+
+      chunkIndex = materialize(chunkIndex, globalIndex - chunkStarts[chunkIndex]);
+    }
+
+    chunk = requireOwned(chunkIndex);
+
+    int offset = globalIndex - chunkStarts[chunkIndex];
+
+    //noinspection unchecked
+    E previous = (E) chunk.items[offset];
+    chunk.items[offset] = element;
+
+    return previous;
   }
 
   @Override
   public void add(int index, E element) {
-    wrapped.add(index, element);
+    checkIndex(index, size + 1);
+
+    modCount++;
+
+    if (chunkCount == 0) {
+      insertChunks(0, 0, element == null ? Chunk.empty(owner, 1) : Chunk.materialized(owner, element));
+      size++;
+      return;
+    }
+
+    int chunkIndex = index == size ? chunkCount - 1 : findChunk(index);
+    int offset     = index - chunkStarts[chunkIndex];
+    Chunk chunk    = chunks[chunkIndex];
+
+    if (chunk.items == null) {
+      if (element == null) {
+        chunk = requireOwned(chunkIndex);
+        chunk.size++;
+      } else if (offset == chunk.size) {
+        insertChunks(chunkIndex + 1, index, Chunk.materialized(owner, element));
+        size++;
+        return;
+      } else {
+        Chunk before = offset > 0 ? Chunk.empty(owner, offset) : null;
+        Chunk after  = Chunk.empty(owner, chunk.size - offset);
+
+        removeChunk(chunkIndex);
+
+        if (before != null) {
+          insertChunks(chunkIndex, index - offset, before, Chunk.materialized(owner, element), after);
+        } else {
+          insertChunks(chunkIndex, index, Chunk.materialized(owner, element), after);
+        }
+
+        shiftStarts(chunkIndex + (before != null ? 3 : 2), 1);
+        size++;
+        return;
+      }
+    } else {
+      if (chunk.size == CHUNK_SIZE && index == size) {
+        insertChunks(chunkCount, index, element == null ? Chunk.empty(owner, 1) : Chunk.materialized(owner, element));
+        size++;
+        return;
+      } else if (chunk.size == CHUNK_SIZE) {
+        splitFullChunk(chunkIndex);
+
+        if (offset > CHUNK_SIZE / 2) {
+          chunkIndex++;
+          offset -= CHUNK_SIZE / 2;
+        }
+      }
+
+      chunk = requireOwned(chunkIndex);
+      System.arraycopy(chunk.items, offset, chunk.items, offset + 1, chunk.size - offset);
+      chunk.items[offset] = element;
+      chunk.size++;
+    }
+
+    shiftStarts(chunkIndex + 1, 1);
+    size++;
+  }
+
+  @Override
+  public E remove(int index) {
+    checkIndex(index, size);
+
+    modCount++;
+
+    int   chunkIndex = findChunk(index);
+    int   offset     = index - chunkStarts[chunkIndex];
+    Chunk chunk      = requireOwned(chunkIndex);
+    E     removed    = null;
+
+    if (chunk.items != null) {
+      //noinspection unchecked
+      removed = (E) chunk.items[offset];
+
+      System.arraycopy(chunk.items, offset + 1, chunk.items, offset, chunk.size - offset - 1);
+      chunk.items[chunk.size - 1] = null;
+    }
+
+    chunk.size--;
+
+    if (chunk.size == 0) {
+      removeChunk(chunkIndex);
+      shiftStarts(chunkIndex, -1);
+    } else {
+      shiftStarts(chunkIndex + 1, -1);
+    }
+
+    size--;
+
+    return removed;
+  }
+
+  /**
+   * @return The number of chunks backing this list. Exposed for testing.
+   */
+  int getChunkCount() {
+    return chunkCount;
+  }
+
+  /**
+   * Replaces the empty run at {@code chunkIndex} with up to three chunks, such that the
+   * chunk-aligned window containing {@code offset} is materialized.
+   *
+   * @return The index of the newly-materialized chunk.
+   */
+  private int materialize(int chunkIndex, int offset) {
+    Chunk run         = chunks[chunkIndex];
+    int   runStart    = chunkStarts[chunkIndex];
+    int   windowStart = offset - (offset % CHUNK_SIZE);
+    int   windowEnd   = Math.min(run.size, windowStart + CHUNK_SIZE);
+
+    Chunk before = windowStart > 0 ? Chunk.empty(owner, windowStart) : null;
+    Chunk window = new Chunk(owner, windowEnd - windowStart, new Object[CHUNK_SIZE]);
+    Chunk after  = windowEnd < run.size ? Chunk.empty(owner, run.size - windowEnd) : null;
+
+    removeChunk(chunkIndex);
+
+    int insertAt = chunkIndex;
+
+    if (before != null) {
+      insertChunks(insertAt++, runStart, before);
+    }
+
+    int windowIndex = insertAt;
+    insertChunks(insertAt++, runStart + windowStart, window);
+
+    if (after != null) {
+      insertChunks(insertAt, runStart + windowEnd, after);
+    }
+
+    return windowIndex;
+  }
+
+  private void splitFullChunk(int chunkIndex) {
+    Chunk full  = requireOwned(chunkIndex);
+    int   half  = full.size / 2;
+    Chunk right = new Chunk(owner, full.size - half, new Object[CHUNK_SIZE]);
+
+    System.arraycopy(full.items, half, right.items, 0, right.size);
+    Arrays.fill(full.items, half, full.size, null);
+    full.size = half;
+
+    insertChunks(chunkIndex + 1, chunkStarts[chunkIndex] + half, right);
+  }
+
+  /**
+   * Makes sure the chunk at the given index belongs to this list, copying it if it's shared.
+   */
+  private @NonNull Chunk requireOwned(int chunkIndex) {
+    Chunk chunk = chunks[chunkIndex];
+
+    if (chunk.owner != owner) {
+      chunk = new Chunk(owner, chunk.size, chunk.items != null ? chunk.items.clone() : null);
+      chunks[chunkIndex] = chunk;
+    }
+
+    return chunk;
+  }
+
+  /**
+   * Inserts chunks at the given position, with the first starting at {@code start}. Does not
+   * shift the starts of the chunks that come after them.
+   */
+  private void insertChunks(int position, int start, @NonNull Chunk... inserted) {
+    ensureChunkCapacity(chunkCount + inserted.length);
+
+    System.arraycopy(chunks, position, chunks, position + inserted.length, chunkCount - position);
+    System.arraycopy(chunkStarts, position, chunkStarts, position + inserted.length, chunkCount - position);
+
+    for (int i = 0; i < inserted.length; i++) {
+      chunks[position + i]      = inserted[i];
+      chunkStarts[position + i] = start;
+      start += inserted[i].size;
+    }
+
+    chunkCount += inserted.length;
+  }
+
+  private void removeChunk(int position) {
+    System.arraycopy(chunks, position + 1, chunks, position, chunkCount - position - 1);
+    System.arraycopy(chunkStarts, position + 1, chunkStarts, position, chunkCount - position - 1);
+
+    chunkCount--;
+    chunks[chunkCount] = null;
+  }
+
+  private void shiftStarts(int fromChunk, int delta) {
+    for (int i = fromChunk; i < chunkCount; i++) {
+      chunkStarts[i] += delta;
+    }
+  }
+
+  private void ensureChunkCapacity(int required) {
+    if (required > chunks.length) {
+      int capacity = Math.max(required, chunks.length * 2);
+
+      chunks      = Arrays.copyOf(chunks, capacity);
+      chunkStarts = Arrays.copyOf(chunkStarts, capacity);
+    }
+  }
+
+  /**
+   * Finds the chunk containing the index, checking the most recently used chunk (and its
+   * successor) first, so that sequential access doesn't need to search.
+   */
+  private int findChunk(int index) {
+    int last = lastChunk;
+
+    if (last < chunkCount && chunkStarts[last] <= index) {
+      if (index < chunkStarts[last] + chunks[last].size) {
+        return last;
+      } else if (last + 1 < chunkCount && index < chunkStarts[last + 1] + chunks[last + 1].size) {
+        lastChunk = last + 1;
+        return last + 1;
+      }
+    }
+
+    int low  = 0;
+    int high = chunkCount - 1;
+
+    while (low < high) {
+      int mid = (low + high + 1) >>> 1;
+
+      if (chunkStarts[mid] <= index) {
+        low = mid;
+      } else {
+        high = mid - 1;
+      }
+    }
+
+    lastChunk = low;
+    return low;
+  }
+
+  private static void checkIndex(int index, int bound) {
+    if (index < 0 || index >= bound) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + bound);
+    }
+  }
+
+  private static final class Chunk {
+    private final Object   owner;
+    private       int      size;
+    private final Object[] items;
+
+    private Chunk(@NonNull Object owner, int size, @Nullable Object[] items) {
+      this.owner = owner;
+      this.size  = size;
+      this.items = items;
+    }
+
+    static @NonNull Chunk empty(@NonNull Object owner, int size) {
+      return new Chunk(owner, size, null);
+    }
+
+    static @NonNull Chunk materialized(@NonNull Object owner, @NonNull Object item) {
+      Object[] items = new Object[CHUNK_SIZE];
+      items[0] = item;
+      return new Chunk(owner, 1, items);
+    }
   }
 }
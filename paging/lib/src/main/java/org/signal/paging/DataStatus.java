@@ -76,6 +76,45 @@ class DataStatus {
     this.size = size + 1;
   }
 
+  /**
+   * Inserts {@code count} unmarked positions starting at {@code position}, shifting everything
+   * after it.
+   */
+  void insertUnmarkedRange(int position, int count) {
+    if (position < 0 || position > size || count < 0) {
+      throw new IndexOutOfBoundsException();
+    }
+
+    BitSet tail = state.get(position, size);
+
+    state.clear(position, size + count);
+
+    for (int i = tail.nextSetBit(0); i >= 0; i = tail.nextSetBit(i + 1)) {
+      state.set(position + count + i);
+    }
+
+    this.size = size + count;
+  }
+
+  /**
+   * Removes {@code count} positions starting at {@code position}, shifting everything after it.
+   */
+  void removeRange(int position, int count) {
+    if (position < 0 || count < 0 || position + count > size) {
+      throw new IndexOutOfBoundsException();
+    }
+
+    BitSet tail = state.get(position + count, size);
+
+    state.clear(position, size);
+
+    for (int i = tail.nextSetBit(0); i >= 0; i = tail.nextSetBit(i + 1)) {
+      state.set(position + i);
+    }
+
+    this.size = size - count;
+  }
+
   int size() {
     return size;
   }
@@ -8,6 +8,7 @@ import org.signal.core.util.logging.Log;
 
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Executor;
@@ -32,6 +33,7 @@ class FixedSizePagingController<Key, Data> implements PagingController<Key> {
   private final DataStream<Data>            dataStream;
   private final DataStatus                  loadState;
   private final Map<Key, Integer>           keyToPosition;
+  private final OnChangesRejectedListener   onChangesRejected;
 
   private List<Data> data;
 
@@ -40,14 +42,16 @@ class FixedSizePagingController<Key, Data> implements PagingController<Key> {
   FixedSizePagingController(@NonNull PagedDataSource<Key, Data> dataSource,
                             @NonNull PagingConfig config,
                             @NonNull DataStream<Data> dataStream,
-                            int size)
+                            int size,
+                            @NonNull OnChangesRejectedListener onChangesRejected)
   {
-    this.dataSource    = dataSource;
-    this.config        = config;
-    this.dataStream    = dataStream;
-    this.loadState     = DataStatus.obtain(size);
-    this.data          = new CompressedList<>(loadState.size());
-    this.keyToPosition = new HashMap<>();
+    this.dataSource        = dataSource;
+    this.config            = config;
+    this.dataStream        = dataStream;
+    this.loadState         = DataStatus.obtain(size);
+    this.data              = new CompressedList<>(loadState.size());
+    this.keyToPosition     = new HashMap<>();
+    this.onChangesRejected = onChangesRejected;
 
     if (DEBUG) Log.d(TAG, "[Constructor] Creating with size " + size + " (loadState.size() = " + loadState.size() + ")");
   }
@@ -231,6 +235,171 @@ class FixedSizePagingController<Key, Data> implements PagingController<Key> {
     });
   }
 
+  /**
+   * Like {@link #onDataNeededAroundIndex(int)}, we assume this is called on the same thread as the
+   * other interface methods. Structural changes are applied to our {@code loadState} right away, so
+   * that any data requested after this call is requested at the new positions. The data itself is
+   * then patched on the fetch executor, which runs it before any of those later requests.
+   *
+   * If the changes don't line up with the data we have, we stop publishing and call
+   * {@code onChangesRejected} so that we can be replaced with a controller that loads everything
+   * from scratch.
+   */
+  @Override
+  public void onDataChanged(@NonNull PagedDataChanges<Key> changes) {
+    if (DEBUG) Log.d(TAG, buildDataChangedLog(changes, ""));
+
+    if (invalidated) {
+      Log.w(TAG, buildDataChangedLog(changes, "Invalidated! At very beginning."));
+      return;
+    }
+
+    if (changes.isEmpty()) {
+      return;
+    }
+
+    synchronized (loadState) {
+      try {
+        for (PagedDataChanges.RangeChange change : changes.getRangeChanges()) {
+          if (change.isInsert()) {
+            loadState.insertUnmarkedRange(change.getPosition(), change.getCount());
+
+            // Small inserts are loaded along with the rest of the changes, rather than waiting for them to be requested
+            if (change.getCount() <= config.pageSize()) {
+              loadState.markRange(change.getPosition(), change.getPosition() + change.getCount());
+            }
+          } else {
+            loadState.removeRange(change.getPosition(), change.getCount());
+          }
+        }
+      } catch (IndexOutOfBoundsException e) {
+        Log.w(TAG, buildDataChangedLog(changes, "Changes are out of bounds! Falling back to a full reload."), e);
+        rejectChanges();
+        return;
+      }
+    }
+
+    FETCH_EXECUTOR.execute(() -> {
+      if (invalidated) {
+        Log.w(TAG, buildDataChangedLog(changes, "Invalidated! At beginning of change task."));
+        return;
+      }
+
+      List<Data> updatedList = new CompressedList<>(data);
+
+      for (PagedDataChanges.RangeChange change : changes.getRangeChanges()) {
+        if (change.isInsert()) {
+          for (int i = 0; i < change.getCount(); i++) {
+            updatedList.add(change.getPosition(), null);
+          }
+        } else {
+          for (int i = 0; i < change.getCount(); i++) {
+            updatedList.remove(change.getPosition());
+          }
+        }
+
+        shiftKeyToPositionMap(keyToPosition, change);
+      }
+
+      if (!changes.getRangeChanges().isEmpty() && dataSource.size() != updatedList.size()) {
+        Log.w(TAG, buildDataChangedLog(changes, "Expected a size of " + updatedList.size() + ", but the data source has a size of " + dataSource.size() + "! Falling back to a full reload."));
+        rejectChanges();
+        return;
+      }
+
+      for (PagedDataChanges.RangeChange change : changes.getRangeChanges()) {
+        if (!change.isInsert() || change.getCount() > config.pageSize()) {
+          continue;
+        }
+
+        List<Data> loaded = dataSource.load(change.getPosition(), change.getCount(), () -> invalidated);
+
+        if (invalidated) {
+          Log.w(TAG, buildDataChangedLog(changes, "Invalidated! Just after inserted data was loaded."));
+          return;
+        }
+
+        // We've already marked the whole range as loaded, and can't tell which positions to unmark now that later changes may have moved them
+        if (loaded.size() < change.getCount()) {
+          Log.w(TAG, buildDataChangedLog(changes, "Only loaded " + loaded.size() + " of the " + change.getCount() + " items inserted at " + change.getPosition() + "! Falling back to a full reload."));
+          rejectChanges();
+          return;
+        }
+
+        for (int i = 0, len = Math.min(loaded.size(), updatedList.size() - change.getPosition()); i < len; i++) {
+          int  position = change.getPosition() + i;
+          Data item     = loaded.get(i);
+
+          updatedList.set(position, item);
+          keyToPosition.put(dataSource.getKey(item), position);
+        }
+      }
+
+      for (Key key : changes.getChangedKeys()) {
+        Integer position = keyToPosition.get(key);
+
+        if (position == null) {
+          // Not loaded, so it'll be up-to-date whenever it is
+          continue;
+        }
+
+        Data item = dataSource.load(key);
+
+        if (invalidated) {
+          Log.w(TAG, buildDataChangedLog(changes, "Invalidated! Just after changed item was loaded for position " + position));
+          return;
+        }
+
+        if (item == null) {
+          Log.w(TAG, "Notified of key " + key + " but the loaded item was null!");
+          continue;
+        }
+
+        updatedList.set(position, item);
+      }
+
+      data = updatedList;
+      dataStream.next(updatedList);
+
+      if (DEBUG) Log.d(TAG, buildDataChangedLog(changes, "Published updated data"));
+    });
+  }
+
+  /**
+   * Stops this controller from publishing anything else, since its data can no longer be trusted,
+   * and asks to be replaced.
+   */
+  private void rejectChanges() {
+    invalidated = true;
+    onChangesRejected.onChangesRejected(this);
+  }
+
+  /**
+   * Updates the positions in the map to account for a single inserted or removed range, without
+   * having to walk the whole data list.
+   */
+  private void shiftKeyToPositionMap(@NonNull Map<Key, Integer> map, @NonNull PagedDataChanges.RangeChange change) {
+    int start = change.getPosition();
+    int count = change.getCount();
+
+    Iterator<Map.Entry<Key, Integer>> iterator = map.entrySet().iterator();
+
+    while (iterator.hasNext()) {
+      Map.Entry<Key, Integer> entry    = iterator.next();
+      int                     position = entry.getValue();
+
+      if (change.isInsert()) {
+        if (position >= start) {
+          entry.setValue(position + count);
+        }
+      } else if (position >= start + count) {
+        entry.setValue(position - count);
+      } else if (position >= start) {
+        iterator.remove();
+      }
+    }
+  }
+
   private void rebuildKeyToPositionMap(@NonNull Map<Key, Integer> map, @NonNull List<Data> dataList, @NonNull PagedDataSource<Key, Data> dataSource) {
     map.clear();
 
@@ -242,6 +411,14 @@ class FixedSizePagingController<Key, Data> implements PagingController<Key> {
     }
   }
 
+  interface OnChangesRejectedListener {
+    /**
+     * Called when {@code controller} was given changes that didn't line up with its data, and
+     * needs to be replaced. May be called on any thread.
+     */
+    void onChangesRejected(@NonNull PagingController<?> controller);
+  }
+
   private String buildDataNeededLog(int aroundIndex, String message) {
     return "[onDataNeededAroundIndex(" + aroundIndex + "), size: " + loadState.size() + "] " + message;
   }
@@ -250,6 +427,10 @@ class FixedSizePagingController<Key, Data> implements PagingController<Key> {
     return "[onDataItemInserted(" + key + ", " + position + "), size: " + loadState.size() + "] " + message;
   }
 
+  private String buildDataChangedLog(PagedDataChanges<Key> changes, String message) {
+    return "[onDataChanged(changed: " + changes.getChangedKeys().size() + ", ranges: " + changes.getRangeChanges() + "), size: " + loadState.size() + "] " + message;
+  }
+
   private String buildItemChangedLog(Key key, String message) {
     return "[onDataItemChanged(" + key + "), size: " + loadState.size() + "] " + message;
   }
@@ -0,0 +1,236 @@
+package org.signal.paging;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Describes a targeted set of changes to a data set, so that a controller can patch the affected
+ * items rather than reloading everything.
+ *
+ * Inserted and removed ranges are applied in the order they were added, and each position is
+ * relative to the data set as it exists after the previous ranges have been applied. Changed keys
+ * are identified by key rather than position, and so are reloaded after all ranges are applied.
+ */
+public final class PagedDataChanges<Key> {
+
+  private final Set<Key>          changedKeys;
+  private final List<RangeChange> rangeChanges;
+
+  private PagedDataChanges(@NonNull Builder<Key> builder) {
+    this.changedKeys  = Collections.unmodifiableSet(new LinkedHashSet<>(builder.changedKeys));
+    this.rangeChanges = Collections.unmodifiableList(new ArrayList<>(builder.rangeChanges));
+  }
+
+  /**
+   * Works out the inserted and removed ranges that turn one ordering of keys into another, so that
+   * a data source that can cheaply list its keys doesn't have to track its changes as they happen.
+   * Items that moved are treated as removed from their old position and inserted at their new one,
+   * keeping as many items in place as possible. Keys must be unique within each list.
+   *
+   * @return A builder with the ranges added, so that changed keys can be added as well.
+   */
+  public static <Key> @NonNull Builder<Key> diff(@NonNull List<Key> before, @NonNull List<Key> after) {
+    Map<Key, Integer> afterPositions = new HashMap<>(after.size());
+
+    for (int i = 0, len = after.size(); i < len; i++) {
+      afterPositions.put(after.get(i), i);
+    }
+
+    int[] beforeToAfter = new int[before.size()];
+
+    for (int i = 0, len = before.size(); i < len; i++) {
+      Integer position = afterPositions.get(before.get(i));
+      beforeToAfter[i] = position != null ? position : -1;
+    }
+
+    boolean[]    kept    = findLongestIncreasingRun(beforeToAfter);
+    boolean[]    present = new boolean[after.size()];
+    Builder<Key> builder = new Builder<>();
+
+    // Removals are added from the end, so that each position is still the same as in the original list
+    for (int i = before.size() - 1; i >= 0; ) {
+      if (kept[i]) {
+        present[beforeToAfter[i]] = true;
+        i--;
+        continue;
+      }
+
+      int end = i;
+      while (i >= 0 && !kept[i]) {
+        i--;
+      }
+
+      builder.removed(i + 1, end - i);
+    }
+
+    // Insertions are added from the start, so that everything before each one is already in place
+    for (int i = 0, len = after.size(); i < len; ) {
+      if (present[i]) {
+        i++;
+        continue;
+      }
+
+      int start = i;
+      while (i < len && !present[i]) {
+        i++;
+      }
+
+      builder.inserted(start, i - start);
+    }
+
+    return builder;
+  }
+
+  /**
+   * Finds the longest strictly increasing subsequence of the non-negative values.
+   *
+   * @return Whether each index is part of that subsequence.
+   */
+  private static boolean[] findLongestIncreasingRun(int[] values) {
+    int[] tails    = new int[values.length];
+    int[] previous = new int[values.length];
+    int   length   = 0;
+
+    for (int i = 0; i < values.length; i++) {
+      if (values[i] < 0) {
+        continue;
+      }
+
+      int low  = 0;
+      int high = length;
+
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+
+        if (values[tails[mid]] < values[i]) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+
+      previous[i] = low > 0 ? tails[low - 1] : -1;
+      tails[low]  = i;
+
+      if (low == length) {
+        length++;
+      }
+    }
+
+    boolean[] result = new boolean[values.length];
+
+    for (int i = length > 0 ? tails[length - 1] : -1; i >= 0; i = previous[i]) {
+      result[i] = true;
+    }
+
+    return result;
+  }
+
+  /**
+   * @return The keys of items whose contents changed, but whose positions did not.
+   */
+  @NonNull Set<Key> getChangedKeys() {
+    return changedKeys;
+  }
+
+  /**
+   * @return The inserted and removed ranges, in the order they should be applied.
+   */
+  @NonNull List<RangeChange> getRangeChanges() {
+    return rangeChanges;
+  }
+
+  /**
+   * @return The change in the size of the data set after all ranges are applied.
+   */
+  int getSizeDelta() {
+    int delta = 0;
+
+    for (RangeChange change : rangeChanges) {
+      delta += change.isInsert() ? change.getCount() : -change.getCount();
+    }
+
+    return delta;
+  }
+
+  boolean isEmpty() {
+    return changedKeys.isEmpty() && rangeChanges.isEmpty();
+  }
+
+  static final class RangeChange {
+    private final boolean insert;
+    private final int     position;
+    private final int     count;
+
+    private RangeChange(boolean insert, int position, int count) {
+      this.insert   = insert;
+      this.position = position;
+      this.count    = count;
+    }
+
+    boolean isInsert() {
+      return insert;
+    }
+
+    int getPosition() {
+      return position;
+    }
+
+    int getCount() {
+      return count;
+    }
+
+    @Override
+    public @NonNull String toString() {
+      return (insert ? "inserted(" : "removed(") + position + ", " + count + ")";
+    }
+  }
+
+  public static final class Builder<Key> {
+    private final Set<Key>          changedKeys  = new LinkedHashSet<>();
+    private final List<RangeChange> rangeChanges = new ArrayList<>();
+
+    /**
+     * The item with the given key has changed, but has not moved.
+     */
+    public @NonNull Builder<Key> changed(@NonNull Key key) {
+      changedKeys.add(key);
+      return this;
+    }
+
+    /**
+     * {@code count} items were inserted, with the first one now at {@code position}.
+     */
+    public @NonNull Builder<Key> inserted(int position, int count) {
+      if (position < 0 || count < 1) {
+        throw new IllegalArgumentException("Invalid insert! position: " + position + ", count: " + count);
+      }
+
+      rangeChanges.add(new RangeChange(true, position, count));
+      return this;
+    }
+
+    /**
+     * {@code count} items that started at {@code position} were removed.
+     */
+    public @NonNull Builder<Key> removed(int position, int count) {
+      if (position < 0 || count < 1) {
+        throw new IllegalArgumentException("Invalid removal! position: " + position + ", count: " + count);
+      }
+
+      rangeChanges.add(new RangeChange(false, position, count));
+      return this;
+    }
+
+    public @NonNull PagedDataChanges<Key> build() {
+      return new PagedDataChanges<>(this);
+    }
+  }
+}
@@ -33,6 +33,19 @@ public interface PagedDataSource<Key, Data> {
   @WorkerThread
   @NonNull Key getKey(@NonNull Data data);
 
+  /**
+   * Called whenever the data set is invalidated. If you know exactly what changed since the last
+   * time this was called (or since the data was first loaded), you can describe it here, and only
+   * the affected items will be reloaded.
+   *
+   * @return The changes since the last invalidation, or null if they're unknown and everything
+   *         should be reloaded.
+   */
+  @WorkerThread
+  default @Nullable PagedDataChanges<Key> getChanges() {
+    return null;
+  }
+
   interface CancellationSignal {
     /**
      * @return True if the operation has been canceled, otherwise false.
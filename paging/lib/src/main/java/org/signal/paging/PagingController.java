@@ -1,5 +1,6 @@
 package org.signal.paging;
 
+import androidx.annotation.NonNull;
 
 public interface PagingController<Key> {
   int POSITION_END = -1;
@@ -8,4 +9,5 @@ public interface PagingController<Key> {
   void onDataInvalidated();
   void onDataItemChanged(Key key);
   void onDataItemInserted(Key key, int position);
+  void onDataChanged(@NonNull PagedDataChanges<Key> changes);
 }
@@ -0,0 +1,236 @@
+package org.signal.paging;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class BufferedPagingControllerTest {
+
+  private static final PagingConfig CONFIG = new PagingConfig.Builder().setPageSize(10).setBufferPages(1).build();
+
+  private TestDataSource                           dataSource;
+  private BlockingQueue<List<String>>              published;
+  private BufferedPagingController<String, String> subject;
+
+  @Before
+  public void setUp() throws InterruptedException {
+    dataSource = new TestDataSource(Arrays.asList("a", "b", "c", "d", "e", "f", "g", "h", "i", "j"));
+    published  = new LinkedBlockingQueue<>();
+    subject    = new BufferedPagingController<>(dataSource, CONFIG, data -> published.add(new ArrayList<>(data)));
+
+    awaitData(dataSource.snapshot());
+    dataSource.resetCounts();
+  }
+
+  @Test
+  public void construction_drainsChangesFromBeforeTheFirstLoad() throws InterruptedException {
+    dataSource.setChanges(new PagedDataChanges.Builder<String>().inserted(0, 1).build());
+
+    new BufferedPagingController<>(dataSource, CONFIG, data -> published.add(new ArrayList<>(data)));
+    awaitData(dataSource.snapshot());
+
+    assertNull(dataSource.getPendingChanges());
+  }
+
+  @Test
+  public void onDataInvalidated_withInsert_onlyLoadsInsertedItems() throws InterruptedException {
+    dataSource.insert(2, "x");
+    dataSource.setChanges(new PagedDataChanges.Builder<String>().inserted(2, 1).build());
+
+    subject.onDataInvalidated();
+
+    awaitData(Arrays.asList("a", "b", "x", "c", "d", "e", "f", "g", "h", "i", "j"));
+    assertEquals(Collections.singletonList("load(2, 1)"), dataSource.getRangeLoads());
+  }
+
+  @Test
+  public void onDataInvalidated_withRemoval_loadsNothing() throws InterruptedException {
+    dataSource.remove(3, 2);
+    dataSource.setChanges(new PagedDataChanges.Builder<String>().removed(3, 2).build());
+
+    subject.onDataInvalidated();
+
+    awaitData(Arrays.asList("a", "b", "c", "f", "g", "h", "i", "j"));
+    assertEquals(Collections.emptyList(), dataSource.getRangeLoads());
+  }
+
+  @Test
+  public void onDataInvalidated_withMoveAndChange_appliesBoth() throws InterruptedException {
+    dataSource.remove(4, 1);
+    dataSource.insert(0, "e");
+    dataSource.replace("h", "h2");
+    dataSource.setChanges(PagedDataChanges.diff(Arrays.asList("a", "b", "c", "d", "e", "f", "g", "h", "i", "j"),
+                                                Arrays.asList("e", "a", "b", "c", "d", "f", "g", "h", "i", "j"))
+                                          .changed("h")
+                                          .build());
+
+    subject.onDataInvalidated();
+
+    awaitData(Arrays.asList("e", "a", "b", "c", "d", "f", "g", "h2", "i", "j"));
+    assertEquals(Collections.singletonList("load(0, 1)"), dataSource.getRangeLoads());
+  }
+
+  @Test
+  public void onDataInvalidated_withWrongSize_fallsBackToFullReload() throws InterruptedException {
+    dataSource.insert(0, "x");
+    dataSource.insert(0, "y");
+    dataSource.setChanges(new PagedDataChanges.Builder<String>().inserted(0, 1).build());
+
+    subject.onDataInvalidated();
+
+    awaitData(dataSource.snapshot());
+    assertEquals(Collections.singletonList("load(0, 12)"), dataSource.getRangeLoads());
+  }
+
+  @Test
+  public void onDataInvalidated_withShortLoadOfInsert_fallsBackToFullReload() throws InterruptedException {
+    dataSource.insert(5, "x");
+    dataSource.setChanges(new PagedDataChanges.Builder<String>().inserted(5, 1).build());
+    dataSource.shortenNextLoad();
+
+    subject.onDataInvalidated();
+
+    awaitData(Arrays.asList("a", "b", "c", "d", "e", "x", "f", "g", "h", "i", "j"));
+    assertEquals(Arrays.asList("load(5, 1)", "load(0, 11)"), dataSource.getRangeLoads());
+  }
+
+  @Test
+  public void onDataInvalidated_withUnknownChanges_reloads() throws InterruptedException {
+    dataSource.remove(0, 1);
+
+    subject.onDataInvalidated();
+
+    awaitData(dataSource.snapshot());
+    assertEquals(Collections.singletonList("load(0, 9)"), dataSource.getRangeLoads());
+  }
+
+  /**
+   * Waits for the controller to publish the expected data, skipping over anything published on
+   * the way there.
+   */
+  private void awaitData(@NonNull List<String> expected) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+    List<String> last = null;
+
+    while (System.currentTimeMillis() < deadline) {
+      List<String> data = published.poll(50, TimeUnit.MILLISECONDS);
+
+      if (data != null) {
+        last = data;
+      }
+
+      if (expected.equals(last) && published.isEmpty()) {
+        return;
+      }
+    }
+
+    fail("Expected " + expected + ", but the last published data was " + last);
+  }
+
+  private static final class TestDataSource implements PagedDataSource<String, String> {
+
+    private final List<String> items;
+    private final List<String> rangeLoads = new ArrayList<>();
+
+    private PagedDataChanges<String> changes;
+    private boolean                  shortenNextLoad;
+
+    TestDataSource(@NonNull List<String> items) {
+      this.items = new ArrayList<>(items);
+    }
+
+    @Override
+    public synchronized int size() {
+      return items.size();
+    }
+
+    @Override
+    public synchronized @NonNull List<String> load(int start, int length, @NonNull CancellationSignal cancellationSignal) {
+      rangeLoads.add("load(" + start + ", " + length + ")");
+
+      if (shortenNextLoad) {
+        shortenNextLoad = false;
+        return Collections.emptyList();
+      }
+
+      return new ArrayList<>(items.subList(start, Math.min(items.size(), start + length)));
+    }
+
+    @Override
+    public synchronized @Nullable String load(String key) {
+      for (String item : items) {
+        if (getKey(item).equals(key)) {
+          return item;
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public @NonNull String getKey(@NonNull String item) {
+      return item.substring(0, 1);
+    }
+
+    @Override
+    public synchronized @Nullable PagedDataChanges<String> getChanges() {
+      PagedDataChanges<String> result = changes;
+      changes = null;
+      return result;
+    }
+
+    synchronized void setChanges(@NonNull PagedDataChanges<String> changes) {
+      this.changes = changes;
+    }
+
+    synchronized @Nullable PagedDataChanges<String> getPendingChanges() {
+      return changes;
+    }
+
+    synchronized void insert(int position, @NonNull String item) {
+      items.add(position, item);
+    }
+
+    synchronized void remove(int position, int count) {
+      items.subList(position, position + count).clear();
+    }
+
+    synchronized void replace(@NonNull String before, @NonNull String after) {
+      items.set(items.indexOf(before), after);
+    }
+
+    synchronized void shortenNextLoad() {
+      shortenNextLoad = true;
+    }
+
+    synchronized @NonNull List<String> snapshot() {
+      return new ArrayList<>(items);
+    }
+
+    synchronized @NonNull List<String> getRangeLoads() {
+      return new ArrayList<>(rangeLoads);
+    }
+
+    synchronized void resetCounts() {
+      rangeLoads.clear();
+    }
+  }
+}
@@ -0,0 +1,251 @@
+package org.signal.paging;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CompressedListTest {
+
+  @Test
+  public void totalSize_allNull() {
+    CompressedList<String> subject = new CompressedList<>(1_000_000);
+
+    assertEquals(1_000_000, subject.size());
+    assertNull(subject.get(0));
+    assertNull(subject.get(500_000));
+    assertNull(subject.get(999_999));
+    assertEquals(1, subject.getChunkCount());
+  }
+
+  @Test
+  public void set_onlyMaterializesSurroundingChunk() {
+    CompressedList<String> subject = new CompressedList<>(1_000_000);
+
+    subject.set(500_000, "a");
+
+    assertEquals("a", subject.get(500_000));
+    assertNull(subject.get(499_999));
+    assertNull(subject.get(500_001));
+    assertEquals(3, subject.getChunkCount());
+  }
+
+  @Test
+  public void set_null_onEmptyRun_doesNotMaterialize() {
+    CompressedList<String> subject = new CompressedList<>(1000);
+
+    assertNull(subject.set(10, null));
+    assertEquals(1, subject.getChunkCount());
+  }
+
+  @Test
+  public void set_returnsPrevious() {
+    CompressedList<String> subject = new CompressedList<>(10);
+
+    assertNull(subject.set(3, "a"));
+    assertEquals("a", subject.set(3, "b"));
+    assertEquals("b", subject.get(3));
+  }
+
+  @Test
+  public void add_atFront_shiftsEverything() {
+    CompressedList<String> subject = new CompressedList<>(1000);
+    subject.set(999, "last");
+
+    subject.add(0, "first");
+
+    assertEquals(1001, subject.size());
+    assertEquals("first", subject.get(0));
+    assertNull(subject.get(999));
+    assertEquals("last", subject.get(1000));
+  }
+
+  @Test
+  public void add_intoEmptyRun() {
+    CompressedList<String> subject = new CompressedList<>(1000);
+
+    subject.add(500, "a");
+
+    assertEquals(1001, subject.size());
+    assertNull(subject.get(499));
+    assertEquals("a", subject.get(500));
+    assertNull(subject.get(501));
+    assertNull(subject.get(1000));
+  }
+
+  @Test
+  public void add_toEmptyList() {
+    CompressedList<String> subject = new CompressedList<>(0);
+
+    subject.add("a");
+    subject.add(null);
+    subject.add("b");
+
+    assertEquals(Arrays.asList("a", null, "b"), subject);
+  }
+
+  @Test
+  public void remove_fromMaterializedAndEmptyChunks() {
+    CompressedList<String> subject = new CompressedList<>(1000);
+    subject.set(10, "a");
+    subject.set(11, "b");
+
+    assertEquals("a", subject.remove(10));
+    assertNull(subject.remove(500));
+
+    assertEquals(998, subject.size());
+    assertEquals("b", subject.get(10));
+    assertNull(subject.get(11));
+  }
+
+  @Test
+  public void remove_lastItemInChunk_dropsChunk() {
+    CompressedList<String> subject = new CompressedList<>(0);
+    subject.add("a");
+
+    subject.remove(0);
+
+    assertEquals(0, subject.size());
+    assertEquals(0, subject.getChunkCount());
+  }
+
+  @Test
+  public void copy_removesDoNotAffectSource() {
+    CompressedList<String> source = new CompressedList<>(100);
+    source.set(0, "a");
+
+    CompressedList<String> copy = new CompressedList<>(source);
+    copy.remove(0);
+
+    assertEquals(100, source.size());
+    assertEquals("a", source.get(0));
+    assertEquals(99, copy.size());
+    assertNull(copy.get(0));
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void get_negativeThrows() {
+    new CompressedList<String>(10).get(-1);
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void get_sizeThrows() {
+    new CompressedList<String>(10).get(10);
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void add_largerThanSizePlusOneThrows() {
+    new CompressedList<String>(10).add(11, "a");
+  }
+
+  @Test
+  public void copy_fromList() {
+    List<String> source = new ArrayList<>();
+    for (int i = 0; i < 500; i++) {
+      source.add(i % 7 == 0 ? null : String.valueOf(i));
+    }
+
+    assertEquals(source, new CompressedList<>(source));
+  }
+
+  @Test
+  public void copy_writesDoNotAffectSource() {
+    CompressedList<String> source = new CompressedList<>(1000);
+    source.set(10, "a");
+
+    CompressedList<String> copy = new CompressedList<>(source);
+    copy.set(10, "b");
+    copy.set(11, "c");
+    copy.add(0, "d");
+
+    assertEquals(1000, source.size());
+    assertEquals("a", source.get(10));
+    assertNull(source.get(11));
+    assertNull(source.get(0));
+
+    assertEquals(1001, copy.size());
+    assertEquals("d", copy.get(0));
+    assertEquals("b", copy.get(11));
+    assertEquals("c", copy.get(12));
+  }
+
+  @Test
+  public void copy_twiceFromSameSource_copiesAreIndependent() {
+    CompressedList<String> source = new CompressedList<>(1000);
+    source.set(10, "a");
+
+    CompressedList<String> first  = new CompressedList<>(source);
+    CompressedList<String> second = new CompressedList<>(source);
+
+    first.set(10, "b");
+    first.remove(0);
+    second.set(11, "c");
+    second.add(5, "d");
+
+    assertEquals(1000, source.size());
+    assertEquals("a", source.get(10));
+    assertNull(source.get(11));
+
+    assertEquals(999, first.size());
+    assertEquals("b", first.get(9));
+    assertNull(first.get(10));
+
+    assertEquals(1001, second.size());
+    assertEquals("d", second.get(5));
+    assertEquals("a", second.get(11));
+    assertEquals("c", second.get(12));
+  }
+
+  @Test
+  public void copy_ofCopy_writesDoNotAffectEarlierLists() {
+    CompressedList<String> source = new CompressedList<>(1000);
+    source.set(10, "a");
+
+    CompressedList<String> first  = new CompressedList<>(source);
+    CompressedList<String> second = new CompressedList<>(first);
+    second.set(10, "b");
+
+    assertEquals("a", source.get(10));
+    assertEquals("a", first.get(10));
+    assertEquals("b", second.get(10));
+  }
+
+  @Test
+  public void randomOperations_matchArrayList() {
+    Random                 random   = new Random(42);
+    List<Integer>          expected = new ArrayList<>(Collections.nCopies(5_000, null));
+    CompressedList<Integer> subject = new CompressedList<>(5_000);
+
+    for (int i = 0; i < 20_000; i++) {
+      int     operation = random.nextInt(12);
+      Integer value     = random.nextInt(4) == 0 ? null : i;
+
+      if (operation < 5) {
+        int index = random.nextInt(expected.size());
+        assertEquals(expected.set(index, value), subject.set(index, value));
+      } else if (operation < 8) {
+        int index = random.nextInt(expected.size() + 1);
+        expected.add(index, value);
+        subject.add(index, value);
+      } else if (operation < 10) {
+        int index = random.nextInt(expected.size());
+        assertEquals(expected.remove(index), subject.remove(index));
+      } else {
+        subject = new CompressedList<>(subject);
+      }
+
+      int index = random.nextInt(expected.size());
+      assertEquals(expected.get(index), subject.get(index));
+    }
+
+    assertEquals(expected, subject);
+    assertTrue(subject.getChunkCount() < expected.size() / 2);
+  }
+}
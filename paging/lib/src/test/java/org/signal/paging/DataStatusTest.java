@@ -55,4 +55,54 @@ public class DataStatusTest {
     DataStatus subject = DataStatus.obtain(0);
     subject.insertState(2, true);
   }
+
+  @Test
+  public void insertUnmarkedRange_shiftsMarkedPositions() {
+    DataStatus subject = DataStatus.obtain(4);
+    subject.mark(0);
+    subject.mark(2);
+
+    subject.insertUnmarkedRange(1, 2);
+
+    assertEquals(6, subject.size());
+    assertTrue(subject.get(0));
+    assertFalse(subject.get(1));
+    assertFalse(subject.get(2));
+    assertFalse(subject.get(3));
+    assertTrue(subject.get(4));
+    assertFalse(subject.get(5));
+  }
+
+  @Test
+  public void insertUnmarkedRange_atEnd() {
+    DataStatus subject = DataStatus.obtain(2);
+    subject.markRange(0, 2);
+
+    subject.insertUnmarkedRange(2, 3);
+
+    assertEquals(5, subject.size());
+    assertEquals(2, subject.getEarliestUnmarkedIndexInRange(0, 5));
+  }
+
+  @Test
+  public void removeRange_shiftsMarkedPositions() {
+    DataStatus subject = DataStatus.obtain(6);
+    subject.mark(0);
+    subject.mark(2);
+    subject.mark(5);
+
+    subject.removeRange(1, 3);
+
+    assertEquals(3, subject.size());
+    assertTrue(subject.get(0));
+    assertFalse(subject.get(1));
+    assertTrue(subject.get(2));
+    assertFalse(subject.get(3));
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void removeRange_pastEndThrows() {
+    DataStatus subject = DataStatus.obtain(3);
+    subject.removeRange(2, 2);
+  }
 }
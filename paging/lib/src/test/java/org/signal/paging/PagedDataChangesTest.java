@@ -0,0 +1,61 @@
+package org.signal.paging;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class PagedDataChangesTest {
+
+  @Test
+  public void diff_identical_hasNoChanges() {
+    List<String> keys = Arrays.asList("a", "b", "c");
+
+    assertEquals(Collections.emptyList(), PagedDataChanges.diff(keys, keys).build().getRangeChanges());
+  }
+
+  @Test
+  public void diff_moveToTop_isOneRemovalAndOneInsert() {
+    PagedDataChanges<String> changes = PagedDataChanges.diff(Arrays.asList("a", "b", "c", "d"), Arrays.asList("d", "a", "b", "c")).build();
+
+    assertEquals("[removed(3, 1), inserted(0, 1)]", changes.getRangeChanges().toString());
+  }
+
+  @Test
+  public void diff_insertsAndRemovals_produceTheNewOrder() {
+    assertDiffApplies(Arrays.asList("a", "b", "c", "d", "e"), Arrays.asList("x", "a", "c", "y", "z", "e"));
+    assertDiffApplies(Arrays.asList("a", "b", "c"), Arrays.asList("c", "b", "a"));
+    assertDiffApplies(Arrays.asList("a", "b", "c"), Collections.emptyList());
+    assertDiffApplies(Collections.emptyList(), Arrays.asList("a", "b"));
+    assertDiffApplies(Arrays.asList("a", "b", "c", "d", "e", "f"), Arrays.asList("b", "a", "d", "c", "f", "e"));
+  }
+
+  @Test
+  public void diff_consecutiveItems_areGroupedIntoRanges() {
+    PagedDataChanges<String> changes = PagedDataChanges.diff(Arrays.asList("a", "b", "c", "d", "e"), Arrays.asList("a", "x", "y", "e")).build();
+
+    assertEquals("[removed(1, 3), inserted(1, 2)]", changes.getRangeChanges().toString());
+  }
+
+  private static void assertDiffApplies(@NonNull List<String> before, @NonNull List<String> after) {
+    List<String> result = new ArrayList<>(before);
+
+    for (PagedDataChanges.RangeChange change : PagedDataChanges.diff(before, after).build().getRangeChanges()) {
+      for (int i = 0; i < change.getCount(); i++) {
+        if (change.isInsert()) {
+          result.add(change.getPosition() + i, after.get(change.getPosition() + i));
+        } else {
+          result.remove(change.getPosition());
+        }
+      }
+    }
+
+    assertEquals(after, result);
+  }
+}